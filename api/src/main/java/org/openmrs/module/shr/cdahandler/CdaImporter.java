@@ -5,6 +5,7 @@ import org.apache.commons.logging.LogFactory;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
 import org.openmrs.Visit;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.everest.CdaStreamReader;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.processor.document.DocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.ClasspathScannerUtil;
@@ -71,13 +72,23 @@ public final class CdaImporter {
 	 */
 	@Transactional(readOnly = true)
 	public Visit processCdaDocument(ClinicalDocument doc) throws DocumentImportException {
+		return this.processCdaDocument(doc, null);
+	}
+
+	/**
+	 * Processes a single CDA document whose structured body is read one component at a time
+	 * from body (or is already in doc if body is null)
+	 * @throws DocumentImportException 
+	 */
+	@Transactional(readOnly = true)
+	public Visit processCdaDocument(ClinicalDocument doc, CdaStreamReader body) throws DocumentImportException {
 
 	
 		// Get the document parser
 		DocumentProcessorFactory factory = DocumentProcessorFactory.getInstance();
 		DocumentProcessor processor = factory.createProcessor(doc);
 
-		Visit visitInformation = processor.process(doc);
+		Visit visitInformation = processor.process(doc, body);
 		
 		
 		// Copy the original
@@ -20,8 +20,19 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
+import org.openmrs.module.shr.cdahandler.cache.AccessionNumberFilter;
+import org.openmrs.module.shr.cdahandler.cache.StatementFingerprintCache;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.contenthandler.CdaContentHandler;
+import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueProcessor;
 import org.openmrs.module.shr.contenthandler.api.AlreadyRegisteredException;
 import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
@@ -30,10 +41,13 @@ import org.openmrs.module.shr.contenthandler.api.InvalidCodedValueException;
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class ShrCdaHandlerActivator implements ModuleActivator {
+public class ShrCdaHandlerActivator implements ModuleActivator, DaemonTokenAware {
 	
 	protected Log log = LogFactory.getLog(getClass());
 	
+	// Token used to load the accession number filter in the background
+	private DaemonToken m_daemonToken;
+	
 	// Format codes this handler supports
 	protected final Map<String, String> m_formatTypeCodes = new HashMap<String, String>()
 			{{
@@ -81,11 +95,73 @@ public class ShrCdaHandlerActivator implements ModuleActivator {
 		}
     }
 
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		this.m_daemonToken = token;
+		CdaImportQueueProcessor.getInstance().setDaemonToken(token);
+	}
+
+	/**
+	 * Load the accession number filter in the background (every accession number might 
+	 * exist until it has loaded)
+	 */
+	private void loadAccessionNumberFilter() {
+		AccessionNumberFilter.getInstance().clear();
+		if(!CdaHandlerConfiguration.getInstance().getUseAccessionNumberFilter())
+			return;
+		else if(this.m_daemonToken == null)
+		{
+			log.warn("No daemon token has been provided, the accession number filter will not be loaded");
+			return;
+		}
+		
+		Daemon.runInDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OpenmrsDataUtil.getInstance().loadAccessionNumberFilter();
+				}
+				catch(RuntimeException e) {
+					log.error("Could not load the accession number filter", e);
+					AccessionNumberFilter.getInstance().clear();
+				}
+			}
+		}, this.m_daemonToken);
+	}
+
+	/**
+	 * Warm up the formatters in the background (the first imports construct their own
+	 * formatters until it is done)
+	 */
+	private void warmUpFormatters() {
+		if(this.m_daemonToken == null)
+		{
+			log.warn("No daemon token has been provided, the formatters will not be warmed up");
+			return;
+		}
+		
+		final int poolSize = CdaHandlerConfiguration.getInstance().getQueueWorkers() + 1;
+		Daemon.runInDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				EverestUtil.warmUp(poolSize);
+			}
+		}, this.m_daemonToken);
+	}
+
 	/**
 	 * @see ModuleActivator#started()
 	 */
 	public void started() {
 		this.registerContentHandler();
+		this.warmUpFormatters();
+		OpenmrsMetadataUtil.getInstance().loadRegistry();
+		this.loadAccessionNumberFilter();
+		CdaImportQueueProcessor.getInstance().start();
+		ImportMetrics.getInstance().setSlowImportThresholds(CdaHandlerConfiguration.getInstance().getSlowImportMillis(), CdaHandlerConfiguration.getInstance().getSlowImportStatements());
+		ImportMetrics.getInstance().publish();
 		log.info("SHR CDA Handler Module started");
 		
 	}
@@ -116,6 +192,11 @@ public class ShrCdaHandlerActivator implements ModuleActivator {
 	 */
 	public void willStop() {
 		log.info("Stopping SHR CDA Handler Module");
+		CdaImportQueueProcessor.getInstance().stop();
+		// Data saved while the module is stopped isn't added to the filter
+		AccessionNumberFilter.getInstance().clear();
+		StatementFingerprintCache.getInstance().clear();
+		ImportMetrics.getInstance().unpublish();
 	}
 		
 }
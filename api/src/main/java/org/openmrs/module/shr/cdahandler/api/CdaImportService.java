@@ -14,19 +14,31 @@
 package org.openmrs.module.shr.cdahandler.api;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
+import org.hibernate.FlushMode;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
 import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
+import org.openmrs.LocationAttributeType;
 import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Order;
+import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementReference;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -52,6 +64,52 @@ public interface CdaImportService extends OpenmrsService {
 	 */
 	Visit importDocument(ClinicalDocument inputStream) throws DocumentImportException;
 
+	/**
+	 * Queue a document for asynchronous import, returning the ticket which can be 
+	 * used to track the import via {@link #getQueueItem(String)}
+	 */
+	String queueDocument(InputStream inputStream) throws DocumentImportException;
+
+	/**
+	 * Get a queued document by its ticket
+	 */
+	@Transactional(readOnly = true)
+	CdaImportQueueItem getQueueItem(String ticket);
+
+	/**
+	 * Save a queued document
+	 */
+	CdaImportQueueItem saveQueueItem(CdaImportQueueItem item);
+
+	/**
+	 * Claim up to maxItems pending documents from the queue for this node, marking them as processing. 
+	 * Documents claimed concurrently by another node are skipped
+	 */
+	List<CdaImportQueueItem> claimQueueItems(int maxItems);
+
+	/**
+	 * Claim a pending document for this node, returning false if it has already been claimed
+	 */
+	boolean claimQueueItem(CdaImportQueueItem item);
+
+	/**
+	 * Mark a claimed document as imported into the specified visit
+	 */
+	CdaImportQueueItem completeQueueItem(String ticket, Visit visit);
+
+	/**
+	 * Record the failure of a claimed document, returning it to the queue if the failure may be 
+	 * temporary (retry) and it has been attempted fewer than the configured maximum times, or 
+	 * leaving it in error otherwise
+	 */
+	CdaImportQueueItem failQueueItem(String ticket, String errorMessage, boolean retry);
+
+	/**
+	 * Return the documents which this node was processing when the queue was stopped, and the
+	 * documents other nodes claimed longer ago than the claim timeout, back to the pending state
+	 */
+	int requeueInterruptedItems();
+
 	/**
 	 * Subscribe to the import operation
 	 * 
@@ -105,5 +163,161 @@ public interface CdaImportService extends OpenmrsService {
 	 */
 	List<Concept> getConceptsByMapping(ConceptReferenceTerm term, String strength);
 
+	/**
+	 * Get all reference terms in the specified source having any of the specified codes 
+	 */
+	@Transactional(readOnly = true)
+	List<ConceptReferenceTerm> getConceptReferenceTerms(ConceptSource source, Collection<String> codes);
+
+	/**
+	 * Get all maps between non-retired concepts and any of the specified reference terms
+	 */
+	@Transactional(readOnly = true)
+	List<ConceptMap> getConceptMapsByReferenceTerms(Collection<ConceptReferenceTerm> terms);
+
+	/**
+	 * Get the ids of the locations having an active attribute of the specified type with the specified value
+	 */
+	@Transactional(readOnly = true)
+	List<Integer> getLocationIdsByAttribute(LocationAttributeType attributeType, String value);
+
+	/**
+	 * Get the link between a formatted document id and the visit holding the document's data
+	 */
+	@Transactional(readOnly = true)
+	CdaDocumentVisit getDocumentVisit(String documentId);
+
+	/**
+	 * Save a link between a document id and a visit
+	 */
+	CdaDocumentVisit saveDocumentVisit(CdaDocumentVisit documentVisit);
+
+	/**
+	 * Get the ids of the non-voided obs having any of the specified accession numbers, by accession number
+	 */
+	@Transactional(readOnly = true)
+	Map<String, List<Integer>> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the ids of the non-voided orders having any of the specified accession numbers, by accession number
+	 */
+	@Transactional(readOnly = true)
+	Map<String, List<Integer>> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the ids of the active list items whose start or stop obs has any of the specified accession 
+	 * numbers, by accession number
+	 */
+	@Transactional(readOnly = true)
+	<T extends ActiveListItem> Map<String, List<Integer>> getActiveListItemIdsByAccessionNumbers(Collection<String> accessionNumbers, Class<T> clazz);
+
+	/**
+	 * Get the number of non-voided obs and orders which have an accession number
+	 */
+	@Transactional(readOnly = true)
+	Long getAccessionNumberCount();
+
+	/**
+	 * Get the accession numbers of the non-voided obs with an id greater than afterObsId, by obs id in 
+	 * ascending order
+	 */
+	@Transactional(readOnly = true)
+	Map<Integer, String> getObsAccessionNumbers(Integer afterObsId, Integer maxResults);
+
+	/**
+	 * Get the accession numbers of the non-voided orders with an id greater than afterOrderId, by order id 
+	 * in ascending order
+	 */
+	@Transactional(readOnly = true)
+	Map<Integer, String> getOrderAccessionNumbers(Integer afterOrderId, Integer maxResults);
+
+	/**
+	 * Void a visit with its encounters, obs, orders and the problems and allergies started or stopped
+	 * by its obs in bulk, using the same reason for all of them. The data of statements which other 
+	 * documents skipped because the visit held them is first handed over to the oldest of those 
+	 * documents' visits. The fingerprints of the statements held by the visit are deleted. The voided
+	 * data held in the session is refreshed
+	 * @return The number of rows voided
+	 */
+	int voidVisitData(Visit visit, String voidReason);
+
+	/**
+	 * Get the stored fingerprints of the patient's statements with the specified accession numbers
+	 */
+	@Transactional(readOnly = true)
+	List<CdaStatementFingerprint> getStatementFingerprints(Patient patient, Collection<String> accessionNumbers);
+
+	/**
+	 * Get all of the stored fingerprints of the patient's statements
+	 */
+	@Transactional(readOnly = true)
+	List<CdaStatementFingerprint> getStatementFingerprints(Patient patient);
+
+	/**
+	 * Save a statement fingerprint
+	 */
+	CdaStatementFingerprint saveStatementFingerprint(CdaStatementFingerprint fingerprint);
+
+	/**
+	 * Record that the data of the patient's statements with the specified accession numbers is now held by the visit
+	 * @return The number of fingerprints updated
+	 */
+	int updateStatementFingerprintVisit(Patient patient, Collection<String> accessionNumbers, Visit visit);
+
+	/**
+	 * Move the non-voided obs (with their group members) and orders with the specified accession numbers
+	 * from the other encounters of a visit to an encounter
+	 * @return The ids of the moved obs which aren't members of another moved obs, by accession number
+	 */
+	Map<String, List<Integer>> moveStatementData(Collection<String> accessionNumbers, Visit fromVisit, Encounter toEncounter);
+
+	/**
+	 * Get the references of a visit to the patient's statements held by other visits
+	 */
+	@Transactional(readOnly = true)
+	List<CdaStatementReference> getStatementReferences(Patient patient, Visit visit);
+
+	/**
+	 * Save a statement reference
+	 */
+	CdaStatementReference saveStatementReference(CdaStatementReference reference);
+
+	/**
+	 * Make the specified obs members of an obs group (or of no group when it is null)
+	 * @return The number of obs updated
+	 */
+	int setObsGroup(Collection<Integer> obsIds, Obs obsGroup);
+
+	/**
+	 * Set the flush mode of the current session
+	 * @return The previous flush mode
+	 */
+	FlushMode setFlushMode(FlushMode flushMode);
+
+	/**
+	 * Start tracking the entities saved on this thread, for {@link #evictEntities(Collection)}
+	 */
+	void startEntityTracking();
+
+	/**
+	 * Stop tracking the entities saved on this thread
+	 */
+	void stopEntityTracking();
+
+	/**
+	 * Evict the instances of the specified entity classes (and their subclasses) which were saved
+	 * on this thread since tracking started or the last eviction from the current session. 
+	 * Changes which haven't been flushed are lost
+	 * @return The number of instances evicted
+	 */
+	int evictEntities(Collection<Class<?>> entityClasses);
+
+	/**
+	 * Get the current session's instance of an object which was saved in another transaction, 
+	 * re-reading the instance the session already holds (which may be stale) if there is one
+	 * @return The instance, or null if the object isn't visible to the current transaction
+	 */
+	<T extends OpenmrsObject> T reload(T object);
+
 
 }
\ No newline at end of file
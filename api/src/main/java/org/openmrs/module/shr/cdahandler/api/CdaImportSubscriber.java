@@ -10,7 +10,10 @@ import org.openmrs.Visit;
 public interface CdaImportSubscriber {
 	
 	/**
-	 * Indicates a document was imported successfully by the processor
+	 * Indicates a document was imported successfully by the processor. When documents are 
+	 * read one section at a time (shr-cdahandler.streamSections) the sections are released 
+	 * as they are processed, so rawDocument is the header of the document and its structured 
+	 * body is empty
 	 */
 	void onDocumentImported(ClinicalDocument rawDocument, Visit processedVisit);
 	
@@ -1,15 +1,30 @@
 package org.openmrs.module.shr.cdahandler.api.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.hibernate.FlushMode;
 import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
 import org.openmrs.ConceptMapType;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
+import org.openmrs.LocationAttributeType;
 import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.Visit;
 import org.openmrs.activelist.ActiveListItem;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementReference;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 
 /**
  * Represents a DAO for extended CDA properties
@@ -56,5 +71,171 @@ public interface CdaImportServiceDAO {
 	 */
 	ConceptSource getConceptSourceByHl7(String hl7);
 
+	/**
+	 * Save an item in the import queue
+	 */
+	CdaImportQueueItem saveQueueItem(CdaImportQueueItem item);
+
+	/**
+	 * Get an import queue item by its UUID (ticket)
+	 */
+	CdaImportQueueItem getQueueItemByUuid(String uuid);
+
+	/**
+	 * Get the oldest queue items in the specified state
+	 */
+	List<CdaImportQueueItem> getQueueItemsByState(Integer state, Integer maxResults);
+
+	/**
+	 * Claim a pending queue item for the specified node, returning false if the item is no 
+	 * longer pending (another node claimed it first). The item is refreshed when claimed
+	 */
+	boolean claimQueueItem(CdaImportQueueItem item, String claimedBy, Date dateClaimed);
+
+	/**
+	 * Return the items being processed which were claimed by the specified node, or claimed 
+	 * by any node before the specified date, to the pending state
+	 */
+	int requeueQueueItems(String claimedBy, Date claimedBefore);
+
+	/**
+	 * Get the reference terms in the specified source having any of the specified codes
+	 */
+	List<ConceptReferenceTerm> getConceptReferenceTerms(ConceptSource source, Collection<String> codes);
+
+	/**
+	 * Get the maps from non-retired concepts to any of the specified reference terms
+	 */
+	List<ConceptMap> getConceptMapsByReferenceTerms(Collection<ConceptReferenceTerm> terms);
+
+	/**
+	 * Get the ids of the locations having an active attribute of the specified type with the specified value
+	 */
+	List<Integer> getLocationIdsByAttribute(LocationAttributeType attributeType, String value);
+
+	/**
+	 * Get the link between a formatted document id and a visit
+	 */
+	CdaDocumentVisit getDocumentVisit(String documentId);
+
+	/**
+	 * Save a link between a document id and a visit
+	 */
+	CdaDocumentVisit saveDocumentVisit(CdaDocumentVisit documentVisit);
+
+	/**
+	 * Get the ids of the non-voided obs having any of the specified accession numbers, by accession number
+	 */
+	Map<String, List<Integer>> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the ids of the non-voided orders having any of the specified accession numbers, by accession number
+	 */
+	Map<String, List<Integer>> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the ids of the active list items whose start or stop obs has any of the specified accession numbers
+	 */
+	<T extends ActiveListItem> Map<String, List<Integer>> getActiveListItemIdsByAccessionNumbers(Collection<String> accessionNumbers, Class<T> clazz);
+
+	/**
+	 * Get the number of non-voided obs and orders which have an accession number
+	 */
+	Long getAccessionNumberCount();
+
+	/**
+	 * Get the accession numbers of the non-voided obs with an id greater than afterObsId, by obs id
+	 */
+	Map<Integer, String> getObsAccessionNumbers(Integer afterObsId, Integer maxResults);
+
+	/**
+	 * Get the accession numbers of the non-voided orders with an id greater than afterOrderId, by order id
+	 */
+	Map<Integer, String> getOrderAccessionNumbers(Integer afterOrderId, Integer maxResults);
+
+	/**
+	 * Void the non-voided parts of a visit (the visit, its encounters, their obs and orders and the 
+	 * active list items started or stopped by an obs with an accession number) in bulk, and delete the
+	 * fingerprints of the statements held by the visit and its references to statements held by others
+	 */
+	int voidVisitData(Visit visit, User voidedBy, Date dateVoided, String voidReason);
+
+	/**
+	 * Get the stored fingerprints of the patient's statements with the specified accession numbers
+	 */
+	List<CdaStatementFingerprint> getStatementFingerprints(Patient patient, Collection<String> accessionNumbers);
+
+	/**
+	 * Get all of the stored fingerprints of the patient's statements
+	 */
+	List<CdaStatementFingerprint> getStatementFingerprints(Patient patient);
+
+	/**
+	 * Save a statement fingerprint
+	 */
+	CdaStatementFingerprint saveStatementFingerprint(CdaStatementFingerprint fingerprint);
+
+	/**
+	 * Set the visit of the patient's statement fingerprints with the specified accession numbers
+	 */
+	int updateStatementFingerprintVisit(Patient patient, Collection<String> accessionNumbers, Visit visit);
+
+	/**
+	 * Get the references of a visit to statements held by other visits
+	 */
+	List<CdaStatementReference> getStatementReferences(Patient patient, Visit visit);
+
+	/**
+	 * Get the references of other non-voided visits to the statements held by a visit, oldest 
+	 * referencing visit first
+	 */
+	List<CdaStatementReference> getReferencesToStatements(Visit visit);
+
+	/**
+	 * Save a statement reference
+	 */
+	CdaStatementReference saveStatementReference(CdaStatementReference reference);
+
+	/**
+	 * Delete the references of a visit to the patient's statements with the specified accession numbers
+	 */
+	int deleteStatementReferences(Patient patient, Collection<String> accessionNumbers, Visit visit);
+
+	/**
+	 * Move the non-voided obs (with their group members) and orders with the specified accession numbers
+	 * from the other encounters of a visit to an encounter
+	 */
+	Map<String, List<Integer>> moveStatementData(Collection<String> accessionNumbers, Visit fromVisit, Encounter toEncounter);
+
+	/**
+	 * Set the obs group of the specified obs (null to remove them from their group)
+	 */
+	int setObsGroup(Collection<Integer> obsIds, Obs obsGroup);
+
+	/**
+	 * Set the flush mode of the current session, returning the previous mode
+	 */
+	FlushMode setFlushMode(FlushMode flushMode);
+
+	/**
+	 * Start tracking the entities saved on this thread for {@link #evictEntities(Collection)}
+	 */
+	void startEntityTracking();
+
+	/**
+	 * Stop tracking the entities saved on this thread
+	 */
+	void stopEntityTracking();
+
+	/**
+	 * Evict the tracked instances of the specified entity classes from the current session
+	 */
+	int evictEntities(Collection<Class<?>> entityClasses);
+
+	/**
+	 * Get the current session's instance of an object saved in another transaction, refreshing 
+	 * the instance already in the session if there is one
+	 */
+	<T extends OpenmrsObject> T reload(T object);
 	
 }
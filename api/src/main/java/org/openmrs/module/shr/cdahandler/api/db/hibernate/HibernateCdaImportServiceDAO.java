@@ -1,27 +1,56 @@
 package org.openmrs.module.shr.cdahandler.api.db.hibernate;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
+import org.openmrs.LocationAttributeType;
 import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.Visit;
 import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.api.db.hibernate.HibernateConceptDAO;
 import org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementReference;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 
 /**
  * Hibernate DAO for CDA import service
  */
 public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 	
+	// The maximum number of values bound to a single IN clause
+	private static final int MAX_BATCH_SIZE = 500;
+	
 	// Hibernate session factory
 	private DbSessionFactory m_sessionFactory;
 	
@@ -122,4 +151,630 @@ public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 		return (ConceptSource)crit.uniqueResult();
 	}
 
+	/**
+	 * Save a queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#saveQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem)
+	 */
+	@Override
+	public CdaImportQueueItem saveQueueItem(CdaImportQueueItem item) {
+		this.m_sessionFactory.getCurrentSession().saveOrUpdate(item);
+		return item;
+	}
+
+	/**
+	 * Get a queue item by its ticket
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItemByUuid(java.lang.String)
+	 */
+	@Override
+	public CdaImportQueueItem getQueueItemByUuid(String uuid) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("uuid", uuid));
+		return (CdaImportQueueItem)crit.uniqueResult();
+	}
+
+	/**
+	 * Get the oldest queue items in the specified state
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItemsByState(java.lang.Integer, java.lang.Integer)
+	 */
+	@Override
+	public List<CdaImportQueueItem> getQueueItemsByState(Integer state, Integer maxResults) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("state", state))
+				.addOrder(org.hibernate.criterion.Order.asc("dateCreated"));
+		if(maxResults != null)
+			crit.setMaxResults(maxResults);
+		return (List<CdaImportQueueItem>)crit.list();
+	}
+
+	/**
+	 * Claim a queue item with a conditional update, so that only one of the nodes (or workers)
+	 * which selected the pending item moves it to processing
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#claimQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem, java.lang.String, java.util.Date)
+	 */
+	@Override
+	public boolean claimQueueItem(CdaImportQueueItem item, String claimedBy, Date dateClaimed) {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		int updated = session
+				.createQuery("update CdaImportQueueItem set state = :processing, attempts = attempts + 1, claimedBy = :claimedBy, dateClaimed = :dateClaimed " +
+						"where cdaImportQueueItemId = :id and state = :pending")
+				.setInteger("processing", CdaImportQueueItem.STATE_PROCESSING)
+				.setString("claimedBy", claimedBy)
+				.setTimestamp("dateClaimed", dateClaimed)
+				.setInteger("id", item.getCdaImportQueueItemId())
+				.setInteger("pending", CdaImportQueueItem.STATE_PENDING)
+				.executeUpdate();
+		if(updated == 0)
+			return false;
+		// The bulk update bypasses the session, so bring the item up to date
+		if(session.contains(item))
+			session.refresh(item);
+		return true;
+	}
+
+	/**
+	 * Return the interrupted items of a node, or the items of any node which has held them too long, to the queue
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#requeueQueueItems(java.lang.String, java.util.Date)
+	 */
+	@Override
+	public int requeueQueueItems(String claimedBy, Date claimedBefore) {
+		return this.m_sessionFactory.getCurrentSession()
+				.createQuery("update CdaImportQueueItem set state = :pending " +
+						"where state = :processing and (claimedBy = :claimedBy or claimedBy is null or dateClaimed is null or dateClaimed < :claimedBefore)")
+				.setInteger("pending", CdaImportQueueItem.STATE_PENDING)
+				.setInteger("processing", CdaImportQueueItem.STATE_PROCESSING)
+				.setString("claimedBy", claimedBy)
+				.setTimestamp("claimedBefore", claimedBefore)
+				.executeUpdate();
+	}
+
+	/**
+	 * Get the reference terms in a source by code
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getConceptReferenceTerms(org.openmrs.ConceptSource, java.util.Collection)
+	 */
+	@Override
+	public List<ConceptReferenceTerm> getConceptReferenceTerms(ConceptSource source, Collection<String> codes) {
+		if(codes.isEmpty())
+			return new ArrayList<ConceptReferenceTerm>();
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(ConceptReferenceTerm.class)
+				.add(Restrictions.eq("conceptSource", source))
+				.add(Restrictions.in("code", codes));
+		return (List<ConceptReferenceTerm>)crit.list();
+	}
+
+	/**
+	 * Get the concept maps (with their concepts and map types) for the specified terms
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getConceptMapsByReferenceTerms(java.util.Collection)
+	 */
+	@Override
+	public List<ConceptMap> getConceptMapsByReferenceTerms(Collection<ConceptReferenceTerm> terms) {
+		if(terms.isEmpty())
+			return new ArrayList<ConceptMap>();
+		return (List<ConceptMap>)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select m from ConceptMap m join fetch m.concept c join fetch m.conceptMapType where m.conceptReferenceTerm in (:terms) and c.retired = false")
+				.setParameterList("terms", terms)
+				.list();
+	}
+
+	/**
+	 * Get the ids of locations by attribute value
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getLocationIdsByAttribute(org.openmrs.LocationAttributeType, java.lang.String)
+	 */
+	@Override
+	public List<Integer> getLocationIdsByAttribute(LocationAttributeType attributeType, String value) {
+		return (List<Integer>)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select a.location.locationId from LocationAttribute a where a.attributeType = :type and a.valueReferenceInternal = :value and a.voided = false order by a.location.locationId")
+				.setParameter("type", attributeType)
+				.setParameter("value", value)
+				.list();
+	}
+
+	/**
+	 * Get a document visit link by document id
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getDocumentVisit(java.lang.String)
+	 */
+	@Override
+	public CdaDocumentVisit getDocumentVisit(String documentId) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaDocumentVisit.class)
+				.add(Restrictions.eq("documentId", documentId));
+		return (CdaDocumentVisit)crit.uniqueResult();
+	}
+
+	/**
+	 * Save a document visit link
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#saveDocumentVisit(org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit)
+	 */
+	@Override
+	public CdaDocumentVisit saveDocumentVisit(CdaDocumentVisit documentVisit) {
+		this.m_sessionFactory.getCurrentSession().saveOrUpdate(documentVisit);
+		return documentVisit;
+	}
+
+	/**
+	 * Get obs ids by accession number
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getObsIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, List<Integer>> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.getIdsByAccessionNumbers("select o.accessionNumber, o.obsId from Obs o where o.accessionNumber in (:ans) and o.voided = false order by o.obsId", accessionNumbers);
+	}
+
+	/**
+	 * Get order ids by accession number
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getOrderIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, List<Integer>> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.getIdsByAccessionNumbers("select o.accessionNumber, o.orderId from Order o where o.accessionNumber in (:ans) and o.voided = false order by o.orderId", accessionNumbers);
+	}
+
+	/**
+	 * Get active list item ids by the accession number of their start/stop obs
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getActiveListItemIdsByAccessionNumbers(java.util.Collection, java.lang.Class)
+	 */
+	@Override
+	public <T extends ActiveListItem> Map<String, List<Integer>> getActiveListItemIdsByAccessionNumbers(Collection<String> accessionNumbers, Class<T> clazz) {
+		return this.getIdsByAccessionNumbers(String.format("select o.accessionNumber, a.activeListId from %s a, Obs o where (a.startObs = o or a.stopObs = o) and o.accessionNumber in (:ans) and o.voided = false order by a.activeListId", clazz.getName()), accessionNumbers);
+	}
+
+	/**
+	 * Count the obs and orders with accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getAccessionNumberCount()
+	 */
+	@Override
+	public Long getAccessionNumberCount() {
+		Long obsCount = (Long)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select count(o.obsId) from Obs o where o.accessionNumber is not null and o.voided = false")
+				.uniqueResult(),
+			orderCount = (Long)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select count(o.orderId) from Order o where o.accessionNumber is not null and o.voided = false")
+				.uniqueResult();
+		return obsCount + orderCount;
+	}
+
+	/**
+	 * Get a page of obs accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getObsAccessionNumbers(java.lang.Integer, java.lang.Integer)
+	 */
+	@Override
+	public Map<Integer, String> getObsAccessionNumbers(Integer afterObsId, Integer maxResults) {
+		return this.getAccessionNumbers("select o.obsId, o.accessionNumber from Obs o where o.obsId > :after and o.accessionNumber is not null and o.voided = false order by o.obsId", afterObsId, maxResults);
+	}
+
+	/**
+	 * Get a page of order accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getOrderAccessionNumbers(java.lang.Integer, java.lang.Integer)
+	 */
+	@Override
+	public Map<Integer, String> getOrderAccessionNumbers(Integer afterOrderId, Integer maxResults) {
+		return this.getAccessionNumbers("select o.orderId, o.accessionNumber from Order o where o.orderId > :after and o.accessionNumber is not null and o.voided = false order by o.orderId", afterOrderId, maxResults);
+	}
+
+	/**
+	 * Void a visit's data with one statement per table. Native SQL is used because HQL bulk updates
+	 * of obs and orders (which have joined subclasses) go through temporary tables
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#voidVisitData(org.openmrs.Visit, org.openmrs.User, java.util.Date, java.lang.String)
+	 */
+	@Override
+	public int voidVisitData(Visit visit, User voidedBy, Date dateVoided, String voidReason) {
+		Session session = this.m_sessionFactory.getHibernateSessionFactory().getCurrentSession();
+		String encounters = "select e.encounter_id from encounter e where e.visit_id = :visitId and e.voided = :notVoided",
+				obs = "select o.obs_id from obs o where o.encounter_id in (" + encounters + ") and o.accession_number is not null and o.voided = :notVoided";
+		
+		// The statements must see the data saved in the session, and the encounters they void
+		session.flush();
+		Set<Integer> encounterIds = new HashSet<Integer>();
+		for(Object encounterId : session.createSQLQuery(encounters)
+				.setInteger("visitId", visit.getVisitId())
+				.setBoolean("notVoided", false)
+				.list())
+			encounterIds.add(((Number)encounterId).intValue());
+		
+		// Children first, so that each statement only sees the rows which were active before the void
+		int retVal = this.voidRows("active_list", "(start_obs_id in (" + obs + ") or stop_obs_id in (" + obs + "))", visit, voidedBy, dateVoided, voidReason);
+		retVal += this.voidRows("obs", "encounter_id in (" + encounters + ")", visit, voidedBy, dateVoided, voidReason);
+		retVal += this.voidRows("orders", "encounter_id in (" + encounters + ")", visit, voidedBy, dateVoided, voidReason);
+		retVal += this.voidRows("encounter", "visit_id = :visitId", visit, voidedBy, dateVoided, voidReason);
+		retVal += this.voidRows("visit", "visit_id = :visitId", visit, voidedBy, dateVoided, voidReason);
+		
+		// The fingerprints must not point at voided data, and the visit no longer references statements
+		session.createQuery("delete from CdaStatementFingerprint where visit = :visit")
+				.setParameter("visit", visit)
+				.executeUpdate();
+		session.createQuery("delete from CdaStatementReference where visit = :visit")
+				.setParameter("visit", visit)
+				.executeUpdate();
+		
+		// The data in the session still thinks it is active
+		this.refreshVisitData(session, visit, encounterIds);
+		return retVal;
+	}
+
+	/**
+	 * Refresh the visit and the encounters, obs, orders and active list items of the encounters
+	 * in the session, and evict the visit's deleted fingerprints and references, after the visit's
+	 * data was voided by SQL
+	 */
+	private void refreshVisitData(Session session, Visit visit, Set<Integer> encounterIds) {
+		List<Object> refresh = new ArrayList<Object>(),
+				evict = new ArrayList<Object>();
+		for(Object key : new ArrayList<Object>(session.getStatistics().getEntityKeys()))
+		{
+			// Already in the session, so this doesn't query
+			EntityKey entityKey = (EntityKey)key;
+			Object entity = session.get(entityKey.getEntityName(), entityKey.getIdentifier());
+			if(entity instanceof Encounter && encounterIds.contains(((Encounter)entity).getEncounterId()) ||
+					entity instanceof Obs && this.isInEncounters(((Obs)entity).getEncounter(), encounterIds) ||
+					entity instanceof Order && this.isInEncounters(((Order)entity).getEncounter(), encounterIds) ||
+					entity instanceof ActiveListItem && this.isInEncounters((ActiveListItem)entity, encounterIds))
+				refresh.add(entity);
+			else if(entity instanceof CdaStatementFingerprint && visit.equals(((CdaStatementFingerprint)entity).getVisit()) ||
+					entity instanceof CdaStatementReference && visit.equals(((CdaStatementReference)entity).getVisit()))
+				evict.add(entity);
+		}
+		
+		for(Object entity : evict)
+			session.evict(entity);
+		// Refreshing an encounter cascades to its obs and orders, which may already be in the list
+		for(Object entity : refresh)
+			if(session.contains(entity))
+				session.refresh(entity);
+		session.refresh(visit);
+	}
+
+	/**
+	 * True if the encounter is one of the specified encounters
+	 */
+	private boolean isInEncounters(Encounter encounter, Set<Integer> encounterIds) {
+		return encounter != null && encounterIds.contains(encounter.getEncounterId());
+	}
+
+	/**
+	 * True if the start or stop obs of the active list item belongs to one of the specified encounters
+	 */
+	private boolean isInEncounters(ActiveListItem item, Set<Integer> encounterIds) {
+		return item.getStartObs() != null && this.isInEncounters(item.getStartObs().getEncounter(), encounterIds) ||
+				item.getStopObs() != null && this.isInEncounters(item.getStopObs().getEncounter(), encounterIds);
+	}
+
+	/**
+	 * Void the non-voided rows of a table matching the criteria
+	 */
+	private int voidRows(String table, String criteria, Visit visit, User voidedBy, Date dateVoided, String voidReason) {
+		return this.m_sessionFactory.getCurrentSession()
+				.createSQLQuery(String.format("update %1$s set voided = :voided, voided_by = :voidedBy, date_voided = :dateVoided, void_reason = :voidReason where %2$s and voided = :notVoided", table, criteria))
+				.addSynchronizedQuerySpace(table)
+				.setBoolean("voided", true)
+				.setBoolean("notVoided", false)
+				.setInteger("voidedBy", voidedBy.getUserId())
+				.setTimestamp("dateVoided", dateVoided)
+				.setString("voidReason", voidReason)
+				.setInteger("visitId", visit.getVisitId())
+				.executeUpdate();
+	}
+
+	/**
+	 * Get statement fingerprints
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getStatementFingerprints(org.openmrs.Patient, java.util.Collection)
+	 */
+	@Override
+	public List<CdaStatementFingerprint> getStatementFingerprints(Patient patient, Collection<String> accessionNumbers) {
+		List<CdaStatementFingerprint> retVal = new ArrayList<CdaStatementFingerprint>();
+		List<String> batch = new ArrayList<String>(accessionNumbers);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+		{
+			Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaStatementFingerprint.class)
+					.add(Restrictions.eq("patient", patient))
+					.add(Restrictions.in("accessionNumber", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size()))));
+			retVal.addAll((List<CdaStatementFingerprint>)crit.list());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Get all statement fingerprints of a patient
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getStatementFingerprints(org.openmrs.Patient)
+	 */
+	@Override
+	public List<CdaStatementFingerprint> getStatementFingerprints(Patient patient) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaStatementFingerprint.class)
+				.add(Restrictions.eq("patient", patient));
+		return (List<CdaStatementFingerprint>)crit.list();
+	}
+
+	/**
+	 * Save a statement fingerprint
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#saveStatementFingerprint(org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint)
+	 */
+	@Override
+	public CdaStatementFingerprint saveStatementFingerprint(CdaStatementFingerprint fingerprint) {
+		this.m_sessionFactory.getCurrentSession().saveOrUpdate(fingerprint);
+		return fingerprint;
+	}
+
+	/**
+	 * Update the visit of statement fingerprints
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#updateStatementFingerprintVisit(org.openmrs.Patient, java.util.Collection, org.openmrs.Visit)
+	 */
+	@Override
+	public int updateStatementFingerprintVisit(Patient patient, Collection<String> accessionNumbers, Visit visit) {
+		int retVal = 0;
+		List<String> batch = new ArrayList<String>(accessionNumbers);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+			retVal += this.m_sessionFactory.getCurrentSession()
+					.createQuery("update CdaStatementFingerprint set visit = :visit where patient = :patient and accessionNumber in (:ans)")
+					.setParameter("visit", visit)
+					.setParameter("patient", patient)
+					.setParameterList("ans", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size())))
+					.executeUpdate();
+		return retVal;
+	}
+
+	/**
+	 * Get the references of a visit
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getStatementReferences(org.openmrs.Patient, org.openmrs.Visit)
+	 */
+	@Override
+	public List<CdaStatementReference> getStatementReferences(Patient patient, Visit visit) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaStatementReference.class)
+				.add(Restrictions.eq("patient", patient))
+				.add(Restrictions.eq("visit", visit));
+		return (List<CdaStatementReference>)crit.list();
+	}
+
+	/**
+	 * Get the references to the statements held by a visit
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getReferencesToStatements(org.openmrs.Visit)
+	 */
+	@Override
+	public List<CdaStatementReference> getReferencesToStatements(Visit visit) {
+		return (List<CdaStatementReference>)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select r from CdaStatementReference r, CdaStatementFingerprint f " +
+						"where f.visit = :visit and r.patient = f.patient and r.accessionNumber = f.accessionNumber " +
+						"and r.visit <> :visit and r.visit.voided = false order by r.visit.visitId")
+				.setParameter("visit", visit)
+				.list();
+	}
+
+	/**
+	 * Save a statement reference
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#saveStatementReference(org.openmrs.module.shr.cdahandler.document.CdaStatementReference)
+	 */
+	@Override
+	public CdaStatementReference saveStatementReference(CdaStatementReference reference) {
+		this.m_sessionFactory.getCurrentSession().saveOrUpdate(reference);
+		return reference;
+	}
+
+	/**
+	 * Delete statement references
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#deleteStatementReferences(org.openmrs.Patient, java.util.Collection, org.openmrs.Visit)
+	 */
+	@Override
+	public int deleteStatementReferences(Patient patient, Collection<String> accessionNumbers, Visit visit) {
+		int retVal = 0;
+		List<String> batch = new ArrayList<String>(accessionNumbers);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+			retVal += this.m_sessionFactory.getCurrentSession()
+					.createQuery("delete from CdaStatementReference where patient = :patient and visit = :visit and accessionNumber in (:ans)")
+					.setParameter("patient", patient)
+					.setParameter("visit", visit)
+					.setParameterList("ans", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size())))
+					.executeUpdate();
+		return retVal;
+	}
+
+	/**
+	 * Move the data of statements to another encounter. The obs are found with HQL and moved with native 
+	 * SQL for the same reason as {@link #voidVisitData(Visit, User, Date, String)}
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#moveStatementData(java.util.Collection, org.openmrs.Visit, org.openmrs.Encounter)
+	 */
+	@Override
+	public Map<String, List<Integer>> moveStatementData(Collection<String> accessionNumbers, Visit fromVisit, Encounter toEncounter) {
+		
+		// Find the obs carrying the accession numbers
+		Map<String, List<Integer>> retVal = new HashMap<String, List<Integer>>();
+		Map<Integer, String> roots = new HashMap<Integer, String>();
+		List<String> batch = new ArrayList<String>(accessionNumbers);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+		{
+			List<Object[]> rows = (List<Object[]>)this.m_sessionFactory.getCurrentSession()
+					.createQuery("select o.obsId, o.accessionNumber from Obs o where o.accessionNumber in (:ans) and o.voided = false and o.encounter.visit = :visit and o.encounter <> :encounter")
+					.setParameterList("ans", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size())))
+					.setParameter("visit", fromVisit)
+					.setParameter("encounter", toEncounter)
+					.list();
+			for(Object[] row : rows)
+				roots.put((Integer)row[0], (String)row[1]);
+		}
+		
+		// Add their group members, level by level. An obs which is a member of another is not a root
+		Set<Integer> moved = new HashSet<Integer>(roots.keySet());
+		List<Integer> level = new ArrayList<Integer>(moved);
+		while(!level.isEmpty())
+		{
+			List<Integer> members = new ArrayList<Integer>();
+			for(int i = 0; i < level.size(); i += MAX_BATCH_SIZE)
+				members.addAll((List<Integer>)this.m_sessionFactory.getCurrentSession()
+						.createQuery("select o.obsId from Obs o where o.obsGroup.obsId in (:ids) and o.voided = false")
+						.setParameterList("ids", level.subList(i, Math.min(i + MAX_BATCH_SIZE, level.size())))
+						.list());
+			level = new ArrayList<Integer>();
+			for(Integer member : members)
+			{
+				roots.remove(member);
+				if(moved.add(member))
+					level.add(member);
+			}
+		}
+		
+		// Move them
+		List<Integer> obsIds = new ArrayList<Integer>(moved);
+		for(int i = 0; i < obsIds.size(); i += MAX_BATCH_SIZE)
+			this.m_sessionFactory.getCurrentSession()
+					.createSQLQuery("update obs set encounter_id = :encounterId where obs_id in (:ids)")
+					.addSynchronizedQuerySpace("obs")
+					.setInteger("encounterId", toEncounter.getEncounterId())
+					.setParameterList("ids", obsIds.subList(i, Math.min(i + MAX_BATCH_SIZE, obsIds.size())))
+					.executeUpdate();
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+			this.m_sessionFactory.getCurrentSession()
+					.createSQLQuery("update orders set encounter_id = :encounterId where accession_number in (:ans) and voided = :notVoided and encounter_id in (select e.encounter_id from encounter e where e.visit_id = :visitId and e.encounter_id <> :encounterId)")
+					.addSynchronizedQuerySpace("orders")
+					.setInteger("encounterId", toEncounter.getEncounterId())
+					.setParameterList("ans", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size())))
+					.setBoolean("notVoided", false)
+					.setInteger("visitId", fromVisit.getVisitId())
+					.executeUpdate();
+		
+		for(Map.Entry<Integer, String> root : roots.entrySet())
+		{
+			List<Integer> ids = retVal.get(root.getValue());
+			if(ids == null)
+			{
+				ids = new ArrayList<Integer>();
+				retVal.put(root.getValue(), ids);
+			}
+			ids.add(root.getKey());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Set the obs group of obs
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#setObsGroup(java.util.Collection, org.openmrs.Obs)
+	 */
+	@Override
+	public int setObsGroup(Collection<Integer> obsIds, Obs obsGroup) {
+		int retVal = 0;
+		List<Integer> batch = new ArrayList<Integer>(obsIds);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+		{
+			Query query = this.m_sessionFactory.getCurrentSession()
+					.createSQLQuery(obsGroup == null ? "update obs set obs_group_id = null where obs_id in (:ids)" : "update obs set obs_group_id = :groupId where obs_id in (:ids)")
+					.addSynchronizedQuerySpace("obs")
+					.setParameterList("ids", batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size())));
+			if(obsGroup != null)
+				query.setInteger("groupId", obsGroup.getObsId());
+			retVal += query.executeUpdate();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Set the flush mode of the current session
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#setFlushMode(org.hibernate.FlushMode)
+	 */
+	@Override
+	public FlushMode setFlushMode(FlushMode flushMode) {
+		FlushMode retVal = this.m_sessionFactory.getCurrentSession().getFlushMode();
+		this.m_sessionFactory.getCurrentSession().setFlushMode(flushMode);
+		return retVal;
+	}
+
+	/**
+	 * Start tracking the entities saved on this thread
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#startEntityTracking()
+	 */
+	@Override
+	public void startEntityTracking() {
+		SavedEntityInterceptor.startTracking();
+	}
+
+	/**
+	 * Stop tracking the entities saved on this thread
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#stopEntityTracking()
+	 */
+	@Override
+	public void stopEntityTracking() {
+		SavedEntityInterceptor.stopTracking();
+	}
+
+	/**
+	 * Evict the tracked entities from the current session
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#evictEntities(java.util.Collection)
+	 */
+	@Override
+	public int evictEntities(Collection<Class<?>> entityClasses) {
+		Session session = this.m_sessionFactory.getHibernateSessionFactory().getCurrentSession();
+		
+		// Evicting an obs cascades to its group members, which may also have been saved
+		int retVal = 0;
+		for(Object entity : SavedEntityInterceptor.takeSaved())
+			for(Class<?> entityClass : entityClasses)
+				if(entityClass.isInstance(entity))
+				{
+					if(session.contains(entity))
+					{
+						session.evict(entity);
+						retVal++;
+					}
+					break;
+				}
+		return retVal;
+	}
+
+	/**
+	 * Get the current session's instance of an object saved in another transaction
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#reload(org.openmrs.OpenmrsObject)
+	 */
+	@Override
+	public <T extends OpenmrsObject> T reload(T object) {
+		Session session = this.m_sessionFactory.getHibernateSessionFactory().getCurrentSession();
+		SessionImplementor sessionImplementor = (SessionImplementor)session;
+		String entityName = Hibernate.getClass(object).getName();
+		EntityPersister persister = sessionImplementor.getFactory().getEntityPersister(entityName);
+		
+		// The instance the session already holds was read before the object was saved
+		Object existing = sessionImplementor.getPersistenceContext().getEntity(new EntityKey(object.getId(), persister, EntityMode.POJO));
+		if(existing == object)
+			return object;
+		else if(existing != null)
+		{
+			session.refresh(existing);
+			return (T)existing;
+		}
+		return (T)session.get(entityName, object.getId());
+	}
+
+	/**
+	 * Run a query selecting (id, accession number) pairs after an id
+	 */
+	private Map<Integer, String> getAccessionNumbers(String hql, Integer afterId, Integer maxResults) {
+		Query query = this.m_sessionFactory.getCurrentSession()
+				.createQuery(hql)
+				.setInteger("after", afterId == null ? 0 : afterId);
+		if(maxResults != null)
+			query.setMaxResults(maxResults);
+		
+		Map<Integer, String> retVal = new LinkedHashMap<Integer, String>();
+		for(Object[] row : (List<Object[]>)query.list())
+			retVal.put((Integer)row[0], (String)row[1]);
+		return retVal;
+	}
+
+	/**
+	 * Run a query selecting (accession number, id) pairs and group the ids by accession number
+	 */
+	private Map<String, List<Integer>> getIdsByAccessionNumbers(String hql, Collection<String> accessionNumbers) {
+		Map<String, List<Integer>> retVal = new HashMap<String, List<Integer>>();
+		if(accessionNumbers.isEmpty())
+			return retVal;
+		
+		List<Object[]> rows = (List<Object[]>)this.m_sessionFactory.getCurrentSession()
+				.createQuery(hql)
+				.setParameterList("ans", accessionNumbers)
+				.list();
+		for(Object[] row : rows)
+		{
+			List<Integer> ids = retVal.get(row[0]);
+			if(ids == null)
+			{
+				ids = new ArrayList<Integer>();
+				retVal.put((String)row[0], ids);
+			}
+			ids.add((Integer)row[1]);
+		}
+		return retVal;
+	}
+
 }
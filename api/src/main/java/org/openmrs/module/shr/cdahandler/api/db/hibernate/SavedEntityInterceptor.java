@@ -0,0 +1,65 @@
+package org.openmrs.module.shr.cdahandler.api.db.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+
+/**
+ * Keeps the entities Hibernate inserts on the current thread while tracking is started (the
+ * document processor stops it once the document is processed), so that the import can evict
+ * the data it saved for a section without searching the session.
+ * OpenMRS chains the Hibernate interceptors declared as beans by modules
+ * @author Justin Fyfe
+ *
+ */
+public class SavedEntityInterceptor extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	// The entities saved since tracking started or the tracked entities were last taken
+	private static final ThreadLocal<List<Object>> s_saved = new ThreadLocal<List<Object>>();
+
+	/**
+	 * Start tracking the entities saved on this thread
+	 */
+	public static void startTracking()
+	{
+		s_saved.set(new ArrayList<Object>());
+	}
+
+	/**
+	 * Stop tracking the entities saved on this thread
+	 */
+	public static void stopTracking()
+	{
+		s_saved.remove();
+	}
+
+	/**
+	 * Get the entities saved on this thread since tracking started or this was last called,
+	 * and keep tracking (empty if tracking isn't started)
+	 */
+	public static List<Object> takeSaved()
+	{
+		List<Object> retVal = s_saved.get();
+		if(retVal == null)
+			return new ArrayList<Object>();
+		s_saved.set(new ArrayList<Object>());
+		return retVal;
+	}
+
+	/**
+	 * Track the entity inserted
+	 * @see org.hibernate.EmptyInterceptor#onSave(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		List<Object> saved = s_saved.get();
+		if(saved != null)
+			saved.add(entity);
+		return false;
+	}
+}
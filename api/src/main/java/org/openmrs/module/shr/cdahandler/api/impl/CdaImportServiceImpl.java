@@ -13,17 +13,18 @@
  */
 package org.openmrs.module.shr.cdahandler.api.impl;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
 import org.marc.everest.datatypes.II;
 import org.marc.everest.formatters.interfaces.IFormatterParseResult;
-import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
-import org.marc.everest.interfaces.IResultDetail;
-import org.marc.everest.interfaces.ResultDetailType;
-import org.marc.everest.resultdetails.DatatypeValidationResultDetail;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
 import org.openmrs.*;
 import org.openmrs.activelist.ActiveListItem;
@@ -35,12 +36,24 @@ import org.openmrs.module.shr.cdahandler.CdaImporter;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
 import org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO;
+import org.openmrs.module.shr.cdahandler.cache.ConceptMappingCache;
+import org.openmrs.module.shr.cdahandler.cache.StatementFingerprintCache;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementReference;
+import org.openmrs.module.shr.cdahandler.everest.CdaStreamReader;
 import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueProcessor;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * It is a default implementation of {@link CdaImportService}.
@@ -52,6 +65,9 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	// Processor
 	private CdaImporter m_processor = null;
 	
+	// Metrics
+	private final ImportMetrics m_importMetrics = ImportMetrics.getInstance();
+	
 	// The dao for the CdaImportService
 	private CdaImportServiceDAO dao;
 	
@@ -66,29 +82,35 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	public Visit importDocument(InputStream doc) throws DocumentImportException 
 	{
 		
-		// Formatter
-		XmlIts1Formatter formatter = EverestUtil.createFormatter();
+		// Read the sections one at a time?
+		if(CdaHandlerConfiguration.getInstance().getStreamSections())
+			return this.importDocumentSections(doc);
 		
+		// Count the statements and entities of the document, including those of parsing
+		boolean countDocument = this.m_importMetrics.beginDocument();
+		try
+		{
+			return this.parseAndImportDocument(doc);
+		}
+		finally
+		{
+			if(countDocument)
+				this.endDocumentOnCompletion();
+		}
+	}
+	
+	/**
+	 * Parse and import the document
+	 */
+	private Visit parseAndImportDocument(InputStream doc) throws DocumentImportException
+	{
 		// Parse the document
 		log.debug("Starting processing of document");
-		IFormatterParseResult parseResult = formatter.parse(doc);
+		IFormatterParseResult parseResult = EverestUtil.parse(doc);
 		log.debug("Process document complete.");
 
 		// Validation messages?
-		ValidationIssueCollection parsingIssues = new ValidationIssueCollection();
-		for(IResultDetail dtl : parseResult.getDetails())
-		{
-			if(dtl.getType() == ResultDetailType.ERROR && !(dtl instanceof DatatypeValidationResultDetail))
-			{
-				parsingIssues.error(String.format("HL7v3 Validation: %s at %s", dtl.getMessage(), dtl.getLocation()));
-				if(dtl.getException() != null)
-				{
-					log.error("Error", dtl.getException());
-				}
-			}
-			else  
-				parsingIssues.warn(String.format("HL7v3 Validation: %s at %s", dtl.getMessage(), dtl.getLocation()));
-		}
+		ValidationIssueCollection parsingIssues = EverestUtil.getParseIssues(parseResult);
 		
 		// Any serious validation has errors or structure is null?
 		if(parsingIssues.hasErrors() || parseResult.getStructure() == null)
@@ -113,39 +135,242 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		if(this.m_processor == null)
 			this.m_processor = CdaImporter.getInstance();
 	
-		// TODO: Store incoming to a temporary table for CDAs (like the HL7 queue)
-		Visit retVal = this.m_processor.processCdaDocument(clinicalDocument);
+		boolean countDocument = this.m_importMetrics.beginDocument();
+		try
+		{
+			// NB: Documents which should not be processed inline are stored in the import queue via queueDocument
+			Visit retVal = this.m_processor.processCdaDocument(clinicalDocument);
+	
+			// Notify of successful import
+			if(retVal != null)
+				this.notifySubscribers(clinicalDocument, retVal);
+			
+			return retVal;
+		}
+		finally
+		{
+			if(countDocument)
+				this.endDocumentOnCompletion();
+		}
+	}
 
-		// Notify of successful import
-		if(retVal != null)
+	/**
+	 * Import a document whose sections are read and processed one at a time. Subscribers
+	 * are notified with the header of the document, as the sections aren't kept
+	 */
+	private Visit importDocumentSections(InputStream doc) throws DocumentImportException
+	{
+		if(this.m_processor == null)
+			this.m_processor = CdaImporter.getInstance();
+
+		boolean countDocument = this.m_importMetrics.beginDocument();
+		CdaStreamReader reader = new CdaStreamReader(doc);
+		try
 		{
-			Stack<CdaImportSubscriber> toBeNotified = new Stack<CdaImportSubscriber>();
+			ClinicalDocument header = reader.readHeader();
+			Visit retVal = this.m_processor.processCdaDocument(header, reader);
 			
-			// The generic ones for all 
-			Set<CdaImportSubscriber> candidates = this.m_subscribers.get("*");
-			if(candidates != null)
-				for(CdaImportSubscriber subscriber : candidates)
-					toBeNotified.push(subscriber);
+			// Notify of successful import
+			if(retVal != null)
+				this.notifySubscribers(header, retVal);
 			
-			// Notify the default always
-			for(II templateId : clinicalDocument.getTemplateId())
-			{
-				candidates = this.m_subscribers.get(templateId.getRoot());
-				if(candidates == null) continue; // no candidates
-				
-				for(CdaImportSubscriber subscriber : candidates)
-					if(!toBeNotified.contains(subscriber))
-						toBeNotified.push(subscriber);
-			}
+			return retVal;
+		}
+		finally
+		{
+			reader.close();
+			if(countDocument)
+				this.endDocumentOnCompletion();
+		}
+	}
+
+	/**
+	 * Record the summary of the document imported by the current thread once its transaction
+	 * completes, so the statements of the final flush are counted
+	 */
+	private void endDocumentOnCompletion()
+	{
+		final ImportMetrics metrics = this.m_importMetrics;
+		
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					metrics.endDocument();
+				}
+			});
+		else
+			metrics.endDocument();
+	}
+
+	/**
+	 * Notify the subscribers of the document's templates (and those of all documents) of its import
+	 */
+	private void notifySubscribers(ClinicalDocument clinicalDocument, Visit visit)
+	{
+		Stack<CdaImportSubscriber> toBeNotified = new Stack<CdaImportSubscriber>();
+		
+		// The generic ones for all 
+		Set<CdaImportSubscriber> candidates = this.m_subscribers.get("*");
+		if(candidates != null)
+			for(CdaImportSubscriber subscriber : candidates)
+				toBeNotified.push(subscriber);
+		
+		// Notify the default always
+		for(II templateId : clinicalDocument.getTemplateId())
+		{
+			candidates = this.m_subscribers.get(templateId.getRoot());
+			if(candidates == null) continue; // no candidates
 			
-			// Notify the found subscribers
-			while(!toBeNotified.isEmpty())
-				toBeNotified.pop().onDocumentImported(clinicalDocument, retVal);
+			for(CdaImportSubscriber subscriber : candidates)
+				if(!toBeNotified.contains(subscriber))
+					toBeNotified.push(subscriber);
+		}
+		
+		// Notify the found subscribers
+		while(!toBeNotified.isEmpty())
+			toBeNotified.pop().onDocumentImported(clinicalDocument, visit);
+	}
+
+	/**
+	 * Store the document in the import queue for processing by the queue workers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#queueDocument(java.io.InputStream)
+	 */
+	@Override
+	public String queueDocument(InputStream doc) throws DocumentImportException {
+
+		CdaImportQueueItem item = new CdaImportQueueItem();
+		try {
+			item.setDocumentContent(IOUtils.toString(doc, "UTF-8"));
+		}
+		catch (IOException e) {
+			throw new DocumentImportException("Could not read document for queueing", e);
 		}
 		
+		item.setState(CdaImportQueueItem.STATE_PENDING);
+		item.setDateCreated(new Date());
+		item = this.dao.saveQueueItem(item);
+		
+		// Let the workers know there is something to do
+		CdaImportQueueProcessor.getInstance().wakeUp();
+		return item.getUuid();
+	}
+
+	/**
+	 * Get a queue item by its ticket
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getQueueItem(java.lang.String)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public CdaImportQueueItem getQueueItem(String ticket) {
+		return this.dao.getQueueItemByUuid(ticket);
+	}
+
+	/**
+	 * Save a queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#saveQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem)
+	 */
+	@Override
+	public CdaImportQueueItem saveQueueItem(CdaImportQueueItem item) {
+		return this.dao.saveQueueItem(item);
+	}
+
+	/**
+	 * Claim pending items from the queue
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#claimQueueItems(int)
+	 */
+	@Override
+	public List<CdaImportQueueItem> claimQueueItems(int maxItems) {
+		List<CdaImportQueueItem> retVal = new ArrayList<CdaImportQueueItem>();
+		// Items another node claims between the select and the update are lost to this node, so 
+		// select again (a few times) for the shortfall
+		for(int pass = 0; pass < 3 && retVal.size() < maxItems; pass++)
+		{
+			List<CdaImportQueueItem> candidates = this.dao.getQueueItemsByState(CdaImportQueueItem.STATE_PENDING, maxItems - retVal.size());
+			if(candidates.isEmpty())
+				break;
+			for(CdaImportQueueItem item : candidates)
+				if(this.claimQueueItem(item))
+					retVal.add(item);
+		}
 		return retVal;
 	}
 
+	/**
+	 * Claim a pending item for this node
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#claimQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem)
+	 */
+	@Override
+	public boolean claimQueueItem(CdaImportQueueItem item) {
+		return this.dao.claimQueueItem(item, this.getQueueNodeId(), new Date());
+	}
+
+	/**
+	 * Mark a claimed item as complete
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#completeQueueItem(java.lang.String, org.openmrs.Visit)
+	 */
+	@Override
+	public CdaImportQueueItem completeQueueItem(String ticket, Visit visit) {
+		CdaImportQueueItem item = this.dao.getQueueItemByUuid(ticket);
+		if(item == null)
+			return null;
+		item.setState(CdaImportQueueItem.STATE_COMPLETE);
+		item.setDateProcessed(new Date());
+		item.setErrorMessage(null);
+		if(visit != null)
+			item.setVisitUuid(visit.getUuid());
+		return this.dao.saveQueueItem(item);
+	}
+
+	/**
+	 * Record the failure of a claimed item, retrying it if it has attempts left
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#failQueueItem(java.lang.String, java.lang.String, boolean)
+	 */
+	@Override
+	public CdaImportQueueItem failQueueItem(String ticket, String errorMessage, boolean retry) {
+		CdaImportQueueItem item = this.dao.getQueueItemByUuid(ticket);
+		if(item == null)
+			return null;
+		item.setDateProcessed(new Date());
+		item.setErrorMessage(errorMessage);
+		if(retry && item.getAttempts() < CdaHandlerConfiguration.getInstance().getQueueMaxAttempts())
+		{
+			item.setState(CdaImportQueueItem.STATE_PENDING);
+			item.setClaimedBy(null);
+			item.setDateClaimed(null);
+		}
+		else
+			item.setState(CdaImportQueueItem.STATE_ERROR);
+		return this.dao.saveQueueItem(item);
+	}
+
+	/**
+	 * Requeue items which were interrupted
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#requeueInterruptedItems()
+	 */
+	@Override
+	public int requeueInterruptedItems() {
+		Calendar claimedBefore = Calendar.getInstance();
+		claimedBefore.add(Calendar.MINUTE, -Math.max(1, CdaHandlerConfiguration.getInstance().getQueueClaimTimeout()));
+		return this.dao.requeueQueueItems(this.getQueueNodeId(), claimedBefore.getTime());
+	}
+
+	/**
+	 * Get the name this node claims queue items under (the configured node id, or the host name)
+	 */
+	private String getQueueNodeId() {
+		String retVal = CdaHandlerConfiguration.getInstance().getQueueNodeId();
+		if(retVal != null && !retVal.trim().isEmpty())
+			return retVal.trim();
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch (UnknownHostException e) {
+			log.warn("Could not determine the host name, set shr-cdahandler.queue.nodeId to a name unique to this node", e);
+			return "localhost";
+		}
+	}
+
 	/**
 	 * Subscribe to the import function
 	 */
@@ -195,7 +420,9 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		concept.setChangedBy(Context.getAuthenticatedUser());
 		
 		// add/remove entries in the concept_word table (used for searching)
-		return this.dao.saveConceptQuick(concept);
+		concept = this.dao.saveConceptQuick(concept);
+		this.invalidateMappedConcepts(concept, null);
+		return concept;
     }
 
 	
@@ -218,7 +445,9 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 
 	@Override
     public ConceptReferenceTerm saveConceptReferenceTerm(ConceptReferenceTerm referenceTerm) {
-		return this.dao.saveReferenceTermQuick(referenceTerm);
+		referenceTerm = this.dao.saveReferenceTermQuick(referenceTerm);
+		this.invalidateMappedConcepts(null, referenceTerm);
+		return referenceTerm;
     }
 
 	/**
@@ -256,9 +485,32 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		return this.dao.getConceptSourceByHl7(hl7);
     }
 
-    private static final Map<String, List<Integer>> conceptCache = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
-    private static final String GP_CACHE_MAPPED_CONCEPTS = "shr-cdahandler.cacheMappedConcepts";
-    private static Boolean cacheMappedConcepts = null;
+    // Mapped concept cache, enabled on first use
+    private volatile Boolean m_cacheMappedConcepts = null;
+
+	/**
+	 * Invalidate the cached maps of a concept or reference term which has been saved. This is 
+	 * repeated when the transaction completes so that maps read by other threads before the 
+	 * change was committed aren't left in the cache
+	 */
+	private void invalidateMappedConcepts(final Concept concept, final ConceptReferenceTerm referenceTerm) {
+		final ConceptMappingCache cache = ConceptMappingCache.getInstance();
+		if(concept != null)
+			cache.invalidate(concept);
+		if(referenceTerm != null)
+			cache.invalidate(referenceTerm);
+		
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if(concept != null)
+						cache.invalidate(concept);
+					if(referenceTerm != null)
+						cache.invalidate(referenceTerm);
+				}
+			});
+	}
 
 	/**
 	 * Get concept by mapping
@@ -266,45 +518,33 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	 */
 	@Override
     public List<Concept> getConceptsByMapping(ConceptReferenceTerm term, String strength) {
-        synchronized (this) {
-            if (cacheMappedConcepts == null) {
-                if (Context.getAdministrationService().getGlobalProperty(GP_CACHE_MAPPED_CONCEPTS).equalsIgnoreCase("true")) {
-                    cacheMappedConcepts = true;
-                } else {
-                    cacheMappedConcepts = false;
-                }
-            }
-        }
+		
+		// Racing here is harmless, both threads will read the same configuration
+		if(this.m_cacheMappedConcepts == null)
+		{
+			CdaHandlerConfiguration configuration = CdaHandlerConfiguration.getInstance();
+			ConceptMappingCache.getInstance().setMaxSize(configuration.getCacheMappedConceptsSize());
+			this.m_cacheMappedConcepts = configuration.getCacheMappedConcepts();
+		}
 
         ConceptService cs = Context.getConceptService();
-        List<Concept> terms = null;
-        String key = null;
-
-        if (cacheMappedConcepts) {
-            key = term.getCode() + ':' + term.getConceptSource().getName() + ':' + strength;
-            List<Integer> conceptIds = conceptCache.get(key);
-            if (conceptIds != null) {
-                terms = new ArrayList<Concept>();
-                for (Integer conceptId : conceptIds) {
-                    terms.add(cs.getConcept(conceptId));
-                }
-            }
-        }
-
-        if (terms == null) {
-            terms = cs.getConceptsByMapping(term.getCode(), term.getConceptSource().getName(), false);
-            if (cacheMappedConcepts) {
-                List<Integer> conceptIds = new ArrayList<Integer>();
-                for (Concept c : terms) {
-                    conceptIds.add(c.getConceptId());
-                }
-                conceptCache.put(key, conceptIds);
-            }
-        }
-
 		List<Concept> retVal = new ArrayList<Concept>();
-		
-		for(Concept concept : terms)
+
+		if(this.m_cacheMappedConcepts)
+		{
+			ConceptMappingCache cache = ConceptMappingCache.getInstance();
+			List<Integer> conceptIds = cache.get(term, strength);
+			if(conceptIds == null)
+			{
+				long generation = cache.getGeneration();
+				conceptIds = cache.put(term, cs.getConceptsByMapping(term.getCode(), term.getConceptSource().getName(), false), generation, strength);
+			}
+			for(Integer conceptId : conceptIds)
+				retVal.add(cs.getConcept(conceptId));
+			return retVal;
+		}
+
+		for(Concept concept : cs.getConceptsByMapping(term.getCode(), term.getConceptSource().getName(), false))
 		{
 			for(ConceptMap map : concept.getConceptMappings())
 				if(map.getConceptReferenceTerm().getId().equals(term.getId()) &&
@@ -314,5 +554,316 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 
 		return retVal;
     }
-	
+
+	/**
+	 * Get reference terms by code
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getConceptReferenceTerms(org.openmrs.ConceptSource, java.util.Collection)
+	 */
+	@Override
+	public List<ConceptReferenceTerm> getConceptReferenceTerms(ConceptSource source, Collection<String> codes) {
+		return this.dao.getConceptReferenceTerms(source, codes);
+	}
+
+	/**
+	 * Get concept maps by reference term
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getConceptMapsByReferenceTerms(java.util.Collection)
+	 */
+	@Override
+	public List<ConceptMap> getConceptMapsByReferenceTerms(Collection<ConceptReferenceTerm> terms) {
+		return this.dao.getConceptMapsByReferenceTerms(terms);
+	}
+
+	/**
+	 * Get location ids by attribute
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getLocationIdsByAttribute(org.openmrs.LocationAttributeType, java.lang.String)
+	 */
+	@Override
+	public List<Integer> getLocationIdsByAttribute(LocationAttributeType attributeType, String value) {
+		return this.dao.getLocationIdsByAttribute(attributeType, value);
+	}
+
+	/**
+	 * Get a document visit link
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getDocumentVisit(java.lang.String)
+	 */
+	@Override
+	public CdaDocumentVisit getDocumentVisit(String documentId) {
+		return this.dao.getDocumentVisit(documentId);
+	}
+
+	/**
+	 * Save a document visit link
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#saveDocumentVisit(org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit)
+	 */
+	@Override
+	public CdaDocumentVisit saveDocumentVisit(CdaDocumentVisit documentVisit) {
+		if(documentVisit.getDateCreated() == null)
+			documentVisit.setDateCreated(new Date());
+		return this.dao.saveDocumentVisit(documentVisit);
+	}
+
+	/**
+	 * Get obs ids by accession number
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getObsIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, List<Integer>> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.dao.getObsIdsByAccessionNumbers(accessionNumbers);
+	}
+
+	/**
+	 * Get order ids by accession number
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getOrderIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, List<Integer>> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.dao.getOrderIdsByAccessionNumbers(accessionNumbers);
+	}
+
+	/**
+	 * Get active list item ids by accession number
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getActiveListItemIdsByAccessionNumbers(java.util.Collection, java.lang.Class)
+	 */
+	@Override
+	public <T extends ActiveListItem> Map<String, List<Integer>> getActiveListItemIdsByAccessionNumbers(Collection<String> accessionNumbers, Class<T> clazz) {
+		return this.dao.getActiveListItemIdsByAccessionNumbers(accessionNumbers, clazz);
+	}
+
+	/**
+	 * Get the number of accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getAccessionNumberCount()
+	 */
+	@Override
+	public Long getAccessionNumberCount() {
+		return this.dao.getAccessionNumberCount();
+	}
+
+	/**
+	 * Get a page of obs accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getObsAccessionNumbers(java.lang.Integer, java.lang.Integer)
+	 */
+	@Override
+	public Map<Integer, String> getObsAccessionNumbers(Integer afterObsId, Integer maxResults) {
+		return this.dao.getObsAccessionNumbers(afterObsId, maxResults);
+	}
+
+	/**
+	 * Get a page of order accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getOrderAccessionNumbers(java.lang.Integer, java.lang.Integer)
+	 */
+	@Override
+	public Map<Integer, String> getOrderAccessionNumbers(Integer afterOrderId, Integer maxResults) {
+		return this.dao.getOrderAccessionNumbers(afterOrderId, maxResults);
+	}
+
+	/**
+	 * Void the visit data in bulk
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#voidVisitData(org.openmrs.Visit, java.lang.String)
+	 */
+	@Override
+	public int voidVisitData(Visit visit, String voidReason) {
+		this.handOverReferencedStatements(visit);
+		int retVal = this.dao.voidVisitData(visit, Context.getAuthenticatedUser(), new Date(), voidReason);
+		this.invalidateStatementFingerprints(visit.getPatient());
+		return retVal;
+	}
+
+	/**
+	 * Move the data of the statements held by a visit which other documents skipped (because
+	 * the visit's document had already imported them) to the oldest of those documents' visits,
+	 * so that it isn't voided with the visit
+	 */
+	private void handOverReferencedStatements(Visit visit) {
+		Map<Visit, Set<String>> handOver = new LinkedHashMap<Visit, Set<String>>();
+		Set<String> handedOver = new HashSet<String>();
+		for(CdaStatementReference reference : this.dao.getReferencesToStatements(visit))
+		{
+			if(!handedOver.add(reference.getAccessionNumber()))
+				continue;
+			Set<String> accessionNumbers = handOver.get(reference.getVisit());
+			if(accessionNumbers == null)
+			{
+				accessionNumbers = new LinkedHashSet<String>();
+				handOver.put(reference.getVisit(), accessionNumbers);
+			}
+			accessionNumbers.add(reference.getAccessionNumber());
+		}
+		if(handOver.isEmpty())
+			return;
+		
+		// The data is moved by SQL, which pending changes to it must not overwrite
+		Context.flushSession();
+		for(Map.Entry<Visit, Set<String>> statements : handOver.entrySet())
+		{
+			Encounter encounter = this.getFirstEncounter(statements.getKey());
+			if(encounter == null)
+				continue;
+			Map<String, List<Integer>> moved = this.dao.moveStatementData(statements.getValue(), visit, encounter);
+			// They were members of the sections of the voided visit
+			List<Integer> roots = new ArrayList<Integer>();
+			for(List<Integer> obsIds : moved.values())
+				roots.addAll(obsIds);
+			if(!roots.isEmpty())
+				this.dao.setObsGroup(roots, null);
+			this.dao.updateStatementFingerprintVisit(visit.getPatient(), statements.getValue(), statements.getKey());
+			this.dao.deleteStatementReferences(visit.getPatient(), statements.getValue(), statements.getKey());
+			log.info(String.format("Handed %s statements of %s over to %s", statements.getValue().size(), visit, statements.getKey()));
+		}
+	}
+
+	/**
+	 * Get the oldest non-voided encounter of a visit
+	 */
+	private Encounter getFirstEncounter(Visit visit) {
+		Encounter retVal = null;
+		if(visit.getEncounters() != null)
+			for(Encounter encounter : visit.getEncounters())
+				if(!encounter.isVoided() && (retVal == null || encounter.getEncounterId() < retVal.getEncounterId()))
+					retVal = encounter;
+		return retVal;
+	}
+
+	/**
+	 * Get statement fingerprints
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getStatementFingerprints(org.openmrs.Patient, java.util.Collection)
+	 */
+	@Override
+	public List<CdaStatementFingerprint> getStatementFingerprints(Patient patient, Collection<String> accessionNumbers) {
+		return this.dao.getStatementFingerprints(patient, accessionNumbers);
+	}
+
+	/**
+	 * Get all statement fingerprints of a patient
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getStatementFingerprints(org.openmrs.Patient)
+	 */
+	@Override
+	public List<CdaStatementFingerprint> getStatementFingerprints(Patient patient) {
+		return this.dao.getStatementFingerprints(patient);
+	}
+
+	/**
+	 * Save a statement fingerprint
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#saveStatementFingerprint(org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint)
+	 */
+	@Override
+	public CdaStatementFingerprint saveStatementFingerprint(CdaStatementFingerprint fingerprint) {
+		fingerprint.setDateCreated(new Date());
+		fingerprint = this.dao.saveStatementFingerprint(fingerprint);
+		this.invalidateStatementFingerprints(fingerprint.getPatient());
+		return fingerprint;
+	}
+
+	/**
+	 * Update the visit of statement fingerprints
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#updateStatementFingerprintVisit(org.openmrs.Patient, java.util.Collection, org.openmrs.Visit)
+	 */
+	@Override
+	public int updateStatementFingerprintVisit(Patient patient, Collection<String> accessionNumbers, Visit visit) {
+		int retVal = this.dao.updateStatementFingerprintVisit(patient, accessionNumbers, visit);
+		this.invalidateStatementFingerprints(patient);
+		return retVal;
+	}
+
+	/**
+	 * Invalidate the cached fingerprints of a patient whose fingerprints have been written. This is 
+	 * repeated when the transaction completes, as for {@link #invalidateMappedConcepts(Concept, ConceptReferenceTerm)}
+	 */
+	private void invalidateStatementFingerprints(Patient patient) {
+		if(patient == null)
+			return;
+		final Integer patientId = patient.getPatientId();
+		final StatementFingerprintCache cache = StatementFingerprintCache.getInstance();
+		cache.invalidate(patientId);
+		
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					cache.invalidate(patientId);
+				}
+			});
+	}
+
+	/**
+	 * Get the references of a visit
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getStatementReferences(org.openmrs.Patient, org.openmrs.Visit)
+	 */
+	@Override
+	public List<CdaStatementReference> getStatementReferences(Patient patient, Visit visit) {
+		return this.dao.getStatementReferences(patient, visit);
+	}
+
+	/**
+	 * Save a statement reference
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#saveStatementReference(org.openmrs.module.shr.cdahandler.document.CdaStatementReference)
+	 */
+	@Override
+	public CdaStatementReference saveStatementReference(CdaStatementReference reference) {
+		reference.setDateCreated(new Date());
+		return this.dao.saveStatementReference(reference);
+	}
+
+	/**
+	 * Move statement data between encounters
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#moveStatementData(java.util.Collection, org.openmrs.Visit, org.openmrs.Encounter)
+	 */
+	@Override
+	public Map<String, List<Integer>> moveStatementData(Collection<String> accessionNumbers, Visit fromVisit, Encounter toEncounter) {
+		return this.dao.moveStatementData(accessionNumbers, fromVisit, toEncounter);
+	}
+
+	/**
+	 * Set the obs group of obs
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#setObsGroup(java.util.Collection, org.openmrs.Obs)
+	 */
+	@Override
+	public int setObsGroup(Collection<Integer> obsIds, Obs obsGroup) {
+		return this.dao.setObsGroup(obsIds, obsGroup);
+	}
+
+	/**
+	 * Set the flush mode of the current session
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#setFlushMode(org.hibernate.FlushMode)
+	 */
+	@Override
+	public FlushMode setFlushMode(FlushMode flushMode) {
+		return this.dao.setFlushMode(flushMode);
+	}
+
+	/**
+	 * Start tracking the entities saved on this thread
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#startEntityTracking()
+	 */
+	@Override
+	public void startEntityTracking() {
+		this.dao.startEntityTracking();
+	}
+
+	/**
+	 * Stop tracking the entities saved on this thread
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#stopEntityTracking()
+	 */
+	@Override
+	public void stopEntityTracking() {
+		this.dao.stopEntityTracking();
+	}
+
+	/**
+	 * Evict tracked entities from the current session
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#evictEntities(java.util.Collection)
+	 */
+	@Override
+	public int evictEntities(Collection<Class<?>> entityClasses) {
+		return this.dao.evictEntities(entityClasses);
+	}
+
+	/**
+	 * Get the current session's instance of an object saved in another transaction
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#reload(org.openmrs.OpenmrsObject)
+	 */
+	@Override
+	public <T extends OpenmrsObject> T reload(T object) {
+		return this.dao.reload(object);
+	}
+
 }
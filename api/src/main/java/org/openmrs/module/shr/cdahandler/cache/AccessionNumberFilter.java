@@ -0,0 +1,387 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over the accession numbers of the obs and orders in the database, used to
+ * skip the duplicate check queries for statements which have never been imported.
+ *
+ * The filter is loaded in the background at startup and the accession numbers of obs and
+ * orders are added as Hibernate inserts or updates them on this node (see 
+ * {@link AccessionNumberFilterInterceptor}). It grows by adding larger layers as it fills,
+ * and never forgets a number, so voided data only adds to the false positive rate; a reload 
+ * rebuilds it from the database. Until it has been loaded every number might exist.
+ *
+ * Data written by other nodes or directly in the database is never added, so the filter 
+ * must not be used (see {@link org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration#getUseAccessionNumberFilter()}) 
+ * when anything else writes obs or orders to the database.
+ * @author Justin Fyfe
+ *
+ */
+public final class AccessionNumberFilter {
+
+	// The target false positive rate the filter is sized for
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	// The minimum number of accession numbers the filter is sized for
+	private static final long MIN_CAPACITY = 100000;
+	// Each layer added as the filter fills holds this many times more than the last ...
+	private static final int GROWTH_FACTOR = 2;
+	// ... at this fraction of its false positive rate, which bounds the overall rate at twice the target
+	private static final double TIGHTENING_RATIO = 0.5;
+
+	// Singleton instance
+	private static AccessionNumberFilter s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// The filter in use, or null if it hasn't been loaded
+	private volatile ScalableBloomFilter m_filter = null;
+	// The filter being loaded, or null
+	private volatile ScalableBloomFilter m_loading = null;
+	// Serializes writes
+	private final Object m_writeLock = new Object();
+
+	// Statistics
+	private final AtomicLong m_negatives = new AtomicLong();
+	private final AtomicLong m_positives = new AtomicLong();
+	private final AtomicLong m_falsePositives = new AtomicLong();
+
+	/**
+	 * A fixed size Bloom filter using double hashing over a 64-bit FNV-1a hash
+	 */
+	private static final class BloomFilter {
+
+		private final AtomicLongArray m_bits;
+		private final long m_numBits;
+		private final int m_numHashes;
+		private final long m_capacity;
+		private final double m_falsePositiveRate;
+		private final AtomicLong m_count = new AtomicLong();
+
+		/**
+		 * Size a filter for the specified number of accession numbers and false positive rate
+		 */
+		BloomFilter(long capacity, double falsePositiveRate)
+		{
+			long numBits = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			numBits = Math.max(64, (numBits + 63) & ~63L);
+			this.m_bits = new AtomicLongArray((int)(numBits >>> 6));
+			this.m_numBits = numBits;
+			this.m_numHashes = Math.max(1, (int)Math.round((double)numBits / capacity * Math.log(2)));
+			this.m_capacity = capacity;
+			this.m_falsePositiveRate = falsePositiveRate;
+		}
+
+		/**
+		 * Hash the accession number
+		 */
+		private static long hash(String value)
+		{
+			long hash = 0xcbf29ce484222325L;
+			for(int i = 0; i < value.length(); i++)
+			{
+				hash ^= value.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			return hash;
+		}
+
+		/**
+		 * Get the bit index of the i-th hash
+		 */
+		private long index(long hash, int i)
+		{
+			long combined = (hash >>> 32) + i * (hash & 0xffffffffL);
+			return (combined & Long.MAX_VALUE) % this.m_numBits;
+		}
+
+		/**
+		 * Add a value
+		 */
+		void add(String value)
+		{
+			long hash = hash(value);
+			for(int i = 0; i < this.m_numHashes; i++)
+			{
+				long index = this.index(hash, i);
+				int word = (int)(index >>> 6);
+				long mask = 1L << (index & 63);
+				long current;
+				do {
+					current = this.m_bits.get(word);
+					if((current & mask) != 0)
+						break;
+				} while(!this.m_bits.compareAndSet(word, current, current | mask));
+			}
+			this.m_count.incrementAndGet();
+		}
+
+		/**
+		 * True if the value might have been added
+		 */
+		boolean mightContain(String value)
+		{
+			long hash = hash(value);
+			for(int i = 0; i < this.m_numHashes; i++)
+			{
+				long index = this.index(hash, i);
+				if((this.m_bits.get((int)(index >>> 6)) & (1L << (index & 63))) == 0)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A Bloom filter which adds a larger, tighter layer each time its newest layer fills, so 
+	 * the false positive rate stays bounded however many numbers are added
+	 */
+	private static final class ScalableBloomFilter {
+
+		// The layers, oldest first (replaced as a whole when a layer is added)
+		private volatile BloomFilter[] m_layers;
+
+		/**
+		 * Size the first layer for the specified number of accession numbers
+		 */
+		ScalableBloomFilter(long capacity)
+		{
+			this.m_layers = new BloomFilter[] { new BloomFilter(capacity, FALSE_POSITIVE_RATE) };
+		}
+
+		/**
+		 * Add a value to the newest layer, adding a layer first if it is full
+		 */
+		void add(String value)
+		{
+			BloomFilter[] layers = this.m_layers;
+			BloomFilter newest = layers[layers.length - 1];
+			if(newest.m_count.get() >= newest.m_capacity)
+				synchronized (this) {
+					layers = this.m_layers;
+					newest = layers[layers.length - 1];
+					if(newest.m_count.get() >= newest.m_capacity)
+					{
+						BloomFilter[] grown = new BloomFilter[layers.length + 1];
+						System.arraycopy(layers, 0, grown, 0, layers.length);
+						newest = new BloomFilter(newest.m_capacity * GROWTH_FACTOR, newest.m_falsePositiveRate * TIGHTENING_RATIO);
+						grown[layers.length] = newest;
+						this.m_layers = grown;
+					}
+				}
+			newest.add(value);
+		}
+
+		/**
+		 * True if the value might have been added to any layer
+		 */
+		boolean mightContain(String value)
+		{
+			for(BloomFilter layer : this.m_layers)
+				if(layer.mightContain(value))
+					return true;
+			return false;
+		}
+
+		/**
+		 * Get the number of values added (including repeats)
+		 */
+		long size()
+		{
+			long retVal = 0;
+			for(BloomFilter layer : this.m_layers)
+				retVal += layer.m_count.get();
+			return retVal;
+		}
+
+		/**
+		 * Get the number of values the layers were sized for
+		 */
+		long getCapacity()
+		{
+			long retVal = 0;
+			for(BloomFilter layer : this.m_layers)
+				retVal += layer.m_capacity;
+			return retVal;
+		}
+
+		/**
+		 * Get the number of layers
+		 */
+		int getLayers()
+		{
+			return this.m_layers.length;
+		}
+	}
+
+	/**
+	 * Private ctor
+	 */
+	private AccessionNumberFilter()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static AccessionNumberFilter getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new AccessionNumberFilter();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * True if an obs or order with the accession number might exist, false if none does
+	 */
+	public boolean mightContain(String accessionNumber)
+	{
+		ScalableBloomFilter filter = this.m_filter;
+		if(filter == null || accessionNumber == null)
+			return true;
+		if(filter.mightContain(accessionNumber))
+		{
+			this.m_positives.incrementAndGet();
+			return true;
+		}
+		this.m_negatives.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Record that the database had neither obs nor orders for an accession number the filter
+	 * reported (lookups of only one type of data can't tell)
+	 */
+	public void recordFalsePositive()
+	{
+		this.m_falsePositives.incrementAndGet();
+	}
+
+	/**
+	 * Add the accession number of saved data
+	 */
+	public void add(String accessionNumber)
+	{
+		if(accessionNumber == null)
+			return;
+		synchronized (this.m_writeLock) {
+			if(this.m_filter != null)
+				this.m_filter.add(accessionNumber);
+			if(this.m_loading != null)
+				this.m_loading.add(accessionNumber);
+		}
+	}
+
+	/**
+	 * Start loading a new filter sized for the specified number of accession numbers. Numbers
+	 * added while it loads are added to both filters
+	 */
+	public void beginLoad(long expected)
+	{
+		synchronized (this.m_writeLock) {
+			this.m_loading = new ScalableBloomFilter(Math.max(MIN_CAPACITY, expected * 2));
+		}
+	}
+
+	/**
+	 * Add an accession number read from the database to the filter being loaded
+	 */
+	public void addLoaded(String accessionNumber)
+	{
+		ScalableBloomFilter loading = this.m_loading;
+		if(loading != null && accessionNumber != null)
+			loading.add(accessionNumber);
+	}
+
+	/**
+	 * Start using the filter which was loaded
+	 */
+	public void endLoad()
+	{
+		synchronized (this.m_writeLock) {
+			if(this.m_loading == null)
+				return;
+			this.m_filter = this.m_loading;
+			this.m_loading = null;
+		}
+	}
+
+	/**
+	 * Stop using the filter (every accession number might exist until it is loaded again)
+	 */
+	public void clear()
+	{
+		synchronized (this.m_writeLock) {
+			this.m_filter = null;
+			this.m_loading = null;
+		}
+	}
+
+	/**
+	 * True if the filter has been loaded
+	 */
+	public boolean isLoaded() {
+		return this.m_filter != null;
+	}
+
+	/**
+	 * Get the number of accession numbers added to the filter (including repeats)
+	 */
+	public long size() {
+		ScalableBloomFilter filter = this.m_filter;
+		return filter == null ? 0 : filter.size();
+	}
+
+	/**
+	 * Get the number of accession numbers the layers of the filter were sized for. A layer is
+	 * added once the filter holds this many
+	 */
+	public long getCapacity() {
+		ScalableBloomFilter filter = this.m_filter;
+		return filter == null ? 0 : filter.getCapacity();
+	}
+
+	/**
+	 * Get the number of layers the filter has grown to
+	 */
+	public int getLayers() {
+		ScalableBloomFilter filter = this.m_filter;
+		return filter == null ? 0 : filter.getLayers();
+	}
+
+	/**
+	 * Get the number of lookups the filter answered without a query
+	 */
+	public long getNegatives() {
+		return this.m_negatives.get();
+	}
+
+	/**
+	 * Get the number of lookups the filter passed on to the database
+	 */
+	public long getPositives() {
+		return this.m_positives.get();
+	}
+
+	/**
+	 * Get the number of lookups passed on to the database which found nothing
+	 */
+	public long getFalsePositives() {
+		return this.m_falsePositives.get();
+	}
+
+	/**
+	 * Get the fraction of accession numbers with no data which the filter didn't rule out
+	 */
+	public double getFalsePositiveRate() {
+		long falsePositives = this.m_falsePositives.get(),
+				negatives = this.m_negatives.get();
+		if(falsePositives + negatives == 0)
+			return 0;
+		return (double)falsePositives / (falsePositives + negatives);
+	}
+}
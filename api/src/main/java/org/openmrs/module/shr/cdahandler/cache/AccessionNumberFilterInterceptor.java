@@ -0,0 +1,90 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+
+/**
+ * Adds the accession numbers of the obs and orders Hibernate inserts or updates to the 
+ * {@link AccessionNumberFilter}, however they were saved (including obs cascaded from their 
+ * encounter or group and data saved by other modules). OpenMRS chains the Hibernate 
+ * interceptors declared as beans by modules
+ * @author Justin Fyfe
+ *
+ */
+public class AccessionNumberFilterInterceptor extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	// The accession numbers saved in the current transaction
+	private static final ThreadLocal<List<String>> s_pending = new ThreadLocal<List<String>>();
+
+	private final AccessionNumberFilter m_filter = AccessionNumberFilter.getInstance();
+
+	/**
+	 * Add the accession number of the entity (if it is an obs or order) to the filter, and 
+	 * remember it so it can be added again when the transaction completes
+	 */
+	private void add(Object entity)
+	{
+		String accessionNumber = null;
+		if(entity instanceof Obs)
+			accessionNumber = ((Obs)entity).getAccessionNumber();
+		else if(entity instanceof Order)
+			accessionNumber = ((Order)entity).getAccessionNumber();
+		if(accessionNumber == null)
+			return;
+
+		this.m_filter.add(accessionNumber);
+		List<String> pending = s_pending.get();
+		if(pending == null)
+		{
+			pending = new ArrayList<String>();
+			s_pending.set(pending);
+		}
+		pending.add(accessionNumber);
+	}
+
+	/**
+	 * Add the accession number of the entity inserted
+	 * @see org.hibernate.EmptyInterceptor#onSave(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		this.add(entity);
+		return false;
+	}
+
+	/**
+	 * Add the accession number of the entity updated (it may have changed)
+	 * @see org.hibernate.EmptyInterceptor#onFlushDirty(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	                            String[] propertyNames, Type[] types) {
+		this.add(entity);
+		return false;
+	}
+
+	/**
+	 * Add the accession numbers saved in the transaction again once it commits, so that a
+	 * filter which was being loaded and couldn't see the uncommitted data still gets them
+	 * @see org.hibernate.EmptyInterceptor#afterTransactionCompletion(org.hibernate.Transaction)
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		List<String> pending = s_pending.get();
+		if(pending == null)
+			return;
+		s_pending.remove();
+		if(tx == null || tx.wasCommitted())
+			for(String accessionNumber : pending)
+				this.m_filter.add(accessionNumber);
+	}
+}
@@ -0,0 +1,349 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptReferenceTerm;
+
+/**
+ * A bounded cache of the concepts mapped to a reference term, grouped by the
+ * type of the map (SAME-AS, NARROWER-THAN, etc.).
+ *
+ * Reads never lock. Writes (population, invalidation and eviction) are serialized,
+ * and a population which started before an invalidation is discarded so a stale
+ * result can't replace an invalidated one. When full, the least recently read
+ * entries are evicted in a batch; the entries are ranked outside the write lock, by
+ * one thread at a time.
+ * @author Justin Fyfe
+ *
+ */
+public final class ConceptMappingCache {
+
+	// Singleton instance
+	private static ConceptMappingCache s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Fraction of the cache evicted when it becomes full
+	private static final double EVICTION_FRACTION = 0.1;
+
+	/**
+	 * A cached term
+	 */
+	private static final class CacheEntry {
+		// Concept ids by lower case map type name
+		private final Map<String, List<Integer>> m_conceptIds;
+		// The last time (tick) the entry was read
+		private volatile long m_lastAccess;
+
+		private CacheEntry(Map<String, List<Integer>> conceptIds, long tick) {
+			this.m_conceptIds = conceptIds;
+			this.m_lastAccess = tick;
+		}
+	}
+
+	// Entries by term key
+	private final Map<String, CacheEntry> m_entries = new ConcurrentHashMap<String, CacheEntry>();
+	// Term keys in which each concept appears (used to invalidate maps which have been removed)
+	private final Map<Integer, Set<String>> m_conceptIndex = new ConcurrentHashMap<Integer, Set<String>>();
+	// Serializes writes
+	private final Object m_writeLock = new Object();
+	// Incremented on every invalidation
+	private final AtomicLong m_generation = new AtomicLong();
+	// Access clock
+	private final AtomicLong m_clock = new AtomicLong();
+	// True while a thread is selecting the entries to evict
+	private final AtomicBoolean m_evicting = new AtomicBoolean();
+
+	// Statistics
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
+
+	// Maximum number of terms held
+	private volatile int m_maxSize = 10000;
+
+	/**
+	 * Private ctor
+	 */
+	private ConceptMappingCache()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static ConceptMappingCache getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new ConceptMappingCache();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Get the key of a reference term
+	 */
+	public static String getKey(ConceptReferenceTerm term)
+	{
+		return getKey(term.getCode(), term.getConceptSource().getName());
+	}
+
+	/**
+	 * Get the key of a code in a source
+	 */
+	public static String getKey(String code, String sourceName)
+	{
+		return code + ':' + sourceName;
+	}
+
+	/**
+	 * Get the ids of the concepts mapped to the term with the specified map type (strength)
+	 * or null if the term isn't cached
+	 */
+	public List<Integer> get(ConceptReferenceTerm term, String strength)
+	{
+		CacheEntry entry = this.m_entries.get(getKey(term));
+		if(entry == null)
+		{
+			this.m_misses.incrementAndGet();
+			return null;
+		}
+
+		this.m_hits.incrementAndGet();
+		entry.m_lastAccess = this.m_clock.incrementAndGet();
+		List<Integer> retVal = entry.m_conceptIds.get(strength.toLowerCase());
+		if(retVal == null)
+			return Collections.emptyList();
+		return retVal;
+	}
+
+	/**
+	 * Get the generation of the cache. This must be read before loading the maps
+	 * that will be passed to {@link #put(ConceptReferenceTerm, List, long, String)}
+	 */
+	public long getGeneration()
+	{
+		return this.m_generation.get();
+	}
+
+	/**
+	 * Cache the concepts mapped to the term, unless the cache has been invalidated
+	 * since generation was read
+	 * @param term The reference term
+	 * @param concepts All non-retired concepts with a map to the term
+	 * @param generation The generation of the cache before the concepts were loaded
+	 * @param strength The map type the caller is looking up
+	 * @return The ids of the concepts mapped to the term with the strength, whether or not
+	 * they were cached (they are the caller's own read, so they needn't be loaded again)
+	 */
+	public List<Integer> put(ConceptReferenceTerm term, List<Concept> concepts, long generation, String strength)
+	{
+		String key = getKey(term);
+
+		// Group the concepts by the type of map to this term
+		Map<String, List<Integer>> conceptIds = new ConcurrentHashMap<String, List<Integer>>();
+		for(Concept concept : concepts)
+			for(ConceptMap map : concept.getConceptMappings())
+				if(map.getConceptReferenceTerm().getId().equals(term.getId()) && map.getConceptMapType() != null)
+				{
+					String mapType = map.getConceptMapType().getName().toLowerCase();
+					List<Integer> ids = conceptIds.get(mapType);
+					if(ids == null)
+					{
+						ids = new ArrayList<Integer>();
+						conceptIds.put(mapType, ids);
+					}
+					ids.add(concept.getConceptId());
+				}
+		for(Map.Entry<String, List<Integer>> ids : conceptIds.entrySet())
+			ids.setValue(Collections.unmodifiableList(ids.getValue()));
+		List<Integer> retVal = conceptIds.get(strength.toLowerCase());
+		if(retVal == null)
+			retVal = Collections.emptyList();
+
+		// Rank the entries to evict before taking the write lock
+		List<String> victims = null;
+		if(this.m_entries.size() >= this.m_maxSize && this.m_evicting.compareAndSet(false, true))
+			try {
+				victims = this.selectVictims();
+			}
+			finally {
+				this.m_evicting.set(false);
+			}
+
+		synchronized (this.m_writeLock) {
+			if(victims != null)
+			{
+				int evicted = 0;
+				for(String victim : victims)
+					if(this.remove(victim))
+						evicted++;
+				this.m_evictions.addAndGet(evicted);
+			}
+			
+			if(this.m_generation.get() != generation)
+				return retVal;
+
+			this.m_entries.put(key, new CacheEntry(conceptIds, this.m_clock.incrementAndGet()));
+			for(List<Integer> ids : conceptIds.values())
+				for(Integer id : ids)
+				{
+					Set<String> keys = this.m_conceptIndex.get(id);
+					if(keys == null)
+					{
+						keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+						this.m_conceptIndex.put(id, keys);
+					}
+					keys.add(key);
+				}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Invalidate the cached maps of a reference term
+	 */
+	public void invalidate(ConceptReferenceTerm term)
+	{
+		if(term == null || term.getCode() == null || term.getConceptSource() == null)
+			return;
+		synchronized (this.m_writeLock) {
+			this.m_generation.incrementAndGet();
+			this.remove(getKey(term));
+		}
+	}
+
+	/**
+	 * Invalidate the cached maps of every term the concept is, or was, mapped to
+	 */
+	public void invalidate(Concept concept)
+	{
+		if(concept == null)
+			return;
+		synchronized (this.m_writeLock) {
+			this.m_generation.incrementAndGet();
+			for(ConceptMap map : concept.getConceptMappings())
+				if(map.getConceptReferenceTerm() != null && map.getConceptReferenceTerm().getConceptSource() != null)
+					this.remove(getKey(map.getConceptReferenceTerm()));
+			if(concept.getConceptId() != null)
+			{
+				Set<String> keys = this.m_conceptIndex.remove(concept.getConceptId());
+				if(keys != null)
+					for(String key : keys)
+						this.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Clear the cache
+	 */
+	public void clear()
+	{
+		synchronized (this.m_writeLock) {
+			this.m_generation.incrementAndGet();
+			this.m_entries.clear();
+			this.m_conceptIndex.clear();
+		}
+	}
+
+	/**
+	 * Remove an entry (caller holds the write lock), returning false if it wasn't cached
+	 */
+	private boolean remove(String key)
+	{
+		CacheEntry entry = this.m_entries.remove(key);
+		if(entry == null)
+			return false;
+		for(List<Integer> ids : entry.m_conceptIds.values())
+			for(Integer id : ids)
+			{
+				Set<String> keys = this.m_conceptIndex.get(id);
+				if(keys != null)
+				{
+					keys.remove(key);
+					if(keys.isEmpty())
+						this.m_conceptIndex.remove(id);
+				}
+			}
+		return true;
+	}
+
+	/**
+	 * Select the least recently read entries to evict from a snapshot of the cache (without
+	 * the write lock, as sorting a full cache is slow)
+	 */
+	private List<String> selectVictims()
+	{
+		List<Map.Entry<String, CacheEntry>> entries = new ArrayList<Map.Entry<String, CacheEntry>>(this.m_entries.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, CacheEntry>>() {
+			@Override
+			public int compare(Map.Entry<String, CacheEntry> o1, Map.Entry<String, CacheEntry> o2) {
+				long a = o1.getValue().m_lastAccess, b = o2.getValue().m_lastAccess;
+				return a < b ? -1 : a == b ? 0 : 1;
+			}
+		});
+
+		int toEvict = Math.max(1, (int)(this.m_maxSize * EVICTION_FRACTION));
+		toEvict = Math.max(toEvict, entries.size() - this.m_maxSize + 1);
+		List<String> retVal = new ArrayList<String>(Math.min(toEvict, entries.size()));
+		for(int i = 0; i < toEvict && i < entries.size(); i++)
+			retVal.add(entries.get(i).getKey());
+		return retVal;
+	}
+
+	/**
+	 * Set the maximum number of terms held by the cache
+	 */
+	public void setMaxSize(int maxSize)
+	{
+		this.m_maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Get the maximum number of terms held by the cache
+	 */
+	public int getMaxSize() {
+		return this.m_maxSize;
+	}
+
+	/**
+	 * Get the number of terms held by the cache
+	 */
+	public int size() {
+		return this.m_entries.size();
+	}
+
+	/**
+	 * Get the number of reads which found the term in the cache
+	 */
+	public long getHits() {
+		return this.m_hits.get();
+	}
+
+	/**
+	 * Get the number of reads which didn't find the term in the cache
+	 */
+	public long getMisses() {
+		return this.m_misses.get();
+	}
+
+	/**
+	 * Get the number of terms evicted to make room for others
+	 */
+	public long getEvictions() {
+		return this.m_evictions.get();
+	}
+}
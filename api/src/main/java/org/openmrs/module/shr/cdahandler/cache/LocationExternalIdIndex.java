@@ -0,0 +1,116 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.Location;
+
+/**
+ * An index of location ids by the external id which the importer assigns to the
+ * locations it creates for organizations.
+ *
+ * Only found locations are indexed. The entries of a location are removed when it
+ * is saved, retired or purged, and an id which was looked up before such a change
+ * is not indexed.
+ * @author Justin Fyfe
+ *
+ */
+public final class LocationExternalIdIndex {
+
+	// Singleton instance
+	private static LocationExternalIdIndex s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Location ids by external id
+	private final Map<String, Integer> m_locations = new ConcurrentHashMap<String, Integer>();
+	// Serializes writes
+	private final Object m_writeLock = new Object();
+	// Incremented on every invalidation
+	private final AtomicLong m_generation = new AtomicLong();
+
+	/**
+	 * Private ctor
+	 */
+	private LocationExternalIdIndex()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static LocationExternalIdIndex getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new LocationExternalIdIndex();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Get the id of the location with the specified external id, or null if it isn't indexed
+	 */
+	public Integer get(String externalId)
+	{
+		return this.m_locations.get(externalId);
+	}
+
+	/**
+	 * Get the generation of the index. This must be read before looking up the location
+	 * that will be passed to {@link #put(String, Integer, long)}
+	 */
+	public long getGeneration()
+	{
+		return this.m_generation.get();
+	}
+
+	/**
+	 * Index a location, unless the index has been invalidated since generation was read
+	 */
+	public void put(String externalId, Integer locationId, long generation)
+	{
+		synchronized (this.m_writeLock) {
+			if(this.m_generation.get() != generation)
+				return;
+			this.m_locations.put(externalId, locationId);
+		}
+	}
+
+	/**
+	 * Remove the entries of a location
+	 */
+	public void invalidate(Location location)
+	{
+		if(location == null)
+			return;
+		synchronized (this.m_writeLock) {
+			this.m_generation.incrementAndGet();
+			if(location.getLocationId() != null)
+				for(Iterator<Integer> it = this.m_locations.values().iterator(); it.hasNext(); )
+					if(location.getLocationId().equals(it.next()))
+						it.remove();
+		}
+	}
+
+	/**
+	 * Clear the index
+	 */
+	public void clear()
+	{
+		synchronized (this.m_writeLock) {
+			this.m_generation.incrementAndGet();
+			this.m_locations.clear();
+		}
+	}
+
+	/**
+	 * Get the number of locations indexed
+	 */
+	public int size() {
+		return this.m_locations.size();
+	}
+}
@@ -0,0 +1,48 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.Location;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Removes locations from the {@link LocationExternalIdIndex} when they are saved, retired,
+ * un-retired or purged through the location service
+ * @author Justin Fyfe
+ *
+ */
+public class LocationExternalIdIndexAdvice implements AfterReturningAdvice {
+
+	/**
+	 * Invalidate the location if the method changed it. The invalidation is repeated when
+	 * the transaction completes so that a lookup made by another thread before the change
+	 * was committed isn't left in the index
+	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object, java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if(args == null || !(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge")))
+			return;
+
+		final LocationExternalIdIndex index = LocationExternalIdIndex.getInstance();
+		for(Object arg : args)
+		{
+			if(!(arg instanceof Location))
+				continue;
+
+			final Location location = (Location)arg;
+			index.invalidate(location);
+			if(TransactionSynchronizationManager.isSynchronizationActive())
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCompletion(int status) {
+						index.invalidate(location);
+					}
+				});
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.LocationAttributeType;
+import org.openmrs.OpenmrsMetadata;
+import org.openmrs.ProviderAttributeType;
+import org.openmrs.VisitAttributeType;
+import org.openmrs.VisitType;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A registry of the ids of metadata (encounter roles, encounter types, visit types and
+ * attribute types), preferring non-retired metadata over retired metadata with the same key, keyed by the name or code key which the importer uses to find them.
+ *
+ * Each type of metadata is loaded as a whole and then kept up to date as metadata of that type
+ * is saved, retired or purged. Each type has its own generation, and an index which was
+ * loaded before a change to its type is discarded so a stale index can't replace an updated one.
+ * @author Justin Fyfe
+ *
+ */
+public final class MetadataRegistry {
+
+	// Singleton instance
+	private static MetadataRegistry s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Types of metadata indexed
+	private static final List<Class<?>> s_indexedTypes = Collections.unmodifiableList(Arrays.<Class<?>>asList(
+		EncounterRole.class,
+		EncounterType.class,
+		VisitType.class,
+		VisitAttributeType.class,
+		LocationAttributeType.class,
+		ProviderAttributeType.class
+	));
+
+	// Indexes (key to id) by metadata type
+	private final Map<Class<?>, Map<String, Integer>> m_indexes = new ConcurrentHashMap<Class<?>, Map<String, Integer>>();
+	// Serializes writes
+	private final Object m_writeLock = new Object();
+	// Incremented on every change to metadata of the type
+	private final Map<Class<?>, AtomicLong> m_generations = new HashMap<Class<?>, AtomicLong>();
+
+	/**
+	 * Private ctor
+	 */
+	private MetadataRegistry()
+	{
+		for(Class<?> type : s_indexedTypes)
+			this.m_generations.put(type, new AtomicLong());
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static MetadataRegistry getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new MetadataRegistry();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Get the types of metadata indexed
+	 */
+	public static List<Class<?>> getIndexedTypes()
+	{
+		return s_indexedTypes;
+	}
+
+	/**
+	 * Returns true if the object is a type of metadata which is indexed
+	 */
+	public static boolean isIndexed(Object metadata)
+	{
+		for(Class<?> type : s_indexedTypes)
+			if(type.isInstance(metadata))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Get the key of the metadata. Encounter roles and types are keyed by their description
+	 * (the code key), everything else by name
+	 */
+	public static String getKey(OpenmrsMetadata metadata)
+	{
+		if(metadata instanceof EncounterRole || metadata instanceof EncounterType)
+			return metadata.getDescription();
+		return metadata.getName();
+	}
+
+	/**
+	 * Get the index of the specified type of metadata, or null if the type isn't indexed
+	 */
+	public Map<String, Integer> getIndex(Class<?> type)
+	{
+		return this.m_indexes.get(type);
+	}
+
+	/**
+	 * Get the generation of the specified type of metadata. This must be read before loading
+	 * the metadata that will be passed to {@link #setIndex(Class, Map, long)}
+	 */
+	public long getGeneration(Class<?> type)
+	{
+		AtomicLong generation = this.m_generations.get(type);
+		if(generation == null)
+			throw new IllegalArgumentException(String.format("%s is not indexed", type));
+		return generation.get();
+	}
+
+	/**
+	 * Set the index of a type of metadata, unless metadata of the type has changed since
+	 * generation was read
+	 * @param type The type of metadata
+	 * @param index The ids of the metadata of the type by key
+	 * @param generation The generation of the type before the metadata was loaded
+	 */
+	public void setIndex(Class<?> type, Map<String, Integer> index, long generation)
+	{
+		synchronized (this.m_writeLock) {
+			if(this.getGeneration(type) != generation)
+				return;
+			this.m_indexes.put(type, Collections.unmodifiableMap(index));
+		}
+	}
+
+	/**
+	 * Update the index of the metadata's type with a change to the metadata. Retiring, purging
+	 * or re-keying metadata discards the index so it is reloaded
+	 * @param metadata The saved, retired, un-retired or purged metadata
+	 * @param removed True if the metadata was purged
+	 */
+	public void update(OpenmrsMetadata metadata, boolean removed)
+	{
+		if(metadata == null || !isIndexed(metadata))
+			return;
+		synchronized (this.m_writeLock) {
+			for(Class<?> type : s_indexedTypes)
+			{
+				if(!type.isInstance(metadata))
+					continue;
+				// Indexes being loaded may or may not include the change
+				this.m_generations.get(type).incrementAndGet();
+
+				Map<String, Integer> index = this.m_indexes.get(type);
+				if(index == null)
+					continue;
+
+				// Whether retired metadata is found depends on the others with its key, so
+				// the index is reloaded unless unretired metadata was saved under the same key
+				String key = getKey(metadata);
+				Map<String, Integer> updated = new HashMap<String, Integer>(index);
+				boolean moved = false;
+				for(Iterator<Map.Entry<String, Integer>> entries = updated.entrySet().iterator(); entries.hasNext(); )
+				{
+					Map.Entry<String, Integer> entry = entries.next();
+					if(!entry.getValue().equals(metadata.getId()))
+						continue;
+					entries.remove();
+					moved |= !entry.getKey().equals(key);
+				}
+				if(removed || moved || metadata.getId() == null || metadata.isRetired() || key == null)
+				{
+					this.m_indexes.remove(type);
+					continue;
+				}
+				updated.put(key, metadata.getId());
+				this.m_indexes.put(type, Collections.unmodifiableMap(updated));
+			}
+		}
+	}
+
+	/**
+	 * Update the index of the metadata's type now and again when the transaction commits, so
+	 * that an index loaded by another thread before the change was committed isn't left in the
+	 * registry. The index is discarded if the transaction rolls back
+	 * @param metadata The saved, retired, un-retired or purged metadata
+	 * @param removed True if the metadata was purged
+	 */
+	public void updateOnCompletion(final OpenmrsMetadata metadata, final boolean removed)
+	{
+		if(metadata == null || !isIndexed(metadata))
+			return;
+		this.update(metadata, removed);
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if(status == STATUS_COMMITTED)
+						update(metadata, removed);
+					else
+						invalidate(metadata);
+				}
+			});
+	}
+
+	/**
+	 * Invalidate the index of the metadata's type
+	 */
+	public void invalidate(Object metadata)
+	{
+		if(metadata == null || !isIndexed(metadata))
+			return;
+		synchronized (this.m_writeLock) {
+			for(Class<?> type : s_indexedTypes)
+				if(type.isInstance(metadata))
+				{
+					this.m_generations.get(type).incrementAndGet();
+					this.m_indexes.remove(type);
+				}
+		}
+	}
+
+	/**
+	 * Clear the registry
+	 */
+	public void clear()
+	{
+		synchronized (this.m_writeLock) {
+			for(AtomicLong generation : this.m_generations.values())
+				generation.incrementAndGet();
+			this.m_indexes.clear();
+		}
+	}
+
+	/**
+	 * Get the number of types of metadata indexed
+	 */
+	public int size() {
+		return this.m_indexes.size();
+	}
+}
@@ -0,0 +1,32 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.OpenmrsMetadata;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Updates the {@link MetadataRegistry} when encounter roles, encounter types, visit types
+ * or attribute types are saved, retired, un-retired or purged through the OpenMRS services
+ * @author Justin Fyfe
+ *
+ */
+public class MetadataRegistryAdvice implements AfterReturningAdvice {
+
+	/**
+	 * Update the registry if the method changed indexed metadata
+	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object, java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if(args == null || !(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge")))
+			return;
+
+		MetadataRegistry registry = MetadataRegistry.getInstance();
+		for(Object arg : args)
+			if(MetadataRegistry.isIndexed(arg))
+				registry.updateOnCompletion((OpenmrsMetadata)arg, name.startsWith("purge"));
+	}
+
+}
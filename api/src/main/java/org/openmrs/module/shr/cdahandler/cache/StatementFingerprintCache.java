@@ -0,0 +1,202 @@
+package org.openmrs.module.shr.cdahandler.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-patient store of the fingerprints of the clinical statements imported for the
+ * patient, with the id of the visit holding each statement's data, keyed by accession
+ * number.
+ *
+ * The fingerprints of a patient are loaded as a whole and discarded whenever any of
+ * them are written. A load which started before a write is discarded so stale
+ * fingerprints can't replace invalidated ones. The least recently used patients are
+ * evicted when the store is full.
+ * @author Justin Fyfe
+ *
+ */
+public final class StatementFingerprintCache {
+
+	/**
+	 * The stored fingerprint of a statement
+	 */
+	public static final class StoredFingerprint {
+		private final String m_fingerprint;
+		private final Integer m_visitId;
+
+		public StoredFingerprint(String fingerprint, Integer visitId) {
+			this.m_fingerprint = fingerprint;
+			this.m_visitId = visitId;
+		}
+
+		/**
+		 * Get the fingerprint of the statement's content
+		 */
+		public String getFingerprint() {
+			return this.m_fingerprint;
+		}
+
+		/**
+		 * Get the id of the visit holding the statement's data
+		 */
+		public Integer getVisitId() {
+			return this.m_visitId;
+		}
+	}
+
+	// Singleton instance
+	private static StatementFingerprintCache s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Maximum number of patients held
+	private volatile int m_maxSize = 1000;
+
+	// Fingerprints by accession number, by patient id (in access order)
+	private final Map<Integer, Map<String, StoredFingerprint>> m_patients = new LinkedHashMap<Integer, Map<String, StoredFingerprint>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, StoredFingerprint>> eldest) {
+			if(this.size() <= m_maxSize)
+				return false;
+			m_evictions.incrementAndGet();
+			return true;
+		}
+	};
+	// Incremented on every invalidation
+	private final AtomicLong m_generation = new AtomicLong();
+
+	// Statistics
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
+
+	/**
+	 * Private ctor
+	 */
+	private StatementFingerprintCache()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static StatementFingerprintCache getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new StatementFingerprintCache();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Get the fingerprints of a patient's statements by accession number, or null if the patient isn't held
+	 */
+	public Map<String, StoredFingerprint> get(Integer patientId)
+	{
+		Map<String, StoredFingerprint> retVal;
+		synchronized (this.m_patients) {
+			retVal = this.m_patients.get(patientId);
+		}
+		if(retVal == null)
+			this.m_misses.incrementAndGet();
+		else
+			this.m_hits.incrementAndGet();
+		return retVal;
+	}
+
+	/**
+	 * Get the generation of the store. This must be read before loading the fingerprints
+	 * that will be passed to {@link #put(Integer, Map, long)}
+	 */
+	public long getGeneration()
+	{
+		return this.m_generation.get();
+	}
+
+	/**
+	 * Hold the fingerprints of a patient, unless the store has been invalidated since generation was read
+	 */
+	public void put(Integer patientId, Map<String, StoredFingerprint> fingerprints, long generation)
+	{
+		synchronized (this.m_patients) {
+			if(this.m_generation.get() != generation)
+				return;
+			this.m_patients.put(patientId, Collections.unmodifiableMap(fingerprints));
+		}
+	}
+
+	/**
+	 * Discard the fingerprints of a patient
+	 */
+	public void invalidate(Integer patientId)
+	{
+		if(patientId == null)
+			return;
+		synchronized (this.m_patients) {
+			this.m_generation.incrementAndGet();
+			this.m_patients.remove(patientId);
+		}
+	}
+
+	/**
+	 * Clear the store
+	 */
+	public void clear()
+	{
+		synchronized (this.m_patients) {
+			this.m_generation.incrementAndGet();
+			this.m_patients.clear();
+		}
+	}
+
+	/**
+	 * Set the maximum number of patients held
+	 */
+	public void setMaxSize(int maxSize)
+	{
+		this.m_maxSize = maxSize;
+	}
+
+	/**
+	 * Get the maximum number of patients held
+	 */
+	public int getMaxSize() {
+		return this.m_maxSize;
+	}
+
+	/**
+	 * Get the number of patients held
+	 */
+	public int size() {
+		synchronized (this.m_patients) {
+			return this.m_patients.size();
+		}
+	}
+
+	/**
+	 * Get the number of reads which found the patient
+	 */
+	public long getHits() {
+		return this.m_hits.get();
+	}
+
+	/**
+	 * Get the number of reads which didn't find the patient
+	 */
+	public long getMisses() {
+		return this.m_misses.get();
+	}
+
+	/**
+	 * Get the number of patients evicted to make room for others
+	 */
+	public long getEvictions() {
+		return this.m_evictions.get();
+	}
+}
@@ -1,7 +1,7 @@
 package org.openmrs.module.shr.cdahandler.configuration;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.marc.everest.datatypes.PQ;
 import org.marc.everest.formatters.FormatterUtil;
@@ -48,6 +48,38 @@ public final class CdaHandlerConfiguration {
 	
     // Update existing
     public static final String PROP_UPDATE_EXISTING = "shr-cdahandler.updateExisting";
+    // Only re-import the statements which changed when updating or replacing a document
+    public static final String PROP_UPDATE_DIFFERENTIAL = "shr-cdahandler.updateExisting.differential";
+    // Skip statements already imported for the patient with the same content
+    public static final String PROP_SKIP_UNCHANGED_STATEMENTS = "shr-cdahandler.skipUnchangedStatements";
+    // Flush the session at fixed points during an import rather than before queries
+    public static final String PROP_MANUAL_FLUSH = "shr-cdahandler.manualFlush";
+    // Evict the data of each section from the session once it is processed
+    public static final String PROP_EVICT_PROCESSED_SECTIONS = "shr-cdahandler.evictProcessedSections";
+    // Read and process the sections of a document one at a time
+    public static final String PROP_STREAM_SECTIONS = "shr-cdahandler.streamSections";
+    // Number of workers draining the import queue
+    public static final String PROP_QUEUE_WORKERS = "shr-cdahandler.queue.workers";
+    // Interval (in ms) between polls of the import queue
+    public static final String PROP_QUEUE_POLL_INTERVAL = "shr-cdahandler.queue.pollInterval";
+    // Number of attempts made at importing a queued document before it is left in error
+    public static final String PROP_QUEUE_MAX_ATTEMPTS = "shr-cdahandler.queue.maxAttempts";
+    // Time (in minutes) after which a document claimed by another node is returned to the queue
+    public static final String PROP_QUEUE_CLAIM_TIMEOUT = "shr-cdahandler.queue.claimTimeout";
+    // Name of this node when claiming queued documents (blank for the host name)
+    public static final String PROP_QUEUE_NODE_ID = "shr-cdahandler.queue.nodeId";
+    // Queue documents received by the content handler rather than importing them
+    public static final String PROP_QUEUE_CONTENT_HANDLER = "shr-cdahandler.queue.contentHandler";
+    // Skip the duplicate checks for accession numbers ruled out by the accession number filter
+    public static final String PROP_ACCESSION_NUMBER_FILTER = "shr-cdahandler.accessionNumberFilter";
+    // Cache concepts by mapping
+    public static final String PROP_CACHE_MAPPED_CONCEPTS = "shr-cdahandler.cacheMappedConcepts";
+    // Maximum number of reference terms held in the mapped concept cache
+    public static final String PROP_CACHE_MAPPED_CONCEPTS_SIZE = "shr-cdahandler.cacheMappedConcepts.maxSize";
+    // Imports taking at least this long (in ms) are logged as slow
+    public static final String PROP_SLOW_IMPORT_MILLIS = "shr-cdahandler.slowImport.millis";
+    // Imports running at least this many SQL statements are logged as slow
+    public static final String PROP_SLOW_IMPORT_STATEMENTS = "shr-cdahandler.slowImport.statements";
     
     private final Boolean m_defaultAutoCreateProviders = true;
     private final Boolean m_defaultAutoCreateLocations = true;
@@ -58,14 +90,30 @@ public final class CdaHandlerConfiguration {
     private final Boolean m_defaultAutoCreatePersons = true;
     private final Boolean m_defaultValidateInstances = true;
     private final Boolean m_defaultUpdateExisting = false;
+    private final Boolean m_defaultUpdateDifferential = false;
+    private final Boolean m_defaultSkipUnchangedStatements = false;
+    private final Boolean m_defaultManualFlush = false;
+    private final Boolean m_defaultEvictProcessedSections = false;
+    private final Boolean m_defaultStreamSections = false;
     private final String m_defaultEpidRoot = "";
     private final String m_defaultEcidRoot = "";
     private final String m_defaultShrRoot = "1.2.3.4.5";
     private final Boolean m_defaultAutoCreateUsers = true;
+    private final Integer m_defaultQueueWorkers = 2;
+    private final Integer m_defaultQueuePollInterval = 5000;
+    private final Integer m_defaultQueueMaxAttempts = 3;
+    private final Integer m_defaultQueueClaimTimeout = 60;
+    private final String m_defaultQueueNodeId = "";
+    private final Boolean m_defaultQueueContentHandler = false;
+    private final Boolean m_defaultAccessionNumberFilter = true;
+    private final Boolean m_defaultCacheMappedConcepts = true;
+    private final Integer m_defaultCacheMappedConceptsSize = 10000;
+    private final Integer m_defaultSlowImportMillis = 10000;
+    private final Integer m_defaultSlowImportStatements = 5000;
     
     private String m_idFormat = "%2$s^^^&%1$s&ISO";
     
-    private Map<String, Object> m_cachedProperties = new HashMap<String, Object>();
+    private Map<String, Object> m_cachedProperties = new ConcurrentHashMap<String, Object>();
     // Singleton instance
     private static Object s_lockObject = new Object();
     private static CdaHandlerConfiguration s_instance = null;
@@ -286,6 +334,15 @@ public final class CdaHandlerConfiguration {
 		}
     }
 
+	/**
+	 * Forget the property values read so far, so that changes to them are read
+	 */
+	public void clearCache() {
+		synchronized (s_lockObject) {
+			this.m_cachedProperties.clear();
+		}
+	}
+
 	/**
 	 * Get the shr-cdahandler.updatedExisting value
 	 * 
@@ -298,6 +355,45 @@ public final class CdaHandlerConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_UPDATE_EXISTING, this.m_defaultUpdateExisting);
     }
 
+	/**
+	 * Get the shr-cdahandler.updateExisting.differential value
+	 * 
+	 * When true, the clinical statements of a document which updates (see {@link #getUpdateExisting()}) or 
+	 * replaces (RPLC) a previous version are compared by fingerprint with those of the previous version, and 
+	 * only statements which changed are voided and re-imported
+	 */
+	public boolean getUpdateDifferential() {
+		return this.getOrCreateGlobalProperty(PROP_UPDATE_DIFFERENTIAL, this.m_defaultUpdateDifferential);
+	}
+
+	/**
+	 * Get the shr-cdahandler.skipUnchangedStatements value
+	 */
+	public boolean getSkipUnchangedStatements() {
+		return this.getOrCreateGlobalProperty(PROP_SKIP_UNCHANGED_STATEMENTS, this.m_defaultSkipUnchangedStatements);
+	}
+
+	/**
+	 * Get the shr-cdahandler.manualFlush value
+	 */
+	public boolean getManualFlush() {
+		return this.getOrCreateGlobalProperty(PROP_MANUAL_FLUSH, this.m_defaultManualFlush);
+	}
+
+	/**
+	 * Get the shr-cdahandler.evictProcessedSections value
+	 */
+	public boolean getEvictProcessedSections() {
+		return this.getOrCreateGlobalProperty(PROP_EVICT_PROCESSED_SECTIONS, this.m_defaultEvictProcessedSections);
+	}
+
+	/**
+	 * Get the shr-cdahandler.streamSections value
+	 */
+	public boolean getStreamSections() {
+		return this.getOrCreateGlobalProperty(PROP_STREAM_SECTIONS, this.m_defaultStreamSections);
+	}
+
 	/**
 	 * Get the shr-cdahandler.validate.concept value
 	 */
@@ -305,6 +401,87 @@ public final class CdaHandlerConfiguration {
 		return this.getOrCreateGlobalProperty(PROP_VALIDATE_CONCEPT_STRUCTURE, this.m_defaultValidateInstances);
     }
 
+	/**
+	 * Get the shr-cdahandler.queue.workers value
+	 */
+	public int getQueueWorkers() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_WORKERS, this.m_defaultQueueWorkers);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.pollInterval value
+	 */
+	public int getQueuePollInterval() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_POLL_INTERVAL, this.m_defaultQueuePollInterval);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.maxAttempts value
+	 */
+	public int getQueueMaxAttempts() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_MAX_ATTEMPTS, this.m_defaultQueueMaxAttempts);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.claimTimeout value
+	 */
+	public int getQueueClaimTimeout() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_CLAIM_TIMEOUT, this.m_defaultQueueClaimTimeout);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.nodeId value
+	 */
+	public String getQueueNodeId() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_NODE_ID, this.m_defaultQueueNodeId);
+	}
+
+	/**
+	 * True if the accession number filter is used (shr-cdahandler.accessionNumberFilter). It 
+	 * only sees the data saved on this node, so it isn't used when a node id is set for the 
+	 * queue as other nodes share the database
+	 */
+	public boolean getUseAccessionNumberFilter() {
+		String nodeId = this.getQueueNodeId();
+		return this.getOrCreateGlobalProperty(PROP_ACCESSION_NUMBER_FILTER, this.m_defaultAccessionNumberFilter) &&
+				(nodeId == null || nodeId.trim().isEmpty());
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.contentHandler value
+	 */
+	public boolean getQueueContentHandler() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_CONTENT_HANDLER, this.m_defaultQueueContentHandler);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheMappedConcepts value
+	 */
+	public boolean getCacheMappedConcepts() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_MAPPED_CONCEPTS, this.m_defaultCacheMappedConcepts);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheMappedConcepts.maxSize value
+	 */
+	public int getCacheMappedConceptsSize() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_MAPPED_CONCEPTS_SIZE, this.m_defaultCacheMappedConceptsSize);
+	}
+
+	/**
+	 * Get the shr-cdahandler.slowImport.millis value
+	 */
+	public int getSlowImportMillis() {
+		return this.getOrCreateGlobalProperty(PROP_SLOW_IMPORT_MILLIS, this.m_defaultSlowImportMillis);
+	}
+
+	/**
+	 * Get the shr-cdahandler.slowImport.statements value
+	 */
+	public int getSlowImportStatements() {
+		return this.getOrCreateGlobalProperty(PROP_SLOW_IMPORT_STATEMENTS, this.m_defaultSlowImportStatements);
+	}
+
 	/**
 	 * Get the shr-cdahandler.validate.cda value
 	 * @return
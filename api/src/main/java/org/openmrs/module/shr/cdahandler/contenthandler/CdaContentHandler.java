@@ -9,7 +9,6 @@ import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.formatters.interfaces.IFormatterParseResult;
-import org.marc.everest.formatters.interfaces.IXmlStructureFormatter;
 import org.marc.everest.interfaces.IResultDetail;
 import org.marc.everest.interfaces.ResultDetailType;
 import org.marc.everest.resultdetails.DatatypeValidationResultDetail;
@@ -24,6 +23,7 @@ import org.openmrs.Provider;
 import org.openmrs.Visit;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
@@ -99,7 +99,8 @@ public class CdaContentHandler implements ContentHandler {
 	}
 
 	/**
-	 * Save content
+	 * Save content. When shr-cdahandler.queue.contentHandler is set the document is validated and 
+	 * queued for asynchronous import, and null is returned in place of the encounter
 	 */
 	@Override
 	@Transactional(rollbackFor = ContentHandlerException.class)
@@ -118,8 +119,7 @@ public class CdaContentHandler implements ContentHandler {
 			log.info(new String(data, offset, data.length - offset));
 
 			// Process the content
-			IXmlStructureFormatter formatter = EverestUtil.createFormatter();
-			IFormatterParseResult parseResult = formatter.parse(new ByteArrayInputStream(data, offset, data.length - offset));
+			IFormatterParseResult parseResult = EverestUtil.parse(new ByteArrayInputStream(data, offset, data.length - offset));
 			ValidationIssueCollection parseIssues = new ValidationIssueCollection();
 			for(IResultDetail dtl : parseResult.getDetails())
 			{
@@ -149,6 +149,15 @@ public class CdaContentHandler implements ContentHandler {
 				throw convertToContentHandlerException(new DocumentValidationException(parseResult.getStructure(), parseIssues));
 			}
 			
+			// Queue the (validated) document for the queue workers rather than importing it while the 
+			// submitter waits; no encounter exists to return yet
+			if(CdaHandlerConfiguration.getInstance().getQueueContentHandler())
+			{
+				String ticket = importService.queueDocument(new ByteArrayInputStream(data, offset, data.length - offset));
+				log.info(String.format("Queued document for import with ticket %s", ticket));
+				return null;
+			}
+			
 			// Parse the visit
 	        Visit processedVisit = importService.importDocument((ClinicalDocument)parseResult.getStructure());
 	        
@@ -0,0 +1,103 @@
+package org.openmrs.module.shr.cdahandler.document;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Visit;
+
+/**
+ * Links the formatted id of an imported CDA document to the visit which holds 
+ * its data, so documents can be found by id for duplicate detection and for
+ * resolving the parent of a replacement or addendum.
+ */
+public class CdaDocumentVisit extends BaseOpenmrsObject {
+
+	/**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+	// Identifier of the link
+	private Integer cdaDocumentVisitId;
+	// The formatted document id
+	private String documentId;
+	// The visit holding the document's data
+	private Visit visit;
+	// The date the document was linked
+	private Date dateCreated;
+
+	/**
+	 * Get the id of the link
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return this.cdaDocumentVisitId;
+	}
+
+	/**
+	 * Set the id of the link
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.cdaDocumentVisitId = id;
+	}
+
+    /**
+     * @return the cdaDocumentVisitId
+     */
+    public Integer getCdaDocumentVisitId() {
+    	return cdaDocumentVisitId;
+    }
+
+    /**
+     * @param cdaDocumentVisitId the cdaDocumentVisitId to set
+     */
+    public void setCdaDocumentVisitId(Integer cdaDocumentVisitId) {
+    	this.cdaDocumentVisitId = cdaDocumentVisitId;
+    }
+
+    /**
+     * @return the documentId
+     */
+    public String getDocumentId() {
+    	return documentId;
+    }
+
+    /**
+     * @param documentId the documentId to set
+     */
+    public void setDocumentId(String documentId) {
+    	this.documentId = documentId;
+    }
+
+    /**
+     * @return the visit
+     */
+    public Visit getVisit() {
+    	return visit;
+    }
+
+    /**
+     * @param visit the visit to set
+     */
+    public void setVisit(Visit visit) {
+    	this.visit = visit;
+    }
+
+    /**
+     * @return the dateCreated
+     */
+    public Date getDateCreated() {
+    	return dateCreated;
+    }
+
+    /**
+     * @param dateCreated the dateCreated to set
+     */
+    public void setDateCreated(Date dateCreated) {
+    	this.dateCreated = dateCreated;
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.openmrs.module.shr.cdahandler.document;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+
+/**
+ * The fingerprint of the content of a clinical statement imported for a patient, and the
+ * visit holding the data imported from it, so that a later version of the document can
+ * tell which statements are unchanged.
+ */
+public class CdaStatementFingerprint extends BaseOpenmrsObject {
+
+	/**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+	// Identifier of the fingerprint
+	private Integer cdaStatementFingerprintId;
+	// The patient the statement is about
+	private Patient patient;
+	// The formatted statement id
+	private String accessionNumber;
+	// The fingerprint of the statement's content
+	private String fingerprint;
+	// The visit holding the statement's data
+	private Visit visit;
+	// The date the statement was last imported
+	private Date dateCreated;
+
+	/**
+	 * Get the id of the fingerprint
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return this.cdaStatementFingerprintId;
+	}
+
+	/**
+	 * Set the id of the fingerprint
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.cdaStatementFingerprintId = id;
+	}
+
+    /**
+     * @return the cdaStatementFingerprintId
+     */
+    public Integer getCdaStatementFingerprintId() {
+    	return cdaStatementFingerprintId;
+    }
+
+    /**
+     * @param cdaStatementFingerprintId the cdaStatementFingerprintId to set
+     */
+    public void setCdaStatementFingerprintId(Integer cdaStatementFingerprintId) {
+    	this.cdaStatementFingerprintId = cdaStatementFingerprintId;
+    }
+
+    /**
+     * @return the patient
+     */
+    public Patient getPatient() {
+    	return patient;
+    }
+
+    /**
+     * @param patient the patient to set
+     */
+    public void setPatient(Patient patient) {
+    	this.patient = patient;
+    }
+
+    /**
+     * @return the accessionNumber
+     */
+    public String getAccessionNumber() {
+    	return accessionNumber;
+    }
+
+    /**
+     * @param accessionNumber the accessionNumber to set
+     */
+    public void setAccessionNumber(String accessionNumber) {
+    	this.accessionNumber = accessionNumber;
+    }
+
+    /**
+     * @return the fingerprint
+     */
+    public String getFingerprint() {
+    	return fingerprint;
+    }
+
+    /**
+     * @param fingerprint the fingerprint to set
+     */
+    public void setFingerprint(String fingerprint) {
+    	this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the visit
+     */
+    public Visit getVisit() {
+    	return visit;
+    }
+
+    /**
+     * @param visit the visit to set
+     */
+    public void setVisit(Visit visit) {
+    	this.visit = visit;
+    }
+
+    /**
+     * @return the dateCreated
+     */
+    public Date getDateCreated() {
+    	return dateCreated;
+    }
+
+    /**
+     * @param dateCreated the dateCreated to set
+     */
+    public void setDateCreated(Date dateCreated) {
+    	this.dateCreated = dateCreated;
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.openmrs.module.shr.cdahandler.document;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+
+/**
+ * Records that the document imported into a visit holds a clinical statement which was
+ * skipped because another document had already imported it, so that the statement's data
+ * can be handed over to the visit when the document holding it is replaced.
+ */
+public class CdaStatementReference extends BaseOpenmrsObject {
+
+	/**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+	// Identifier of the reference
+	private Integer cdaStatementReferenceId;
+	// The patient the statement is about
+	private Patient patient;
+	// The formatted statement id
+	private String accessionNumber;
+	// The visit of the document which skipped the statement
+	private Visit visit;
+	// The date the statement was skipped
+	private Date dateCreated;
+
+	/**
+	 * Get the id of the reference
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return this.cdaStatementReferenceId;
+	}
+
+	/**
+	 * Set the id of the reference
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.cdaStatementReferenceId = id;
+	}
+
+    /**
+     * @return the cdaStatementReferenceId
+     */
+    public Integer getCdaStatementReferenceId() {
+    	return cdaStatementReferenceId;
+    }
+
+    /**
+     * @param cdaStatementReferenceId the cdaStatementReferenceId to set
+     */
+    public void setCdaStatementReferenceId(Integer cdaStatementReferenceId) {
+    	this.cdaStatementReferenceId = cdaStatementReferenceId;
+    }
+
+    /**
+     * @return the patient
+     */
+    public Patient getPatient() {
+    	return patient;
+    }
+
+    /**
+     * @param patient the patient to set
+     */
+    public void setPatient(Patient patient) {
+    	this.patient = patient;
+    }
+
+    /**
+     * @return the accessionNumber
+     */
+    public String getAccessionNumber() {
+    	return accessionNumber;
+    }
+
+    /**
+     * @param accessionNumber the accessionNumber to set
+     */
+    public void setAccessionNumber(String accessionNumber) {
+    	this.accessionNumber = accessionNumber;
+    }
+
+    /**
+     * @return the visit
+     */
+    public Visit getVisit() {
+    	return visit;
+    }
+
+    /**
+     * @param visit the visit to set
+     */
+    public void setVisit(Visit visit) {
+    	this.visit = visit;
+    }
+
+    /**
+     * @return the dateCreated
+     */
+    public Date getDateCreated() {
+    	return dateCreated;
+    }
+
+    /**
+     * @param dateCreated the dateCreated to set
+     */
+    public void setDateCreated(Date dateCreated) {
+    	this.dateCreated = dateCreated;
+    }
+
+}
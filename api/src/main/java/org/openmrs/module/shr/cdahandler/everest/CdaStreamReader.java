@@ -0,0 +1,268 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.formatters.interfaces.IFormatterParseResult;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
+import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+
+/**
+ * Reads a CDA document one part at a time: first the header, then each component of the
+ * structured body, so that only one section is held in memory at once.
+ *
+ * Each part is copied out of the stream with StAX into a document of its own (a component is
+ * wrapped in a ClinicalDocument carrying the namespace declarations of the original) and parsed
+ * with Everest. The header is parsed with an empty structured body. Documents without a
+ * structured body are parsed whole as the header.
+ * @author Justin Fyfe
+ *
+ */
+public class CdaStreamReader {
+
+	// The HL7v3 namespace
+	private static final String NS_HL7 = "urn:hl7-org:v3";
+
+	// Log
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// StAX
+	private final XMLEventReader m_reader;
+	private final XMLEventFactory m_eventFactory = XMLEventFactory.newInstance();
+	private final XMLOutputFactory m_outputFactory = XMLOutputFactory.newInstance();
+
+	// The ClinicalDocument, component and structuredBody elements enclosing the components
+	private final List<StartElement> m_enclosing = new ArrayList<StartElement>();
+	// The namespaces declared on the enclosing elements
+	private final List<Namespace> m_namespaces = new ArrayList<Namespace>();
+	// True while the components of the structured body are being read
+	private boolean m_inBody = false;
+	// True once the header has been read
+	private boolean m_headerRead = false;
+
+	/**
+	 * Create a reader over a document stream
+	 */
+	public CdaStreamReader(InputStream document) throws DocumentImportException
+	{
+		try
+		{
+			XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+			inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			this.m_reader = inputFactory.createXMLEventReader(document);
+		}
+		catch(XMLStreamException e)
+		{
+			throw new DocumentImportException("Could not read document", e);
+		}
+	}
+
+	/**
+	 * Read the header of the document. The structured body of the returned document is empty
+	 */
+	public ClinicalDocument readHeader() throws DocumentImportException
+	{
+		if(this.m_headerRead)
+			throw new IllegalStateException("Header has already been read");
+		this.m_headerRead = true;
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try
+		{
+			XMLEventWriter writer = this.m_outputFactory.createXMLEventWriter(header, "UTF-8");
+			LinkedList<StartElement> open = new LinkedList<StartElement>();
+			while(this.m_reader.hasNext())
+			{
+				XMLEvent event = this.m_reader.nextEvent();
+				writer.add(event);
+				if(event.isStartElement())
+				{
+					StartElement start = event.asStartElement();
+					open.addLast(start);
+					if(open.size() <= 3)
+						this.addNamespaces(start);
+
+					// ClinicalDocument/component/structuredBody - stop here and close the open elements
+					if(open.size() == 3 && this.isHl7(open.get(0), "ClinicalDocument") &&
+							this.isHl7(open.get(1), "component") && this.isHl7(start, "structuredBody"))
+					{
+						this.m_enclosing.addAll(open);
+						this.m_inBody = true;
+						while(!open.isEmpty())
+							writer.add(this.m_eventFactory.createEndElement(open.removeLast().getName(), Collections.<Namespace>emptyList().iterator()));
+						writer.add(this.m_eventFactory.createEndDocument());
+						break;
+					}
+				}
+				else if(event.isEndElement())
+					open.removeLast();
+			}
+			writer.close();
+		}
+		catch(XMLStreamException e)
+		{
+			throw new DocumentImportException("Could not read document header", e);
+		}
+
+		log.debug(String.format("Read %s byte header (structured body: %s)", header.size(), this.m_inBody));
+		return this.parse(header.toByteArray());
+	}
+
+	/**
+	 * Read the next component of the structured body, or null if there are no more
+	 */
+	public Component3 readComponent() throws DocumentImportException
+	{
+		if(!this.m_headerRead)
+			throw new IllegalStateException("Header must be read first");
+
+		try
+		{
+			while(this.m_inBody && this.m_reader.hasNext())
+			{
+				XMLEvent event = this.m_reader.nextEvent();
+				if(event.isEndElement()) // End of the structured body
+				{
+					this.m_inBody = false;
+					break;
+				}
+				else if(!event.isStartElement())
+					continue;
+
+				StartElement start = event.asStartElement();
+				if(!this.isHl7(start, "component"))
+				{
+					log.warn(String.format("Skipping %s in structured body", start.getName().getLocalPart()));
+					this.skipElement();
+					continue;
+				}
+
+				// Copy the component into a document of its own
+				ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+				XMLEventWriter writer = this.m_outputFactory.createXMLEventWriter(fragment, "UTF-8");
+				writer.add(this.m_eventFactory.createStartDocument("UTF-8"));
+				for(int i = 0; i < this.m_enclosing.size(); i++)
+				{
+					QName name = this.m_enclosing.get(i).getName();
+					writer.add(this.m_eventFactory.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+							Collections.<Attribute>emptyList().iterator(), i == 0 ? this.m_namespaces.iterator() : Collections.<Namespace>emptyList().iterator()));
+				}
+				writer.add(start);
+				int depth = 1;
+				while(depth > 0)
+				{
+					event = this.m_reader.nextEvent();
+					if(event.isStartElement())
+						depth++;
+					else if(event.isEndElement())
+						depth--;
+					writer.add(event);
+				}
+				for(int i = this.m_enclosing.size() - 1; i >= 0; i--)
+					writer.add(this.m_eventFactory.createEndElement(this.m_enclosing.get(i).getName(), Collections.<Namespace>emptyList().iterator()));
+				writer.add(this.m_eventFactory.createEndDocument());
+				writer.close();
+
+				log.debug(String.format("Read %s byte component", fragment.size()));
+				ClinicalDocument parsed = this.parse(fragment.toByteArray());
+				return parsed.getComponent().getBodyChoiceIfStructuredBody().getComponent().get(0);
+			}
+			return null;
+		}
+		catch(XMLStreamException e)
+		{
+			throw new DocumentImportException("Could not read document component", e);
+		}
+	}
+
+	/**
+	 * Close the reader (not the underlying stream)
+	 */
+	public void close()
+	{
+		try
+		{
+			this.m_reader.close();
+		}
+		catch(XMLStreamException e)
+		{
+			log.warn("Could not close document reader", e);
+		}
+	}
+
+	/**
+	 * Skip the rest of the element just started
+	 */
+	private void skipElement() throws XMLStreamException
+	{
+		int depth = 1;
+		while(depth > 0)
+		{
+			XMLEvent event = this.m_reader.nextEvent();
+			if(event.isStartElement())
+				depth++;
+			else if(event.isEndElement())
+				depth--;
+		}
+	}
+
+	/**
+	 * Add the namespaces declared on an element to those declared on the wrappers of components
+	 */
+	private void addNamespaces(StartElement start)
+	{
+		for(Iterator<?> it = start.getNamespaces(); it.hasNext(); )
+		{
+			Namespace namespace = (Namespace)it.next();
+			boolean declared = false;
+			for(Namespace existing : this.m_namespaces)
+				declared |= existing.getPrefix().equals(namespace.getPrefix());
+			if(!declared)
+				this.m_namespaces.add(namespace);
+		}
+	}
+
+	/**
+	 * True if the element is the named HL7v3 element
+	 */
+	private boolean isHl7(StartElement start, String localName)
+	{
+		return NS_HL7.equals(start.getName().getNamespaceURI()) && localName.equals(start.getName().getLocalPart());
+	}
+
+	/**
+	 * Parse a document with Everest
+	 */
+	private ClinicalDocument parse(byte[] document) throws DocumentImportException
+	{
+		IFormatterParseResult parseResult = EverestUtil.parse(new ByteArrayInputStream(document));
+		ValidationIssueCollection parsingIssues = EverestUtil.getParseIssues(parseResult);
+		if(parsingIssues.hasErrors() || !(parseResult.getStructure() instanceof ClinicalDocument))
+			throw new DocumentValidationException(parseResult.getStructure(), parsingIssues);
+		return (ClinicalDocument)parseResult.getStructure();
+	}
+}
@@ -1,24 +1,77 @@
 package org.openmrs.module.shr.cdahandler.everest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.marc.everest.datatypes.PQ;
 import org.marc.everest.datatypes.generic.SXCM;
 import org.marc.everest.formatters.xml.datatypes.r1.DatatypeFormatter;
 import org.marc.everest.formatters.xml.datatypes.r1.R1FormatterCompatibilityMode;
+import org.marc.everest.formatters.interfaces.IFormatterParseResult;
 import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
 import org.marc.everest.interfaces.IGraphable;
+import org.marc.everest.interfaces.IResultDetail;
+import org.marc.everest.interfaces.ResultDetailType;
+import org.marc.everest.resultdetails.DatatypeValidationResultDetail;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Act;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Encounter;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ObservationMedia;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Organizer;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Procedure;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.RegionOfInterest;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Supply;
 import org.marc.everest.util.SimpleSiUnitConverter;
 import org.openmrs.module.shr.cdahandler.everest.sdtc.SdtcPlayingEntity;
 import org.openmrs.module.shr.cdahandler.everest.sdtc.SdtcSubjectPerson;
+import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 
 /**
  * A utility for helping with Everest constructs 
  */
 public class EverestUtil {
 	
+	// Log
+	private static final Log log = LogFactory.getLog(EverestUtil.class);
+	
+	// RMIM classes which the formatter should cache formatting information for
+	private static final Class<?>[] s_cachedClasses = {
+		ClinicalDocument.class,
+		Section.class,
+		Act.class,
+		Encounter.class,
+		Observation.class,
+		ObservationMedia.class,
+		Organizer.class,
+		Procedure.class,
+		RegionOfInterest.class,
+		SubstanceAdministration.class,
+		Supply.class
+	};
+	
+	// The document the formatters are warmed up with
+	private static final String WARM_UP_DOCUMENT = "/warmUpDocument.xml";
+	
+	// The maximum number of idle formatters kept in the pool
+	private static final int MAX_POOLED_FORMATTERS = 16;
+	
+	// Pool of idle formatters. Formatters are expensive to construct and not thread safe
+	private static final Queue<XmlIts1Formatter> s_formatterPool = new ConcurrentLinkedQueue<XmlIts1Formatter>();
 	
 	// A map of custom extended types
 	private static final Map<String, Class<? extends IGraphable>> s_extendedTypes = new HashMap<String, Class<? extends IGraphable>>()
@@ -35,7 +88,8 @@ public class EverestUtil {
 	{
 		XmlIts1Formatter formatter = new XmlIts1Formatter();
 		formatter.getGraphAides().add(new DatatypeFormatter(R1FormatterCompatibilityMode.ClinicalDocumentArchitecture));
-		formatter.addCachedClass(ClinicalDocument.class);
+		for(Class<?> cachedClass : s_cachedClasses)
+			formatter.addCachedClass(cachedClass);
 		for(Map.Entry<String, Class<? extends IGraphable>> entry : s_extendedTypes.entrySet())
 			formatter.registerXSITypeName(entry.getKey(), entry.getValue());
 		formatter.setValidateConformance(false); // Don't validate to RMIM conformance
@@ -45,6 +99,127 @@ public class EverestUtil {
 		return formatter;
 		
 	}
-			
 	
-}
+	/**
+	 * Borrow a formatter from the pool, creating one if none is idle. The formatter
+	 * must be handed back with {@link #returnFormatter(XmlIts1Formatter)} and not used afterwards
+	 */
+	public static XmlIts1Formatter borrowFormatter()
+	{
+		XmlIts1Formatter retVal = s_formatterPool.poll();
+		if(retVal == null)
+			retVal = createFormatter();
+		return retVal;
+	}
+	
+	/**
+	 * Return a borrowed formatter to the pool
+	 */
+	public static void returnFormatter(XmlIts1Formatter formatter)
+	{
+		if(formatter != null && s_formatterPool.size() < MAX_POOLED_FORMATTERS)
+			s_formatterPool.offer(formatter);
+	}
+	
+	/**
+	 * Parse a document with a pooled formatter, recording the time taken as the parse stage
+	 */
+	public static IFormatterParseResult parse(InputStream inputStream)
+	{
+		XmlIts1Formatter formatter = borrowFormatter();
+		long parseStart = ImportMetrics.start();
+		boolean completed = false;
+		try
+		{
+			IFormatterParseResult retVal = formatter.parse(inputStream);
+			completed = true;
+			return retVal;
+		}
+		finally
+		{
+			returnFormatter(formatter);
+			ImportMetrics.getInstance().end(ImportMetrics.STAGE_PARSE, XmlIts1Formatter.class, parseStart, completed);
+		}
+	}
+	
+	/**
+	 * Get the issues reported while parsing. Errors other than datatype validation errors are
+	 * reported as errors, everything else as warnings
+	 */
+	public static ValidationIssueCollection getParseIssues(IFormatterParseResult parseResult)
+	{
+		ValidationIssueCollection retVal = new ValidationIssueCollection();
+		for(IResultDetail dtl : parseResult.getDetails())
+		{
+			if(dtl.getType() == ResultDetailType.ERROR && !(dtl instanceof DatatypeValidationResultDetail))
+			{
+				retVal.error(String.format("HL7v3 Validation: %s at %s", dtl.getMessage(), dtl.getLocation()));
+				if(dtl.getException() != null)
+				{
+					log.error("Error", dtl.getException());
+				}
+			}
+			else  
+				retVal.warn(String.format("HL7v3 Validation: %s at %s", dtl.getMessage(), dtl.getLocation()));
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Fill the pool with the specified number of formatters, warming each up by parsing
+	 * and graphing a small document (warmUpDocument.xml) with one entry of each type 
+	 * imported. This populates the formatters' (and Everest's) 
+	 * reflection caches so the first imports do not pay for it
+	 */
+	public static void warmUp(int poolSize)
+	{
+		long start = System.currentTimeMillis();
+		List<XmlIts1Formatter> warmed = new ArrayList<XmlIts1Formatter>();
+		try
+		{
+			byte[] document = readWarmUpDocument();
+			for(int i = 0; i < Math.min(poolSize, MAX_POOLED_FORMATTERS); i++)
+			{
+				XmlIts1Formatter formatter = borrowFormatter();
+				warmed.add(formatter);
+				IGraphable structure = formatter.parse(new ByteArrayInputStream(document)).getStructure();
+				formatter.graph(new ByteArrayOutputStream(), structure != null ? structure : new ClinicalDocument());
+			}
+			log.debug(String.format("Warmed up %s formatters in %sms", warmed.size(), System.currentTimeMillis() - start));
+		}
+		catch(Exception e)
+		{
+			log.warn("Could not warm up formatters", e);
+		}
+		finally
+		{
+			for(XmlIts1Formatter formatter : warmed)
+				returnFormatter(formatter);
+		}
+	}
+	
+	/**
+	 * Read the warm up document, or graph an empty document if it can't be read
+	 */
+	private static byte[] readWarmUpDocument() throws IOException
+	{
+		InputStream inputStream = EverestUtil.class.getResourceAsStream(WARM_UP_DOCUMENT);
+		if(inputStream == null)
+		{
+			log.warn(String.format("Could not find %s, warming up with an empty document", WARM_UP_DOCUMENT));
+			XmlIts1Formatter formatter = createFormatter();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			formatter.graph(bos, new ClinicalDocument());
+			return bos.toByteArray();
+		}
+		try
+		{
+			return IOUtils.toByteArray(inputStream);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,130 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values. Values below 16 are counted exactly and
+ * larger values in buckets 1/8th of a power of two wide, so percentiles are accurate to
+ * within 12.5%
+ * @author Justin Fyfe
+ *
+ */
+final class Histogram {
+
+	// Each power of two is split into 2^SUB_BUCKET_BITS buckets
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below this are counted exactly
+	private static final int LINEAR = SUB_BUCKETS * 2;
+	// The exponent of the first bucketed power of two
+	private static final int FIRST_EXPONENT = SUB_BUCKET_BITS + 1;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(LINEAR + (64 - FIRST_EXPONENT) * SUB_BUCKETS);
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_total = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	/**
+	 * Record a value
+	 */
+	void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+		this.m_counts.incrementAndGet(index(value));
+		this.m_count.incrementAndGet();
+		this.m_total.addAndGet(value);
+		long max;
+		do {
+			max = this.m_max.get();
+		} while(value > max && !this.m_max.compareAndSet(max, value));
+	}
+
+	/**
+	 * Get the bucket of a value
+	 */
+	private static int index(long value)
+	{
+		if(value < LINEAR)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return LINEAR + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Get the largest value counted in a bucket
+	 */
+	private static long upperBound(int index)
+	{
+		if(index < LINEAR)
+			return index;
+		int exponent = (index - LINEAR) / SUB_BUCKETS + FIRST_EXPONENT,
+				subBucket = (index - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+
+	/**
+	 * Get the number of values recorded
+	 */
+	long getCount() {
+		return this.m_count.get();
+	}
+
+	/**
+	 * Get the sum of the values recorded
+	 */
+	long getTotal() {
+		return this.m_total.get();
+	}
+
+	/**
+	 * Get the largest value recorded
+	 */
+	long getMax() {
+		return this.m_max.get();
+	}
+
+	/**
+	 * Get the mean of the values recorded
+	 */
+	double getMean() {
+		long count = this.m_count.get();
+		return count == 0 ? 0 : (double)this.m_total.get() / count;
+	}
+
+	/**
+	 * Get the value below which the specified fraction (0-1) of the values recorded fall
+	 */
+	long getPercentile(double fraction)
+	{
+		long count = 0;
+		for(int i = 0; i < this.m_counts.length(); i++)
+			count += this.m_counts.get(i);
+		if(count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(fraction * count)), seen = 0;
+		for(int i = 0; i < this.m_counts.length(); i++)
+		{
+			seen += this.m_counts.get(i);
+			if(seen >= rank)
+				return Math.min(upperBound(i), this.m_max.get());
+		}
+		return this.m_max.get();
+	}
+
+	/**
+	 * Discard the values recorded
+	 */
+	void reset()
+	{
+		for(int i = 0; i < this.m_counts.length(); i++)
+			this.m_counts.set(i, 0);
+		this.m_count.set(0);
+		this.m_total.set(0);
+		this.m_max.set(0);
+	}
+}
@@ -0,0 +1,71 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+/**
+ * A count made for each document imported
+ * @author Justin Fyfe
+ *
+ */
+public final class ImportCounter implements ImportCounterMBean {
+
+	private final String m_name;
+	private final Histogram m_counts = new Histogram();
+
+	/**
+	 * Create a counter
+	 */
+	ImportCounter(String name) {
+		this.m_name = name;
+	}
+
+	/**
+	 * Record the count of a document
+	 */
+	void record(long count) {
+		this.m_counts.record(count);
+	}
+
+	@Override
+	public String getName() {
+		return this.m_name;
+	}
+
+	@Override
+	public long getDocuments() {
+		return this.m_counts.getCount();
+	}
+
+	@Override
+	public long getTotal() {
+		return this.m_counts.getTotal();
+	}
+
+	@Override
+	public double getMean() {
+		return this.m_counts.getMean();
+	}
+
+	@Override
+	public long getMax() {
+		return this.m_counts.getMax();
+	}
+
+	@Override
+	public long getMedian() {
+		return this.m_counts.getPercentile(0.5);
+	}
+
+	@Override
+	public long get90thPercentile() {
+		return this.m_counts.getPercentile(0.9);
+	}
+
+	@Override
+	public long get99thPercentile() {
+		return this.m_counts.getPercentile(0.99);
+	}
+
+	@Override
+	public void reset() {
+		this.m_counts.reset();
+	}
+}
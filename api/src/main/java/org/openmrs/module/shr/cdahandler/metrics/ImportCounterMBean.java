@@ -0,0 +1,54 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+/**
+ * The management interface of an {@link ImportCounter}
+ * @author Justin Fyfe
+ *
+ */
+public interface ImportCounterMBean {
+
+	/**
+	 * Get the name of the count
+	 */
+	String getName();
+
+	/**
+	 * Get the number of documents counted
+	 */
+	long getDocuments();
+
+	/**
+	 * Get the total of all documents
+	 */
+	long getTotal();
+
+	/**
+	 * Get the mean per document
+	 */
+	double getMean();
+
+	/**
+	 * Get the largest count of a document
+	 */
+	long getMax();
+
+	/**
+	 * Get the median per document
+	 */
+	long getMedian();
+
+	/**
+	 * Get the 90th percentile per document
+	 */
+	long get90thPercentile();
+
+	/**
+	 * Get the 99th percentile per document
+	 */
+	long get99thPercentile();
+
+	/**
+	 * Discard the counts recorded
+	 */
+	void reset();
+}
@@ -0,0 +1,421 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.openmrs.BaseOpenmrsData;
+import org.openmrs.Obs;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
+import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
+import org.openmrs.module.shr.cdahandler.processor.section.SectionProcessor;
+
+/**
+ * The timings of each stage of the import by processor, and the statements, entities and
+ * concepts of each document, published as MBeans in the org.openmrs.module.shr.cdahandler 
+ * domain:
+ * <ul>
+ * <li>type=ImportTimer,stage=...,processor=... - one {@link ImportTimer} for each processor used in each stage</li>
+ * <li>type=ImportCounter,name=... - the {@link ImportCounter}s per document</li>
+ * <li>type=SlowImportLog - the {@link SlowImportLog} of the recent imports over the thresholds</li>
+ * </ul>
+ * @author Justin Fyfe
+ *
+ */
+public final class ImportMetrics {
+
+	// Stages
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_DOCUMENT = "document";
+	public static final String STAGE_HEADER = "header";
+	public static final String STAGE_SECTION = "section";
+	public static final String STAGE_ENTRY = "entry";
+
+	// Counters
+	public static final String COUNTER_STATEMENTS = "statements";
+	public static final String COUNTER_ENTITIES_LOADED = "entitiesLoaded";
+	public static final String COUNTER_ENTITIES_INSERTED = "entitiesInserted";
+	public static final String COUNTER_FLUSHES = "flushes";
+	public static final String COUNTER_CONCEPTS_CREATED = "conceptsCreated";
+
+	// The domain of the MBeans
+	private static final String DOMAIN = "org.openmrs.module.shr.cdahandler";
+	// The number of slow imports held
+	private static final int SLOW_IMPORTS = 100;
+
+	// Singleton instance
+	private static ImportMetrics s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Log
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Timers by stage and processor class
+	private final ConcurrentMap<String, ImportTimer> m_timers = new ConcurrentHashMap<String, ImportTimer>();
+	// Counters by name
+	private final Map<String, ImportCounter> m_counters = new LinkedHashMap<String, ImportCounter>();
+	// The recent slow imports
+	private final SlowImportLog m_slowImports = new SlowImportLog(SLOW_IMPORTS);
+	// The document being imported by the current thread
+	private final ThreadLocal<ImportSummary> m_document = new ThreadLocal<ImportSummary>();
+	// The names of the MBeans registered
+	private final List<ObjectName> m_registered = new ArrayList<ObjectName>();
+	// True while the MBeans are published
+	private volatile boolean m_published = false;
+	// The time and number of statements from which an import is slow (none until set)
+	private volatile long m_slowMillis = Long.MAX_VALUE;
+	private volatile long m_slowStatements = Long.MAX_VALUE;
+
+	/**
+	 * Private ctor
+	 */
+	private ImportMetrics()
+	{
+		for(String name : new String[] { COUNTER_STATEMENTS, COUNTER_ENTITIES_LOADED, COUNTER_ENTITIES_INSERTED, COUNTER_FLUSHES, COUNTER_CONCEPTS_CREATED })
+			this.m_counters.put(name, new ImportCounter(name));
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static ImportMetrics getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new ImportMetrics();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Get the time to pass to {@link #record(String, Class, long)} when the stage ends
+	 */
+	public static long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the time spent by a processor in a stage
+	 * @param stage The stage
+	 * @param processorClass The class of the processor
+	 * @param start The time the stage started, from {@link #start()}
+	 */
+	public void record(String stage, Class<?> processorClass, long start)
+	{
+		long elapsed = System.nanoTime() - start;
+		this.getTimer(stage, processorClass).record(elapsed);
+	}
+
+	/**
+	 * Record a stage which failed, without adding its time to the times of the processor
+	 */
+	public void recordFailure(String stage, Class<?> processorClass)
+	{
+		this.getTimer(stage, processorClass).recordFailure();
+	}
+
+	/**
+	 * Record the time of a stage which completed, or count it as failed
+	 * @param start The time the stage started, from {@link #start()}
+	 * @param completed False if the stage failed
+	 */
+	public void end(String stage, Class<?> processorClass, long start, boolean completed)
+	{
+		if(completed)
+			this.record(stage, processorClass, start);
+		else
+			this.recordFailure(stage, processorClass);
+	}
+
+	/**
+	 * Process a section, timing the processor in the section stage
+	 */
+	public Obs process(SectionProcessor processor, Section section, ProcessorContext context) throws DocumentImportException
+	{
+		long start = start();
+		boolean completed = false;
+		try
+		{
+			Obs retVal = processor.process(section, context);
+			completed = true;
+			return retVal;
+		}
+		finally
+		{
+			this.end(STAGE_SECTION, processor.getClass(), start, completed);
+		}
+	}
+
+	/**
+	 * Process an entry, timing the processor in the entry stage
+	 */
+	public BaseOpenmrsData process(EntryProcessor processor, ClinicalStatement statement, ProcessorContext context) throws DocumentImportException
+	{
+		long start = start();
+		boolean completed = false;
+		try
+		{
+			BaseOpenmrsData retVal = processor.process(statement, context);
+			completed = true;
+			return retVal;
+		}
+		finally
+		{
+			this.end(STAGE_ENTRY, processor.getClass(), start, completed);
+		}
+	}
+
+	/**
+	 * Start counting for a document imported by the current thread
+	 * @return False if the current thread is already counting for a document, in which case 
+	 * the counts are added to that document's
+	 */
+	public boolean beginDocument()
+	{
+		if(this.m_document.get() != null)
+			return false;
+		this.m_document.set(new ImportSummary());
+		return true;
+	}
+
+	/**
+	 * Identify the document imported by the current thread
+	 */
+	public void setDocument(String documentId, String template)
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.setDocument(documentId, template);
+	}
+
+	/**
+	 * Set the thresholds from which an import is logged as slow. Set when the module starts so
+	 * the global properties aren't read while a document is imported
+	 * @param slowMillis The time from which an import is slow
+	 * @param slowStatements The number of SQL statements from which an import is slow
+	 */
+	public void setSlowImportThresholds(long slowMillis, long slowStatements)
+	{
+		this.m_slowMillis = slowMillis;
+		this.m_slowStatements = slowStatements;
+	}
+
+	/**
+	 * Record the counts of the document imported by the current thread, logging it as slow if
+	 * it reached either of the slow import thresholds
+	 * @return The summary of the import, or null if the current thread isn't importing a document
+	 */
+	public ImportSummary endDocument()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary == null)
+			return null;
+		this.m_document.remove();
+		summary.complete();
+
+		this.m_counters.get(COUNTER_STATEMENTS).record(summary.getStatements());
+		this.m_counters.get(COUNTER_ENTITIES_LOADED).record(summary.getEntitiesLoaded());
+		this.m_counters.get(COUNTER_ENTITIES_INSERTED).record(summary.getEntitiesInserted());
+		this.m_counters.get(COUNTER_FLUSHES).record(summary.getFlushes());
+		this.m_counters.get(COUNTER_CONCEPTS_CREATED).record(summary.getConceptsCreated());
+
+		if(summary.getElapsedMillis() >= this.m_slowMillis || summary.getStatements() >= this.m_slowStatements)
+		{
+			this.m_slowImports.record(summary);
+			log.warn(String.format("Slow import: %s", summary));
+		}
+		else
+			log.info(String.format("Imported %s", summary));
+		return summary;
+	}
+
+	/**
+	 * Count a SQL statement prepared if the current thread is importing a document
+	 */
+	public void countStatement()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countStatement();
+	}
+
+	/**
+	 * Count an entity loaded if the current thread is importing a document
+	 */
+	public void countEntityLoaded()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countEntityLoaded();
+	}
+
+	/**
+	 * Count an entity inserted if the current thread is importing a document
+	 */
+	public void countEntityInserted()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countEntityInserted();
+	}
+
+	/**
+	 * Count an entity updated if the current thread is importing a document
+	 */
+	public void countEntityUpdated()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countEntityUpdated();
+	}
+
+	/**
+	 * Count a session flush if the current thread is importing a document
+	 */
+	public void countFlush()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countFlush();
+	}
+
+	/**
+	 * Count a concept created if the current thread is importing a document
+	 */
+	public void countConceptCreated()
+	{
+		ImportSummary summary = this.m_document.get();
+		if(summary != null)
+			summary.countConceptCreated();
+	}
+
+	/**
+	 * Get the timers created
+	 */
+	public Collection<ImportTimer> getTimers()
+	{
+		return this.m_timers.values();
+	}
+
+	/**
+	 * Get a counter
+	 */
+	public ImportCounter getCounter(String name)
+	{
+		return this.m_counters.get(name);
+	}
+
+	/**
+	 * Get the log of recent slow imports
+	 */
+	public SlowImportLog getSlowImports()
+	{
+		return this.m_slowImports;
+	}
+
+	/**
+	 * Publish the timers and counters with the platform MBean server. Timers created
+	 * later are published as they are created
+	 */
+	public void publish()
+	{
+		synchronized (this.m_registered) {
+			if(this.m_published)
+				return;
+			this.m_published = true;
+			for(ImportCounter counter : this.m_counters.values())
+				this.register(counter, String.format("%s:type=ImportCounter,name=%s", DOMAIN, counter.getName()));
+			this.register(this.m_slowImports, String.format("%s:type=SlowImportLog", DOMAIN));
+			for(ImportTimer timer : this.m_timers.values())
+				this.register(timer);
+		}
+	}
+
+	/**
+	 * Withdraw the timers and counters from the platform MBean server
+	 */
+	public void unpublish()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (this.m_registered) {
+			this.m_published = false;
+			for(ObjectName name : this.m_registered)
+				try {
+					if(server.isRegistered(name))
+						server.unregisterMBean(name);
+				}
+				catch(JMException e) {
+					log.warn(String.format("Could not unregister %s", name), e);
+				}
+			this.m_registered.clear();
+		}
+	}
+
+	/**
+	 * Get or create the timer of a processor in a stage
+	 */
+	private ImportTimer getTimer(String stage, Class<?> processorClass)
+	{
+		String key = stage + "|" + processorClass.getName();
+		ImportTimer timer = this.m_timers.get(key);
+		if(timer != null)
+			return timer;
+
+		ProcessTemplates templates = processorClass.getAnnotation(ProcessTemplates.class);
+		timer = new ImportTimer(stage, processorClass.getName(), templates == null ? "" : StringUtils.join(templates.templateIds(), ","));
+		ImportTimer existing = this.m_timers.putIfAbsent(key, timer);
+		if(existing != null)
+			return existing;
+
+		if(this.m_published)
+			synchronized (this.m_registered) {
+				if(this.m_published)
+					this.register(timer);
+			}
+		return timer;
+	}
+
+	/**
+	 * Register a timer
+	 */
+	private void register(ImportTimer timer)
+	{
+		this.register(timer, String.format("%s:type=ImportTimer,stage=%s,processor=%s", DOMAIN, timer.getStage(), ObjectName.quote(timer.getProcessor())));
+	}
+
+	/**
+	 * Register an MBean
+	 */
+	private void register(Object mbean, String name)
+	{
+		try {
+			ObjectName objectName = new ObjectName(name);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(mbean, objectName);
+			this.m_registered.add(objectName);
+		}
+		catch(JMException e) {
+			log.warn(String.format("Could not register %s", name), e);
+		}
+	}
+}
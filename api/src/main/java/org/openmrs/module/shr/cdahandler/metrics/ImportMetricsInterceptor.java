@@ -0,0 +1,73 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.io.Serializable;
+import java.util.Iterator;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+
+/**
+ * Counts the statements Hibernate prepares (a round trip each, as inserts aren't batched),
+ * the entities it loads, inserts and updates and the flushes it makes for the document 
+ * being imported by the current thread. OpenMRS chains the Hibernate interceptors declared
+ * as beans by modules
+ * @author Justin Fyfe
+ *
+ */
+public class ImportMetricsInterceptor extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ImportMetrics m_metrics = ImportMetrics.getInstance();
+
+	/**
+	 * Count the statement
+	 * @see org.hibernate.EmptyInterceptor#onPrepareStatement(java.lang.String)
+	 */
+	@Override
+	public String onPrepareStatement(String sql) {
+		this.m_metrics.countStatement();
+		return sql;
+	}
+
+	/**
+	 * Count the entity loaded
+	 * @see org.hibernate.EmptyInterceptor#onLoad(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		this.m_metrics.countEntityLoaded();
+		return false;
+	}
+
+	/**
+	 * Count the entity inserted
+	 * @see org.hibernate.EmptyInterceptor#onSave(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		this.m_metrics.countEntityInserted();
+		return false;
+	}
+
+	/**
+	 * Count the entity updated
+	 * @see org.hibernate.EmptyInterceptor#onFlushDirty(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	                            String[] propertyNames, Type[] types) {
+		this.m_metrics.countEntityUpdated();
+		return false;
+	}
+
+	/**
+	 * Count the flush
+	 * @see org.hibernate.EmptyInterceptor#postFlush(java.util.Iterator)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) {
+		this.m_metrics.countFlush();
+	}
+}
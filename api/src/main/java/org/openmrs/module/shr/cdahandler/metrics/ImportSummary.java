@@ -0,0 +1,143 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.util.Date;
+
+/**
+ * The statements, entities and time taken to import one document. Counted by the thread 
+ * importing the document up to the completion of its transaction
+ * @author Justin Fyfe
+ *
+ */
+public final class ImportSummary {
+
+	private final Date m_started = new Date();
+	private final long m_startNanos = System.nanoTime();
+	private String m_documentId;
+	private String m_template;
+	private long m_statements;
+	private long m_entitiesLoaded;
+	private long m_entitiesInserted;
+	private long m_entitiesUpdated;
+	private long m_flushes;
+	private long m_conceptsCreated;
+	private long m_elapsedMillis = -1;
+
+	/**
+	 * Only created by {@link ImportMetrics}
+	 */
+	ImportSummary() {
+	}
+
+	void setDocument(String documentId, String template) {
+		this.m_documentId = documentId;
+		this.m_template = template;
+	}
+
+	void countStatement() {
+		this.m_statements++;
+	}
+
+	void countEntityLoaded() {
+		this.m_entitiesLoaded++;
+	}
+
+	void countEntityInserted() {
+		this.m_entitiesInserted++;
+	}
+
+	void countEntityUpdated() {
+		this.m_entitiesUpdated++;
+	}
+
+	void countFlush() {
+		this.m_flushes++;
+	}
+
+	void countConceptCreated() {
+		this.m_conceptsCreated++;
+	}
+
+	void complete() {
+		this.m_elapsedMillis = (System.nanoTime() - this.m_startNanos) / 1000000;
+	}
+
+	/**
+	 * Get the time the import started
+	 */
+	public Date getStarted() {
+		return this.m_started;
+	}
+
+	/**
+	 * Get the id of the document, or null if it wasn't read
+	 */
+	public String getDocumentId() {
+		return this.m_documentId;
+	}
+
+	/**
+	 * Get the template of the document, or null if it wasn't read
+	 */
+	public String getTemplate() {
+		return this.m_template;
+	}
+
+	/**
+	 * Get the number of SQL statements prepared
+	 */
+	public long getStatements() {
+		return this.m_statements;
+	}
+
+	/**
+	 * Get the number of entities loaded
+	 */
+	public long getEntitiesLoaded() {
+		return this.m_entitiesLoaded;
+	}
+
+	/**
+	 * Get the number of entities inserted
+	 */
+	public long getEntitiesInserted() {
+		return this.m_entitiesInserted;
+	}
+
+	/**
+	 * Get the number of entities updated
+	 */
+	public long getEntitiesUpdated() {
+		return this.m_entitiesUpdated;
+	}
+
+	/**
+	 * Get the number of session flushes
+	 */
+	public long getFlushes() {
+		return this.m_flushes;
+	}
+
+	/**
+	 * Get the number of concepts created
+	 */
+	public long getConceptsCreated() {
+		return this.m_conceptsCreated;
+	}
+
+	/**
+	 * Get the time taken to import the document, or -1 if the import hasn't completed
+	 */
+	public long getElapsedMillis() {
+		return this.m_elapsedMillis;
+	}
+
+	/**
+	 * Represent the summary on one line
+	 */
+	@Override
+	public String toString() {
+		return String.format("document=%s template=%s time=%sms statements=%s loaded=%s inserted=%s updated=%s flushes=%s conceptsCreated=%s",
+				this.m_documentId, this.m_template, this.m_elapsedMillis, this.m_statements, this.m_entitiesLoaded,
+				this.m_entitiesInserted, this.m_entitiesUpdated, this.m_flushes, this.m_conceptsCreated);
+	}
+}
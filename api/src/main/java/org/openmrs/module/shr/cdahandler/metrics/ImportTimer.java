@@ -0,0 +1,113 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The times spent by one processor in one stage of the import. Times include the time
+ * spent in the stages nested within it (a section's time includes its entries). Stages which
+ * failed are counted apart and their times left out
+ * @author Justin Fyfe
+ *
+ */
+public final class ImportTimer implements ImportTimerMBean {
+
+	// Microseconds in a millisecond
+	private static final double MICROS_PER_MILLI = 1000.0;
+
+	private final String m_stage;
+	private final String m_processor;
+	private final String m_templates;
+	// Times in microseconds
+	private final Histogram m_times = new Histogram();
+	// The number of times the stage failed
+	private final AtomicLong m_failures = new AtomicLong();
+
+	/**
+	 * Create a timer
+	 */
+	ImportTimer(String stage, String processor, String templates) {
+		this.m_stage = stage;
+		this.m_processor = processor;
+		this.m_templates = templates;
+	}
+
+	/**
+	 * Record the time spent in the stage
+	 */
+	void record(long nanos) {
+		this.m_times.record(nanos / 1000);
+	}
+
+	/**
+	 * Count a failure of the stage
+	 */
+	void recordFailure() {
+		this.m_failures.incrementAndGet();
+	}
+
+	@Override
+	public String getStage() {
+		return this.m_stage;
+	}
+
+	@Override
+	public String getProcessor() {
+		return this.m_processor;
+	}
+
+	@Override
+	public String getTemplates() {
+		return this.m_templates;
+	}
+
+	@Override
+	public long getCount() {
+		return this.m_times.getCount();
+	}
+
+	@Override
+	public long getFailures() {
+		return this.m_failures.get();
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return this.m_times.getTotal() / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return this.m_times.getMean() / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return this.m_times.getMax() / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double getMedianMillis() {
+		return this.m_times.getPercentile(0.5) / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double get90thPercentileMillis() {
+		return this.m_times.getPercentile(0.9) / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return this.m_times.getPercentile(0.99) / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public double get999thPercentileMillis() {
+		return this.m_times.getPercentile(0.999) / MICROS_PER_MILLI;
+	}
+
+	@Override
+	public void reset() {
+		this.m_times.reset();
+		this.m_failures.set(0);
+	}
+}
@@ -0,0 +1,74 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+/**
+ * The management interface of an {@link ImportTimer}
+ * @author Justin Fyfe
+ *
+ */
+public interface ImportTimerMBean {
+
+	/**
+	 * Get the stage of the import timed (parse, document, header, section or entry)
+	 */
+	String getStage();
+
+	/**
+	 * Get the class of the processor timed
+	 */
+	String getProcessor();
+
+	/**
+	 * Get the template ids the processor handles
+	 */
+	String getTemplates();
+
+	/**
+	 * Get the number of times the stage completed
+	 */
+	long getCount();
+
+	/**
+	 * Get the number of times the stage failed
+	 */
+	long getFailures();
+
+	/**
+	 * Get the total time spent in the stage
+	 */
+	double getTotalMillis();
+
+	/**
+	 * Get the mean time spent in the stage
+	 */
+	double getMeanMillis();
+
+	/**
+	 * Get the longest time spent in the stage
+	 */
+	double getMaxMillis();
+
+	/**
+	 * Get the median time spent in the stage
+	 */
+	double getMedianMillis();
+
+	/**
+	 * Get the 90th percentile of the time spent in the stage
+	 */
+	double get90thPercentileMillis();
+
+	/**
+	 * Get the 99th percentile of the time spent in the stage
+	 */
+	double get99thPercentileMillis();
+
+	/**
+	 * Get the 99.9th percentile of the time spent in the stage
+	 */
+	double get999thPercentileMillis();
+
+	/**
+	 * Discard the times and failures recorded
+	 */
+	void reset();
+}
@@ -0,0 +1,85 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring buffer of the most recent imports which took longer, or ran more statements, than 
+ * the configured thresholds. The oldest are overwritten once the buffer is full
+ * @author Justin Fyfe
+ *
+ */
+public final class SlowImportLog implements SlowImportLogMBean {
+
+	private final ImportSummary[] m_imports;
+	// The next slot to be written
+	private int m_next = 0;
+	private long m_recorded = 0;
+
+	/**
+	 * Create a log holding the specified number of imports
+	 */
+	SlowImportLog(int capacity) {
+		this.m_imports = new ImportSummary[capacity];
+	}
+
+	/**
+	 * Record a slow import
+	 */
+	synchronized void record(ImportSummary summary) {
+		this.m_imports[this.m_next] = summary;
+		this.m_next = (this.m_next + 1) % this.m_imports.length;
+		this.m_recorded++;
+	}
+
+	/**
+	 * Get the slow imports held, most recent first
+	 */
+	public synchronized List<ImportSummary> getImports() {
+		List<ImportSummary> retVal = new ArrayList<ImportSummary>(this.m_imports.length);
+		for(int i = 1; i <= this.m_imports.length; i++)
+		{
+			ImportSummary summary = this.m_imports[(this.m_next - i + this.m_imports.length) % this.m_imports.length];
+			if(summary == null)
+				break;
+			retVal.add(summary);
+		}
+		return retVal;
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return (int)Math.min(this.m_recorded, this.m_imports.length);
+	}
+
+	@Override
+	public synchronized long getRecorded() {
+		return this.m_recorded;
+	}
+
+	@Override
+	public String[] getSlowImports() {
+		List<ImportSummary> imports = this.getImports();
+		String[] retVal = new String[imports.size()];
+		for(int i = 0; i < retVal.length; i++)
+			retVal[i] = String.format("%tFT%<tT %s", imports.get(i).getStarted(), imports.get(i));
+		return retVal;
+	}
+
+	@Override
+	public String getSlowest() {
+		ImportSummary slowest = null;
+		for(ImportSummary summary : this.getImports())
+			if(slowest == null || summary.getElapsedMillis() > slowest.getElapsedMillis())
+				slowest = summary;
+		return slowest == null ? null : slowest.toString();
+	}
+
+	@Override
+	public synchronized void clear() {
+		for(int i = 0; i < this.m_imports.length; i++)
+			this.m_imports[i] = null;
+		this.m_next = 0;
+		this.m_recorded = 0;
+	}
+}
@@ -0,0 +1,34 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+/**
+ * The management interface of the {@link SlowImportLog}
+ * @author Justin Fyfe
+ *
+ */
+public interface SlowImportLogMBean {
+
+	/**
+	 * Get the number of slow imports held
+	 */
+	int getSize();
+
+	/**
+	 * Get the number of slow imports recorded since the log was created or cleared
+	 */
+	long getRecorded();
+
+	/**
+	 * Get the slow imports held, most recent first
+	 */
+	String[] getSlowImports();
+
+	/**
+	 * Get the slowest of the imports held
+	 */
+	String getSlowest();
+
+	/**
+	 * Discard the slow imports held
+	 */
+	void clear();
+}
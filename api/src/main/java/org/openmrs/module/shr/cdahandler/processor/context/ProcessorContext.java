@@ -22,16 +22,13 @@ public class ProcessorContext {
 	private BaseOpenmrsData m_parsedObject;
 	
 	/**
-	 * Creates a new parser context
+	 * Creates a new root parser context
 	 * @param currentObject The current object being parsed
 	 * @param parser The parser being used
 	 */
 	public ProcessorContext(IGraphable rawObject, BaseOpenmrsData parsedObject, Processor parser)
 	{
-		this.m_parser = parser;
-		this.m_object = rawObject;
-		this.m_parent = parser.getContext();
-		this.m_parsedObject = parsedObject;
+		this(rawObject, parsedObject, parser, null);
 	}
 	
 	/**
@@ -39,8 +36,10 @@ public class ProcessorContext {
 	 */
 	public ProcessorContext(IGraphable rawObject, BaseOpenmrsData parsedObject,
         Processor processor, ProcessorContext parent) {
-		this(rawObject, parsedObject, processor);
+		this.m_parser = processor;
+		this.m_object = rawObject;
 		this.m_parent = parent;
+		this.m_parsedObject = parsedObject;
     }
 
 	/**
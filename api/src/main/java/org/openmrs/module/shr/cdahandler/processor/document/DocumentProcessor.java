@@ -2,6 +2,7 @@ package org.openmrs.module.shr.cdahandler.processor.document;
 
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
 import org.openmrs.Visit;
+import org.openmrs.module.shr.cdahandler.everest.CdaStreamReader;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.processor.Processor;
 
@@ -19,4 +20,12 @@ public interface DocumentProcessor extends Processor {
 	 */
 	Visit process(ClinicalDocument doc) throws DocumentImportException;
 
+	/**
+	 * Parses a document whose structured body is read one component at a time
+	 * @param header The document with an empty structured body
+	 * @param body The reader from which the components of the structured body are read
+	 * @return The visit created for the document
+	 */
+	Visit process(ClinicalDocument header, CdaStreamReader body) throws DocumentImportException;
+
 }
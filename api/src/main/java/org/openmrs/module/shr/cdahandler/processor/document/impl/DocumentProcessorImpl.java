@@ -2,6 +2,8 @@ package org.openmrs.module.shr.cdahandler.processor.document.impl;
 
 import java.io.ByteArrayInputStream;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
@@ -11,6 +13,7 @@ import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dom4j.DocumentException;
+import org.hibernate.FlushMode;
 import org.marc.everest.datatypes.II;
 import org.marc.everest.datatypes.PQ;
 import org.marc.everest.formatters.FormatterUtil;
@@ -37,15 +40,16 @@ import org.openmrs.Relationship;
 import org.openmrs.User;
 import org.openmrs.Visit;
 import org.openmrs.VisitAttribute;
-import org.openmrs.activelist.Allergy;
-import org.openmrs.activelist.Problem;
+import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.everest.CdaStreamReader;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 import org.openmrs.module.shr.cdahandler.processor.context.DocumentProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.document.DocumentProcessor;
@@ -59,6 +63,7 @@ import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.PatientRoleProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.PersonProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.StatementFingerprintUtil;
 import org.openmrs.obs.ComplexData;
 
 /**
@@ -71,9 +76,6 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	// Log
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
-	// The context within which this parser is operating
-	protected ProcessorContext m_context;
-
 	// Utilities
 	protected final OpenmrsMetadataUtil m_openmrsMetadataUtil = OpenmrsMetadataUtil.getInstance();
 	protected final OpenmrsConceptUtil m_openmrsConceptUtil = OpenmrsConceptUtil.getInstance();
@@ -84,15 +86,12 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	protected final LocationOrganizationProcessorUtil m_locationOrganizationProcessorUtil = LocationOrganizationProcessorUtil.getInstance();
 	protected final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
 	protected final OpenmrsDataUtil m_openmrsDataUtil = OpenmrsDataUtil.getInstance();
+	protected final StatementFingerprintUtil m_statementFingerprintUtil = StatementFingerprintUtil.getInstance();
+	protected final ImportMetrics m_importMetrics = ImportMetrics.getInstance();
 
+	// True while the header of a document whose sections are read one at a time is validated
+	private static final ThreadLocal<Boolean> s_validatingHeader = new ThreadLocal<Boolean>();
 
-	/**
-	 * Gets the context within which this processor runs (if any)
-	 */
-	@Override
-	public ProcessorContext getContext() {
-		return this.m_context;
-	}
 
 	/**
 	 * Get the template name that this processor handles
@@ -106,25 +105,116 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	 */
 	@Override
 	public Visit process(ClinicalDocument doc) throws DocumentImportException
+	{
+		return this.process(doc, null);
+	}
+
+	/**
+	 * Processes a document whose structured body is read one component at a time. The 
+	 * statements aren't compared with those previously imported because the whole body 
+	 * is never available
+	 * @see org.openmrs.module.shr.cdahandler.processor.document.DocumentProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument, org.openmrs.module.shr.cdahandler.everest.CdaStreamReader)
+	 */
+	@Override
+	public Visit process(ClinicalDocument doc, CdaStreamReader body) throws DocumentImportException
 	{
 		
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(doc);
+			// The sections of a streamed body are validated as they are read
+			ValidationIssueCollection issues;
+			if(body != null)
+				s_validatingHeader.set(Boolean.TRUE);
+			try
+			{
+				issues = this.validate(doc);
+			}
+			finally
+			{
+				s_validatingHeader.remove();
+			}
 			if(issues.hasErrors())
 				throw new DocumentValidationException(doc, issues);
 		}
 		
-		Visit visitInformation = this.processHeader(doc);
+		// Flush at fixed points rather than before each lookup query (if enabled)
+		FlushMode previousFlushMode = null;
+		if(this.m_configuration.getManualFlush())
+			previousFlushMode = Context.getService(CdaImportService.class).setFlushMode(FlushMode.MANUAL);
+		// Remember the data saved by each section so it can be evicted (if enabled)
+		boolean evictProcessedData = this.m_configuration.getEvictProcessedSections();
+		if(evictProcessedData)
+			Context.getService(CdaImportService.class).startEntityTracking();
 		
-		// Encounters - This may be a level 1 document so we better check
-		if(doc.getComponent().getBodyChoiceIfNonXMLBody() != null)
-			visitInformation = this.processLevel1Content(doc, visitInformation);
-		else // level 2 , just hand-off to a StructuredBodyDocumentProcessor
-			visitInformation = this.processLevel2Content(doc, visitInformation);
+		// Compare the statements with the previous version of the document (if enabled)
+		this.m_statementFingerprintUtil.beginDiff();
+		boolean countDocument = this.m_importMetrics.beginDocument();
+		this.m_importMetrics.setDocument(doc.getId() == null ? null : this.m_datatypeProcessorUtil.formatIdentifier(doc.getId()), this.getTemplateName());
+		long documentStart = ImportMetrics.start();
+		boolean completed = false;
+		try
+		{
+			long headerStart = ImportMetrics.start();
+			Visit visitInformation = this.processHeader(doc);
+			this.flushSession("header");
+			this.m_importMetrics.record(ImportMetrics.STAGE_HEADER, this.getClass(), headerStart);
+			
+			// Encounters - This may be a level 1 document so we better check
+			if(doc.getComponent().getBodyChoiceIfNonXMLBody() != null)
+				visitInformation = this.processLevel1Content(doc, visitInformation);
+			else if(body != null) // level 2 read one section at a time
+				visitInformation = this.processStreamedLevel2Content(doc, visitInformation, body);
+			else // level 2 , just hand-off to a StructuredBodyDocumentProcessor
+				visitInformation = this.processLevel2Content(doc, visitInformation);
+	
+			this.m_statementFingerprintUtil.completeDiff(visitInformation);
+			completed = true;
+			return visitInformation;
+		}
+		finally
+		{
+			this.m_importMetrics.end(ImportMetrics.STAGE_DOCUMENT, this.getClass(), documentStart, completed);
+			// Not imported through the import service (which counts up to the commit)
+			if(countDocument)
+				this.m_importMetrics.endDocument();
+			this.m_statementFingerprintUtil.releaseDiff();
+			if(evictProcessedData)
+				Context.getService(CdaImportService.class).stopEntityTracking();
+			// The transaction doesn't flush on commit in manual mode
+			if(previousFlushMode != null)
+				Context.getService(CdaImportService.class).setFlushMode(previousFlushMode);
+		}
+	}
 
-		return visitInformation;
+	/**
+	 * Flush the session if it is in manual flush mode
+	 * @param point The point in the document reached, for logging
+	 */
+	protected void flushSession(String point)
+	{
+		if(!this.m_configuration.getManualFlush())
+			return;
+		long start = System.currentTimeMillis();
+		Context.flushSession();
+		log.debug(String.format("Flushed after %s in %s ms", point, System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Flush the session and evict the obs, orders and active list items saved since the previous
+	 * section, if processed sections are evicted. Concepts are kept because they are shared by 
+	 * the sections
+	 * @param point The point in the document reached, for logging
+	 */
+	protected void evictProcessedData(String point)
+	{
+		if(!this.m_configuration.getEvictProcessedSections())
+			return;
+		// Manual flush mode has already flushed
+		if(!this.m_configuration.getManualFlush())
+			Context.flushSession();
+		int evicted = Context.getService(CdaImportService.class).evictEntities(Arrays.<Class<?>>asList(Obs.class, Order.class, ActiveListItem.class));
+		log.debug(String.format("Evicted %s objects after %s", evicted, point));
 	}
 
 	/**
@@ -153,6 +243,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 		else if(this.m_configuration.getUpdateExisting())
 		{
 			visitInformation.setDateChanged(doc.getEffectiveTime().getDateValue().getTime());
+			this.m_statementFingerprintUtil.setPreviousVisit(visitInformation, null);
 		}
 		else
 			throw new DocumentImportException(String.format("Cannot persist a duplicate document %s!", doc.getId()));
@@ -179,7 +270,9 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 					log.warn(String.format("Can't find the visit identified as %s to be associated", FormatterUtil.toWireFormat(dr.getParentDocument().getId())));
 				else if(dr.getTypeCode().getCode().equals(x_ActRelationshipDocument.RPLC)) // Replacement of
 				{
-					this.voidVisitData(oldVisit, doc.getId());
+					// When comparing statements the old visit is voided once its unchanged statements are moved
+					if(!this.m_statementFingerprintUtil.setPreviousVisit(oldVisit, this.m_datatypeProcessorUtil.formatIdentifier(doc.getId())))
+						this.voidVisitData(oldVisit, doc.getId());
 				}
 				else if(dr.getTypeCode().getCode().equals(x_ActRelationshipDocument.APND))
 				{
@@ -226,7 +319,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 			VisitAttribute confidentiality = new VisitAttribute();
 			confidentiality.setAttributeType(this.m_openmrsMetadataUtil.getOrCreateVisitConfidentialityCodeAttributeType());
 			confidentiality.setValueReferenceInternal(this.m_datatypeProcessorUtil.formatSimpleCode(doc.getConfidentialityCode()));
-			visitInformation.addAttribute(confidentiality);
+			visitInformation.setAttribute(confidentiality);
 		}
 		
 		// Custodian - Approximately the location where the event or original data is store
@@ -359,7 +452,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 			VisitAttribute provenance = new VisitAttribute();
 			provenance.setAttributeType(this.m_openmrsMetadataUtil.getOrCreateVisitExternalIdAttributeType());
 			provenance.setValueReferenceInternal(this.m_datatypeProcessorUtil.formatIdentifier(doc.getId()));
-			visitInformation.addAttribute(provenance);
+			visitInformation.setAttribute(provenance);
 		}
 
 		// Type of visit
@@ -393,46 +486,22 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 		visitInformation.setEncounters(encounters);
 		visitInformation = Context.getVisitService().saveVisit(visitInformation);
 		
+		// Index the document so it can be found by id
+		if(doc.getId() != null && !doc.getId().isNull())
+			this.m_openmrsDataUtil.linkDocumentToVisit(doc.getId(), visitInformation);
+		
 		return visitInformation;
 	}
 
 	/**
-	 * Void the visit
-	 * Auto generated method comment
+	 * Void the visit and everything recorded in it, with the id of the replacing document as the reason
 	 * 
 	 * @param oldVisit
 	 */
 	private void voidVisitData(Visit oldVisit, II newId) {
-		// Void the old visit with reason of replaced by this one
-		log.info(String.format("Voided %s", oldVisit));
 		String voidReason = this.m_datatypeProcessorUtil.formatIdentifier(newId);
-		Context.getVisitService().voidVisit(oldVisit, voidReason);
-
-		// Void the encounter and all observations 
-		for(Encounter enc : oldVisit.getEncounters())
-		{
-			log.info(String.format("Voided %s", enc));
-			Context.getEncounterService().voidEncounter(enc, voidReason);
-			for(Obs obs : enc.getObs())
-			{
-				log.info(String.format("Voided %s", obs));
-				Context.getObsService().voidObs(obs, voidReason);
-				if(obs.getAccessionNumber() != null)
-				{
-					// TODO: Validate this is the correct behavior?
-					for(Problem p : Context.getService(CdaImportService.class).getActiveListItemByObs(obs, Problem.class))
-						Context.getActiveListService().voidActiveListItem(p, voidReason);
-					for(Allergy a : Context.getService(CdaImportService.class).getActiveListItemByObs(obs, Allergy.class))
-						Context.getActiveListService().voidActiveListItem(a, voidReason);
-					//					Context.getActiveListService().voidActiveListItem(p, voidReason);
-				}
-			}
-			for(Order ord : enc.getOrders())
-			{
-				log.info(String.format("Voided %s", ord));
-				Context.getOrderService().voidOrder(ord, voidReason);
-			}
-		}
+		int voided = Context.getService(CdaImportService.class).voidVisitData(oldVisit, voidReason);
+		log.info(String.format("Voided %s (%s rows)", oldVisit, voided));
     }
 
 	/**
@@ -488,12 +557,83 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 		DocumentProcessorContext rootContext = new DocumentProcessorContext(doc, visitInformation, this);
 		// Add encounter to context
 		ProcessorContext childContext = new ProcessorContext(structuredBody, visitEncounter, this, rootContext);
+		
+		// Resolve the codes used in the body up front rather than one at a time
+		this.m_openmrsConceptUtil.preResolveConcepts(structuredBody);
+		try
+		{
+			// Keep the statements which haven't changed since the previous version
+			this.m_statementFingerprintUtil.prepareDiff(structuredBody, visitEncounter);
+			
+			// Find the existing data once the previous version has been moved and voided
+			this.m_openmrsDataUtil.prefetchAccessionNumbers(structuredBody);
+			
+			// Iterate through sections saving them
+			for(Component3 comp : structuredBody.getComponent())
+			{
+				// empty section?
+				if(comp == null || comp.getNullFlavor() != null ||
+						comp.getSection() == null || comp.getSection().getNullFlavor() != null)
+				{
+					log.warn("Component is missing section. Skipping");
+					continue;
+				}
+				
+				Section section = comp.getSection();
 				
-		// Iterate through sections saving them
-		for(Component3 comp : structuredBody.getComponent())
+				// TODO: Now process section
+				SectionProcessor processor = factory.createProcessor(section);
+				this.m_importMetrics.process(processor, section, childContext);
+				this.flushSession(String.format("section %s", section.getCode()));
+				this.evictProcessedData(String.format("section %s", section.getCode()));
+				
+			}
+		}
+		finally
+		{
+			this.m_openmrsConceptUtil.releaseResolutionTable();
+			this.m_openmrsDataUtil.releaseAccessionNumberTable();
+		}
+		
+		
+		return visitInformation;
+    }
+
+	/**
+	 * Parse structured body content read one component at a time. Each section is released
+	 * (along with the concepts and existing data found for it) before the next is read
+	 * @throws DocumentImportException 
+	 */
+	private Visit processStreamedLevel2Content(ClinicalDocument doc, Visit visitInformation, CdaStreamReader body) throws DocumentImportException {
+
+		StructuredBody structuredBody = doc.getComponent().getBodyChoiceIfStructuredBody();
+		SectionProcessorFactory factory = SectionProcessorFactory.getInstance();
+		Encounter visitEncounter = visitInformation.getEncounters().iterator().next();
+
+		// Add visit to context
+		DocumentProcessorContext rootContext = new DocumentProcessorContext(doc, visitInformation, this);
+		// Add encounter to context
+		ProcessorContext childContext = new ProcessorContext(structuredBody, visitEncounter, this, rootContext);
+		
+		if(this.m_configuration.getUpdateDifferential() || this.m_configuration.getSkipUnchangedStatements())
+			log.warn(String.format("The statements of %s are not compared with those previously imported as its sections are read one at a time", 
+					doc.getId() == null ? null : this.m_datatypeProcessorUtil.formatIdentifier(doc.getId())));
+		
+		Set<String> sectionTemplateIds = new HashSet<String>();
+		Component3 comp;
+		while((comp = body.readComponent()) != null)
 		{
+			// Validate the section before anything is saved for it
+			if(this.m_configuration.getValidationEnabled())
+			{
+				ValidationIssueCollection issues = new ValidationIssueCollection();
+				this.validateSection(comp, issues);
+				if(issues.hasErrors())
+					throw new DocumentValidationException(doc, issues);
+			}
+
 			// empty section?
-			if(comp == null || comp.getNullFlavor() != null ||
+			if(comp.getNullFlavor() != null ||
 					comp.getSection() == null || comp.getSection().getNullFlavor() != null)
 			{
 				log.warn("Component is missing section. Skipping");
@@ -501,27 +641,37 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 			}
 			
 			Section section = comp.getSection();
-			
-			// TODO: Now process section
-			SectionProcessor processor = factory.createProcessor(section);
-			processor.setContext(childContext);
-			
-			processor.process(section);
-			
+			if(section.getTemplateId() != null)
+				for(II templateId : section.getTemplateId())
+					sectionTemplateIds.add(templateId.getRoot());
+			this.m_openmrsConceptUtil.preResolveConcepts(section);
+			this.m_openmrsDataUtil.prefetchAccessionNumbers(section);
+			try
+			{
+				SectionProcessor processor = factory.createProcessor(section);
+				this.m_importMetrics.process(processor, section, childContext);
+				this.flushSession(String.format("section %s", section.getCode()));
+				this.evictProcessedData(String.format("section %s", section.getCode()));
+			}
+			finally
+			{
+				this.m_openmrsConceptUtil.releaseResolutionTable();
+				this.m_openmrsDataUtil.releaseAccessionNumberTable();
+			}
 		}
 		
+		// Only the sections which are missing are left to validate
+		if(this.m_configuration.getValidationEnabled())
+		{
+			ValidationIssueCollection issues = new ValidationIssueCollection();
+			this.validateSections(sectionTemplateIds, issues);
+			if(issues.hasErrors())
+				throw new DocumentValidationException(doc, issues);
+		}
 		
 		return visitInformation;
-    }
-
-	/**
-	 * Sets the context within which this processor runs
-	 */
-	@Override
-	public void setContext(ProcessorContext context) {
-		this.m_context = context;
 	}
-	
+
 	/**
 	 * Validate a clinical document instance
 	 * @param doc The clinical document to be validated
@@ -535,4 +685,34 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 			validationMessages.error(String.format("Expected ClinicalDocument, got %s", object.getClass()));
 		return validationMessages;
 	}
+
+	/**
+	 * Validate a component of the structured body on its own. Called by validate with each 
+	 * component of a parsed body, and with each component of a streamed body as it is read
+	 * @param component The component of the structured body
+	 * @param validationIssues The issues found
+	 */
+	protected void validateSection(Component3 component, ValidationIssueCollection validationIssues)
+	{
+	}
+
+	/**
+	 * Validate the sections of the structured body, given the template ids they carry. Called 
+	 * by validate with the sections of a parsed body, and once a streamed body has been read
+	 * @param sectionTemplateIds The template ids of the sections
+	 * @param validationIssues The issues found
+	 */
+	protected void validateSections(Collection<String> sectionTemplateIds, ValidationIssueCollection validationIssues)
+	{
+	}
+
+	/**
+	 * True if validate is being called with the header of a document whose sections are read
+	 * one at a time (its structured body is empty), in which case the sections are validated 
+	 * as they are read
+	 */
+	protected boolean isValidatingHeaderOnly()
+	{
+		return Boolean.TRUE.equals(s_validatingHeader.get());
+	}
 }
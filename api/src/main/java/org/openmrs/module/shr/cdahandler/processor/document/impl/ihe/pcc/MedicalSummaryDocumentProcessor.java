@@ -2,6 +2,7 @@ package org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.marc.everest.datatypes.II;
@@ -49,6 +50,31 @@ public class MedicalSummaryDocumentProcessor extends MedicalDocumentsDocumentPro
 	    return "Medical Summary";
     }
 
+	/**
+	 * Each component must have a section
+	 * @see org.openmrs.module.shr.cdahandler.processor.document.impl.DocumentProcessorImpl#validateSection(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3, org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection)
+	 */
+	@Override
+	protected void validateSection(Component3 component, ValidationIssueCollection validationIssues) {
+		if(component == null || component.getNullFlavor() != null || 
+				component.getSection() == null || component.getSection().getNullFlavor() != null)
+			validationIssues.error("Each component must have a section");
+	}
+
+	/**
+	 * Find all missing required sections
+	 * @see org.openmrs.module.shr.cdahandler.processor.document.impl.DocumentProcessorImpl#validateSections(java.util.Collection, org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection)
+	 */
+	@Override
+	protected void validateSections(Collection<String> sectionTemplateIds, ValidationIssueCollection validationIssues) {
+		List<String> neededTemplates = new ArrayList<String>(this.getExpectedSections());
+		neededTemplates.removeAll(sectionTemplateIds);
+		
+		// Output errors
+		for(String s : neededTemplates)
+			validationIssues.warn(String.format("%s missing required section %s", this.getTemplateName(), s));
+	}
+
 	/**
 	 * Validate
 	 * @see org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalDocumentsDocumentProcessor#validate(org.marc.everest.interfaces.IGraphable)
@@ -61,25 +87,18 @@ public class MedicalSummaryDocumentProcessor extends MedicalDocumentsDocumentPro
 	    ClinicalDocument doc = (ClinicalDocument)object;
 	    if(doc.getComponent().getBodyChoiceIfStructuredBody() == null)
 	    	validationIssues.error("Document must have a structuredBody");
-	    else
+	    else if(!this.isValidatingHeaderOnly()) // Streamed sections are validated as they are read
 	    {
-	    	List<String> neededTemplates = new ArrayList<String>(this.getExpectedSections());
+	    	List<String> sectionTemplateIds = new ArrayList<String>();
 			
-	    	// Find all missing required sections
 	    	for(Component3 comp : doc.getComponent().getBodyChoiceIfStructuredBody().getComponent())
 	    	{
-	    		if(comp == null || comp.getNullFlavor() != null || 
-	    				comp.getSection() == null || comp.getSection().getNullFlavor() != null)
-	    			validationIssues.error("Each component must have a section");
-	    		else
+	    		this.validateSection(comp, validationIssues);
+	    		if(comp != null && comp.getSection() != null && comp.getSection().getTemplateId() != null)
 	    			for(II templateId : comp.getSection().getTemplateId())
-	    				neededTemplates.remove(templateId.getRoot());
+	    				sectionTemplateIds.add(templateId.getRoot());
 	    	}
-
-	    	// Output errors
-	    	for(String s : neededTemplates)
-	    		validationIssues.warn(String.format("%s missing required section %s", this.getTemplateName(), s));
-	    	
+	    	this.validateSections(sectionTemplateIds, validationIssues);
 	    }
 	    
 	    // Expected code
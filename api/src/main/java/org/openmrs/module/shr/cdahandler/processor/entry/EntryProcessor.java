@@ -4,6 +4,7 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
 import org.openmrs.BaseOpenmrsData;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.processor.Processor;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * Represents a parser that can interpret an entry
@@ -15,7 +16,8 @@ public interface EntryProcessor extends Processor {
 	/**
 	 * Parses an entry into an appropriate OpenMRS structure
 	 * @param entry The CDA entry to be parsed
+	 * @param context The context in which the entry is being parsed
 	 * @return An appropriate OpenMRS data object based on the entry content. 
 	 */
-	BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException;
+	BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException;
 }
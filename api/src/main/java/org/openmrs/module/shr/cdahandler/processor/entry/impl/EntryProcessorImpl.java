@@ -31,6 +31,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFactory;
@@ -48,9 +49,6 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	// Log
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
-	// The context within which this parser is operating
-	protected ProcessorContext m_context;
-
 	// The Configuration and datatype utility
 	protected final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
 	protected final DatatypeProcessorUtil m_datatypeUtil = DatatypeProcessorUtil.getInstance();
@@ -58,6 +56,7 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	protected final OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
 	protected final AssignedEntityProcessorUtil m_assignedEntityUtil = AssignedEntityProcessorUtil.getInstance();
 	protected final OpenmrsMetadataUtil m_metadataUtil = OpenmrsMetadataUtil.getInstance();
+	protected final ImportMetrics m_importMetrics = ImportMetrics.getInstance();
 
 	/**
 	 * Find an entry relationship
@@ -77,20 +76,12 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 		return retVal;
 	}
 
-	/**
-	 * Gets the context under which this entry processor executes
-	 */
-	@Override
-	public ProcessorContext getContext() {
-		return this.m_context;
-	}
-
 	/**
 	 * Gets the processor context which contains the encounter which an entry belongs 
 	 */
-	protected final ProcessorContext getEncounterContext()
+	protected final ProcessorContext getEncounterContext(ProcessorContext context)
 	{
-		ProcessorContext encounterContext = this.getContext();
+		ProcessorContext encounterContext = context;
 		while(encounterContext.getParent() != null && !(encounterContext.getParsedObject() instanceof Encounter))
 				encounterContext = encounterContext.getParent();
 		return encounterContext;
@@ -123,7 +114,7 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	 * Process the section
 	 */
 	@Override
-	public abstract BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException;
+	public abstract BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException;
 	
 	/**
 	 * Process entry relationships
@@ -150,34 +141,25 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 			{
 				this.m_datatypeUtil.cascade(entry, relationship.getClinicalStatement(), "effectiveTime");
 				EntryProcessor processor = factory.createProcessor(relationship.getClinicalStatement());
-				if(processor != null)
-				{
-					processor.setContext(childContext);
-					processor.process(relationship.getClinicalStatement());
-				}
+				if(processor == null)
+					continue;
+				
+				this.m_importMetrics.process(processor, relationship.getClinicalStatement(), childContext);
 			}
 		}
     }
 
-	/**
-	 * Sets the context under which this entry processor executes
-	 */
-	@Override
-	public void setContext(ProcessorContext context) {
-		this.m_context = context;
-	}
-
 	/**
 	 * Set the creator on the openMrs data
 	 * @throws DocumentImportException 
 	 */
-	public void setCreator(BaseOpenmrsData data, ClinicalStatement statement) throws DocumentImportException {
+	public void setCreator(BaseOpenmrsData data, ClinicalStatement statement, ProcessorContext context) throws DocumentImportException {
 
 		// Created by different?
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 		if(statement.getAuthor().size() == 1 && statement.getAuthor().get(0).getAssignedAuthor() != null)
 		{
-			AssignedAuthor headerAuthor = this.findAuthorFromHeader(statement.getAuthor().get(0).getAssignedAuthor().getId());
+			AssignedAuthor headerAuthor = this.findAuthorFromHeader(statement.getAuthor().get(0).getAssignedAuthor().getId(), context);
 			// Get the provider
 			Provider createdByProvider = this.m_assignedEntityUtil.processProvider(headerAuthor);
 			User createdBy = this.m_dataUtil.getUser(createdByProvider);
@@ -197,12 +179,12 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	 * Clone an encounter for registering a sub-encounter
 	 * @throws DocumentImportException 
 	 */
-	protected Encounter createEncounter(ClinicalStatement statement) throws DocumentImportException {
+	protected Encounter createEncounter(ClinicalStatement statement, ProcessorContext context) throws DocumentImportException {
 		Encounter retVal = new Encounter();
-		this.setCreator(retVal, statement);
+		this.setCreator(retVal, statement, context);
 		
 		// Get encounter root
-		Encounter rootEncounter = (Encounter)this.getEncounterContext().getParsedObject();
+		Encounter rootEncounter = (Encounter)this.getEncounterContext(context).getParsedObject();
 		retVal.setVisit(rootEncounter.getVisit());
 		retVal.setLocation(rootEncounter.getLocation());
 		retVal.setPatient(rootEncounter.getPatient());
@@ -224,9 +206,9 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	 * Find the assigned author in the header
 	 * @throws DocumentImportException 
 	 */
-	private AssignedAuthor findAuthorFromHeader(SET<II> authorIds) throws DocumentImportException {
+	private AssignedAuthor findAuthorFromHeader(SET<II> authorIds, ProcessorContext context) throws DocumentImportException {
 		// Get the author from the CDA header
-		ClinicalDocument documentContext = (ClinicalDocument)this.getContext().getRootContext().getRawObject();
+		ClinicalDocument documentContext = (ClinicalDocument)context.getRootContext().getRawObject();
 		AssignedAuthor headerAuthor = null;
 		for(II id : authorIds)
 		{
@@ -266,12 +248,20 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 
 		return validationIssues;
 	}
+
+	/**
+	 * Validate the object within the context it appears. Processors whose rules
+	 * depend on the containing section or statement override this
+	 */
+	protected ValidationIssueCollection validate(IGraphable object, ProcessorContext context)
+	{
+		return this.validate(object);
+	}
 	
 	/**
 	 * Get the CDA section to which this belongs
 	 */
-	public Section getSection() {
-		ProcessorContext context = this.getContext();
+	public Section getSection(ProcessorContext context) {
 		while(!(context.getRawObject() instanceof Section))
 			context = context.getParent();
 		return (Section)context.getRawObject();
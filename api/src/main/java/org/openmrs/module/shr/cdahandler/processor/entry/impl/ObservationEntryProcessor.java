@@ -67,15 +67,15 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 
 	/**
 	 * Process the observation
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-	public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+	public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -88,9 +88,9 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 		// Only store EVN or " I DID OBSERVE " Observations, the other mood codes 
 		// if encountered should create more appropriate data
 		if(observation.getMoodCode().getCode().equals(x_ActMoodDocumentObservation.Intent))
-			return this.processIntentOccurance(observation);
+			return this.processIntentOccurance(observation, context);
 		else
-			return this.processEventOccurance(observation);
+			return this.processEventOccurance(observation, context);
 	}
 
 
@@ -98,9 +98,9 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 	 * Process the observation as an order. Usually these are tests
 	 * @throws DocumentImportException 
 	 */
-	protected BaseOpenmrsData processIntentOccurance(Observation observation) throws DocumentImportException {
+	protected BaseOpenmrsData processIntentOccurance(Observation observation, ProcessorContext context) throws DocumentImportException {
 		
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 
 		// Get current order and void if existing for an update
 		Order previousOrder = super.voidOrThrowIfPreviousOrderExists(observation.getReference(), encounterInfo.getPatient(), observation.getId());
@@ -132,7 +132,7 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 		res.setEncounter(encounterInfo);
 		
 		// Set the creator
-		super.setCreator(res, observation);
+		super.setCreator(res, observation, context);
 		
 		// Is this a prescribe? 
 		if(previousOrder != null)
@@ -174,7 +174,7 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 		// Text?
 		if(observation.getText() != null && observation.getText().getReference() != null)
 		{
-			StructDocNode node = this.getSection().getText().findNodeById(observation.getText().getReference().getValue());
+			StructDocNode node = this.getSection(context).getText().findNodeById(observation.getText().getReference().getValue());
 			if(node != null)
 				res.setInstructions(node.toPlainString());
 		}
@@ -256,11 +256,11 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 	 * DID OCCUR (moodCode = EVN)
 	 * @throws DocumentImportException 
 	 */
-	protected BaseOpenmrsData processEventOccurance(Observation observation) throws DocumentImportException {
+	protected BaseOpenmrsData processEventOccurance(Observation observation, ProcessorContext context) throws DocumentImportException {
 
 		// Create concept and datatype services
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
-		Obs parentObs = (Obs)this.getContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
+		Obs parentObs = (Obs)context.getParsedObject();
 		
 		// TODO: Get an existing obs and do an update to the obs? or void it because the new encounter supersedes it..
 		// Void any existing obs that have the same id
@@ -281,7 +281,7 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 			res.setAccessionNumber(this.m_datatypeUtil.formatIdentifier(observation.getId().get(0)));
 		
 		// Set the creator
-		super.setCreator(res, observation);
+		super.setCreator(res, observation, context);
 		
 		// Value may be changed
 		ANY value = observation.getValue();
@@ -354,7 +354,7 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 		{
 			if(observation.getText().getReference() != null) // Reference
 			{
-				ProcessorContext sectionContext = this.getContext();
+				ProcessorContext sectionContext = context;
 				while(!(sectionContext.getRawObject() instanceof Section))
 					sectionContext = sectionContext.getParent();
 				
@@ -422,7 +422,7 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 		}
 		
 		// Process any components
-		ProcessorContext childContext = new ProcessorContext(observation, res, this);
+		ProcessorContext childContext = new ProcessorContext(observation, res, this, context);
 		super.processEntryRelationships(observation, childContext);
 		
 		
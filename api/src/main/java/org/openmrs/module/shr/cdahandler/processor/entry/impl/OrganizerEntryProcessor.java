@@ -60,16 +60,16 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 	 * Parse the organizer into an Obs group
 	 * @throws DocumentImportException 
 	 */
-	protected Obs parseOrganizer(Organizer organizer) throws DocumentImportException {
+	protected Obs parseOrganizer(Organizer organizer, ProcessorContext context) throws DocumentImportException {
 		
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 		
 		// References to previous organizer?
 		Obs previousObs = this.voidOrThrowIfPreviousObsExists(organizer.getReference(), encounterInfo.getPatient(), organizer.getId());
 				
 		// Organizer obs
 		ExtendedObs organizerObs = new ExtendedObs();
-		Obs parentObs = (Obs)this.getContext().getParsedObject();
+		Obs parentObs = (Obs)context.getParsedObject();
 		
 		// The value will be a classifier of the type of organizer
 		ST value = new ST(organizer.getClassCode().getCode().getCode());
@@ -78,7 +78,7 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 		organizerObs.setPreviousVersion(previousObs);
 		
 		// Set the creator
-		super.setCreator(organizerObs, organizer);
+		super.setCreator(organizerObs, organizer, context);
 
 		// Concept
 		if(organizer.getCode() != null)
@@ -143,15 +143,15 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 	
 	/**
 	 * Process the organizer
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-	public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+	public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -160,11 +160,13 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 		
 		// We want to process the organizer as an Obs
 		Organizer organizer = (Organizer)entry;
-		Obs organizerObs = this.parseOrganizer(organizer);
+		Obs organizerObs = this.parseOrganizer(organizer, context);
+		// Saved before the components for the same reason as the section obs group
+		// (see GenericLevel2SectionProcessor.process)
 		organizerObs = Context.getObsService().saveObs(organizerObs, null);
 
 		// Cascade properties and process
-		ProcessorContext organizerContext = new ProcessorContext(organizer, organizerObs, this);
+		ProcessorContext organizerContext = new ProcessorContext(organizer, organizerObs, this, context);
 		EntryProcessorFactory factory = EntryProcessorFactory.getInstance();
  
 		// Iterate through components
@@ -186,8 +188,7 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 	    		continue;
 	    	}
 			
-			processor.setContext(organizerContext);
-			processor.process(statement);
+			this.m_importMetrics.process(processor, statement, organizerContext);
 			
 		}
 
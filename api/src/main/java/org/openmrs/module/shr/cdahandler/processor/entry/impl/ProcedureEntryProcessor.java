@@ -47,15 +47,15 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 	
 	/**
 	 * Process the clinical statement
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-	public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+	public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -68,9 +68,9 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		// Only store EVN or " I DID PERFORM " procedures, the other mood codes 
 		// if encountered should create more appropriate data like an ORDER for INT (i.e. I intend to perform a procedure)
 		if(procedure.getMoodCode().getCode().equals(x_DocumentProcedureMood.Eventoccurrence))
-			return this.processEventOccurance(procedure);
+			return this.processEventOccurance(procedure, context);
 		else if(procedure.getMoodCode().getCode().equals(x_DocumentProcedureMood.Intent))
-			return this.processIntent(procedure);
+			return this.processIntent(procedure, context);
 		else
 			throw new NotImplementedException("Only support procedures with moodCode = INT or EVN");
 		
@@ -84,8 +84,8 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 	 * @return
 	 * @throws DocumentImportException 
 	 */
-	protected BaseOpenmrsData processIntent(Procedure procedure) throws DocumentImportException {
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+	protected BaseOpenmrsData processIntent(Procedure procedure, ProcessorContext context) throws DocumentImportException {
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 		
 		// Get current order and void if existing for an update
 		Order previousOrder = super.voidOrThrowIfPreviousOrderExists(procedure.getReference(), encounterInfo.getPatient(), procedure.getId());
@@ -107,7 +107,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		res.setEncounter(encounterInfo);
 		
 		// Set the creator
-		super.setCreator(res, procedure);
+		super.setCreator(res, procedure, context);
 		
 		// Is this a prescribe? 
 		if(previousOrder != null)
@@ -148,7 +148,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		// Text?
 		if(procedure.getText() != null && procedure.getText().getReference() != null)
 		{
-			StructDocNode node = this.getSection().getText().findNodeById(procedure.getText().getReference().getValue());
+			StructDocNode node = this.getSection(context).getText().findNodeById(procedure.getText().getReference().getValue());
 			if(node != null)
 				res.setInstructions(node.toPlainString());
 		}
@@ -214,10 +214,10 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 	 * Process the event occurance of a procedure
 	 * @throws DocumentImportException 
 	 */
-	protected BaseOpenmrsData processEventOccurance(Procedure procedure) throws DocumentImportException {
+	protected BaseOpenmrsData processEventOccurance(Procedure procedure, ProcessorContext context) throws DocumentImportException {
 		// Create concept and datatype services
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
-		Obs parentObs = (Obs)this.getContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
+		Obs parentObs = (Obs)context.getParsedObject();
 		
 		// TODO: Get an existing obs and do an update the obs? or void it because the new encounter supersedes it..
 		// Void any existing obs that have the same id
@@ -243,7 +243,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 			res.setAccessionNumber(this.m_datatypeUtil.formatIdentifier(procedure.getId().get(0)));
 		
 		// Set the creator
-		super.setCreator(res, procedure);
+		super.setCreator(res, procedure, context);
 		
 		// The concept for the procedure is "Procedure History"
 		res.setConcept(Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_HISTORY));
@@ -288,7 +288,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		// Comment
 		if(procedure.getText() != null && !procedure.getText().isNull())
 		{
-			StructDocNode node = this.getSection().getText().findNodeById(procedure.getText().getReference().getValue());
+			StructDocNode node = this.getSection(context).getText().findNodeById(procedure.getText().getReference().getValue());
 			if(node != null)
 				res.setComment(node.toPlainString());
 		}
@@ -336,7 +336,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		
 		
 		// Process any components
-		ProcessorContext childContext = new ProcessorContext(procedure, res, this);
+		ProcessorContext childContext = new ProcessorContext(procedure, res, this, context);
 		super.processEntryRelationships(procedure, childContext);
 				
 		return res;
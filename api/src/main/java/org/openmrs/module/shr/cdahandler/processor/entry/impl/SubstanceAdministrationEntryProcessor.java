@@ -31,6 +31,7 @@ import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.util.OpenmrsConstants;
 
 /**
@@ -38,16 +39,16 @@ import org.openmrs.util.OpenmrsConstants;
  */
 public abstract class SubstanceAdministrationEntryProcessor extends EntryProcessorImpl {
 
-	protected AssignedEntityProcessorUtil m_providerUtil = AssignedEntityProcessorUtil.getInstance();
+	protected final AssignedEntityProcessorUtil m_providerUtil = AssignedEntityProcessorUtil.getInstance();
 
 	/**
 	 * Process
 	 */
 	@Override
-    public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+    public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -56,20 +57,20 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 		
 		SubstanceAdministration sbadm = (SubstanceAdministration)entry;
 		if(sbadm.getMoodCode().getCode().equals(x_DocumentSubstanceMood.Intent)) // Prescribe
-			return this.processAdministrationAsOrder(sbadm);
+			return this.processAdministrationAsOrder(sbadm, context);
 		else
-			return this.processAdministrationAsObservation(sbadm);
+			return this.processAdministrationAsObservation(sbadm, context);
     }
 
 	/**
 	 * Process the substance administration as an order
 	 */
-	protected abstract BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration) throws DocumentImportException;
+	protected abstract BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration, ProcessorContext context) throws DocumentImportException;
 
 	/**
 	 * PRocess the substance administration as an observation
 	 */
-	protected abstract BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration) throws DocumentImportException;
+	protected abstract BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration, ProcessorContext context) throws DocumentImportException;
 	
 	/**
 	 * Validate a substance administration can be processed
@@ -106,14 +107,14 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 	 * @return 
 	 * @throws DocumentImportException 
 	 */
-	protected ExtendedObs createSubstanceAdministrationObs(SubstanceAdministration administration, Concept obsConcept, Concept drugObsConcept) throws DocumentImportException {
+	protected ExtendedObs createSubstanceAdministrationObs(SubstanceAdministration administration, Concept obsConcept, Concept drugObsConcept, ProcessorContext context) throws DocumentImportException {
 
 		// Unknown 
 		if(administration.getCode() != null && "182904002".equals(administration.getCode().getCode()))
 			return null;
 		
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
-		Obs parentObs = (Obs)this.getContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
+		Obs parentObs = (Obs)context.getParsedObject();
 		
 		// Get current order and void if existing for an update
 		Obs previousHistoryObs = super.voidOrThrowIfPreviousObsExists(administration.getReference(), encounterInfo.getPatient(), administration.getId());
@@ -135,7 +136,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 		
 		medicationHistoryObs.setEncounter(encounterInfo);
 		medicationHistoryObs.setDateCreated(encounterInfo.getDateCreated());
-		super.setCreator(medicationHistoryObs, administration);				
+		super.setCreator(medicationHistoryObs, administration, context);				
 
 		if(administration.getId() != null)
 			medicationHistoryObs.setAccessionNumber(this.m_datatypeUtil.formatIdentifier(administration.getId().get(0)));
@@ -168,7 +169,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 		}
 
 		// Get the section text
-		Section parentSection = super.getSection();
+		Section parentSection = super.getSection(context);
 
 		// Text and comments
 		if(administration.getText() != null && administration.getText().getReference() != null)
@@ -245,7 +246,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 				supplyObs.setConcept(Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_SUPPLY));
 				supplyObs.setObsDatetime(medicationHistoryObs.getObsDatetime());
 				medicationHistoryObs.setObsMood(this.m_conceptUtil.getOrCreateConcept(new CV<x_DocumentSubstanceMood>(supply.getMoodCode().getCode())));
-				super.setCreator(supplyObs, supply);
+				super.setCreator(supplyObs, supply, context);
 				
 				// Supply obs
 				if(supply.getId() != null && !supply.getId().isEmpty())
@@ -311,7 +312,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 				continue;
 			
 			// Add instructions
-			StructDocNode instructionsNode = this.getSection().getText().findNodeById(condition.getCriterion().getText().getReference().getValue());
+			StructDocNode instructionsNode = this.getSection(context).getText().findNodeById(condition.getCriterion().getText().getReference().getValue());
 			if(instructionsNode != null)
 				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TEXT), String.format("Pre-Condition: %s", instructionsNode.toPlainString()));
 		}
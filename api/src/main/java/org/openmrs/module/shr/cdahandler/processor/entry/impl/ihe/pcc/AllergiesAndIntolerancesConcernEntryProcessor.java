@@ -24,6 +24,7 @@ import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * Represents a processor for the Allergis and Intolerances Entry
@@ -57,13 +58,11 @@ public class AllergiesAndIntolerancesConcernEntryProcessor extends ConcernEntryP
 	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.ihe.pcc.ConcernEntryProcessor#parseActContents(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Act, org.openmrs.Obs)
 	 */
 	@Override
-    protected ActiveListItem parseActContents(Act act, ClinicalStatement statement) throws DocumentImportException {
+    protected ActiveListItem parseActContents(Act act, ClinicalStatement statement, ProcessorContext context) throws DocumentImportException {
 		
 		// Get processor factory
 		EntryProcessor processor = EntryProcessorFactory.getInstance().createProcessor(statement);
-		processor.setContext(this.getContext());
-		
-		BaseOpenmrsData processedData = processor.process(statement);
+		BaseOpenmrsData processedData = this.m_importMetrics.process(processor, statement, context);
 
 		// Not an allergy so process like normal
 		if(!statement.getTemplateId().contains(new II(CdaHandlerConstants.ENT_TEMPLATE_ALLERGY_AND_INTOLERANCE_OBSERVATION)))
@@ -74,7 +73,7 @@ public class AllergiesAndIntolerancesConcernEntryProcessor extends ConcernEntryP
 		Observation observation = (Observation)statement;
 		
 		// We don't track the allergy to an obs if we can help it..
-		Allergy res = super.createActiveListItem(act, statement, obs, Allergy.class);
+		Allergy res = super.createActiveListItem(act, statement, obs, Allergy.class, context);
 		res.setActiveListType(Allergy.ACTIVE_LIST_TYPE);
 		
 		// Populate allergy contents ... What is the allergy type?
@@ -15,6 +15,7 @@ import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 /**
  * Represents an observation processor for Allergies and Intolerances section
  */
@@ -66,12 +67,12 @@ public class AllergiesAndIntolerancesEntryProcessor extends SimpleObservationEnt
 
 	/**
 	 * Special processing of the allergy observation
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.ObservationEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.ObservationEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-    public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+    public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
-	    return super.process(entry);
+	    return super.process(entry, context);
     }
 
 	/**
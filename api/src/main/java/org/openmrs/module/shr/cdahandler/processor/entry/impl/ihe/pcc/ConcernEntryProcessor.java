@@ -25,6 +25,7 @@ import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.ActEntryProcessor;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * Processes concern entries
@@ -64,10 +65,10 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 	 * @return
 	 * @throws DocumentImportException 
 	 */
-	public <T extends ActiveListItem> T createActiveListItem(Act act, ClinicalStatement statement, ExtendedObs obs, Class<T> clazz) throws DocumentImportException {
+	public <T extends ActiveListItem> T createActiveListItem(Act act, ClinicalStatement statement, ExtendedObs obs, Class<T> clazz, ProcessorContext context) throws DocumentImportException {
 		
 		// Get the encounter context
-		Encounter encounterInfo = (Encounter)super.getEncounterContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)super.getEncounterContext(context).getParsedObject();
 		ActiveListItem previousItem = null;
 		
 		// IS this a replacement?
@@ -99,6 +100,7 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 		// Try to load by observation?
 		if(previousItem == null && obs.getPreviousVersion() != null)
 		{
+			this.m_dataUtil.flushPendingChanges();
 			List<? extends ActiveListItem> candidates = Context.getService(CdaImportService.class).getActiveListItemByObs(obs.getPreviousVersion(), clazz);
 			if(candidates.size() > 0)
 				previousItem = candidates.get(0);
@@ -192,7 +194,7 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 		res.setPerson(encounterInfo.getPatient());
 		
 		// Author
-		super.setCreator(res, act);
+		super.setCreator(res, act, context);
 		return res;
     }
 	
@@ -221,7 +223,7 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 	 * level because a concern entry doesn't have enough information information about
 	 * the type of concern to know which active list item to create  
 	 */
-	protected ActiveListItem parseActContents(Act act, ClinicalStatement obs) throws DocumentImportException {
+	protected ActiveListItem parseActContents(Act act, ClinicalStatement obs, ProcessorContext context) throws DocumentImportException {
 		return null;
     }
 
@@ -232,15 +234,15 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 	 *  Second: As an active list item
 	 *  
 	 *  This method will only return the observation (or a group of them if more than one exists)
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-	public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+	public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -261,7 +263,7 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 				continue;
 		
 			// Process the active list item
-			ActiveListItem listItem = this.parseActContents(act, relationship.getClinicalStatement());
+			ActiveListItem listItem = this.parseActContents(act, relationship.getClinicalStatement(), context);
 			if(listItem != null)
 				Context.getActiveListService().saveActiveListItem(listItem);
 		}
@@ -21,6 +21,7 @@ import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * Entry processor for external references
@@ -48,15 +49,15 @@ public class ExternalReferencesEntryProcessor extends EntryProcessorImpl {
 	
 	/**
 	 * Process the entry
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-	public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+	public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
 		// Validate 
 		if(this.m_configuration.getValidationEnabled())
 		{
-			ValidationIssueCollection issues = this.validate(entry);
+			ValidationIssueCollection issues = this.validate(entry, context);
 			if(issues.hasErrors())
 				throw new DocumentValidationException(entry, issues);
 		}
@@ -66,8 +67,8 @@ public class ExternalReferencesEntryProcessor extends EntryProcessorImpl {
 		Act act = (Act)entry;
 		
 		// Create concept and datatype services
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
-		Obs parentObs = (Obs)this.getContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
+		Obs parentObs = (Obs)context.getParsedObject();
 		Obs previousObs = super.voidOrThrowIfPreviousObsExists(act.getReference(), encounterInfo.getPatient(), act.getId());
 				
 		// Create the observation for the reference
@@ -86,13 +87,13 @@ public class ExternalReferencesEntryProcessor extends EntryProcessorImpl {
 		// comment?
 		if(act.getText() != null && act.getText().getReference() != null)
 		{
-			StructDocNode commentNode = this.getSection().getText().findNodeById(act.getText().getReference().getValue());
+			StructDocNode commentNode = this.getSection(context).getText().findNodeById(act.getText().getReference().getValue());
 			if(commentNode != null)
 				res.setComment(commentNode.toPlainString());
 		}
 		
 		// Set the creator
-		super.setCreator(res, act);
+		super.setCreator(res, act, context);
 
 		// References as sub obs
 		for(Reference ref : act.getReference())
@@ -28,6 +28,7 @@ import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.OrganizerEntryProcessor;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.util.OpenmrsConstants;
 
 /**
@@ -81,18 +82,18 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 
 	/**
 	 * Process this organizer
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.OrganizerEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.OrganizerEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-    public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+    public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		// First, we must assign a code to this organizer or else the underlying grouping will not work
-		ValidationIssueCollection validationIssues = this.validate(entry);
+		ValidationIssueCollection validationIssues = this.validate(entry, context);
 		if(validationIssues.hasErrors())
 			throw new DocumentValidationException(entry, validationIssues);
 		else if(!entry.isPOCD_MT000040UVOrganizer())
 			throw new DocumentImportException("Expected family history to be an Organizer");
 		
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 		Organizer organizer = (Organizer)entry;
 		
 		// This organizer is a little different. The organizer maps to CIEL 160593
@@ -112,9 +113,9 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			this.m_datatypeUtil.cascade(organizer, componentObservation, "effectiveTime","author", "reference");
 
 			// Previous obs
-			Obs parentObs = (Obs)this.getContext().getParsedObject();
+			Obs parentObs = (Obs)context.getParsedObject();
 			
-			ExtendedObs familyHistoryObs = (ExtendedObs)super.parseOrganizer(organizer);
+			ExtendedObs familyHistoryObs = (ExtendedObs)super.parseOrganizer(organizer, context);
 			familyHistoryObs.setConcept(Context.getConceptService().getConcept(160593));
 
 			// Date of diagnosis
@@ -157,13 +158,11 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			// Comment?
 			if(componentObservation.getText() != null && componentObservation.getText().getReference() != null)
 			{
-				StructDocNode node = this.getSection().getText().findNodeById(componentObservation.getText().getReference().getValue());
+				StructDocNode node = this.getSection(context).getText().findNodeById(componentObservation.getText().getReference().getValue());
 				if(node != null)
 					familyHistoryObs.setComment(node.toPlainString());
 			}
 			
-			familyHistoryObs = (ExtendedObs)Context.getObsService().saveObs(familyHistoryObs, null);
-			
 			// Process participant data
 			RelatedSubject subject = organizer.getSubject().getRelatedSubject();
 
@@ -175,8 +174,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					for(II id : person.getId())
 					{
 						Obs idObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160752), this.m_datatypeUtil.formatIdentifier(id));
-						idObs.setObsGroup(familyHistoryObs);
-						Context.getObsService().saveObs(idObs, null);
+						familyHistoryObs.addGroupMember(idObs);
 					}
 				
 				// Name
@@ -184,17 +182,15 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					for(PN name : person.getName())
 					{
 						Obs nameObs =this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160750), name.toString());
-						nameObs.setObsGroup(familyHistoryObs);
-						Context.getObsService().saveObs(nameObs, null);
+						familyHistoryObs.addGroupMember(nameObs);
 					}
 				
 				
 				if(person.getBirthTime() != null && !person.getBirthTime().isNull())
 				{
 					Obs dobObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160751), person.getBirthTime());
-					dobObs.setObsGroup(familyHistoryObs);
+					familyHistoryObs.addGroupMember(dobObs);
 					dobObs.setComment(person.getBirthTime().getDateValuePrecision().toString());
-					Context.getObsService().saveObs(dobObs, null);
 				}
 					
 				
@@ -204,8 +200,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 				{
 					INT age =  (INT)ageObservation.get(0).getClinicalStatementIfObservation().getValue();
 					Obs ageObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160617), age);
-					ageObs.setObsGroup(familyHistoryObs);
-					Context.getObsService().saveObs(ageObs, null);
+					familyHistoryObs.addGroupMember(ageObs);
 					componentObservation.getEntryRelationship().remove(ageObservation.get(0));
 				}
 				/*
@@ -213,16 +208,14 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 				{
 					PQ age =  componentObservation.getEffectiveTime().getValue().subtract(person.getBirthTime()).convert("a");
 					Obs ageObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160617), age);
-					ageObs.setObsGroup(familyHistoryObs);
-					Context.getObsService().saveObs(ageObs, null);
+					familyHistoryObs.addGroupMember(ageObs);
 				}*/
 			}
 	
 			if(subject.getCode() != null)
 			{
 				Obs relationObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(1560), subject.getCode());
-				relationObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(relationObs, null);
+				familyHistoryObs.addGroupMember(relationObs);
 			}
 			else
 				throw new DocumentImportException("Family member must have a relationship type specified");
@@ -232,8 +225,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			if(BL.TRUE.equals(componentObservation.getNegationInd()))
 			{
 				Obs negateObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(1729), Context.getConceptService().getConcept(Integer.valueOf(Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT))));
-				negateObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(negateObs, null);
+				familyHistoryObs.addGroupMember(negateObs);
 			}
 			
 
@@ -241,18 +233,19 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			if(this.m_datatypeUtil.hasTemplateId(componentObservation, new II(CdaHandlerConstants.ENT_TEMPLATE_CCD_DEATH_OBSERVATION)))
 			{
 				Obs dxObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160592), Context.getConceptService().getConcept(160432));
-				dxObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(dxObs, null);
+				familyHistoryObs.addGroupMember(dxObs);
 			}
 
 			// Write the diagnosis
 			if (componentObservation.getCode() != null)
 			{
 				Obs dxObs = this.m_dataUtil.createSubObservationValue(parentObs, this.m_conceptUtil.getOrCreateConceptAndEquivalents(componentObservation.getCode()), componentObservation.getValue());
-				dxObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(dxObs, null);
+				familyHistoryObs.addGroupMember(dxObs);
 			}
 			
+			// Save the family history obs once, its sub-observations are saved by the cascade
+			// rather than by a call to the obs service each (each is still its own insert)
+			Context.getObsService().saveObs(familyHistoryObs, null);
 		}
 		
 		// Nothing?
@@ -41,7 +41,7 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor#processAdministrationAsOrder(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration)
 	 */
 	@Override
-	protected BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration)
+	protected BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration, ProcessorContext context)
 	    throws DocumentImportException {
 		throw new NotImplementedException();
 	}
@@ -51,10 +51,10 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor#processAdministrationAsObservation(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration)
 	 */
 	@Override
-	protected BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration)
+	protected BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration, ProcessorContext context)
 	    throws DocumentImportException {
 		
-		ExtendedObs immunizationObs = super.createSubstanceAdministrationObs(administration, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_HISTORY), Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DRUG));
+		ExtendedObs immunizationObs = super.createSubstanceAdministrationObs(administration, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_HISTORY), Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DRUG), context);
 		
 		// Set the effective time 
 		for(ISetComponent<TS> eft : administration.getEffectiveTime())
@@ -87,7 +87,7 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 		
 		// Process entry relationships (these should be substance administrations) 
 		// Representing them as a flat heirarchy
-		ProcessorContext childContext = new ProcessorContext(administration, immunizationObs, this);
+		ProcessorContext childContext = new ProcessorContext(administration, immunizationObs, this, context);
 		super.processEntryRelationships(administration, childContext);
 
 		return immunizationObs;
@@ -77,8 +77,8 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 	 * Process this as an order
 	 */
 	@Override
-	protected BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration) throws DocumentImportException {
-		Encounter encounterInfo = (Encounter)this.getEncounterContext().getParsedObject();
+	protected BaseOpenmrsData processAdministrationAsOrder(SubstanceAdministration administration, ProcessorContext context) throws DocumentImportException {
+		Encounter encounterInfo = (Encounter)this.getEncounterContext(context).getParsedObject();
 
 		// Get current order and void if existing for an update
 		Order previousOrder = super.voidOrThrowIfPreviousOrderExists(administration.getReference(), encounterInfo.getPatient(), administration.getId());
@@ -97,7 +97,7 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 		res.setEncounter(encounterInfo);
 		
 		// Set the creator
-		super.setCreator(res, administration);
+		super.setCreator(res, administration, context);
 		
 		// Is this a prescribe? 
 		if(previousOrder != null)
@@ -195,7 +195,7 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 			res.setOrderReasonNonCoded(reason.toString());
 
 		// Get the section text
-		Section parentSection = super.getSection();
+		Section parentSection = super.getSection(context);
 		// Instructions
 		for(EntryRelationship er : this.findEntryRelationship(administration, CdaHandlerConstants.ENT_TEMPLATE_MEDICATION_INSTRUCTIONS))
 		{
@@ -218,7 +218,7 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 				continue;
 			
 			// Add instructions
-			StructDocNode instructionsNode = this.getSection().getText().findNodeById(condition.getCriterion().getText().getReference().getValue());
+			StructDocNode instructionsNode = this.getSection(context).getText().findNodeById(condition.getCriterion().getText().getReference().getValue());
 			if(instructionsNode != null)
 				dosingInstructions.append(String.format("%s, ", instructionsNode.toPlainString()));
 		}
@@ -296,7 +296,7 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 	 * @throws DocumentImportException 
 	 */
 	@Override
-	protected BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration) throws DocumentImportException
+	protected BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration, ProcessorContext context) throws DocumentImportException
 	{
 		
 		// Canot process this
@@ -305,7 +305,7 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 				"182904002".equals(administration.getCode().getCode()))
 			return null;
 		
-		ExtendedObs medicationHistoryObs = super.createSubstanceAdministrationObs(administration, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_HISTORY), Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DRUG));
+		ExtendedObs medicationHistoryObs = super.createSubstanceAdministrationObs(administration, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_HISTORY), Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DRUG), context);
 		
 		// Effective time(s)
 		for(Object eft : administration.getEffectiveTime())
@@ -379,25 +379,25 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 
 		// Process entry relationships (these should be substance administrations) 
 		// Representing them as a flat heirarchy
-		ProcessorContext childContext = new ProcessorContext(administration, medicationHistoryObs, this);
+		ProcessorContext childContext = new ProcessorContext(administration, medicationHistoryObs, this, context);
 		super.processEntryRelationships(administration, childContext, SubstanceAdministration.class);
 		
 		return medicationHistoryObs;		
 	}
 	
 	/**
-	 * Validate the instance
+	 * Validate the instance within its context
 	 */
 	@Override
-    public ValidationIssueCollection validate(IGraphable object) {
-		ValidationIssueCollection validationIssues = super.validate(object);
+    protected ValidationIssueCollection validate(IGraphable object, ProcessorContext context) {
+		ValidationIssueCollection validationIssues = super.validate(object, context);
 		if(validationIssues.hasErrors())
 			return validationIssues;
 		
 		// Now validate the explicit requirements
 		SubstanceAdministration sbadm = (SubstanceAdministration)object;
 		// Is the context inside another substance administration? If yes then we relax the rules a little
-		if(this.getContext().getParent().getRawObject() instanceof SubstanceAdministration)
+		if(context.getParent().getRawObject() instanceof SubstanceAdministration)
 		{
 			// TODO: Validation of this condition... 
 		}
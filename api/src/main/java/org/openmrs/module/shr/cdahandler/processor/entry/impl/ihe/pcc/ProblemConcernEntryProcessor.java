@@ -17,6 +17,7 @@ import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * A concern entry processor
@@ -53,12 +54,9 @@ public class ProblemConcernEntryProcessor extends ConcernEntryProcessor {
 	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.ihe.pcc.ConcernEntryProcessor#parseActContents(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Act, org.openmrs.Obs)
 	 */
 	@Override
-    protected ActiveListItem parseActContents(Act act, ClinicalStatement statement) throws DocumentImportException {
+    protected ActiveListItem parseActContents(Act act, ClinicalStatement statement, ProcessorContext context) throws DocumentImportException {
 		EntryProcessor processor = EntryProcessorFactory.getInstance().createProcessor(statement);
-		processor.setContext(this.getContext());
-
-		
-		BaseOpenmrsData processed = processor.process(statement);
+		BaseOpenmrsData processed = this.m_importMetrics.process(processor, statement, context);
 		
 		// Not a problem observation so don't create a problem
 		
@@ -68,7 +66,7 @@ public class ProblemConcernEntryProcessor extends ConcernEntryProcessor {
 		ExtendedObs obs = (ExtendedObs)processed;
 		
 		// Correct the act based on the effective time of the entry relationship?
-		Problem res = super.createActiveListItem(act, statement, obs, Problem.class);
+		Problem res = super.createActiveListItem(act, statement, obs, Problem.class, context);
 			
 		// Problem
 		if(obs.getValueCoded() == null)
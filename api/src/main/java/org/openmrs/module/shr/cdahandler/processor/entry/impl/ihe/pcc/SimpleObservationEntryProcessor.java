@@ -10,6 +10,7 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.ObservationEntryProcessor;
 
 /**
@@ -29,13 +30,13 @@ public class SimpleObservationEntryProcessor extends ObservationEntryProcessor {
 	 * 
 	 * @return
 	 */
-	protected CE<String> getConceptSetCode()
+	protected CE<String> getConceptSetCode(ProcessorContext context)
 	{
-		IGraphable context = this.getContext().getRawObject();
-		if(context instanceof Section)
-			return ((Section)context).getCode();
-		else if(context instanceof Organizer)
-			return ((Organizer)context).getCode();
+		IGraphable container = context.getRawObject();
+		if(container instanceof Section)
+			return ((Section)container).getCode();
+		else if(container instanceof Organizer)
+			return ((Organizer)container).getCode();
 		else
 			return null;
 	}
@@ -90,12 +91,23 @@ public class SimpleObservationEntryProcessor extends ObservationEntryProcessor {
 			validationIssues.error("IHE PCC TF-2: Observation shall have a value appropriate with the observation type");
 		if(observation.getEffectiveTime() == null || observation.getEffectiveTime().isNull())
 			validationIssues.error("IHE PCC TF-2: Observations shall have an effective time");
+		return validationIssues;
+    }
+
+	/**
+	 * Validate this entry within its container
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.EntryProcessorImpl#validate(org.marc.everest.interfaces.IGraphable, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
+	 */
+	@Override
+	protected ValidationIssueCollection validate(IGraphable object, ProcessorContext context) {
+		ValidationIssueCollection validationIssues = super.validate(object, context);
+		if(validationIssues.hasErrors()) return validationIssues;
 
 		// Validate .. First we get the code from the organizer/container and figure out if this is an allowed value within its container
-		CE<String> conceptGroupCode = this.getConceptSetCode();
+		CE<String> conceptGroupCode = this.getConceptSetCode(context);
 		if(conceptGroupCode != null && this.m_configuration.getValidateConceptStructure())
-	        super.validateConceptWithContainer(conceptGroupCode, observation, validationIssues);
+	        super.validateConceptWithContainer(conceptGroupCode, (Observation)object, validationIssues);
 		return validationIssues;
-    }
+	}
 	
 }
@@ -20,6 +20,7 @@ import org.openmrs.BaseOpenmrsData;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * A template handler which processes tapered dosing instructions
@@ -29,10 +30,10 @@ public class TaperedDosingMedicationsEntryProcessor extends MedicationsEntryProc
 
 	/**
 	 * Process the dosing instructions
-	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement)
+	 * @see org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-    public BaseOpenmrsData process(ClinicalStatement entry) throws DocumentImportException {
+    public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
 		
 		// Start Description here:
 		// Well, what can I say? This is a more complex scenario where
@@ -102,7 +103,7 @@ public class TaperedDosingMedicationsEntryProcessor extends MedicationsEntryProc
 			while(administrationsQueue.size() > 0)
 				administration.getEntryRelationship().add(new EntryRelationship(x_ActRelationshipEntryRelationship.HasComponent, BL.TRUE, administrationsQueue.poll()));
 		}
-		return super.process(administration);
+		return super.process(administration, context);
     }
 	
 	
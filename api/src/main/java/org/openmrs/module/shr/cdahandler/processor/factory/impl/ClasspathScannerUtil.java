@@ -1,15 +1,15 @@
 package org.openmrs.module.shr.cdahandler.processor.factory.impl;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.datatypes.II;
 import org.marc.everest.datatypes.generic.LIST;
-import org.marc.everest.datatypes.interfaces.IPredicate;
 import org.openmrs.module.shr.cdahandler.processor.Processor;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.springframework.beans.factory.config.BeanDefinition;
@@ -25,35 +25,6 @@ import org.springframework.core.type.filter.AssignableTypeFilter;
 public final class ClasspathScannerUtil {
 
 	
-	/**
-	 * Predicate used to find best match
-	 */
-	private class TemplateMatcher implements IPredicate<II>
-	{
-
-		private LIST<II> m_sourceTemplateIdList;
-		
-		/**
-		 * Constructs the template matcher
-		 */
-		public TemplateMatcher(LIST<II> sourceTemplateIds)
-		{
-			this.m_sourceTemplateIdList = sourceTemplateIds;
-		}
-		
-		/**
-		 * Perform match
-		 */
-		@Override
-        public boolean match(II arg0) {
-			for(II id : this.m_sourceTemplateIdList)
-				if(id.getRoot().equals(arg0.getRoot()))
-					return true; 
-			return false;
-        }
-		
-	}
-	
 	/**
 	 * Gets the current singleton instance
 	 */
@@ -81,6 +52,16 @@ public final class ClasspathScannerUtil {
 	
 	// The procesors and the templates they handle
 	private Map<Class<Processor>, LIST<II>> m_processors;
+	// Index of template id root to the processors which handle it
+	private Map<String, Set<Class<Processor>>> m_templateIndex;
+	// The processor selected for a particular template id signature
+	private final Map<String, Class<Processor>> m_routeCache = new ConcurrentHashMap<String, Class<Processor>>();
+	// The registry generated at compile time by the ProcessTemplates annotation processor
+	private static final String REGISTRY_CLASS_NAME = "org.openmrs.module.shr.cdahandler.processor.factory.impl.ProcessorRegistry";
+	// Marker placed in the route cache when no processor handles a signature
+	private static final Class<Processor> NO_PROCESSOR = Processor.class;
+	// The shared (stateless) instance of each processor
+	private final Map<Class<Processor>, Processor> m_instances = new ConcurrentHashMap<Class<Processor>, Processor>();
 	
 	/**
 	 * Private ctor for classpathscanner utility
@@ -99,72 +80,167 @@ public final class ClasspathScannerUtil {
 	
 	
 	/**
-	 * Create processor instance which can handle the template ids that are
-	 * in the templateIds list
+	 * Get the processor instance which can handle the template ids that are
+	 * in the templateIds list. Processors are stateless so one instance of each 
+	 * processor class is shared by all callers
 	 * @param templateIds The template identifiers
 	 * @return A processor which can handle the template identifiers in the specified class
 	 */
 	public final Processor createProcessor(LIST<II> templateIds)
 	{
 
-		TemplateMatcher matcher = new TemplateMatcher(templateIds);
-
-		// Find the best match that is the candidate with the most matching template ids
-		Class<Processor> bestMatch = null;
-				
-		// Try to exactly match the list of template identifiers
-		for(Entry<Class<Processor>, LIST<II>> entry : this.m_processors.entrySet())
-		{
-			int noTemplatesHandled = entry.getValue().findAll(matcher).size();
-			if(noTemplatesHandled > 0 && (bestMatch == null || bestMatch.isAssignableFrom(entry.getKey()))) 
-			{
-				// Is the current proposed processor better (a subclass) of the current?
-				bestMatch = entry.getKey();
-			}
-		}
-			
+		Class<Processor> bestMatch = this.getProcessorClass(templateIds);
+		if(bestMatch == null)
+			return null;
+		return this.getProcessor(bestMatch);
+	}
+	
+	/**
+	 * Get the shared instance of the specified processor class, constructing it 
+	 * on first use
+	 * @param processorClass The processor class
+	 * @return The processor or null if the processor could not be constructed
+	 */
+	@SuppressWarnings("unchecked")
+	public final <T extends Processor> T getProcessor(Class<T> processorClass)
+	{
+		Processor processor = this.m_instances.get(processorClass);
+		if(processor != null)
+			return (T)processor;
+		
 		// Construct a processor	
+		synchronized (this.m_instances) {
+			processor = this.m_instances.get(processorClass);
+			if(processor == null)
+				try {
+					processor = processorClass.newInstance();
+					this.m_instances.put((Class<Processor>)(Class<?>)processorClass, processor);
+				} catch (InstantiationException e) {
+					log.error(e.getMessage(), e);
+				} catch (IllegalAccessException e) {
+					log.error(e.getMessage(), e);
+				}
+		}
+		return (T)processor; // null if couldn't create a processor
+	}
+	
+	/**
+	 * Get the processor class which best handles the template ids in the templateIds list, 
+	 * that is the most specific (subclass) processor which handles any of the template ids
+	 * @param templateIds The template identifiers
+	 * @return The processor class or null if no processor handles the template identifiers
+	 */
+	public final Class<Processor> getProcessorClass(LIST<II> templateIds)
+	{
+		
+		// Have we routed this signature before?
+		String signature = this.getTemplateSignature(templateIds);
+		Class<Processor> bestMatch = this.m_routeCache.get(signature);
 		if(bestMatch != null)
-			try {
-				return bestMatch.newInstance();
-			} catch (InstantiationException e) {
-				log.error(e.getMessage(), e);
-			} catch (IllegalAccessException e) {
-				log.error(e.getMessage(), e);
+			return bestMatch == NO_PROCESSOR ? null : bestMatch;
+		
+		synchronized (s_lockObject) {
+			// Find the best match amongst the processors handling any of the template ids
+			for(II templateId : templateIds)
+			{
+				if(templateId == null || templateId.getRoot() == null)
+					continue;
+				
+				Set<Class<Processor>> candidates = this.m_templateIndex.get(templateId.getRoot());
+				if(candidates == null)
+					continue;
+				
+				for(Class<Processor> candidate : candidates)
+					// Is the current proposed processor better (a subclass) of the current?
+					if(bestMatch == null || bestMatch.isAssignableFrom(candidate))
+						bestMatch = candidate;
 			}
-		return null; // couldn't create a processor
-
+			
+			this.m_routeCache.put(signature, bestMatch == null ? NO_PROCESSOR : bestMatch);
+		}
+		return bestMatch;
 	}
 	
 	/**
-	 * Initialize document processor list
+	 * Get the signature (key in the route cache) of a list of template identifiers
+	 */
+	private String getTemplateSignature(LIST<II> templateIds)
+	{
+		StringBuilder signature = new StringBuilder();
+		for(II templateId : templateIds)
+			if(templateId != null && templateId.getRoot() != null)
+				signature.append(templateId.getRoot()).append('|');
+		return signature.toString();
+	}
+	
+	/**
+	 * Initialize document processor list from the registry generated at compile time,
+	 * scanning the classpath only if the registry is not present
 	 */
-	@SuppressWarnings("unchecked")
 	private void initializeProcessorList()
 	{
+		this.m_processors = new LinkedHashMap<Class<Processor>, LIST<II>>();
+		this.m_templateIndex = new LinkedHashMap<String, Set<Class<Processor>>>();
+		
+		try {
+			Class<?> registry = Class.forName(REGISTRY_CLASS_NAME);
+			Class<?>[] processors = (Class<?>[])registry.getField("PROCESSORS").get(null);
+			log.info(String.format("Registering %s processors from %s", processors.length, REGISTRY_CLASS_NAME));
+			for(Class<?> cls : processors)
+				this.registerProcessor(cls);
+			return;
+		}
+		catch (ClassNotFoundException e) {
+			log.warn(String.format("%s was not generated, falling back to classpath scanning", REGISTRY_CLASS_NAME));
+		}
+		catch (Exception e) {
+			log.error(String.format("Could not read %s, falling back to classpath scanning", REGISTRY_CLASS_NAME), e);
+		}
+		
+		this.scanProcessorList();
+	}
+	
+	/**
+	 * Initialize document processor list by scanning the classpath
+	 */
+	private void scanProcessorList()
+	{
+		log.info("Scanning for processors");
+		for(Class<?> cls : this.scanProcessorClasses())
+			this.registerProcessor(cls);
+	}
+
+	/**
+	 * Find the processors annotated with @ProcessTemplates by scanning the classpath. The
+	 * registry generated at compile time must list the same classes; an incremental compile
+	 * which only sees some of the processors generates a partial registry
+	 */
+	public Set<Class<?>> scanProcessorClasses()
+	{
+		Set<Class<?>> retVal = new LinkedHashSet<Class<?>>();
 		ClassPathScanningCandidateComponentProvider classPathScanner = new ClassPathScanningCandidateComponentProvider(true);
 		classPathScanner.addIncludeFilter(new AssignableTypeFilter(Processor.class));
 		classPathScanner.addIncludeFilter(new AnnotationTypeFilter(ProcessTemplates.class));
 	
-		this.m_processors = new HashMap<Class<Processor>, LIST<II>>();
-		log.info("Scanning for processors");
 		// scan in org.openmrs.module.RegenstriefHl7Adapter.preprocessorHandler package
 		Set<BeanDefinition> components = classPathScanner.findCandidateComponents("org.openmrs.module.shr.cdahandler.processor");
 		for (BeanDefinition component : components) {
 			try {
 				Class<?> cls = Class.forName(component.getBeanClassName());
-				this.registerProcessor(cls);
-				
+				if(Processor.class.isAssignableFrom(cls) && cls.isAnnotationPresent(ProcessTemplates.class))
+					retVal.add(cls);
 			}
 			catch (ClassNotFoundException e) {
 				log.error(e.getMessage(), e);
 			}
 		}
+		return retVal;
 	}
 
 	/**
-	 * Manually register a processor
+	 * Manually register a processor (for example one contributed by another module at runtime)
 	 */
+	@SuppressWarnings("unchecked")
 	public void registerProcessor(Class<?> cls) {
 		// Appears not to be a processor
 		if(!Processor.class.isAssignableFrom(cls))
@@ -182,9 +258,26 @@ public final class ClasspathScannerUtil {
 			templateIds.add(new II(id));
 			log.info("Routing " + id + " to " + cls.getName());
 		}
-		// Add to the processor list
-		if(!this.m_processors.containsKey(cls))
+		// Add to the processor list and index
+		synchronized (s_lockObject) {
+			if(this.m_processors.containsKey(cls))
+				return;
+			
 			this.m_processors.put((Class<Processor>)cls, templateIds);
+			for(II id : templateIds)
+			{
+				Set<Class<Processor>> handlers = this.m_templateIndex.get(id.getRoot());
+				if(handlers == null)
+				{
+					handlers = new LinkedHashSet<Class<Processor>>();
+					this.m_templateIndex.put(id.getRoot(), handlers);
+				}
+				handlers.add((Class<Processor>)cls);
+			}
+			
+			// Routes may now resolve differently
+			this.m_routeCache.clear();
+		}
 	}
 	
 }
@@ -61,7 +61,7 @@ public final class DocumentProcessorFactory implements ProcessorFactory {
 			log.info(String.format("Using template processor: '%s'", candidateProcessor.getTemplateName()));
 		else 
 		{
-			candidateProcessor = new GenericDocumentProcessor();
+			candidateProcessor = scanner.getProcessor(GenericDocumentProcessor.class);
 			log.warn(String.format("Could not find a processor for document template %s ... Fallback processor: StructuredBodyDocumentProcessor", FormatterUtil.toWireFormat(object.getTemplateId())));
 		}
 		
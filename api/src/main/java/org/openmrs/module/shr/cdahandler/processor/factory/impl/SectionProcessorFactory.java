@@ -60,7 +60,7 @@ public final class SectionProcessorFactory implements ProcessorFactory {
 			log.info(String.format("Using template processor: '%s'", candidateProcessor.getTemplateName()));
 		else
 		{
-			candidateProcessor = new GenericLevel2SectionProcessor();
+			candidateProcessor = scanner.getProcessor(GenericLevel2SectionProcessor.class);
 			log.warn(String.format("Could not find a processor for section template %s ... Fallback processor: StructuredBodyDocumentProcessor", FormatterUtil.toWireFormat(object.getTemplateId())));
 		}
 
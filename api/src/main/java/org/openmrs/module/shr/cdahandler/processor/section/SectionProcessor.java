@@ -4,6 +4,7 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
 import org.openmrs.Obs;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.processor.Processor;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 
 /**
  * Represents a parser that is capable of interpreting a section
@@ -15,8 +16,9 @@ public interface SectionProcessor extends Processor {
 	/**
 	 * Parses the specified section into an encounter
 	 * @param section The CDA section to be parsed
+	 * @param context The context in which the section is being parsed
 	 * @return An interpreted section represented as an encounter
 	 */
-	Obs process(Section section) throws DocumentImportException;
+	Obs process(Section section, ProcessorContext context) throws DocumentImportException;
 	
 }
@@ -53,19 +53,20 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 	 * Auto generated method comment
 	 * 
 	 * @param section The section whose elements should be parsed
+	 * @param context The context in which the section is being parsed
 	 * @return The parsed obs
 	 */
-	protected Obs parseSectionElements(Section section) throws DocumentImportException {
+	protected Obs parseSectionElements(Section section, ProcessorContext context) throws DocumentImportException {
 
 		Obs obsGrouper = new Obs();
 		
 		// Is a sub-section? If so assign the obs to the group above
-		if(this.getContext().getParsedObject() instanceof Obs)
-			obsGrouper.setObsGroup((Obs)this.getContext().getParsedObject());
+		if(context.getParsedObject() instanceof Obs)
+			obsGrouper.setObsGroup((Obs)context.getParsedObject());
 		
 		// TODO: Context conduction rules, do we care for CDA?
 		// Get the context that has the counter
-		ProcessorContext encounterContext = this.getContext();
+		ProcessorContext encounterContext = context;
 		while(encounterContext.getParent() != null && !(encounterContext.getParsedObject() instanceof Encounter))
 				encounterContext = encounterContext.getParent();
 		Encounter encounterInfo = (Encounter)encounterContext.getParsedObject();
@@ -117,7 +118,7 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 	 * Process the section
 	 */
 	@Override
-	public Obs process(Section section) throws DocumentImportException {
+	public Obs process(Section section, ProcessorContext context) throws DocumentImportException {
 
 		// Validate
 		if(this.m_configuration.getValidationEnabled())
@@ -127,7 +128,10 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 				throw new DocumentValidationException(section, issues);
 		}
 
-		Obs res = this.parseSectionElements(section);
+		Obs res = this.parseSectionElements(section, context);
+		// Saved before the entries rather than with them: the entry processors save their own 
+		// obs as members of this group (and look up what they saved by id), so the group 
+		// must already be persistent
 		res = Context.getObsService().saveObs(res, null);
 
 		return res;
@@ -20,6 +20,7 @@ import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFa
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.SectionProcessorFactory;
 import org.openmrs.module.shr.cdahandler.processor.section.SectionProcessor;
 import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.StatementFingerprintUtil;
 
 /**
  * Represents a section processor that iterates through entries in the 
@@ -84,15 +85,16 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 
 	/**
 	 * Process the entries in this section
-	 * @see org.openmrs.module.shr.cdahandler.processor.section.impl.GenericLevel2SectionProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section)
+	 * @see org.openmrs.module.shr.cdahandler.processor.section.impl.GenericLevel2SectionProcessor#process(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section, org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext)
 	 */
 	@Override
-    public Obs process(Section section) throws DocumentImportException {
+    public Obs process(Section section, ProcessorContext context) throws DocumentImportException {
 	    
 		// Validate the section done by super
-		Obs level2Data = super.process(section); // Process the level 2 portions
-		ProcessorContext parseContext = new ProcessorContext(section, level2Data, this);
+		Obs level2Data = super.process(section, context); // Process the level 2 portions
+		ProcessorContext parseContext = new ProcessorContext(section, level2Data, this, context);
 		ProcessorFactory factory = EntryProcessorFactory.getInstance();
+		StatementFingerprintUtil statementFingerprintUtil = StatementFingerprintUtil.getInstance();
 
 	    // Process entries
 	    for(Entry ent : section.getEntry())
@@ -107,6 +109,10 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 	    	
 	    	ClinicalStatement statement = ent.getClinicalStatement();
 	    	
+	    	// Unchanged since the previous version of the document, or already imported for the patient?
+	    	if(statementFingerprintUtil.skipUnchanged(statement, level2Data))
+	    		continue;
+	    	
 	    	// Get the processor
 	    	EntryProcessor processor = (EntryProcessor)factory.createProcessor(statement);
 	    	if(processor == null) // No processor found!
@@ -116,8 +122,8 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 	    	}
 	    	else
     		{
-	    		processor.setContext(parseContext);
-	    		processor.process(statement);
+	    		this.m_importMetrics.process(processor, statement, parseContext);
+	    		statementFingerprintUtil.recordProcessed(statement);
     		}
 	    	
 	    }
@@ -140,8 +146,7 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 			
 			// Now process section
 			SectionProcessor processor = (SectionProcessor)factory.createProcessor(subSection);
-			processor.setContext(parseContext);
-			processor.process(subSection);
+			this.m_importMetrics.process(processor, subSection, parseContext);
 			
 	    }
 	    
@@ -7,6 +7,7 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
 import org.openmrs.Obs;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.section.SectionProcessor;
 
@@ -20,31 +21,14 @@ public abstract class SectionProcessorImpl implements SectionProcessor {
 
 	// Log
 	protected final Log log = LogFactory.getLog(this.getClass());
+	// Metrics
+	protected final ImportMetrics m_importMetrics = ImportMetrics.getInstance();
 	
-	// The context within which this parser is operating
-	protected ProcessorContext m_context;
-
-	/**
-	 * Gets the context under which this section processor executes
-	 */
-	@Override
-	public ProcessorContext getContext() {
-		return this.m_context;
-	}
-
 	/**
 	 * Process the section
 	 */
 	@Override
-	public abstract Obs process(Section section) throws DocumentImportException;
-
-	/**
-	 * Sets the context under which this section processor executes
-	 */
-	@Override
-	public void setContext(ProcessorContext context) {
-		this.m_context = context;
-	}
+	public abstract Obs process(Section section, ProcessorContext context) throws DocumentImportException;
 
 	/**
 	 * Validate that the section can be processed
@@ -0,0 +1,140 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The existing obs, orders, allergies and problems carrying the accession numbers (formatted
+ * statement ids) which appear in a document, fetched in bulk before the document's sections
+ * are processed.
+ *
+ * Unlike the concept resolution table, an accession number which was fetched and has no
+ * matches is known not to exist, so no query is needed for it. Each accession number can only
+ * be answered from the table once: after that the statement which carries it may have created
+ * data with that number, so later lookups must go to the database.
+ * @author Justin Fyfe
+ *
+ */
+public final class AccessionNumberTable {
+
+	// Accession numbers which were fetched and haven't been looked up yet
+	private final Set<String> m_pending = new HashSet<String>();
+	// Obs ids by accession number
+	private final Map<String, List<Integer>> m_obs = new HashMap<String, List<Integer>>();
+	// Order ids by accession number
+	private final Map<String, List<Integer>> m_orders = new HashMap<String, List<Integer>>();
+	// Allergy ids by accession number
+	private final Map<String, List<Integer>> m_allergies = new HashMap<String, List<Integer>>();
+	// Problem ids by accession number
+	private final Map<String, List<Integer>> m_problems = new HashMap<String, List<Integer>>();
+
+	/**
+	 * Add the accession numbers which were fetched
+	 */
+	void addFetched(Collection<String> accessionNumbers)
+	{
+		this.m_pending.addAll(accessionNumbers);
+	}
+
+	/**
+	 * Add the obs found for each accession number
+	 */
+	void addObs(Map<String, List<Integer>> obsIds)
+	{
+		this.m_obs.putAll(obsIds);
+	}
+
+	/**
+	 * Add the orders found for each accession number
+	 */
+	void addOrders(Map<String, List<Integer>> orderIds)
+	{
+		this.m_orders.putAll(orderIds);
+	}
+
+	/**
+	 * Add the allergies found for each accession number
+	 */
+	void addAllergies(Map<String, List<Integer>> allergyIds)
+	{
+		this.m_allergies.putAll(allergyIds);
+	}
+
+	/**
+	 * Add the problems found for each accession number
+	 */
+	void addProblems(Map<String, List<Integer>> problemIds)
+	{
+		this.m_problems.putAll(problemIds);
+	}
+
+	/**
+	 * Get the ids of the obs with the accession number, or null if the number must be looked up
+	 */
+	public List<Integer> getObsIds(String accessionNumber)
+	{
+		return this.lookup(accessionNumber, this.m_obs);
+	}
+
+	/**
+	 * Get the ids of the orders with the accession number, or null if the number must be looked up
+	 */
+	public List<Integer> getOrderIds(String accessionNumber)
+	{
+		return this.lookup(accessionNumber, this.m_orders);
+	}
+
+	/**
+	 * Get the ids of the allergies with the accession number, or null if the number must be looked up
+	 */
+	public List<Integer> getAllergyIds(String accessionNumber)
+	{
+		return this.lookup(accessionNumber, this.m_allergies);
+	}
+
+	/**
+	 * Get the ids of the problems with the accession number, or null if the number must be looked up
+	 */
+	public List<Integer> getProblemIds(String accessionNumber)
+	{
+		return this.lookup(accessionNumber, this.m_problems);
+	}
+
+	/**
+	 * True if obs or orders carry the accession number, or null if the number must be looked up. Unlike
+	 * the other lookups this doesn't use up the number
+	 */
+	public Boolean hasData(String accessionNumber)
+	{
+		if(!this.m_pending.contains(accessionNumber))
+			return null;
+		return this.m_obs.containsKey(accessionNumber) || this.m_orders.containsKey(accessionNumber);
+	}
+
+	/**
+	 * Answer a lookup from the table if the number hasn't already been looked up
+	 */
+	private List<Integer> lookup(String accessionNumber, Map<String, List<Integer>> found)
+	{
+		if(!this.m_pending.remove(accessionNumber))
+			return null;
+		List<Integer> retVal = found.get(accessionNumber);
+		if(retVal == null)
+			return Collections.emptyList();
+		return new ArrayList<Integer>(retVal);
+	}
+
+	/**
+	 * Get the number of accession numbers which can still be answered from the table
+	 */
+	public int size()
+	{
+		return this.m_pending.size();
+	}
+}
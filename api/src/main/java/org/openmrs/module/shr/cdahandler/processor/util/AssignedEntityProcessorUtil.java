@@ -50,6 +50,7 @@ public final class AssignedEntityProcessorUtil {
 	private final OpenmrsMetadataUtil m_metaDataUtil = OpenmrsMetadataUtil.getInstance();
 	
 	private final PersonProcessorUtil m_personUtil = PersonProcessorUtil.getInstance();
+	private final OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
 	
 	/**
 	 * Private ctor
@@ -213,7 +214,10 @@ public final class AssignedEntityProcessorUtil {
 
             			throw new DocumentImportException("No data specified for author id");
 		else 				
+		{
+			this.m_dataUtil.flushPendingChanges();
 			res = Context.getProviderService().getProviderByIdentifier(id);
+		}
 			
 		if (res==null && this.m_configuration.getAutoCreateProviders())
 			res = this.createProvider(aut, id);
@@ -245,7 +249,10 @@ public final class AssignedEntityProcessorUtil {
 		if (id.equals(this.m_datatypeUtil.emptyIdString())) 
 			throw new DocumentImportException("No data specified for author id");
 		else 				
+		{
+			this.m_dataUtil.flushPendingChanges();
 			res = Context.getProviderService().getProviderByIdentifier(id);
+		}
 			
 		if (res==null)
 			res = this.createProvider(assignedEntity, id);
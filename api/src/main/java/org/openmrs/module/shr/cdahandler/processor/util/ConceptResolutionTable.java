@@ -0,0 +1,125 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.marc.everest.datatypes.generic.CV;
+
+/**
+ * The reference terms and mapped concepts of the codes appearing in a document, resolved
+ * in bulk before the document's sections are processed.
+ *
+ * Only positive results are held; a code which isn't in the table must be resolved
+ * against the database as usual. Concepts and reference terms are held by id so the
+ * table remains usable if the session is cleared.
+ * @author Justin Fyfe
+ *
+ */
+public final class ConceptResolutionTable {
+
+	// Map types
+	private static final String MAP_TYPE_SAME_AS = "SAME-AS";
+	private static final String MAP_TYPE_NARROWER_THAN = "NARROWER-THAN";
+
+	// Reference term ids by code
+	private final Map<String, Integer> m_referenceTerms = new HashMap<String, Integer>();
+	// Concepts ids mapped SAME-AS by code
+	private final Map<String, List<Integer>> m_sameAs = new HashMap<String, List<Integer>>();
+	// Concepts ids mapped NARROWER-THAN by code
+	private final Map<String, List<Integer>> m_narrowerThan = new HashMap<String, List<Integer>>();
+
+	/**
+	 * Get the key of a code within a code system
+	 */
+	public static String getKey(String codeSystem, String code)
+	{
+		return codeSystem + "|" + code;
+	}
+
+	/**
+	 * Get the key of a coded value, or null if the value can't be resolved
+	 */
+	public static String getKey(CV<?> code)
+	{
+		if(code == null || code.getCode() == null || code.getCodeSystem() == null)
+			return null;
+		return getKey(code.getCodeSystem(), code.getCode().toString());
+	}
+
+	/**
+	 * Add a reference term
+	 */
+	void addReferenceTerm(String key, Integer referenceTermId)
+	{
+		this.m_referenceTerms.put(key, referenceTermId);
+	}
+
+	/**
+	 * Add a concept mapped to the code by the specified map type
+	 */
+	void addConcept(String key, String mapType, Integer conceptId)
+	{
+		Map<String, List<Integer>> target = null;
+		if(MAP_TYPE_SAME_AS.equalsIgnoreCase(mapType))
+			target = this.m_sameAs;
+		else if(MAP_TYPE_NARROWER_THAN.equalsIgnoreCase(mapType))
+			target = this.m_narrowerThan;
+		else
+			return;
+
+		List<Integer> concepts = target.get(key);
+		if(concepts == null)
+		{
+			concepts = new ArrayList<Integer>();
+			target.put(key, concepts);
+		}
+		if(!concepts.contains(conceptId))
+			concepts.add(conceptId);
+	}
+
+	/**
+	 * Get the id of the reference term for the code or null if the code wasn't resolved
+	 */
+	public Integer getReferenceTermId(CV<?> code)
+	{
+		String key = getKey(code);
+		return key == null ? null : this.m_referenceTerms.get(key);
+	}
+
+	/**
+	 * Get the ids of the concepts mapped SAME-AS the code or, failing that, NARROWER-THAN
+	 * the code. Returns null if no concepts were resolved for the code
+	 */
+	public List<Integer> getConceptIds(CV<?> code)
+	{
+		String key = getKey(code);
+		if(key == null)
+			return null;
+		List<Integer> retVal = this.m_sameAs.get(key);
+		if(retVal == null)
+			retVal = this.m_narrowerThan.get(key);
+		return retVal;
+	}
+
+	/**
+	 * Forget the concepts resolved for a code (because the mappings of the code have changed)
+	 */
+	public void remove(CV<?> code)
+	{
+		String key = getKey(code);
+		if(key == null)
+			return;
+		this.m_sameAs.remove(key);
+		this.m_narrowerThan.remove(key);
+	}
+
+	/**
+	 * Get the number of codes resolved to reference terms
+	 */
+	public int size()
+	{
+		return this.m_referenceTerms.size();
+	}
+}
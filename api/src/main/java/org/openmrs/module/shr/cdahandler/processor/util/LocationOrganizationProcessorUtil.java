@@ -14,6 +14,8 @@ import org.openmrs.Location;
 import org.openmrs.LocationAttribute;
 import org.openmrs.PersonAddress;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.cache.LocationExternalIdIndex;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 
@@ -125,13 +127,22 @@ public final class LocationOrganizationProcessorUtil {
 		// TODO: This is an organization not a location so we need to get all locations belonging to the organization
 		// TODO: For now this is stored just as a location with an externalId tag
 		// HACK: The function that does this natively in OpenMRS is missing from 1.9 and is available in 1.10
-		for(Location loc : Context.getLocationService().getAllLocations())
+		LocationExternalIdIndex index = LocationExternalIdIndex.getInstance();
+		Integer locationId = index.get(id);
+		if(locationId != null)
 		{
-			List<LocationAttribute> locAttributes = loc.getActiveAttributes(this.m_metaDataUtil.getOrCreateLocationExternalIdAttributeType());
-			if(locAttributes.size() == 1 && locAttributes.get(0).getValueReference().equals(id)) 
-				return loc; 
+			Location res = Context.getLocationService().getLocation(locationId);
+			if(res != null)
+				return res;
 		}
-		return  null;
+		
+		// Not indexed, look it up
+		long generation = index.getGeneration();
+		List<Integer> locationIds = Context.getService(CdaImportService.class).getLocationIdsByAttribute(this.m_metaDataUtil.getOrCreateLocationExternalIdAttributeType(), id);
+		if(locationIds.isEmpty())
+			return null;
+		index.put(id, locationIds.get(0), generation);
+		return Context.getLocationService().getLocation(locationIds.get(0));
 	}
 	/**
 	 * Copy address parts from an AD into the specified location
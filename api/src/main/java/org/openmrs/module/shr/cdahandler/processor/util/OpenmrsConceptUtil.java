@@ -1,11 +1,15 @@
 package org.openmrs.module.shr.cdahandler.processor.util;
 
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jfree.util.Log;
 import org.marc.everest.datatypes.ANY;
@@ -28,6 +32,22 @@ import org.marc.everest.datatypes.generic.EIVL;
 import org.marc.everest.datatypes.generic.PIVL;
 import org.marc.everest.datatypes.generic.RTO;
 import org.marc.everest.interfaces.IEnumeratedVocabulary;
+import org.marc.everest.interfaces.IGraphable;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Act;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component4;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component5;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.EntryRelationship;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ManufacturedProduct;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Organizer;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Participant2;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Procedure;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.StructuredBody;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Supply;
 import org.openmrs.Concept;
 import org.openmrs.ConceptAnswer;
 import org.openmrs.ConceptClass;
@@ -40,13 +60,18 @@ import org.openmrs.ConceptNumeric;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
 import org.openmrs.Drug;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.metrics.ImportMetrics;
 import org.openmrs.util.OpenmrsConstants;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * A class for interacting (creating/looking up) OpenMRS concepts
@@ -87,6 +112,24 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		put("ICD-10-WHO", CdaHandlerConstants.CODE_SYSTEM_ICD_10);
 	}};
 	
+	// Maximum number of parameters in an IN clause when pre-resolving codes
+	private static final int MAX_BATCH_SIZE = 500;
+	
+	// Locks which serialize the get-or-create of the same object (by code, name, etc.) while 
+	// allowing different objects to be created in parallel. Each get-or-create runs under its
+	// lock in a transaction of its own which is committed before the lock is released (see 
+	// getOrCreate), so a concurrent import finds the committed object and no lock is held for 
+	// the rest of the import. What a get-or-create depends on (the reference term of a concept, 
+	// the source of a term, etc.) is got or created before its lock is taken, so a thread holds
+	// one lock at a time
+	private static final int LOCK_STRIPES = 64;
+	private final StripedLock m_conceptLocks = new StripedLock("concept", LOCK_STRIPES);
+	private final StripedLock m_drugLocks = new StripedLock("drug", LOCK_STRIPES);
+	private final StripedLock m_structureLocks = new StripedLock("concept structure", LOCK_STRIPES);
+	private final StripedLock m_referenceTermLocks = new StripedLock("reference term", LOCK_STRIPES);
+	private final StripedLock m_conceptSourceLocks = new StripedLock("concept source", LOCK_STRIPES);
+	private final StripedLock m_conceptClassLocks = new StripedLock("concept class", LOCK_STRIPES);
+	
 	// Map types
 	private ConceptMapType m_narrowerThan = null;
 	private ConceptMapType m_sameAs = null;
@@ -100,6 +143,10 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	// OpenMRS Services
 	private final ConceptService m_conceptService = Context.getConceptService();
 	private final CdaImportService m_importService =  Context.getService(CdaImportService.class);
+	private final TransactionTemplate m_getOrCreateTransaction = Context.getRegisteredComponent("shrCdaHandlerGetOrCreateTransactionTemplate", TransactionTemplate.class);
+	
+	// The codes pre-resolved for the document being imported on the current thread
+	private final ThreadLocal<ConceptResolutionTable> m_resolutionTable = new ThreadLocal<ConceptResolutionTable>();
 	
 	// Concept datatypes
 	private final ConceptDatatype N_A_DATATYPE = this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.N_A_UUID);
@@ -111,6 +158,27 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	private final ConceptDatatype BOOLEAN_DATATYPE = this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.BOOLEAN_UUID);
 	
 	
+	/**
+	 * A get-or-create run by {@link OpenmrsConceptUtil#getOrCreate(StripedLock, Object, GetOrCreate)}
+	 */
+	private interface GetOrCreate<T> {
+		
+		/**
+		 * Get the object, creating or updating it if needed, or null if it can't be
+		 */
+		T run() throws DocumentImportException;
+	}
+	
+	/**
+	 * Carries a document import exception out of the transaction of a get-or-create
+	 */
+	private static final class GetOrCreateException extends RuntimeException {
+		
+		private GetOrCreateException(DocumentImportException cause) {
+			super(cause);
+		}
+	}
+	
 	/**
 	 * Private ctor
 	 */
@@ -118,87 +186,131 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	{
 		
 	}
+
+	/**
+	 * Run a get-or-create under the lock of the key in a transaction of its own, which is committed 
+	 * before the lock is released, and return the current session's instance of its result. The 
+	 * get-or-create must check for the object again and only use objects it reads itself 
+	 * (the objects of the caller's session belong to another session) 
+	 */
+	private <T extends OpenmrsObject> T getOrCreate(StripedLock locks, Object key, final GetOrCreate<T> work) throws DocumentImportException
+	{
+		T retVal = null;
+		StripedLock.Hold hold = locks.lock(key);
+		try {
+			retVal = this.m_getOrCreateTransaction.execute(new TransactionCallback<T>() {
+				@Override
+				public T doInTransaction(TransactionStatus status) {
+					try {
+						return work.run();
+					}
+					catch(DocumentImportException e) {
+						throw new GetOrCreateException(e);
+					}
+				}
+			});
+		}
+		catch(GetOrCreateException e) {
+			throw (DocumentImportException)e.getCause();
+		}
+		finally {
+			hold.release();
+		}
+		
+		if(retVal == null)
+			return null;
+		T reloaded = this.m_importService.reload(retVal);
+		if(reloaded == null)
+			throw new IllegalStateException(String.format("%s was committed but isn't visible to the current transaction (the database must use READ COMMITTED isolation)", retVal));
+		return reloaded;
+	}
 	
 	/**
 	 * Add an answer to a concept
 	 * @throws DocumentImportException 
 	 */
-	public void addAnswerToConcept(Concept questionConcept, Concept answerConcept) throws DocumentImportException {
+	public void addAnswerToConcept(Concept questionConcept, final Concept answerConcept) throws DocumentImportException {
 		
 		if(this.m_configuration.getValidateConceptStructure())
 		{
-			// Is the concept in the list of answers?
-			ConceptAnswer answer = null;
-			questionConcept = Context.getConceptService().getConcept(questionConcept.getConceptId());
-			for(ConceptAnswer ans : questionConcept.getAnswers())
-			{
-				log.debug(String.format("Existing Answer: %s for %s", ans.getAnswerConcept().getId(), questionConcept));
-				if(ans.getAnswerConcept().getId().equals(answerConcept.getId()))
-				{
-					answer = ans;
-					break;
-				}
-			}
-			if(answer == null && this.m_configuration.getAutoCreateConcepts())
-			{
-				answer = new ConceptAnswer();
-				answer.setAnswerConcept(answerConcept);
-				answer.setConcept(questionConcept);
-				questionConcept.addAnswer(answer);
-				synchronized (s_lockObject) {
+			final Integer questionConceptId = questionConcept.getConceptId();
+			Concept updatedConcept = this.getOrCreate(this.m_structureLocks, questionConceptId, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					// Is the concept in the list of answers?
+					Concept questionConcept = m_conceptService.getConcept(questionConceptId);
+					for(ConceptAnswer ans : questionConcept.getAnswers())
+					{
+						log.debug(String.format("Existing Answer: %s for %s", ans.getAnswerConcept().getId(), questionConcept));
+						if(ans.getAnswerConcept().getId().equals(answerConcept.getId()))
+							return questionConcept;
+					}
+					if(!m_configuration.getAutoCreateConcepts())
+						return null;
+					
+					ConceptAnswer answer = new ConceptAnswer();
+					answer.setAnswerConcept(m_conceptService.getConcept(answerConcept.getConceptId()));
+					answer.setConcept(questionConcept);
+					questionConcept.addAnswer(answer);
 					log.debug(String.format("Added answer %s to set %s", answerConcept, questionConcept));
-	
-					questionConcept = this.m_importService.saveConcept(questionConcept);
-	            }
-			}
-			else if(answer == null)
+					return m_importService.saveConcept(questionConcept);
+				}
+			});
+			if(updatedConcept == null)
 				throw new DocumentImportException(String.format("Cannot assign code %s to observation concept %s as it is not a valid value", answerConcept, questionConcept));
-			// Set the value
 		}
 	}
 
 	/**
 	 * Add the concept to the set concept
+	 * @throws DocumentImportException 
 	 */
-	public void addConceptToSet(Concept setConcept, Concept concept) {
+	public void addConceptToSet(Concept setConcept, final Concept concept) throws DocumentImportException {
 
 		if(this.m_configuration.getValidateConceptStructure())
 		{
-			Boolean needsSave = false, 
-					hasMember = false; 
-			
-			// First is the setConcept already a set?
-			if(!setConcept.isSet() && this.m_configuration.getAutoCreateConcepts())
-			{
-				setConcept.setSet(true);
-				setConcept.setConceptClass(this.m_conceptService.getConceptClassByUuid(ConceptClass.CONVSET_UUID));
-				needsSave = true;
-			}
-			else if(!setConcept.isSet())
-				log.warn("Cannot convert Concept to a set!");
+			final Integer setConceptId = setConcept.getConceptId();
+			this.getOrCreate(this.m_structureLocks, setConceptId, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					Concept setConcept = m_conceptService.getConcept(setConceptId);
+					Boolean needsSave = false, 
+							hasMember = false; 
+					
+					// First is the setConcept already a set?
+					if(!setConcept.isSet() && m_configuration.getAutoCreateConcepts())
+					{
+						setConcept.setSet(true);
+						setConcept.setConceptClass(m_conceptService.getConceptClassByUuid(ConceptClass.CONVSET_UUID));
+						needsSave = true;
+					}
+					else if(!setConcept.isSet())
+						log.warn("Cannot convert Concept to a set!");
+					
+					// Now does the concept already exist in the set members?
+					for(Concept setMember : setConcept.getSetMembers())
+						if(setMember != null && setMember.getId().equals(concept.getId()))
+						{
+							hasMember = true;
+							break;
+						}
+					
+					if(!hasMember && m_configuration.getAutoCreateConcepts()) // Add to the set
+					{
+						setConcept.addSetMember(m_conceptService.getConcept(concept.getConceptId()));
+						needsSave = true;
+					}
+					else if(!m_configuration.getAutoCreateConcepts())
+						log.warn("Cannot add concept to the specified concept set according to configuration rules");
 			
-			// Now does the concept already exist in the set members?
-			for(Concept setMember : setConcept.getSetMembers())
-				if(setMember != null && setMember.getId().equals(concept.getId()))
-				{
-					hasMember = true;
-					break;
+					if(needsSave)
+					{
+						log.debug(String.format("Adding concept %s to set %s", concept, setConcept));
+						setConcept = m_importService.saveConcept(setConcept);
+					}
+					return setConcept;
 				}
-			
-			if(!hasMember && this.m_configuration.getAutoCreateConcepts()) // Add to the set
-			{
-				setConcept.addSetMember(concept);
-				needsSave = true;
-			}
-			else if(!this.m_configuration.getAutoCreateConcepts())
-				log.warn("Cannot add concept to the specified concept set according to configuration rules");
-	
-			if(needsSave)
-				synchronized (s_lockObject) {
-					log.debug(String.format("Adding concept %s to set %s", concept, setConcept));
-	
-					setConcept = this.m_importService.saveConcept(setConcept);
-	            }
+			});
 		}
     }
 
@@ -218,15 +330,35 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * @return The created concept
 	 * @throws DocumentImportException
 	 */
-	public Concept createConcept(CV<?> code, ANY value) throws DocumentImportException {
+	public Concept createConcept(final CV<?> code, final ANY value) throws DocumentImportException {
 		if(!this.m_configuration.getAutoCreateConcepts())
 			throw new IllegalStateException("Cannot create concepts according to configuration policy");
 
 		log.debug("Enter: createConcept");
 
-		ConceptReferenceTerm referenceTerm = this.getOrCreateReferenceTerm(code);
+		final ConceptReferenceTerm referenceTerm = this.getOrCreateReferenceTerm(code);
 		if(referenceTerm == null)
 			return null;
+		return this.getOrCreate(this.m_conceptLocks, ConceptResolutionTable.getKey(code), new GetOrCreate<Concept>() {
+			@Override
+			public Concept run() throws DocumentImportException {
+				// Another import may have created the concept while we waited
+				Concept existingConcept = getTypeSpecificConcept(code, value);
+				if(existingConcept != null)
+				{
+					log.debug("Exit: createConcept (already exists)");
+					return existingConcept;
+				}
+				return saveNewConcept(code, value, m_conceptService.getConceptReferenceTerm(referenceTerm.getConceptReferenceTermId()));
+			}
+		});
+	}
+
+	/**
+	 * Create and save a new concept for the code mapped to the reference term (in the transaction 
+	 * of the get-or-create of the concept)
+	 */
+	private Concept saveNewConcept(CV<?> code, ANY value, ConceptReferenceTerm referenceTerm) throws DocumentImportException {
 		// Concept class for auto-created concepts
 		log.debug("Get Concept Class");
 		ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(value == null ? ConceptClass.CONVSET_UUID : CdaHandlerConstants.UUID_CONCEPT_CLS_AUTO);
@@ -291,10 +423,10 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 
 
 		// Save concept
-		synchronized (s_lockObject) {
-			log.debug(String.format("Creating Concept %s, reference term %s, concept source %s", concept, referenceTerm, referenceTerm.getConceptSource()));
-			concept = this.m_importService.saveConcept(concept);
-        }
+		log.debug(String.format("Creating Concept %s, reference term %s, concept source %s", concept, referenceTerm, referenceTerm.getConceptSource()));
+		concept = this.m_importService.saveConcept(concept);
+		this.forgetResolvedConcepts(code);
+		ImportMetrics.getInstance().countConceptCreated();
 		
 		log.debug("Exit: createConcept");
 
@@ -426,6 +558,18 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	{
 		log.debug("Enter: getConcepts");
 
+		// Was the code resolved before the document was processed?
+		ConceptResolutionTable resolutionTable = this.m_resolutionTable.get();
+		List<Integer> resolvedConcepts = resolutionTable == null ? null : resolutionTable.getConceptIds(code);
+		if(resolvedConcepts != null)
+		{
+			List<Concept> concept = new ArrayList<Concept>(resolvedConcepts.size());
+			for(Integer conceptId : resolvedConcepts)
+				concept.add(this.m_conceptService.getConcept(conceptId));
+			log.debug("Exit : getConcepts (pre-resolved)");
+			return concept;
+		}
+		
 		List<Concept> concept = this.m_importService.getConceptsByMapping(this.getOrCreateReferenceTerm(code), "SAME-AS");
 		if(concept == null || concept.size() == 0)
 			concept = this.m_importService.getConceptsByMapping(this.getOrCreateReferenceTerm(code), "NARROWER-THAN");
@@ -485,12 +629,9 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		// Now create / map equivalents
 		if(code.getTranslation() != null && this.m_configuration.getAutoCreateConcepts())
 		{
-			for(CE<?> translation : code.getTranslation())
+			for(final CE<?> translation : code.getTranslation())
 			{
-				ConceptReferenceTerm term = this.getOrCreateReferenceTerm(translation);
-
-				// Map already exists?
-				ConceptMap conceptMap = null; 
+				final ConceptReferenceTerm term = this.getOrCreateReferenceTerm(translation);
 
 				// A found concept at all?
 				if(foundConcept == null)
@@ -501,24 +642,25 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 						throw new DocumentImportException(String.format("MISSING CONCEPT: Cannot find concept %s in source %s", code.getCode(), code.getCodeSystem()));
 				}
 					
-				// Map
-				for(ConceptMap map : foundConcept.getConceptMappings())
-					if(map.getConceptReferenceTerm().equals(term))
-					{
-						conceptMap = map;
-						break;
+				final Integer foundConceptId = foundConcept.getConceptId();
+				foundConcept = this.getOrCreate(this.m_structureLocks, foundConceptId, new GetOrCreate<Concept>() {
+					@Override
+					public Concept run() {
+						// Map already exists?
+						Concept concept = m_conceptService.getConcept(foundConceptId);
+						for(ConceptMap map : concept.getConceptMappings())
+							if(map.getConceptReferenceTerm().getId().equals(term.getId()))
+								return concept;
+		
+						// Create a map if not exists
+						ConceptMap conceptMap = new ConceptMap(m_conceptService.getConceptReferenceTerm(term.getId()), m_conceptService.getConceptMapTypeByName("SAME-AS"));
+						conceptMap.setConcept(concept);
+						concept.addConceptMapping(conceptMap);
+						concept = m_importService.saveConcept(concept);
+						forgetResolvedConcepts(translation);
+						return concept;
 					}
-
-				// Create a map if not exists
-				if(conceptMap == null)
-				{
-					conceptMap = new ConceptMap(term, this.m_conceptService.getConceptMapTypeByName("SAME-AS"));
-					conceptMap.setConcept(foundConcept);
-					foundConcept.addConceptMapping(conceptMap);
-					synchronized (s_lockObject) {
-						foundConcept = this.m_importService.saveConcept(foundConcept);
-                    }
-				}
+				});
 			}
 		}
 
@@ -532,7 +674,7 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * @throws DocumentImportException 
 	 */
 	@SuppressWarnings("unchecked")
-    private ConceptSource getOrCreateConceptSource(String name, String hl7,
+    private ConceptSource getOrCreateConceptSource(String name, final String hl7,
 			String description, Class<?> enumeratedVocabularySource) throws DocumentImportException {
 	
 		log.debug("Enter: getOrCreateConceptSource");
@@ -546,19 +688,33 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		// Create a new concept source?
 		if(conceptSource == null && this.m_configuration.getAutoCreateConcepts())
 		{
-			conceptSource = new ConceptSource();
-			conceptSource.setName(name);
-			conceptSource.setHl7Code(hl7);
-			if(description == null)
-				description = "Automatically Created by OpenSHR";
-			conceptSource.setDescription(description);
-			
-			synchronized (s_lockObject) {
-				log.debug(String.format("Saving Concept Source %s", conceptSource));
-				conceptSource = this.m_conceptService.saveConceptSource(conceptSource);
-            }
+			final AtomicBoolean created = new AtomicBoolean();
+			final String sourceName = name, 
+					sourceDescription = description == null ? "Automatically Created by OpenSHR" : description;
+			conceptSource = this.getOrCreate(this.m_conceptSourceLocks, hl7, new GetOrCreate<ConceptSource>() {
+				@Override
+				public ConceptSource run() {
+					// Another import may have created the source while we waited
+					ConceptSource conceptSource = m_conceptService.getConceptSourceByName(sourceName);
+					if(conceptSource == null)
+						conceptSource = m_importService.getConceptSourceByHl7(hl7);
+					
+					if(conceptSource == null)
+					{
+						conceptSource = new ConceptSource();
+						conceptSource.setName(sourceName);
+						conceptSource.setHl7Code(hl7);
+						conceptSource.setDescription(sourceDescription);
+						
+						log.debug(String.format("Saving Concept Source %s", conceptSource));
+						conceptSource = m_conceptService.saveConceptSource(conceptSource);
+						created.set(true);
+					}
+					return conceptSource;
+				}
+			});
 
-			if(enumeratedVocabularySource != null && IEnumeratedVocabulary.class.isAssignableFrom(enumeratedVocabularySource))
+			if(created.get() && enumeratedVocabularySource != null && IEnumeratedVocabulary.class.isAssignableFrom(enumeratedVocabularySource))
 				this.createEnumeratedVocabularyConcepts((Class<? extends IEnumeratedVocabulary>)enumeratedVocabularySource, hl7, null);
 			
 		}
@@ -606,19 +762,28 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		// HACK: Fallback
 		if(this.m_configuration.getAutoCreateConcepts() && drugConcept == null)
 		{
-			// Create the concept and set properties
-			drugConcept = new Concept();
-			Locale locale = Context.getLocale();// new Locale("en");
-			if(name != null)
-				drugConcept.setFullySpecifiedName(new ConceptName(name.toString(), locale));
-			else
-				drugConcept.setFullySpecifiedName(new ConceptName(drugCode.getDisplayName(), locale));
-			drugConcept.addName(drugConcept.getFullySpecifiedName(locale));
-			drugConcept.setPreferredName(drugConcept.getFullySpecifiedName(locale));
-			drugConcept.setConceptClass(this.m_conceptService.getConceptClassByUuid(ConceptClass.DRUG_UUID));
-			// Assign the datatype
-			drugConcept.setDatatype(this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.N_A_UUID));
-			drugConcept = this.m_importService.saveConcept(drugConcept);
+			final String drugName = name != null ? name.toString() : drugCode.getDisplayName();
+			drugConcept = this.getOrCreate(this.m_conceptLocks, drugName, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					// Another import may have created the concept while we waited
+					Concept drugConcept = m_conceptService.getConcept(drugName);
+					if(drugConcept == null)
+					{
+						// Create the concept and set properties
+						drugConcept = new Concept();
+						Locale locale = Context.getLocale();// new Locale("en");
+						drugConcept.setFullySpecifiedName(new ConceptName(drugName, locale));
+						drugConcept.addName(drugConcept.getFullySpecifiedName(locale));
+						drugConcept.setPreferredName(drugConcept.getFullySpecifiedName(locale));
+						drugConcept.setConceptClass(m_conceptService.getConceptClassByUuid(ConceptClass.DRUG_UUID));
+						// Assign the datatype
+						drugConcept.setDatatype(m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.N_A_UUID));
+						drugConcept = m_importService.saveConcept(drugConcept);
+					}
+					return drugConcept;
+				}
+			});
 		}
 			
 		// The the form (table, puffer, etc)
@@ -644,42 +809,272 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 			return candidateDrugWithMatchingForm;
 		else if(candidateDrugWithMatchingForm == null && this.m_configuration.getAutoCreateConcepts()) // found none and can create
 		{
-			Drug retVal = new Drug();
-			
 			// Set name
-			if(name != null && !name.isNull())
-				retVal.setName(name.toString());
-			else
-				retVal.setName(drugCode.getDisplayName());
-
-			// SEt concept for the material
-			retVal.setConcept(drugConcept);
-			
-			// Set admin form
-			if(formCode != null)
-				retVal.setDosageForm(formCode);
+			final String drugName = name != null && !name.isNull() ? name.toString() : drugCode.getDisplayName();
+			final Integer drugConceptId = drugConcept.getConceptId(),
+					formConceptId = formCode == null ? null : formCode.getConceptId();
 			
 			if(!this.m_configuration.getAutoCreateConcepts())
 				throw new IllegalStateException("Cannot create concepts according to configuration policy");
 			
-			synchronized (s_lockObject) {
-				log.debug(String.format("Saving drug %s", retVal));
-
-				retVal = this.m_conceptService.saveDrug(retVal);
-            }
-			
-			return retVal;
+			return this.getOrCreate(this.m_drugLocks, drugConceptId, new GetOrCreate<Drug>() {
+				@Override
+				public Drug run() {
+					Concept drugConcept = m_conceptService.getConcept(drugConceptId), 
+							formCode = formConceptId == null ? null : m_conceptService.getConcept(formConceptId);
+					
+					// Another import may have created the drug while we waited
+					for(Drug candidate : m_conceptService.getDrugsByConcept(drugConcept))
+						if(drugName != null && drugName.equals(candidate.getName()) &&
+								(formCode == null ? candidate.getDosageForm() == null : formCode.equals(candidate.getDosageForm())))
+							return candidate;
+					
+					Drug retVal = new Drug();
+					retVal.setName(drugName);
+					// SEt concept for the material
+					retVal.setConcept(drugConcept);
+					// Set admin form
+					if(formCode != null)
+						retVal.setDosageForm(formCode);
+					
+					log.debug(String.format("Saving drug %s", retVal));
+					return m_conceptService.saveDrug(retVal);
+				}
+			});
 		}
 		else
 			throw new DocumentImportException("Could not reliably determine the drug to associate with this administration");
     }
 
 
+	/**
+	 * Resolve all the codes appearing in the content (typically the structured body of a
+	 * document) in bulk, and use the results for lookups made on this thread until 
+	 * {@link #releaseResolutionTable()} is called. Nothing is created by this pre-pass, 
+	 * codes which don't resolve are handled as usual when they are processed
+	 */
+	public ConceptResolutionTable preResolveConcepts(IGraphable content)
+	{
+		log.debug("Enter: preResolveConcepts");
+		
+		// Gather the distinct codes by code system
+		Map<String, Set<String>> codes = new HashMap<String, Set<String>>();
+		this.collectCodes(content, codes);
+		
+		// Resolve the reference terms in each code system
+		ConceptResolutionTable resolutionTable = new ConceptResolutionTable();
+		Map<Integer, String> keysByTermId = new HashMap<Integer, String>();
+		List<ConceptReferenceTerm> terms = new ArrayList<ConceptReferenceTerm>();
+		for(Entry<String, Set<String>> codeSystem : codes.entrySet())
+		{
+			ConceptSource conceptSource = this.m_conceptService.getConceptSourceByName(this.mapOidToConceptSourceName(codeSystem.getKey()));
+			if(conceptSource == null)
+				conceptSource = this.m_importService.getConceptSourceByHl7(codeSystem.getKey());
+			if(conceptSource == null)
+				continue;
+			
+			List<String> sourceCodes = new ArrayList<String>(codeSystem.getValue());
+			for(int i = 0; i < sourceCodes.size(); i += MAX_BATCH_SIZE)
+				for(ConceptReferenceTerm term : this.m_importService.getConceptReferenceTerms(conceptSource, sourceCodes.subList(i, Math.min(i + MAX_BATCH_SIZE, sourceCodes.size()))))
+				{
+					String key = ConceptResolutionTable.getKey(codeSystem.getKey(), term.getCode());
+					resolutionTable.addReferenceTerm(key, term.getId());
+					keysByTermId.put(term.getId(), key);
+					terms.add(term);
+				}
+		}
+		
+		// Resolve the concepts mapped to the terms
+		for(int i = 0; i < terms.size(); i += MAX_BATCH_SIZE)
+			for(ConceptMap map : this.m_importService.getConceptMapsByReferenceTerms(terms.subList(i, Math.min(i + MAX_BATCH_SIZE, terms.size()))))
+				resolutionTable.addConcept(keysByTermId.get(map.getConceptReferenceTerm().getId()), map.getConceptMapType().getName(), map.getConcept().getId());
+		
+		log.debug(String.format("Pre-resolved %s reference terms", resolutionTable.size()));
+		this.m_resolutionTable.set(resolutionTable);
+		return resolutionTable;
+	}
+	
+	/**
+	 * Stop using the codes resolved by {@link #preResolveConcepts(IGraphable)} on this thread
+	 */
+	public void releaseResolutionTable()
+	{
+		this.m_resolutionTable.remove();
+	}
+	
+	/**
+	 * Forget the pre-resolved concepts for a code whose mappings have changed
+	 */
+	private void forgetResolvedConcepts(CV<?> code)
+	{
+		ConceptResolutionTable resolutionTable = this.m_resolutionTable.get();
+		if(resolutionTable != null)
+			resolutionTable.remove(code);
+	}
+	
+	/**
+	 * Collect the coded values of a structured body or section (and their translations) by code 
+	 * system. Only the properties which the processors resolve to concepts are walked: the codes 
+	 * of sections and statements, coded (and ordinal) observation values, interpretation, method, site and 
+	 * route codes, the codes of administered materials and of participating entities
+	 */
+	private void collectCodes(IGraphable content, Map<String, Set<String>> codes)
+	{
+		if(content instanceof StructuredBody)
+		{
+			for(Component3 component : ((StructuredBody)content).getComponent())
+				this.collectCodes(component.getSection(), codes);
+		}
+		else if(content instanceof Section)
+		{
+			Section section = (Section)content;
+			if(section.getNullFlavor() != null)
+				return;
+			this.collectCode(section.getCode(), codes);
+			for(org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry entry : section.getEntry())
+				this.collectStatementCodes(entry.getClinicalStatement(), codes);
+			for(Component5 component : section.getComponent())
+				this.collectCodes(component.getSection(), codes);
+		}
+	}
+	
+	/**
+	 * Collect the coded values of a clinical statement and the statements it contains
+	 */
+	private void collectStatementCodes(ClinicalStatement statement, Map<String, Set<String>> codes)
+	{
+		if(statement == null || statement.getNullFlavor() != null)
+			return;
+		
+		if(statement instanceof Observation)
+		{
+			Observation observation = (Observation)statement;
+			this.collectCode(observation.getCode(), codes);
+			if(observation.getValue() instanceof CV)
+				this.collectCode((CV<?>)observation.getValue(), codes);
+			else if(observation.getValue() instanceof CO)
+				this.collectCode(((CO)observation.getValue()).getCode(), codes);
+			this.collectEachCode(observation.getInterpretationCode(), codes);
+			this.collectEachCode(observation.getMethodCode(), codes);
+			this.collectEachCode(observation.getTargetSiteCode(), codes);
+			this.collectParticipantCodes(observation.getParticipant(), codes);
+			this.collectRelationshipCodes(observation.getEntryRelationship(), codes);
+		}
+		else if(statement instanceof Act)
+		{
+			Act act = (Act)statement;
+			this.collectCode(act.getCode(), codes);
+			this.collectParticipantCodes(act.getParticipant(), codes);
+			this.collectRelationshipCodes(act.getEntryRelationship(), codes);
+		}
+		else if(statement instanceof Organizer)
+		{
+			Organizer organizer = (Organizer)statement;
+			this.collectCode(organizer.getCode(), codes);
+			this.collectParticipantCodes(organizer.getParticipant(), codes);
+			for(Component4 component : organizer.getComponent())
+				this.collectStatementCodes(component.getClinicalStatement(), codes);
+		}
+		else if(statement instanceof SubstanceAdministration)
+		{
+			SubstanceAdministration administration = (SubstanceAdministration)statement;
+			this.collectCode(administration.getCode(), codes);
+			this.collectCode(administration.getRouteCode(), codes);
+			this.collectEachCode(administration.getApproachSiteCode(), codes);
+			if(administration.getConsumable() != null && administration.getConsumable().getManufacturedProduct() != null)
+			{
+				ManufacturedProduct product = administration.getConsumable().getManufacturedProduct();
+				if(product.getManufacturedDrugOrOtherMaterialIfManufacturedMaterial() != null)
+					this.collectCode(product.getManufacturedDrugOrOtherMaterialIfManufacturedMaterial().getCode(), codes);
+				else if(product.getManufacturedDrugOrOtherMaterialIfManufacturedLabeledDrug() != null)
+					this.collectCode(product.getManufacturedDrugOrOtherMaterialIfManufacturedLabeledDrug().getCode(), codes);
+			}
+			this.collectParticipantCodes(administration.getParticipant(), codes);
+			this.collectRelationshipCodes(administration.getEntryRelationship(), codes);
+		}
+		else if(statement instanceof Procedure)
+		{
+			Procedure procedure = (Procedure)statement;
+			this.collectCode(procedure.getCode(), codes);
+			this.collectEachCode(procedure.getMethodCode(), codes);
+			this.collectEachCode(procedure.getApproachSiteCode(), codes);
+			this.collectEachCode(procedure.getTargetSiteCode(), codes);
+			this.collectParticipantCodes(procedure.getParticipant(), codes);
+			this.collectRelationshipCodes(procedure.getEntryRelationship(), codes);
+		}
+		else if(statement instanceof org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Encounter)
+		{
+			org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Encounter encounter = (org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Encounter)statement;
+			this.collectCode(encounter.getCode(), codes);
+			this.collectParticipantCodes(encounter.getParticipant(), codes);
+			this.collectRelationshipCodes(encounter.getEntryRelationship(), codes);
+		}
+		else if(statement instanceof Supply)
+		{
+			Supply supply = (Supply)statement;
+			this.collectCode(supply.getCode(), codes);
+			this.collectParticipantCodes(supply.getParticipant(), codes);
+			this.collectRelationshipCodes(supply.getEntryRelationship(), codes);
+		}
+	}
+	
+	/**
+	 * Collect the coded values of the statements related to a statement
+	 */
+	private void collectRelationshipCodes(List<EntryRelationship> relationships, Map<String, Set<String>> codes)
+	{
+		if(relationships != null)
+			for(EntryRelationship relationship : relationships)
+				this.collectStatementCodes(relationship.getClinicalStatement(), codes);
+	}
+	
+	/**
+	 * Collect the codes of the entities participating in a statement
+	 */
+	private void collectParticipantCodes(List<Participant2> participants, Map<String, Set<String>> codes)
+	{
+		if(participants != null)
+			for(Participant2 participant : participants)
+				if(participant.getParticipantRole() != null && participant.getParticipantRole().getPlayingEntityChoiceIfPlayingEntity() != null)
+					this.collectCode(participant.getParticipantRole().getPlayingEntityChoiceIfPlayingEntity().getCode(), codes);
+	}
+	
+	/**
+	 * Collect each of a collection of coded values
+	 */
+	private void collectEachCode(Iterable<? extends CV<?>> values, Map<String, Set<String>> codes)
+	{
+		if(values != null)
+			for(CV<?> value : values)
+				this.collectCode(value, codes);
+	}
+	
+	/**
+	 * Collect a coded value and its translations by code system
+	 */
+	private void collectCode(CV<?> code, Map<String, Set<String>> codes)
+	{
+		if(code == null)
+			return;
+		if(code.getCode() != null && code.getCodeSystem() != null)
+		{
+			Set<String> systemCodes = codes.get(code.getCodeSystem());
+			if(systemCodes == null)
+			{
+				systemCodes = new LinkedHashSet<String>();
+				codes.put(code.getCodeSystem(), systemCodes);
+			}
+			systemCodes.add(code.getCode().toString());
+		}
+		if(code instanceof CE)
+			this.collectEachCode(((CE<?>)code).getTranslation(), codes);
+	}
+	
 	/**
 	 * Get or creste a reference term
 	 * @throws DocumentImportException 
 	 */
-	public ConceptReferenceTerm getOrCreateReferenceTerm(CV<?> code) throws DocumentImportException {
+	public ConceptReferenceTerm getOrCreateReferenceTerm(final CV<?> code) throws DocumentImportException {
 
 		log.debug("Enter: getOrCreateReferenceTerm");
 
@@ -687,21 +1082,37 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(code.getCode() == null) 
 			return null;
 		
-		ConceptSource conceptSource = this.getOrCreateConceptSource(code.getCodeSystemName(), code.getCodeSystem(), code.getCodeSystemName(), code.getCode().getClass());
+		// Was the term resolved before the document was processed?
+		ConceptResolutionTable resolutionTable = this.m_resolutionTable.get();
+		Integer referenceTermId = resolutionTable == null ? null : resolutionTable.getReferenceTermId(code);
+		if(referenceTermId != null)
+			return this.m_conceptService.getConceptReferenceTerm(referenceTermId);
+		
+		final ConceptSource conceptSource = this.getOrCreateConceptSource(code.getCodeSystemName(), code.getCodeSystem(), code.getCodeSystemName(), code.getCode().getClass());
 		
 		// Reference term exists? We create a reference a term if not 
 		ConceptReferenceTerm referenceTerm = this.m_conceptService.getConceptReferenceTermByCode(code.getCode().toString(), conceptSource);
 		if(referenceTerm == null && this.m_configuration.getAutoCreateConcepts())
 		{
-			referenceTerm = new ConceptReferenceTerm();
-			referenceTerm.setCode(code.getCode().toString());
-			referenceTerm.setName(code.getDisplayName());
-			referenceTerm.setDescription(code.getDisplayName());
-			referenceTerm.setConceptSource(conceptSource);
-			synchronized (s_lockObject) {
-				log.debug(String.format("Saving Reference term %s", referenceTerm));
-				referenceTerm = this.m_importService.saveConceptReferenceTerm(referenceTerm);
-            }
+			referenceTerm = this.getOrCreate(this.m_referenceTermLocks, ConceptResolutionTable.getKey(code), new GetOrCreate<ConceptReferenceTerm>() {
+				@Override
+				public ConceptReferenceTerm run() {
+					// Another import may have created the term while we waited
+					ConceptSource source = m_conceptService.getConceptSource(conceptSource.getConceptSourceId());
+					ConceptReferenceTerm referenceTerm = m_conceptService.getConceptReferenceTermByCode(code.getCode().toString(), source);
+					if(referenceTerm == null)
+					{
+						referenceTerm = new ConceptReferenceTerm();
+						referenceTerm.setCode(code.getCode().toString());
+						referenceTerm.setName(code.getDisplayName());
+						referenceTerm.setDescription(code.getDisplayName());
+						referenceTerm.setConceptSource(source);
+						log.debug(String.format("Saving Reference term %s", referenceTerm));
+						referenceTerm = m_importService.saveConceptReferenceTerm(referenceTerm);
+					}
+					return referenceTerm;
+				}
+			});
 		}
 		else if (referenceTerm == null && !this.m_configuration.getAutoCreateConcepts())
 			throw new DocumentImportException(String.format("MISSING CONCEPT: Cannot find specified code %s in concept source %s", code.getCode(), code.getCodeSystem()));
@@ -715,45 +1126,62 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * Create a concept representing an RMIM (not really a code) value
 	 * @throws DocumentImportException 
 	 */
-	public Concept getOrCreateRMIMConcept(String rmimUuid, ANY valueToStore) throws DocumentImportException
+	public Concept getOrCreateRMIMConcept(final String rmimUuid, final ANY valueToStore) throws DocumentImportException
 	{
 		
 		Concept concept = this.m_conceptService.getConceptByUuid(rmimUuid);
 		
 		if(concept == null && this.m_configuration.getAutoCreateConcepts())
 		{
-			Log.warn(String.format("Creating CDA RMIM concept %s", rmimUuid));
-			ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(ConceptClass.MISC_UUID);
-			
-			ConceptDatatype datatype = this.getConceptDatatype(valueToStore);
-					
-			if(datatype.getUuid().equals(ConceptDatatype.COMPLEX_UUID))
-			{
-				concept = new ConceptComplex();
-				((ConceptComplex)concept).setHandler("BinaryDataHandler");
-			}
-			else
-				concept = new Concept();
-			
-			concept.setFullySpecifiedName(new ConceptName(rmimUuid, Context.getLocale()));
-			concept.setUuid(rmimUuid);
-			concept.setVersion("CDAr2");
-			concept.setConceptClass(conceptClass);
-			concept.setDatatype(datatype);
-			synchronized (s_lockObject) {
-				log.debug(String.format("Saving RMIM Concept %s", concept));
-				concept = this.m_conceptService.saveConcept(concept);
-            }
+			concept = this.getOrCreate(this.m_conceptLocks, rmimUuid, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					// Another import may have created the concept while we waited
+					Concept concept = m_conceptService.getConceptByUuid(rmimUuid);
+					if(concept == null)
+					{
+						Log.warn(String.format("Creating CDA RMIM concept %s", rmimUuid));
+						ConceptClass conceptClass = m_conceptService.getConceptClassByUuid(ConceptClass.MISC_UUID);
+						
+						ConceptDatatype datatype = getConceptDatatype(valueToStore);
+								
+						if(datatype.getUuid().equals(ConceptDatatype.COMPLEX_UUID))
+						{
+							concept = new ConceptComplex();
+							((ConceptComplex)concept).setHandler("BinaryDataHandler");
+						}
+						else
+							concept = new Concept();
+						
+						concept.setFullySpecifiedName(new ConceptName(rmimUuid, Context.getLocale()));
+						concept.setUuid(rmimUuid);
+						concept.setVersion("CDAr2");
+						concept.setConceptClass(conceptClass);
+						concept.setDatatype(datatype);
+						log.debug(String.format("Saving RMIM Concept %s", concept));
+						concept = m_conceptService.saveConcept(concept);
+					}
+					return concept;
+				}
+			});
 		}
 		else if(concept == null && !this.m_configuration.getAutoCreateConcepts())
 			throw new DocumentImportException(String.format("MISSING CONCEPT: Cannot find conept %s in database", rmimUuid));
 		else if(concept.getNames().size() == 0)
 		{
-			concept.setFullySpecifiedName(new ConceptName(rmimUuid, Context.getLocale()));
-			synchronized (s_lockObject) {
-				log.debug(String.format("Saving RMIM Concept %s", concept));
-				concept = this.m_conceptService.saveConcept(concept);
-            }
+			concept = this.getOrCreate(this.m_conceptLocks, rmimUuid, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					Concept concept = m_conceptService.getConceptByUuid(rmimUuid);
+					if(concept.getNames().size() == 0)
+					{
+						concept.setFullySpecifiedName(new ConceptName(rmimUuid, Context.getLocale()));
+						log.debug(String.format("Saving RMIM Concept %s", concept));
+						concept = m_conceptService.saveConcept(concept);
+					}
+					return concept;
+				}
+			});
 		}
 		return this.m_conceptService.getConcept(concept.getConceptId());
 	}
@@ -773,12 +1201,7 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		String doseConceptUuid = Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GP_DRUG_DOSING_UNITS_CONCEPT_UUID);
 		Concept drugDoses = this.m_conceptService.getConceptByUuid(doseConceptUuid);
 		if(drugDoses != null && !drugDoses.getSetMembers().contains(concept))
-		{
-			drugDoses.addSetMember(concept);
-			synchronized (s_lockObject) {
-				drugDoses = this.m_importService.saveConcept(drugDoses);
-            }
-		}
+			this.addSetMember(drugDoses, concept);
 		
 		return concept;
 	}
@@ -787,7 +1210,7 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * Gets a type specific concept
 	 * @throws DocumentImportException 
 	 */
-	public Concept getTypeSpecificConcept(CE<?> code, ANY value) throws DocumentImportException {
+	public Concept getTypeSpecificConcept(CV<?> code, ANY value) throws DocumentImportException {
 		
 		log.debug("Enter: getTypeSpecificConcept");
 
@@ -983,33 +1406,59 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	/**
 	 * Create a PQ frequency concept
 	 */
-	private Concept createFrequencyConcept(PQ dailyFreq) {
-		String conceptName = String.format("Every %s %s", dailyFreq.getValue(), dailyFreq.getUnit());
+	private Concept createFrequencyConcept(PQ dailyFreq) throws DocumentImportException {
+		final String conceptName = String.format("Every %s %s", dailyFreq.getValue(), dailyFreq.getUnit());
 		Concept concept = this.m_conceptService.getConceptByName(conceptName);
 		if(concept == null)
 		{
-			ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(ConceptClass.FREQUENCY_UUID);
-			if(conceptClass == null)
-			{
-				conceptClass = new ConceptClass();
-				conceptClass.setName("Frequency");
-				conceptClass.setUuid(ConceptClass.FREQUENCY_UUID);
-				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
-					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
-                }
-			}
-			concept = new Concept();
-			concept.addName(new ConceptName(conceptName, Context.getLocale()));
-			concept.setPreferredName(concept.getName());
-			concept.setConceptClass(conceptClass);
-			synchronized (s_lockObject) {
-				concept = this.m_importService.saveConcept(concept);
-            }
+			final ConceptClass conceptClass = this.getOrCreateConceptClass(ConceptClass.FREQUENCY_UUID, "Frequency");
+			concept = this.getOrCreate(this.m_conceptLocks, conceptName, new GetOrCreate<Concept>() {
+				@Override
+				public Concept run() {
+					// Another import may have created the concept while we waited
+					Concept concept = m_conceptService.getConceptByName(conceptName);
+					if(concept == null)
+					{
+						concept = new Concept();
+						concept.addName(new ConceptName(conceptName, Context.getLocale()));
+						concept.setPreferredName(concept.getName());
+						concept.setConceptClass(conceptClass);
+						concept = m_importService.saveConcept(concept);
+					}
+					return concept;
+				}
+			});
 		}
 		return concept;
     }
 
+	/**
+	 * Get or create a concept class
+	 */
+	private ConceptClass getOrCreateConceptClass(final String uuid, final String name) throws DocumentImportException {
+		ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(uuid);
+		if(conceptClass == null)
+		{
+			conceptClass = this.getOrCreate(this.m_conceptClassLocks, uuid, new GetOrCreate<ConceptClass>() {
+				@Override
+				public ConceptClass run() {
+					// Another import may have created the class while we waited
+					ConceptClass conceptClass = m_conceptService.getConceptClassByUuid(uuid);
+					if(conceptClass == null)
+					{
+						conceptClass = new ConceptClass();
+						conceptClass.setName(name);
+						conceptClass.setUuid(uuid);
+						conceptClass.setDescription("Automatically created");
+						conceptClass = m_conceptService.saveConceptClass(conceptClass);
+					}
+					return conceptClass;
+				}
+			});
+		}
+		return conceptClass;
+	}
+
 	/**
 	 * Get or create route concept
 	 * @throws DocumentImportException 
@@ -1022,16 +1471,46 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		String routeConceptUuid = Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GP_DRUG_ROUTES_CONCEPT_UUID);
 		Concept routeCodes = this.m_conceptService.getConceptByUuid(routeConceptUuid);
 		if(routeCodes != null && !routeCodes.getSetMembers().contains(concept))
-		{
-			routeCodes.addSetMember(concept);
-			synchronized (s_lockObject) {
-				routeCodes = this.m_importService.saveConcept(routeCodes);
-            }
-		}
+			this.addSetMember(routeCodes, concept);
 		
 		return concept;
 	}
 
+	/**
+	 * Add a member to a set concept (used by the sets which the members are validated against)
+	 */
+	private void addSetMember(Concept setConcept, final Concept concept) throws DocumentImportException {
+		final Integer setConceptId = setConcept.getConceptId();
+		this.getOrCreate(this.m_structureLocks, setConceptId, new GetOrCreate<Concept>() {
+			@Override
+			public Concept run() {
+				Concept setConcept = m_conceptService.getConcept(setConceptId);
+				for(Concept setMember : setConcept.getSetMembers())
+					if(setMember != null && setMember.getId().equals(concept.getId()))
+						return setConcept;
+				setConcept.addSetMember(m_conceptService.getConcept(concept.getConceptId()));
+				return m_importService.saveConcept(setConcept);
+			}
+		});
+	}
+
+	/**
+	 * Set the class of a concept
+	 */
+	private Concept setConceptClass(Concept concept, final ConceptClass conceptClass) throws DocumentImportException {
+		final Integer conceptId = concept.getConceptId();
+		return this.getOrCreate(this.m_structureLocks, conceptId, new GetOrCreate<Concept>() {
+			@Override
+			public Concept run() {
+				Concept concept = m_conceptService.getConcept(conceptId);
+				if(concept.getConceptClass().getId().equals(conceptClass.getId()))
+					return concept;
+				concept.setConceptClass(m_conceptService.getConceptClass(conceptClass.getId()));
+				return m_importService.saveConcept(concept);
+			}
+		});
+	}
+
 	/**
 	 * Get or create a drug form code
 	 * @throws DocumentImportException 
@@ -1043,19 +1522,9 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(concept == null)
 		{
 			concept = this.createConcept(administrationUnitCode);
-			ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(CdaHandlerConstants.UUID_CONCEPT_CLS_DRUG_FORM);
-			if(conceptClass == null)
-			{
-				conceptClass = new ConceptClass();
-				conceptClass.setName("Drug Form");
-				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
-					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
-                }
-			}
-			synchronized (s_lockObject) {
-				concept = this.m_importService.saveConcept(concept);
-            }
+			ConceptClass conceptClass = this.getOrCreateConceptClass(CdaHandlerConstants.UUID_CONCEPT_CLS_DRUG_FORM, "Drug Form");
+			if(concept != null)
+				concept = this.setConceptClass(concept, conceptClass);
 		}
 		
 		return concept;
@@ -1071,23 +1540,10 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(concept == null)
 		{
 			concept = this.getOrCreateConceptAndEquivalents(drugCode);
-			ConceptClass conceptClass = this.m_conceptService.getConceptClassByUuid(ConceptClass.DRUG_UUID);
-			if(conceptClass == null)
-			{
-				conceptClass = new ConceptClass();
-				conceptClass.setName("Drug");
-				conceptClass.setUuid(ConceptClass.DRUG_UUID);
-				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
-					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
-                }
-			}
+			ConceptClass conceptClass = this.getOrCreateConceptClass(ConceptClass.DRUG_UUID, "Drug");
 			// Make this a drug
 			if(concept != null && !concept.getConceptClass().equals(conceptClass))
-			{
-				concept.setConceptClass(conceptClass);
-				concept = this.m_importService.saveConcept(concept);
-			}
+				concept = this.setConceptClass(concept, conceptClass);
 		}
 		
 		return concept;
@@ -3,8 +3,17 @@ package org.openmrs.module.shr.cdahandler.processor.util;
 import java.io.ByteArrayInputStream;
 import java.math.BigDecimal;
 import java.net.URLEncoder;
+import java.lang.reflect.Method;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
@@ -26,6 +35,7 @@ import org.marc.everest.datatypes.generic.CS;
 import org.marc.everest.datatypes.generic.RTO;
 import org.marc.everest.datatypes.generic.SET;
 import org.marc.everest.interfaces.IEnumeratedVocabulary;
+import org.marc.everest.interfaces.IGraphable;
 import org.marc.everest.rmim.uv.cdar2.vocabulary.ActPriority;
 import org.openmrs.Concept;
 import org.openmrs.ConceptNumeric;
@@ -38,14 +48,14 @@ import org.openmrs.Patient;
 import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.Visit;
-import org.openmrs.VisitAttribute;
-import org.openmrs.VisitAttributeType;
 import org.openmrs.activelist.Allergy;
 import org.openmrs.activelist.Problem;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.InvalidCustomValueException;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.cache.AccessionNumberFilter;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.obs.ComplexData;
@@ -84,6 +94,18 @@ public final class OpenmrsDataUtil {
 	
 	private final DatatypeProcessorUtil m_datatypeUtil = DatatypeProcessorUtil.getInstance();
 	
+	// The maximum number of accession numbers fetched in a single query
+	private static final int MAX_BATCH_SIZE = 500;
+	
+	// The number of accession numbers read at a time when loading the filter
+	private static final int ACCESSION_NUMBER_PAGE_SIZE = 10000;
+	
+	// Serializes loads of the accession number filter
+	private final Object m_accessionNumberFilterLock = new Object();
+	
+	// Existing data fetched for the document being processed on this thread
+	private final ThreadLocal<AccessionNumberTable> m_accessionNumberTable = new ThreadLocal<AccessionNumberTable>();
+	
 	/**
 	 * Private ctor
 	 */
@@ -123,22 +145,41 @@ public final class OpenmrsDataUtil {
     }
 
 	/**
-	 * Get a visit by its id
+	 * Get the (non-voided) visit of the patient created from the document with the specified id
 	 * @return
 	 * @throws DocumentImportException 
 	 * @throws InvalidCustomValueException 
 	 */
 	public Visit getVisitById(II id, Patient patient) throws InvalidCustomValueException, DocumentImportException {
-		VisitAttributeType vat = this.m_conceptUtil.getOrCreateVisitExternalIdAttributeType();
-		for(Visit visit : Context.getVisitService().getActiveVisitsByPatient(patient))
+		CdaDocumentVisit documentVisit = Context.getService(CdaImportService.class).getDocumentVisit(this.m_datatypeUtil.formatIdentifier(id));
+		if(documentVisit == null)
+			return null;
+		
+		Visit visit = documentVisit.getVisit();
+		if(visit.isVoided() || patient != null && !patient.equals(visit.getPatient()))
+			return null;
+		return visit;
+    }
+
+	/**
+	 * Link the document with the specified id to the visit holding its data
+	 */
+	public void linkDocumentToVisit(II id, Visit visit) {
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		String documentId = this.m_datatypeUtil.formatIdentifier(id);
+		CdaDocumentVisit documentVisit = importService.getDocumentVisit(documentId);
+		if(documentVisit == null)
 		{
-			for(VisitAttribute attr : visit.getAttributes())
-				if(attr.getAttributeType().equals(vat) &&
-					attr.getValue().equals(this.m_datatypeUtil.formatIdentifier(id)))
-					return visit;
+			documentVisit = new CdaDocumentVisit();
+			documentVisit.setDocumentId(documentId);
 		}
-		return null;
-    }
+		else if(visit.equals(documentVisit.getVisit()))
+			return;
+		
+		// New link, or the document is being re-imported after its visit was voided
+		documentVisit.setVisit(visit);
+		importService.saveDocumentVisit(documentVisit);
+	}
 
 	/**
 	 * Set the observation value using an appropriate call
@@ -230,6 +271,203 @@ public final class OpenmrsDataUtil {
 		return observation;
 	}
 
+	/**
+	 * Fetch the existing obs, orders, allergies and problems carrying any of the identifiers 
+	 * in the content (typically the structured body of a document) in bulk, and use the 
+	 * results for duplicate checks made on this thread until {@link #releaseAccessionNumberTable()} 
+	 * is called
+	 */
+	public AccessionNumberTable prefetchAccessionNumbers(IGraphable content)
+	{
+		log.debug("Enter: prefetchAccessionNumbers");
+
+		// Gather the distinct identifiers which could be accession numbers
+		Set<String> accessionNumbers = new LinkedHashSet<String>();
+		this.collectAccessionNumbers(content, accessionNumbers, new IdentityHashMap<Object, Object>());
+
+		// Only query the numbers which the filter doesn't rule out
+		AccessionNumberFilter filter = AccessionNumberFilter.getInstance();
+		List<String> batch = new ArrayList<String>();
+		for(String accessionNumber : accessionNumbers)
+			if(filter.mightContain(accessionNumber))
+				batch.add(accessionNumber);
+		
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		AccessionNumberTable accessionNumberTable = new AccessionNumberTable();
+		if(!batch.isEmpty())
+			this.flushPendingChanges();
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+		{
+			List<String> subList = batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size()));
+			Map<String, List<Integer>> obsIds = importService.getObsIdsByAccessionNumbers(subList),
+					orderIds = importService.getOrderIdsByAccessionNumbers(subList);
+			accessionNumberTable.addObs(obsIds);
+			accessionNumberTable.addOrders(orderIds);
+			accessionNumberTable.addAllergies(importService.getActiveListItemIdsByAccessionNumbers(subList, Allergy.class));
+			accessionNumberTable.addProblems(importService.getActiveListItemIdsByAccessionNumbers(subList, Problem.class));
+			
+			if(filter.isLoaded())
+				for(String accessionNumber : subList)
+					if(!obsIds.containsKey(accessionNumber) && !orderIds.containsKey(accessionNumber))
+						filter.recordFalsePositive();
+		}
+		accessionNumberTable.addFetched(accessionNumbers);
+
+		log.debug(String.format("Prefetched %s accession numbers", accessionNumberTable.size()));
+		this.m_accessionNumberTable.set(accessionNumberTable);
+		return accessionNumberTable;
+	}
+
+	/**
+	 * Load the accession number filter from the obs and orders in the database
+	 */
+	public void loadAccessionNumberFilter()
+	{
+		synchronized (this.m_accessionNumberFilterLock) {
+			log.debug("Enter: loadAccessionNumberFilter");
+			
+			CdaImportService importService = Context.getService(CdaImportService.class);
+			AccessionNumberFilter filter = AccessionNumberFilter.getInstance();
+			filter.beginLoad(importService.getAccessionNumberCount());
+			
+			// Obs
+			Integer lastId = 0;
+			Map<Integer, String> page;
+			do {
+				page = importService.getObsAccessionNumbers(lastId, ACCESSION_NUMBER_PAGE_SIZE);
+				for(Map.Entry<Integer, String> entry : page.entrySet())
+				{
+					filter.addLoaded(entry.getValue());
+					lastId = entry.getKey();
+				}
+			} while(page.size() == ACCESSION_NUMBER_PAGE_SIZE);
+			
+			// Orders
+			lastId = 0;
+			do {
+				page = importService.getOrderAccessionNumbers(lastId, ACCESSION_NUMBER_PAGE_SIZE);
+				for(Map.Entry<Integer, String> entry : page.entrySet())
+				{
+					filter.addLoaded(entry.getValue());
+					lastId = entry.getKey();
+				}
+			} while(page.size() == ACCESSION_NUMBER_PAGE_SIZE);
+			
+			filter.endLoad();
+			log.info(String.format("Loaded %s accession numbers into the accession number filter", filter.size()));
+		}
+	}
+
+	/**
+	 * Stop using the data fetched by {@link #prefetchAccessionNumbers(IGraphable)} on this thread
+	 */
+	public void releaseAccessionNumberTable()
+	{
+		this.m_accessionNumberTable.remove();
+	}
+
+	/**
+	 * Collect the formatted identifiers in the RMIM graph which could be accession numbers
+	 * (those which aren't references to OpenMRS ids)
+	 */
+	private void collectAccessionNumbers(Object value, Set<String> accessionNumbers, Map<Object, Object> visited)
+	{
+		if(value == null || visited.put(value, value) != null)
+			return;
+		
+		if(value instanceof II)
+		{
+			II id = (II)value;
+			if(id.getRoot() != null && id.getExtension() != null && !id.isNull() &&
+					!id.getRoot().equals(this.m_configuration.getObsRoot()) &&
+					!id.getRoot().equals(this.m_configuration.getOrderRoot()) &&
+					!id.getRoot().equals(this.m_configuration.getAllergyRoot()) &&
+					!id.getRoot().equals(this.m_configuration.getProblemRoot()))
+				accessionNumbers.add(this.m_datatypeUtil.formatIdentifier(id));
+		}
+		else if(value instanceof Iterable)
+		{
+			for(Object item : (Iterable<?>)value)
+				this.collectAccessionNumbers(item, accessionNumbers, visited);
+		}
+		else if(value.getClass().getName().startsWith("org.marc.everest.rmim."))
+		{
+			for(Method getter : RmimReflectionUtil.getGraphGetters(value.getClass()))
+				try {
+					this.collectAccessionNumbers(getter.invoke(value), accessionNumbers, visited);
+				}
+				catch(Exception e) {
+					log.debug(String.format("Could not read %s.%s", value.getClass().getSimpleName(), getter.getName()), e);
+				}
+		}
+	}
+
+	/**
+	 * Flush the changes made since the last flush when the session is flushed manually
+	 * during import, so that the duplicate, previous version, patient and provider lookups
+	 * (which are queries) see the data created, moved and voided by the document so far.
+	 * Concept lookups don't need this: concepts, reference terms, etc. are only changed in
+	 * transactions of their own (see OpenmrsConceptUtil), never in the import's session
+	 */
+	public void flushPendingChanges()
+	{
+		if(this.m_configuration.getManualFlush())
+			Context.flushSession();
+	}
+
+	/**
+	 * Get the prefetched table for this thread (or null)
+	 */
+	private AccessionNumberTable getAccessionNumberTable()
+	{
+		return this.m_accessionNumberTable.get();
+	}
+
+	/**
+	 * True if any non-voided obs or order carries the accession number
+	 */
+	public boolean hasExistingData(String accessionNumber)
+	{
+		return !this.getAccessionNumbersWithData(Collections.singletonList(accessionNumber)).isEmpty();
+	}
+
+	/**
+	 * Get those of the accession numbers which a non-voided obs or order carries, querying them in
+	 * batches rather than one at a time
+	 */
+	public Set<String> getAccessionNumbersWithData(Collection<String> accessionNumbers)
+	{
+		Set<String> retVal = new HashSet<String>();
+		AccessionNumberTable accessionNumberTable = this.getAccessionNumberTable();
+		AccessionNumberFilter filter = AccessionNumberFilter.getInstance();
+		List<String> batch = new ArrayList<String>();
+		for(String accessionNumber : accessionNumbers)
+		{
+			Boolean prefetched = accessionNumberTable == null ? null : accessionNumberTable.hasData(accessionNumber);
+			if(Boolean.TRUE.equals(prefetched))
+				retVal.add(accessionNumber);
+			else if(prefetched == null && filter.mightContain(accessionNumber))
+				batch.add(accessionNumber);
+		}
+		if(batch.isEmpty())
+			return retVal;
+		
+		this.flushPendingChanges();
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE)
+		{
+			List<String> subList = batch.subList(i, Math.min(i + MAX_BATCH_SIZE, batch.size()));
+			Map<String, List<Integer>> obsIds = importService.getObsIdsByAccessionNumbers(subList),
+					orderIds = importService.getOrderIdsByAccessionNumbers(subList);
+			for(String accessionNumber : subList)
+				if(obsIds.containsKey(accessionNumber) || orderIds.containsKey(accessionNumber))
+					retVal.add(accessionNumber);
+				else if(filter.isLoaded())
+					filter.recordFalsePositive();
+		}
+		return retVal;
+	}
+
 	/**
 	 * Find an existing obs 
 	 */
@@ -243,7 +481,22 @@ public final class OpenmrsDataUtil {
 				if(this.m_configuration.getObsRoot().equals(id.getRoot())) // Then try to get the ID
 					return Context.getService(CdaImportService.class).getExtendedObs(Integer.parseInt(id.getExtension()));
 				else {
-					List<Obs> candidate = Context.getService(CdaImportService.class).getObsByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id));
+					String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+					AccessionNumberTable accessionNumberTable = this.getAccessionNumberTable();
+					List<Integer> prefetched = accessionNumberTable == null ? null : accessionNumberTable.getObsIds(accessionNumber);
+					if(prefetched != null)
+					{
+						if(prefetched.size() > 0)
+							return Context.getService(CdaImportService.class).getExtendedObs(prefetched.get(0));
+						continue;
+					}
+					
+					// Numbers ruled out by the filter have never been imported
+					if(!AccessionNumberFilter.getInstance().mightContain(accessionNumber))
+						continue;
+					
+					this.flushPendingChanges();
+					List<Obs> candidate = Context.getService(CdaImportService.class).getObsByAccessionNumber(accessionNumber);
 					log.debug(String.format("Foun d %s existing obs", candidate.size()));
 					if(candidate.size() > 0)
 						return Context.getService(CdaImportService.class).getExtendedObs(candidate.get(0).getId());
@@ -271,7 +524,22 @@ public final class OpenmrsDataUtil {
 				if(this.m_configuration.getOrderRoot().equals(id.getRoot())) // Then try to get the ID
 					return Context.getOrderService().getOrder(Integer.parseInt(id.getExtension()));
 				else {
-					List<Order> candidate = Context.getService(CdaImportService.class).getOrdersByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id));
+					String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+					AccessionNumberTable accessionNumberTable = this.getAccessionNumberTable();
+					List<Integer> prefetched = accessionNumberTable == null ? null : accessionNumberTable.getOrderIds(accessionNumber);
+					if(prefetched != null)
+					{
+						if(prefetched.size() > 0)
+							return Context.getOrderService().getOrder(prefetched.get(0));
+						continue;
+					}
+					
+					// Numbers ruled out by the filter have never been imported
+					if(!AccessionNumberFilter.getInstance().mightContain(accessionNumber))
+						continue;
+					
+					this.flushPendingChanges();
+					List<Order> candidate = Context.getService(CdaImportService.class).getOrdersByAccessionNumber(accessionNumber);
 					if(candidate.size() > 0)
 						return candidate.get(0);
 				}
@@ -302,7 +570,21 @@ public final class OpenmrsDataUtil {
 				}
 				else
 				{
-					List<Allergy> candidate = Context.getService(CdaImportService.class).getActiveListItemByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id), Allergy.class);
+					String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+					AccessionNumberTable accessionNumberTable = this.getAccessionNumberTable();
+					List<Integer> prefetched = accessionNumberTable == null ? null : accessionNumberTable.getAllergyIds(accessionNumber);
+					if(prefetched != null)
+					{
+						if(prefetched.size() > 0)
+							return Context.getActiveListService().getActiveListItem(Allergy.class, prefetched.get(0));
+						continue;
+					}
+					
+					if(!AccessionNumberFilter.getInstance().mightContain(accessionNumber))
+						continue;
+					
+					this.flushPendingChanges();
+					List<Allergy> candidate = Context.getService(CdaImportService.class).getActiveListItemByAccessionNumber(accessionNumber, Allergy.class);
 					if(candidate.size() > 0)
 						return candidate.get(0);
 				}
@@ -335,7 +617,21 @@ public final class OpenmrsDataUtil {
 				}
 				else
 				{
-					List<Problem> candidate = Context.getService(CdaImportService.class).getActiveListItemByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id), Problem.class);
+					String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+					AccessionNumberTable accessionNumberTable = this.getAccessionNumberTable();
+					List<Integer> prefetched = accessionNumberTable == null ? null : accessionNumberTable.getProblemIds(accessionNumber);
+					if(prefetched != null)
+					{
+						if(prefetched.size() > 0)
+							return Context.getActiveListService().getActiveListItem(Problem.class, prefetched.get(0));
+						continue;
+					}
+					
+					if(!AccessionNumberFilter.getInstance().mightContain(accessionNumber))
+						continue;
+					
+					this.flushPendingChanges();
+					List<Problem> candidate = Context.getService(CdaImportService.class).getActiveListItemByAccessionNumber(accessionNumber, Problem.class);
 					if(candidate.size() > 0)
 						return candidate.get(0);
 				}
@@ -1,6 +1,10 @@
 package org.openmrs.module.shr.cdahandler.processor.util;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,6 +19,7 @@ import org.openmrs.ConceptClass;
 import org.openmrs.EncounterRole;
 import org.openmrs.EncounterType;
 import org.openmrs.LocationAttributeType;
+import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OrderType;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.ProviderAttributeType;
@@ -24,6 +29,7 @@ import org.openmrs.VisitType;
 import org.openmrs.api.context.Context;
 import org.openmrs.attribute.BaseAttributeType;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.cache.MetadataRegistry;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.order.ObservationOrder;
@@ -70,6 +76,71 @@ public class OpenmrsMetadataUtil {
 		
 	}
 
+	/**
+	 * Index all the registered types of metadata (called at startup)
+	 */
+	public void loadRegistry()
+	{
+		for(Class<?> type : MetadataRegistry.getIndexedTypes())
+			this.getIndex(type);
+	}
+	
+	/**
+	 * Get the index (key to id) of the specified type of metadata from the registry, 
+	 * loading it if the type isn't indexed
+	 */
+	private Map<String, Integer> getIndex(Class<?> type)
+	{
+		MetadataRegistry registry = MetadataRegistry.getInstance();
+		Map<String, Integer> index = registry.getIndex(type);
+		if(index == null)
+		{
+			long generation = registry.getGeneration(type);
+			index = this.loadIndex(type);
+			registry.setIndex(type, index, generation);
+		}
+		return index;
+	}
+	
+	/**
+	 * Load the index of the specified type of metadata. Retired metadata is indexed (it was
+	 * always found by its key, except for encounter roles) unless unretired metadata has the 
+	 * same key
+	 */
+	private Map<String, Integer> loadIndex(Class<?> type)
+	{
+		List<? extends OpenmrsMetadata> metadata;
+		if(EncounterRole.class.equals(type))
+			metadata = Context.getEncounterService().getAllEncounterRoles(false);
+		else if(EncounterType.class.equals(type))
+			metadata = Context.getEncounterService().getAllEncounterTypes();
+		else if(VisitType.class.equals(type))
+			metadata = Context.getVisitService().getAllVisitTypes();
+		else if(VisitAttributeType.class.equals(type))
+			metadata = Context.getVisitService().getAllVisitAttributeTypes();
+		else if(LocationAttributeType.class.equals(type))
+			metadata = Context.getLocationService().getAllLocationAttributeTypes();
+		else
+			metadata = Context.getProviderService().getAllProviderAttributeTypes();
+
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		Set<String> unretiredKeys = new HashSet<String>();
+		for(OpenmrsMetadata item : metadata)
+		{
+			String key = MetadataRegistry.getKey(item);
+			if(key == null)
+				continue;
+			else if(!item.isRetired())
+			{
+				index.put(key, item.getId());
+				unretiredKeys.add(key);
+			}
+			else if(!unretiredKeys.contains(key))
+				index.put(key, item.getId());
+		}
+		return index;
+	}
+	
 	/**
 	 * Creates a base attribute type
 	 * 
@@ -102,6 +173,7 @@ public class OpenmrsMetadataUtil {
 				res = (T)Context.getLocationService().saveLocationAttributeType((LocationAttributeType)res);
 			else
 				res = (T)Context.getProviderService().saveProviderAttributeType((ProviderAttributeType)res);
+			MetadataRegistry.getInstance().updateOnCompletion(res, false);
 				
 			return res;
 		}
@@ -137,24 +209,17 @@ public class OpenmrsMetadataUtil {
 	@SuppressWarnings("unchecked")
     public <T extends BaseAttributeType<?>> T getAttributeType(String name, Class<T> attributeType) 
 	{
-		T res = null;
+		Integer id = this.getIndex(attributeType).get(name);
+		if(id == null)
+			return null;
 		
-		// Get a list of appropriate types to scan
-		List<? extends BaseAttributeType<?>> allTypes = null;
+		// Get the appropriate type
 		if(VisitAttributeType.class.equals(attributeType))
-			allTypes = Context.getVisitService().getAllVisitAttributeTypes();
+			return (T)Context.getVisitService().getVisitAttributeType(id);
 		else if(LocationAttributeType.class.equals(attributeType))
-			allTypes = Context.getLocationService().getAllLocationAttributeTypes();
+			return (T)Context.getLocationService().getLocationAttributeType(id);
 		else
-			allTypes = Context.getProviderService().getAllProviderAttributeTypes();
-		
-		// Scan the attribute types
-		for(BaseAttributeType<?> attrType : allTypes)
-			if(attrType.getName().equals(name))
-				res = (T)attrType;
-		
-				
-		return res;
+			return (T)Context.getProviderService().getProviderAttributeType(id);
 	}
 
 	
@@ -174,15 +239,16 @@ public class OpenmrsMetadataUtil {
 		// TODO: There has to be a better way to do this currently this will create a cda.encounterrol.ActParticipation.AUT|LA|etc.
 		String codeKey = DatatypeProcessorUtil.getInstance().formatSimpleCode(cs);
 		EncounterRole encounterRole = null;
-		for(EncounterRole role : Context.getEncounterService().getAllEncounterRoles(false))
-			if(role.getDescription().equals(codeKey))
-				encounterRole = role;
+		Integer id = this.getIndex(EncounterRole.class).get(codeKey);
+		if(id != null)
+			encounterRole = Context.getEncounterService().getEncounterRole(id);
 				
 		if(encounterRole == null && this.m_configuration.getAutoCreateMetaData()) {
 			encounterRole = new EncounterRole();
 			encounterRole.setName(cs.getCode().getCode());
 			encounterRole.setDescription(codeKey);
 			encounterRole = Context.getEncounterService().saveEncounterRole(encounterRole);
+			MetadataRegistry.getInstance().updateOnCompletion(encounterRole, false);
 		} 
 		else if(encounterRole == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Encounter role %s is unknown", cs.getCode()));
@@ -205,15 +271,16 @@ public class OpenmrsMetadataUtil {
 			display = code.getCode();
 		
 		EncounterType encounterType = null;
-		for(EncounterType type : Context.getEncounterService().getAllEncounterTypes())
-			if(type.getDescription().equals(codeKey))
-				encounterType = type;
+		Integer id = this.getIndex(EncounterType.class).get(codeKey);
+		if(id != null)
+			encounterType = Context.getEncounterService().getEncounterType(id);
 				
 		if(encounterType == null && this.m_configuration.getAutoCreateMetaData()) {
 			encounterType = new EncounterType();
 			encounterType.setName(display);
 			encounterType.setDescription(codeKey);
 			encounterType = Context.getEncounterService().saveEncounterType(encounterType);
+			MetadataRegistry.getInstance().updateOnCompletion(encounterType, false);
 		} 
 		else if(encounterType == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Encounter type %s is unknown", code.getCode()));
@@ -411,9 +478,9 @@ public class OpenmrsMetadataUtil {
 	 */
 	public VisitType getVisitType(String visitTypeName) throws DocumentImportException {
 		VisitType visitType = null;
-		for(VisitType type : Context.getVisitService().getAllVisitTypes())
-			if(type.getName().equals(visitTypeName))
-				visitType = type;
+		Integer id = this.getIndex(VisitType.class).get(visitTypeName);
+		if(id != null)
+			visitType = Context.getVisitService().getVisitType(id);
 		
 		if(visitType == null && this.m_configuration.getAutoCreateMetaData())
 		{
@@ -421,6 +488,7 @@ public class OpenmrsMetadataUtil {
 			visitType.setName(visitTypeName);
 			visitType.setDescription("Auto Created");
 			visitType = Context.getVisitService().saveVisitType(visitType);
+			MetadataRegistry.getInstance().updateOnCompletion(visitType, false);
 		}
 		else if(visitType == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Cannot find specified visit type %s", visitTypeName));
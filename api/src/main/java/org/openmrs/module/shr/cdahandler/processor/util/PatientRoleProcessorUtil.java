@@ -59,6 +59,7 @@ public final class PatientRoleProcessorUtil {
 	private final LocationOrganizationProcessorUtil m_locationUtil = LocationOrganizationProcessorUtil.getInstance();
 	
 	private final OpenmrsConceptUtil m_conceptUtil = OpenmrsConceptUtil.getInstance();
+	private final OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
 	
 	/**
 	 * Private ctor
@@ -142,6 +143,7 @@ public final class PatientRoleProcessorUtil {
 		
 		// Create identifier type or get identifier type
 		PatientIdentifier pid = this.getApplicablePatientIdentifier(patient.getId());
+		this.m_dataUtil.flushPendingChanges();
 		List<Patient> matches = Context.getPatientService().getPatients(null, pid.getIdentifier(), Collections.singletonList(pid.getIdentifierType()), true);
 		
 		if (matches.isEmpty() && this.m_configuration.getAutoCreatePatients()) {
@@ -0,0 +1,51 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.marc.everest.interfaces.IGraphable;
+
+/**
+ * Reflection over RMIM classes shared by the utilities which walk a document's graph
+ * (collecting its accession numbers and fingerprinting its statements)
+ * @author Justin Fyfe
+ *
+ */
+public final class RmimReflectionUtil {
+
+	// The getters which are followed when walking a graph, by RMIM class
+	private static final Map<Class<?>, List<Method>> s_graphGetters = new ConcurrentHashMap<Class<?>, List<Method>>();
+
+	/**
+	 * Static methods only
+	 */
+	private RmimReflectionUtil()
+	{
+	}
+
+	/**
+	 * Get the getters of an RMIM class which may lead to other RMIM objects or datatypes
+	 */
+	public static List<Method> getGraphGetters(Class<?> rmimClass)
+	{
+		List<Method> retVal = s_graphGetters.get(rmimClass);
+		if(retVal == null)
+		{
+			retVal = new ArrayList<Method>();
+			for(Method method : rmimClass.getMethods())
+			{
+				Class<?> returnType = method.getReturnType();
+				if(method.getName().startsWith("get") && method.getParameterTypes().length == 0 &&
+						!Modifier.isStatic(method.getModifiers()) &&
+						(IGraphable.class.isAssignableFrom(returnType) || Iterable.class.isAssignableFrom(returnType) || Object.class.equals(returnType)))
+					retVal.add(method);
+			}
+			s_graphGetters.put(rmimClass, retVal);
+		}
+		return retVal;
+	}
+}
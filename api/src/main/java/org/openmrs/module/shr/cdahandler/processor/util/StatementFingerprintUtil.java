@@ -0,0 +1,592 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.generic.SET;
+import org.marc.everest.interfaces.IEnumeratedVocabulary;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component5;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.StructuredBody;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.cache.StatementFingerprintCache;
+import org.openmrs.module.shr.cdahandler.cache.StatementFingerprintCache.StoredFingerprint;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementFingerprint;
+import org.openmrs.module.shr.cdahandler.document.CdaStatementReference;
+
+/**
+ * Fingerprints the content of clinical statements so that the statements of a new version
+ * of a document which haven't changed since the previous version can be kept rather than
+ * voided and imported again, and so that statements which were already imported for the
+ * patient by another document (such as the history resent in every summary) can be skipped.
+ *
+ * A fingerprint covers the whole statement including its nested statements and participants,
+ * except for the authors and informants. The data of an unchanged statement is moved to the
+ * encounter created for the new version of the document. The data of a skipped statement
+ * stays with the document which first imported it, and is handed over to the document which
+ * skipped it if the first document is replaced.
+ * @author Justin Fyfe
+ *
+ */
+public final class StatementFingerprintUtil {
+
+	/**
+	 * The statements of the document being imported on a thread
+	 */
+	private static final class StatementDiff {
+
+		// True if the statements of the previous version are compared
+		private boolean m_differential;
+		// True if statements already imported for the patient are skipped
+		private boolean m_skipImported;
+		// The visit holding the previous version of the document
+		private Visit m_previousVisit;
+		// The void reason for the previous visit when it is replaced, or null if it is updated
+		private String m_voidReason;
+		// The patient
+		private Patient m_patient;
+		// True once the statements of the body have been compared
+		private boolean m_prepared;
+		// The fingerprints of the statements in the body
+		private final Map<ClinicalStatement, String> m_fingerprints = new IdentityHashMap<ClinicalStatement, String>();
+		// The stored fingerprints by accession number
+		private Map<String, StoredFingerprint> m_stored = Collections.emptyMap();
+		// The unchanged statements and the accession numbers of the statements within them
+		private final Map<ClinicalStatement, Set<String>> m_unchanged = new IdentityHashMap<ClinicalStatement, Set<String>>();
+		// The statements already imported for the patient by another document
+		private final Map<ClinicalStatement, String> m_imported = new IdentityHashMap<ClinicalStatement, String>();
+		// The accession numbers of the statements skipped because another document imported them
+		private final Set<String> m_referenced = new LinkedHashSet<String>();
+		// The ids of the moved obs which need a new group, by accession number
+		private Map<String, List<Integer>> m_movedObs = new HashMap<String, List<Integer>>();
+		// The moved obs ids by their new group
+		private final Map<Obs, List<Integer>> m_regroup = new IdentityHashMap<Obs, List<Integer>>();
+		// The fingerprints of the statements which were imported, by accession number (the statements
+		// themselves aren't held so the processed parts of the document can be collected)
+		private final Map<String, String> m_processed = new LinkedHashMap<String, String>();
+	}
+
+	// Properties which don't form part of the fingerprint
+	private static final Set<String> s_ignoredProperties = new LinkedHashSet<String>(Arrays.asList("getAuthor", "getInformant"));
+	// Getters (sorted by name) used to fingerprint each class
+	private static final Map<Class<?>, List<Method>> s_getters = new ConcurrentHashMap<Class<?>, List<Method>>();
+
+	// Log
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// Singleton instance
+	private static StatementFingerprintUtil s_instance;
+	private static Object s_lockObject = new Object();
+
+	// Utilities
+	private final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
+	private final DatatypeProcessorUtil m_datatypeUtil = DatatypeProcessorUtil.getInstance();
+	private final OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
+
+	// The statements of the document being imported on this thread
+	private final ThreadLocal<StatementDiff> m_diff = new ThreadLocal<StatementDiff>();
+
+	/**
+	 * Private ctor
+	 */
+	private StatementFingerprintUtil()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static StatementFingerprintUtil getInstance()
+	{
+		if(s_instance == null)
+		{
+			synchronized (s_lockObject) {
+				if(s_instance == null) // Another thread might have created while we were waiting for a lock
+					s_instance = new StatementFingerprintUtil();
+			}
+		}
+		return s_instance;
+	}
+
+	/**
+	 * Start comparing the statements of the document imported on this thread with those of
+	 * its previous version and those already imported for the patient, if differential updates
+	 * or skipping unchanged statements are enabled
+	 */
+	public void beginDiff()
+	{
+		boolean differential = this.m_configuration.getUpdateDifferential(),
+				skipImported = this.m_configuration.getSkipUnchangedStatements();
+		if(!differential && !skipImported)
+			return;
+		StatementDiff diff = new StatementDiff();
+		diff.m_differential = differential;
+		diff.m_skipImported = skipImported;
+		this.m_diff.set(diff);
+	}
+
+	/**
+	 * Set the visit holding the previous version of the document
+	 * @param previousVisit The visit
+	 * @param voidReason The reason the visit is voided if it is being replaced, or null if it is being updated
+	 * @return True if the visit will be voided (when replaced) once the unchanged statements are moved out of it,
+	 * false if statements aren't being compared
+	 */
+	public boolean setPreviousVisit(Visit previousVisit, String voidReason)
+	{
+		StatementDiff diff = this.m_diff.get();
+		if(diff == null || !diff.m_differential || diff.m_previousVisit != null)
+			return false;
+		diff.m_previousVisit = previousVisit;
+		diff.m_voidReason = voidReason;
+		return true;
+	}
+
+	/**
+	 * Compare the statements of a structured body with the previous version and move the data of the
+	 * unchanged statements to the encounter of the new version. If the previous version is being
+	 * replaced, the rest of it is then voided. The other statements are then compared with those
+	 * already imported for the patient
+	 */
+	public void prepareDiff(StructuredBody structuredBody, Encounter encounter)
+	{
+		StatementDiff diff = this.m_diff.get();
+		if(diff == null)
+			return;
+		diff.m_patient = encounter.getPatient();
+		diff.m_prepared = true;
+
+		// Fingerprint the statements
+		for(Component3 comp : structuredBody.getComponent())
+			if(comp != null && comp.getNullFlavor() == null)
+				this.fingerprintSection(comp.getSection(), diff);
+
+		Map<String, ClinicalStatement> statements = new HashMap<String, ClinicalStatement>();
+		for(ClinicalStatement statement : diff.m_fingerprints.keySet())
+		{
+			String accessionNumber = this.getAccessionNumber(statement);
+			if(accessionNumber != null)
+				statements.put(accessionNumber, statement);
+		}
+
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		diff.m_stored = this.getStoredFingerprints(diff.m_patient);
+
+		// Find the statements which are unchanged since the previous version
+		if(diff.m_previousVisit != null)
+		{
+			Set<String> keptAccessionNumbers = new LinkedHashSet<String>();
+			List<String> keptStatements = new ArrayList<String>();
+			for(Map.Entry<String, ClinicalStatement> statement : statements.entrySet())
+			{
+				StoredFingerprint stored = diff.m_stored.get(statement.getKey());
+				if(stored == null || !diff.m_previousVisit.getId().equals(stored.getVisitId()) ||
+						!stored.getFingerprint().equals(diff.m_fingerprints.get(statement.getValue())))
+					continue;
+
+				Set<String> accessionNumbers = new LinkedHashSet<String>();
+				this.collectStatementAccessionNumbers(statement.getValue(), accessionNumbers, new IdentityHashMap<Object, Object>());
+				diff.m_unchanged.put(statement.getValue(), accessionNumbers);
+				keptAccessionNumbers.addAll(accessionNumbers);
+				keptStatements.add(statement.getKey());
+			}
+
+			// The fingerprints of the kept statements must point at the new visit before the old one is voided
+			if(!keptAccessionNumbers.isEmpty())
+			{
+				diff.m_movedObs = importService.moveStatementData(keptAccessionNumbers, diff.m_previousVisit, encounter);
+				importService.updateStatementFingerprintVisit(diff.m_patient, keptStatements, encounter.getVisit());
+			}
+			log.debug(String.format("%s of %s statements are unchanged since %s", diff.m_unchanged.size(), statements.size(), diff.m_previousVisit));
+
+			if(diff.m_voidReason != null)
+				this.voidPreviousVisit(diff);
+		}
+
+		// Find the statements which were already imported for the patient by another document and whose data still exists
+		if(diff.m_skipImported)
+		{
+			Map<String, ClinicalStatement> candidates = new LinkedHashMap<String, ClinicalStatement>();
+			for(Map.Entry<String, ClinicalStatement> statement : statements.entrySet())
+			{
+				StoredFingerprint stored = diff.m_stored.get(statement.getKey());
+				if(stored == null || diff.m_unchanged.containsKey(statement.getValue()) ||
+						diff.m_previousVisit != null && diff.m_previousVisit.getId().equals(stored.getVisitId()) ||
+						!stored.getFingerprint().equals(diff.m_fingerprints.get(statement.getValue())))
+					continue;
+				candidates.put(statement.getKey(), statement.getValue());
+			}
+			
+			// Check that their data still exists in one batch rather than statement by statement
+			Set<String> withData = this.m_dataUtil.getAccessionNumbersWithData(candidates.keySet());
+			for(Map.Entry<String, ClinicalStatement> candidate : candidates.entrySet())
+				if(withData.contains(candidate.getKey()))
+					diff.m_imported.put(candidate.getValue(), candidate.getKey());
+			log.debug(String.format("%s of %s statements were already imported for %s", diff.m_imported.size(), statements.size(), diff.m_patient));
+		}
+	}
+
+	/**
+	 * Returns true if the statement is unchanged since the previous version and was kept, in which
+	 * case its data is added to the specified obs group, or if it was already imported for the patient
+	 * by another document, in which case its existing data is used as it is
+	 */
+	public boolean skipUnchanged(ClinicalStatement statement, Obs obsGroup)
+	{
+		StatementDiff diff = this.m_diff.get();
+		if(diff == null)
+			return false;
+		String imported = diff.m_imported.remove(statement);
+		if(imported != null)
+		{
+			diff.m_fingerprints.remove(statement);
+			diff.m_referenced.add(imported);
+			log.debug(String.format("Statement %s was already imported, using existing data", imported));
+			return true;
+		}
+		Set<String> unchanged = diff.m_unchanged.remove(statement);
+		if(unchanged == null)
+			return false;
+		diff.m_fingerprints.remove(statement);
+
+		List<Integer> regroup = diff.m_regroup.get(obsGroup);
+		if(regroup == null)
+		{
+			regroup = new ArrayList<Integer>();
+			diff.m_regroup.put(obsGroup, regroup);
+		}
+		for(String accessionNumber : unchanged)
+		{
+			List<Integer> obsIds = diff.m_movedObs.remove(accessionNumber);
+			if(obsIds != null)
+				regroup.addAll(obsIds);
+		}
+		return true;
+	}
+
+	/**
+	 * Record that a statement was imported
+	 */
+	public void recordProcessed(ClinicalStatement statement)
+	{
+		StatementDiff diff = this.m_diff.get();
+		if(diff == null)
+			return;
+		String fingerprint = diff.m_fingerprints.remove(statement);
+		if(fingerprint == null)
+			return;
+		String accessionNumber = this.getAccessionNumber(statement);
+		if(accessionNumber != null)
+			diff.m_processed.put(accessionNumber, fingerprint);
+	}
+
+	/**
+	 * Finish the comparison: group the kept obs under the new version's sections and store the
+	 * fingerprints of the statements in the new version
+	 */
+	public void completeDiff(Visit visit)
+	{
+		StatementDiff diff = this.m_diff.get();
+		if(diff == null)
+			return;
+
+		// A document without a structured body still replaces its previous version
+		if(!diff.m_prepared)
+		{
+			if(diff.m_previousVisit != null && diff.m_voidReason != null)
+				this.voidPreviousVisit(diff);
+			return;
+		}
+
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		for(Map.Entry<Obs, List<Integer>> regroup : diff.m_regroup.entrySet())
+			if(!regroup.getValue().isEmpty())
+				importService.setObsGroup(regroup.getValue(), regroup.getKey());
+		if(!diff.m_movedObs.isEmpty())
+			log.warn(String.format("Moved obs of %s statements which weren't in a section", diff.m_movedObs.size()));
+
+		// Record the statements this visit shares with the document which imported them, so their
+		// data is handed over to this visit if that document is replaced
+		if(!diff.m_referenced.isEmpty())
+		{
+			Set<String> referenced = new LinkedHashSet<String>(diff.m_referenced);
+			for(CdaStatementReference existing : importService.getStatementReferences(diff.m_patient, visit))
+				referenced.remove(existing.getAccessionNumber());
+			for(String accessionNumber : referenced)
+			{
+				CdaStatementReference reference = new CdaStatementReference();
+				reference.setPatient(diff.m_patient);
+				reference.setAccessionNumber(accessionNumber);
+				reference.setVisit(visit);
+				importService.saveStatementReference(reference);
+			}
+		}
+
+		// Store the fingerprints of the statements which were imported
+		if(diff.m_processed.isEmpty())
+			return;
+
+		Map<String, CdaStatementFingerprint> existing = new HashMap<String, CdaStatementFingerprint>();
+		for(CdaStatementFingerprint stored : importService.getStatementFingerprints(diff.m_patient, diff.m_processed.keySet()))
+			existing.put(stored.getAccessionNumber(), stored);
+		for(Map.Entry<String, String> statement : diff.m_processed.entrySet())
+		{
+			String accessionNumber = statement.getKey();
+			CdaStatementFingerprint stored = existing.get(accessionNumber);
+			if(stored == null)
+			{
+				stored = new CdaStatementFingerprint();
+				stored.setPatient(diff.m_patient);
+				stored.setAccessionNumber(accessionNumber);
+			}
+			stored.setFingerprint(statement.getValue());
+			stored.setVisit(visit);
+			importService.saveStatementFingerprint(stored);
+		}
+	}
+
+	/**
+	 * Stop comparing statements on this thread
+	 */
+	public void releaseDiff()
+	{
+		this.m_diff.remove();
+	}
+
+	/**
+	 * Get the stored fingerprints of the patient's statements, from the cache if they are held
+	 */
+	private Map<String, StoredFingerprint> getStoredFingerprints(Patient patient)
+	{
+		StatementFingerprintCache cache = StatementFingerprintCache.getInstance();
+		Map<String, StoredFingerprint> retVal = cache.get(patient.getPatientId());
+		if(retVal == null)
+		{
+			long generation = cache.getGeneration();
+			retVal = new HashMap<String, StoredFingerprint>();
+			for(CdaStatementFingerprint stored : Context.getService(CdaImportService.class).getStatementFingerprints(patient))
+				retVal.put(stored.getAccessionNumber(), new StoredFingerprint(stored.getFingerprint(), stored.getVisit().getVisitId()));
+			cache.put(patient.getPatientId(), retVal, generation);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Void the rest of the replaced visit
+	 */
+	private void voidPreviousVisit(StatementDiff diff)
+	{
+		int voided = Context.getService(CdaImportService.class).voidVisitData(diff.m_previousVisit, diff.m_voidReason);
+		log.info(String.format("Voided %s (%s rows)", diff.m_previousVisit, voided));
+		diff.m_voidReason = null;
+		// Existing data fetched before the void is out of date
+		this.m_dataUtil.releaseAccessionNumberTable();
+	}
+
+	/**
+	 * Fingerprint the entry statements of a section and its sub-sections
+	 */
+	private void fingerprintSection(Section section, StatementDiff diff)
+	{
+		if(section == null || section.getNullFlavor() != null)
+			return;
+		for(Entry ent : section.getEntry())
+			if(ent != null && ent.getNullFlavor() == null &&
+					ent.getClinicalStatement() != null && ent.getClinicalStatement().getNullFlavor() == null)
+				diff.m_fingerprints.put(ent.getClinicalStatement(), this.fingerprint(ent.getClinicalStatement()));
+		for(Component5 comp : section.getComponent())
+			if(comp != null && comp.getNullFlavor() == null)
+				this.fingerprintSection(comp.getSection(), diff);
+	}
+
+	/**
+	 * Get the accession number (the formatted first id) of a statement, or null if it has no id
+	 */
+	public String getAccessionNumber(ClinicalStatement statement)
+	{
+		try
+		{
+			Object ids = statement.getClass().getMethod("getId").invoke(statement);
+			if(ids instanceof SET && !((SET<?>)ids).isNull() && ((SET<?>)ids).size() > 0)
+				return this.m_datatypeUtil.formatIdentifier((II)((SET<?>)ids).get(0));
+			else if(ids instanceof II && !((II)ids).isNull())
+				return this.m_datatypeUtil.formatIdentifier((II)ids);
+		}
+		catch(Exception e) {
+			log.debug(String.format("Could not read the id of %s", statement.getClass().getSimpleName()), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Collect the accession numbers of a statement and the statements within it
+	 */
+	private void collectStatementAccessionNumbers(Object value, Set<String> accessionNumbers, Map<Object, Object> visited)
+	{
+		if(value == null || visited.put(value, value) != null)
+			return;
+
+		if(value instanceof ClinicalStatement)
+		{
+			String accessionNumber = this.getAccessionNumber((ClinicalStatement)value);
+			if(accessionNumber != null)
+				accessionNumbers.add(accessionNumber);
+		}
+
+		if(value instanceof Iterable)
+		{
+			for(Object item : (Iterable<?>)value)
+				this.collectStatementAccessionNumbers(item, accessionNumbers, visited);
+		}
+		else if(value.getClass().getName().startsWith("org.marc.everest.rmim."))
+		{
+			for(Method getter : RmimReflectionUtil.getGraphGetters(value.getClass()))
+				try {
+					this.collectStatementAccessionNumbers(getter.invoke(value), accessionNumbers, visited);
+				}
+				catch(Exception e) {
+					log.debug(String.format("Could not read %s.%s", value.getClass().getSimpleName(), getter.getName()), e);
+				}
+		}
+	}
+
+	/**
+	 * Get the fingerprint (a SHA-1 hash of the canonical form of the content) of a statement
+	 */
+	public String fingerprint(ClinicalStatement statement)
+	{
+		StringBuilder canonical = new StringBuilder();
+		this.appendValue(canonical, statement, new IdentityHashMap<Object, Object>());
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(canonical.toString().getBytes("UTF-8"));
+			StringBuilder retVal = new StringBuilder();
+			for(byte b : hash)
+				retVal.append(String.format("%02x", b));
+			return retVal.toString();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch(java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Append the canonical form of a value
+	 */
+	private void appendValue(StringBuilder canonical, Object value, Map<Object, Object> visited)
+	{
+		if(value == null)
+			canonical.append('~');
+		else if(value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum)
+		{
+			String string = value.toString();
+			canonical.append(string.length()).append(':').append(string);
+		}
+		else if(value instanceof IEnumeratedVocabulary)
+			this.appendValue(canonical, ((IEnumeratedVocabulary)value).getCode(), visited);
+		else if(value instanceof Calendar)
+			canonical.append(((Calendar)value).getTimeInMillis()).append('@').append(((Calendar)value).get(Calendar.ZONE_OFFSET));
+		else if(value instanceof Date)
+			canonical.append(((Date)value).getTime());
+		else if(value instanceof byte[])
+			canonical.append(Arrays.toString((byte[])value));
+		else if(value instanceof Class)
+			canonical.append('#');
+		else if(visited.put(value, value) != null)
+			canonical.append('^');
+		else if(value instanceof Iterable)
+		{
+			canonical.append('[');
+			for(Object item : (Iterable<?>)value)
+			{
+				this.appendValue(canonical, item, visited);
+				canonical.append(',');
+			}
+			canonical.append(']');
+		}
+		else if(value.getClass().getName().startsWith("org.marc.everest."))
+		{
+			canonical.append(value.getClass().getSimpleName()).append('{');
+			for(Method getter : this.getFingerprintGetters(value.getClass()))
+			{
+				canonical.append(getter.getName()).append('=');
+				try {
+					this.appendValue(canonical, getter.invoke(value), visited);
+				}
+				catch(Exception e) {
+					canonical.append('!');
+				}
+				canonical.append(';');
+			}
+			canonical.append('}');
+		}
+		else
+			this.appendValue(canonical, value.toString(), visited);
+	}
+
+	/**
+	 * Get the getters of a class which form part of the fingerprint, sorted by name so the
+	 * fingerprint doesn't depend on the order the JVM lists them in
+	 */
+	private List<Method> getFingerprintGetters(Class<?> clazz)
+	{
+		List<Method> retVal = s_getters.get(clazz);
+		if(retVal == null)
+		{
+			retVal = new ArrayList<Method>();
+			if(clazz.getName().startsWith("org.marc.everest.rmim."))
+			{
+				for(Method method : RmimReflectionUtil.getGraphGetters(clazz))
+					if(!s_ignoredProperties.contains(method.getName()))
+						retVal.add(method);
+			}
+			else
+			{
+				for(Method method : clazz.getMethods())
+					if(method.getName().startsWith("get") && method.getParameterTypes().length == 0 &&
+							!Modifier.isStatic(method.getModifiers()) && !method.getName().equals("getClass"))
+						retVal.add(method);
+			}
+			Collections.sort(retVal, new Comparator<Method>() {
+				@Override
+				public int compare(Method o1, Method o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			s_getters.put(clazz, retVal);
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,222 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by hashing a key, so that work on different
+ * keys (codes, names, etc.) can usually proceed in parallel while work on the same
+ * key is serialized. Use as:
+ *
+ * Hold hold = locks.lock(key);
+ * try { find or create ... and commit; } finally { hold.release(); }
+ *
+ * A row created under the lock isn't visible to other imports until it is committed, so
+ * whatever is created must be committed (in a transaction of its own) before the lock is
+ * released, otherwise the next import would find nothing and create a duplicate. A lock
+ * is never held for longer than that, so one which isn't acquired within
+ * {@link #LOCK_TIMEOUT_SECONDS} fails the import rather than waiting forever.
+ *
+ * When statistics are enabled (see {@link #setStatisticsEnabled(boolean)}) the time taken
+ * to acquire each lock is recorded, so the wait on each striped lock of the module can be
+ * seen under concurrent imports. A wait longer than {@link #CONTENDED_NANOS} counts as
+ * contended. They are off by default, so acquiring an uncontended lock isn't timed.
+ * @author Justin Fyfe
+ *
+ */
+public final class StripedLock {
+
+	/**
+	 * The wait (in nanoseconds) above which an acquisition counts as contended
+	 */
+	public static final long CONTENDED_NANOS = 10000;
+
+	/**
+	 * The longest time (in seconds) to wait for a lock
+	 */
+	public static final long LOCK_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * A lock acquired by {@link StripedLock#lock(Object)}
+	 */
+	public static final class Hold {
+
+		// The stripe acquired
+		private final ReentrantLock m_stripe;
+		// True once released
+		private boolean m_released = false;
+
+		private Hold(ReentrantLock stripe) {
+			this.m_stripe = stripe;
+		}
+
+		/**
+		 * Release the lock
+		 */
+		public void release() {
+			if(this.m_released)
+				return;
+			this.m_released = true;
+			this.m_stripe.unlock();
+		}
+	}
+
+	// The striped locks created, which are forgotten once no longer used
+	private static final List<WeakReference<StripedLock>> s_locks = new CopyOnWriteArrayList<WeakReference<StripedLock>>();
+	// True if the acquisitions are recorded
+	private static volatile boolean s_statisticsEnabled = false;
+
+	// The name of the lock
+	private final String m_name;
+	// The locks
+	private final ReentrantLock[] m_stripes;
+
+	// Statistics
+	private final AtomicLong m_acquisitions = new AtomicLong();
+	private final AtomicLong m_contended = new AtomicLong();
+	private final AtomicLong m_waitNanos = new AtomicLong();
+	private final AtomicLong m_maxWaitNanos = new AtomicLong();
+
+	/**
+	 * Create a striped lock with the specified name and number of stripes
+	 */
+	public StripedLock(String name, int stripes)
+	{
+		this.m_name = name;
+		this.m_stripes = new ReentrantLock[Math.max(1, stripes)];
+		for(int i = 0; i < this.m_stripes.length; i++)
+			this.m_stripes[i] = new ReentrantLock();
+		s_locks.add(new WeakReference<StripedLock>(this));
+	}
+
+	/**
+	 * Get the striped locks created which are still in use
+	 */
+	public static List<StripedLock> getLocks()
+	{
+		List<StripedLock> retVal = new ArrayList<StripedLock>();
+		for(WeakReference<StripedLock> reference : s_locks)
+		{
+			StripedLock lock = reference.get();
+			if(lock == null)
+				s_locks.remove(reference);
+			else
+				retVal.add(lock);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Record the acquisitions of all striped locks from now on, or stop recording them
+	 */
+	public static void setStatisticsEnabled(boolean enabled)
+	{
+		s_statisticsEnabled = enabled;
+	}
+
+	/**
+	 * True if the acquisitions of the striped locks are recorded
+	 */
+	public static boolean isStatisticsEnabled()
+	{
+		return s_statisticsEnabled;
+	}
+
+	/**
+	 * Get the stripe of the specified key
+	 */
+	private ReentrantLock getStripe(Object key)
+	{
+		int hash = key == null ? 0 : key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.m_stripes[(hash & 0x7fffffff) % this.m_stripes.length];
+	}
+
+	/**
+	 * Acquire the lock of the specified key. A thread may acquire a lock it already holds
+	 * @throws IllegalStateException If the lock isn't acquired within {@link #LOCK_TIMEOUT_SECONDS}
+	 */
+	public Hold lock(Object key)
+	{
+		ReentrantLock stripe = this.getStripe(key);
+		boolean recordWait = s_statisticsEnabled;
+		long start = recordWait ? System.nanoTime() : 0;
+		try {
+			if(!stripe.tryLock() && !stripe.tryLock(LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				throw new IllegalStateException(String.format("Timed out after %ss waiting for the %s lock of %s", LOCK_TIMEOUT_SECONDS, this.m_name, key));
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(String.format("Interrupted while waiting for the %s lock of %s", this.m_name, key), e);
+		}
+		if(recordWait)
+			this.recordWait(System.nanoTime() - start);
+		return new Hold(stripe);
+	}
+
+	/**
+	 * Record the time taken to acquire the lock
+	 */
+	private void recordWait(long wait)
+	{
+		this.m_acquisitions.incrementAndGet();
+		this.m_waitNanos.addAndGet(wait);
+		if(wait > CONTENDED_NANOS)
+			this.m_contended.incrementAndGet();
+		long max;
+		do {
+			max = this.m_maxWaitNanos.get();
+		} while(wait > max && !this.m_maxWaitNanos.compareAndSet(max, wait));
+	}
+
+	/**
+	 * Get the name of the lock
+	 */
+	public String getName() {
+		return this.m_name;
+	}
+
+	/**
+	 * Get the number of times the lock was acquired while statistics were enabled
+	 */
+	public long getAcquisitions() {
+		return this.m_acquisitions.get();
+	}
+
+	/**
+	 * Get the number of acquisitions which waited longer than {@link #CONTENDED_NANOS}
+	 */
+	public long getContended() {
+		return this.m_contended.get();
+	}
+
+	/**
+	 * Get the total time spent waiting to acquire the lock, in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return this.m_waitNanos.get();
+	}
+
+	/**
+	 * Get the longest wait to acquire the lock, in nanoseconds
+	 */
+	public long getMaxWaitNanos() {
+		return this.m_maxWaitNanos.get();
+	}
+
+	/**
+	 * Reset the statistics
+	 */
+	public void resetStatistics() {
+		this.m_acquisitions.set(0);
+		this.m_contended.set(0);
+		this.m_waitNanos.set(0);
+		this.m_maxWaitNanos.set(0);
+	}
+
+}
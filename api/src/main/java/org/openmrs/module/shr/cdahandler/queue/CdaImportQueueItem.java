@@ -0,0 +1,207 @@
+package org.openmrs.module.shr.cdahandler.queue;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * Represents a CDA document which has been received but not yet imported
+ * (similar to the HL7 in queue). The UUID of the item is the ticket handed
+ * back to the submitter.
+ */
+public class CdaImportQueueItem extends BaseOpenmrsObject {
+
+	/**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+	// Item is waiting to be picked up by a worker
+	public static final int STATE_PENDING = 0;
+	// Item has been claimed by a worker
+	public static final int STATE_PROCESSING = 1;
+	// Item was imported successfully
+	public static final int STATE_COMPLETE = 2;
+	// Item failed to import
+	public static final int STATE_ERROR = 3;
+
+	// Identifier of the queue item
+	private Integer cdaImportQueueItemId;
+	// The raw document content
+	private String documentContent;
+	// The state of the item
+	private Integer state = STATE_PENDING;
+	// The number of attempts made at importing the item
+	private Integer attempts = 0;
+	// The date the item was queued
+	private Date dateCreated;
+	// The date the item was last processed
+	private Date dateProcessed;
+	// The error generated on the last attempt
+	private String errorMessage;
+	// The UUID of the visit which was created
+	private String visitUuid;
+	// The node which claimed the item
+	private String claimedBy;
+	// The date the item was last claimed
+	private Date dateClaimed;
+
+	/**
+	 * Get the id of the item
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return this.cdaImportQueueItemId;
+	}
+
+	/**
+	 * Set the id of the item
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.cdaImportQueueItemId = id;
+	}
+
+    /**
+     * @return the cdaImportQueueItemId
+     */
+    public Integer getCdaImportQueueItemId() {
+    	return cdaImportQueueItemId;
+    }
+
+    /**
+     * @param cdaImportQueueItemId the cdaImportQueueItemId to set
+     */
+    public void setCdaImportQueueItemId(Integer cdaImportQueueItemId) {
+    	this.cdaImportQueueItemId = cdaImportQueueItemId;
+    }
+
+    /**
+     * @return the documentContent
+     */
+    public String getDocumentContent() {
+    	return documentContent;
+    }
+
+    /**
+     * @param documentContent the documentContent to set
+     */
+    public void setDocumentContent(String documentContent) {
+    	this.documentContent = documentContent;
+    }
+
+    /**
+     * @return the state
+     */
+    public Integer getState() {
+    	return state;
+    }
+
+    /**
+     * @param state the state to set
+     */
+    public void setState(Integer state) {
+    	this.state = state;
+    }
+
+    /**
+     * @return the attempts
+     */
+    public Integer getAttempts() {
+    	return attempts;
+    }
+
+    /**
+     * @param attempts the attempts to set
+     */
+    public void setAttempts(Integer attempts) {
+    	this.attempts = attempts;
+    }
+
+    /**
+     * @return the dateCreated
+     */
+    public Date getDateCreated() {
+    	return dateCreated;
+    }
+
+    /**
+     * @param dateCreated the dateCreated to set
+     */
+    public void setDateCreated(Date dateCreated) {
+    	this.dateCreated = dateCreated;
+    }
+
+    /**
+     * @return the dateProcessed
+     */
+    public Date getDateProcessed() {
+    	return dateProcessed;
+    }
+
+    /**
+     * @param dateProcessed the dateProcessed to set
+     */
+    public void setDateProcessed(Date dateProcessed) {
+    	this.dateProcessed = dateProcessed;
+    }
+
+    /**
+     * @return the errorMessage
+     */
+    public String getErrorMessage() {
+    	return errorMessage;
+    }
+
+    /**
+     * @param errorMessage the errorMessage to set
+     */
+    public void setErrorMessage(String errorMessage) {
+    	this.errorMessage = errorMessage;
+    }
+
+    /**
+     * @return the visitUuid
+     */
+    public String getVisitUuid() {
+    	return visitUuid;
+    }
+
+    /**
+     * @param visitUuid the visitUuid to set
+     */
+    public void setVisitUuid(String visitUuid) {
+    	this.visitUuid = visitUuid;
+    }
+
+    /**
+     * @return the claimedBy
+     */
+    public String getClaimedBy() {
+    	return claimedBy;
+    }
+
+    /**
+     * @param claimedBy the claimedBy to set
+     */
+    public void setClaimedBy(String claimedBy) {
+    	this.claimedBy = claimedBy;
+    }
+
+    /**
+     * @return the dateClaimed
+     */
+    public Date getDateClaimed() {
+    	return dateClaimed;
+    }
+
+    /**
+     * @param dateClaimed the dateClaimed to set
+     */
+    public void setDateClaimed(Date dateClaimed) {
+    	this.dateClaimed = dateClaimed;
+    }
+
+}
@@ -0,0 +1,315 @@
+package org.openmrs.module.shr.cdahandler.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
+
+/**
+ * Drains the CDA import queue using a fixed number of workers.
+ *
+ * A single dispatcher polls the queue (or is woken when a document is queued) and
+ * claims only as many pending items as there are idle workers. Claims are conditional
+ * updates recorded against this node, so an item is never claimed by more than one worker
+ * even when several nodes share the database. The dispatcher and the workers are each
+ * started once as long-lived daemon threads.
+ */
+public final class CdaImportQueueProcessor {
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Singleton instance
+	private static CdaImportQueueProcessor s_instance = null;
+	private static Object s_lockObject = new Object();
+
+	// Time allowed for the workers to finish their current documents when stopping
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	// Configuration
+	private final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
+
+	// Token used to run the threads as the daemon user
+	private DaemonToken m_daemonToken;
+	// True while the dispatcher and workers should run
+	private volatile boolean m_running = false;
+	// Dispatcher which claims items from the queue
+	private Thread m_dispatcher;
+	// Workers which import claimed items
+	private final List<Thread> m_workers = new ArrayList<Thread>();
+	// Tickets claimed and waiting for a worker
+	private final BlockingQueue<String> m_tickets = new LinkedBlockingQueue<String>();
+	// Idle workers
+	private Semaphore m_idleWorkers;
+	// Wakes the dispatcher before the poll interval is up
+	private final Object m_wakeLock = new Object();
+	private boolean m_wakeRequested = false;
+
+	/**
+	 * Private ctor
+	 */
+	private CdaImportQueueProcessor()
+	{
+
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static CdaImportQueueProcessor getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new CdaImportQueueProcessor();
+            }
+		return s_instance;
+	}
+
+    /**
+     * @param daemonToken the daemon token used to run the workers
+     */
+    public void setDaemonToken(DaemonToken daemonToken) {
+    	this.m_daemonToken = daemonToken;
+    }
+
+	/**
+	 * Returns true if the queue workers are running
+	 */
+	public boolean isRunning() {
+		return this.m_running;
+	}
+
+	/**
+	 * Start the dispatcher and workers
+	 */
+	public void start()
+	{
+		synchronized (s_lockObject) {
+			if(this.isRunning())
+				return;
+
+			if(this.m_daemonToken == null)
+			{
+				log.warn("No daemon token has been provided, the CDA import queue will not be processed");
+				return;
+			}
+
+			int workers = Math.max(1, this.m_configuration.getQueueWorkers());
+			final long pollInterval = Math.max(100, this.m_configuration.getQueuePollInterval());
+
+			log.info(String.format("Starting CDA import queue with %s workers", workers));
+			this.m_running = true;
+			this.m_tickets.clear();
+			this.m_idleWorkers = new Semaphore(workers);
+			for(int i = 0; i < workers; i++)
+				this.m_workers.add(Daemon.runInDaemonThread(new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				}, this.m_daemonToken));
+			this.m_dispatcher = Daemon.runInDaemonThread(new Runnable() {
+				@Override
+				public void run() {
+					dispatchUntilStopped(pollInterval);
+				}
+			}, this.m_daemonToken);
+		}
+	}
+
+	/**
+	 * Stop the dispatcher and workers, letting the workers finish the documents they are
+	 * importing. Items which this node claimed but didn't import are returned to the queue
+	 * on the next start
+	 */
+	public void stop()
+	{
+		synchronized (s_lockObject) {
+			if(!this.isRunning())
+				return;
+
+			log.info("Stopping CDA import queue");
+			this.m_running = false;
+			this.m_dispatcher.interrupt();
+			long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+			try {
+				this.m_dispatcher.join(STOP_TIMEOUT_MILLIS);
+				for(Thread worker : this.m_workers)
+					worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(Thread worker : this.m_workers)
+				if(worker.isAlive())
+					log.warn(String.format("CDA import queue worker %s did not finish its document before the module stopped", worker.getName()));
+			this.m_workers.clear();
+			this.m_tickets.clear();
+			this.m_dispatcher = null;
+		}
+	}
+
+	/**
+	 * Wake the dispatcher so that newly queued items are picked up without waiting for the poll interval
+	 */
+	public void wakeUp()
+	{
+		synchronized (this.m_wakeLock) {
+			this.m_wakeRequested = true;
+			this.m_wakeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Dispatch claimed items to the workers until stopped, waiting for the poll interval or
+	 * a wake up between dispatches
+	 */
+	private void dispatchUntilStopped(long pollInterval)
+	{
+		try
+		{
+			// Items this node was processing when it last stopped (or crashed) go back to the queue
+			int requeued = Context.getService(CdaImportService.class).requeueInterruptedItems();
+			if(requeued > 0)
+				log.info(String.format("Returned %s interrupted documents to the CDA import queue", requeued));
+
+			while(this.m_running)
+			{
+				try
+				{
+					this.dispatch();
+				}
+				catch(Exception e)
+				{
+					log.error("Error claiming documents from the CDA import queue", e);
+				}
+				finally
+				{
+					Context.clearSession();
+				}
+
+				synchronized (this.m_wakeLock) {
+					if(!this.m_wakeRequested && this.m_running)
+						this.m_wakeLock.wait(pollInterval);
+					this.m_wakeRequested = false;
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Stopped
+		}
+	}
+
+	/**
+	 * Claim as many pending items as there are idle workers and hand them off
+	 */
+	private void dispatch()
+	{
+		int idle = this.m_idleWorkers.availablePermits();
+		if(idle == 0)
+			return;
+
+		for(CdaImportQueueItem item : Context.getService(CdaImportService.class).claimQueueItems(idle))
+		{
+			// Only the dispatcher takes permits, so there is one for each item claimed
+			this.m_idleWorkers.acquireUninterruptibly();
+			this.m_tickets.add(item.getUuid());
+		}
+	}
+
+	/**
+	 * Import the claimed items handed to this worker until stopped
+	 */
+	private void work()
+	{
+		while(this.m_running)
+		{
+			String ticket;
+			try
+			{
+				ticket = this.m_tickets.poll(1, TimeUnit.SECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			if(ticket == null)
+				continue;
+
+			try
+			{
+				this.importItem(ticket);
+			}
+			catch(Exception e)
+			{
+				log.error(String.format("Error recording the outcome of queued document %s", ticket), e);
+			}
+			finally
+			{
+				Context.clearSession();
+				this.m_idleWorkers.release();
+				this.wakeUp();
+			}
+		}
+	}
+
+	/**
+	 * Import a single claimed item, recording the outcome on the item. Documents which fail
+	 * validation aren't retried, other failures are retried up to the configured number of attempts
+	 */
+	private void importItem(String ticket)
+	{
+		CdaImportService service = Context.getService(CdaImportService.class);
+		CdaImportQueueItem item = service.getQueueItem(ticket);
+		if(item == null)
+			return;
+
+		Visit visit = null;
+		String error = null;
+		boolean retry = true;
+		try
+		{
+			log.debug(String.format("Importing queued document %s", ticket));
+			visit = service.importDocument(new ByteArrayInputStream(item.getDocumentContent().getBytes("UTF-8")));
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			error = e.getMessage();
+			retry = false;
+		}
+		catch(DocumentValidationException e)
+		{
+			log.warn(String.format("Queued document %s is not valid", ticket), e);
+			error = String.format("%s: %s", e.getClass().getSimpleName(), e.getMessage());
+			retry = false;
+		}
+		catch(Exception e)
+		{
+			log.error(String.format("Error importing queued document %s", ticket), e);
+			error = String.format("%s: %s", e.getClass().getSimpleName(), e.getMessage());
+		}
+
+		// The import may have rolled back, so record the outcome in a clean session
+		Context.clearSession();
+		if(error == null)
+			service.completeQueueItem(ticket, visit);
+		else
+			service.failQueueItem(ticket, error, retry);
+	}
+}
@@ -0,0 +1,90 @@
+package org.openmrs.module.shr.cdahandler.api.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.module.shr.cdahandler.cache.AccessionNumberFilter;
+import org.openmrs.module.shr.cdahandler.cache.AccessionNumberFilterInterceptor;
+
+/**
+ * Tests for the accession number filter
+ */
+public class AccessionNumberFilterTest {
+
+	private AccessionNumberFilter m_filter = AccessionNumberFilter.getInstance();
+
+	@Before
+	@After
+	public void clearFilter() {
+		this.m_filter.clear();
+	}
+
+	/**
+	 * Create an obs with the accession number
+	 */
+	private Obs createObs(String accessionNumber) {
+		Obs retVal = new Obs();
+		retVal.setAccessionNumber(accessionNumber);
+		return retVal;
+	}
+
+	@Test
+	public void shouldMightContainEverythingUntilLoaded() {
+		assertTrue(this.m_filter.mightContain("NEVER-ADDED"));
+		this.m_filter.beginLoad(0);
+		assertTrue(this.m_filter.mightContain("NEVER-ADDED"));
+		this.m_filter.endLoad();
+		assertFalse(this.m_filter.mightContain("NEVER-ADDED"));
+	}
+
+	@Test
+	public void shouldGrowWithoutLosingNumbers() {
+		this.m_filter.beginLoad(0);
+		this.m_filter.endLoad();
+		long capacity = this.m_filter.getCapacity();
+		assertEquals(1, this.m_filter.getLayers());
+
+		int added = (int)(capacity * 5 / 2);
+		for(int i = 0; i < added; i++)
+			this.m_filter.add("ADDED-" + i);
+		assertTrue(this.m_filter.getLayers() > 1);
+		assertTrue(this.m_filter.getCapacity() >= added);
+
+		// No false negatives
+		for(int i = 0; i < added; i++)
+			assertTrue(this.m_filter.mightContain("ADDED-" + i));
+
+		// The false positive rate stays within twice the target
+		int falsePositives = 0, tries = 20000;
+		for(int i = 0; i < tries; i++)
+			if(this.m_filter.mightContain("UNKNOWN-" + i))
+				falsePositives++;
+		assertTrue(String.format("%s false positives", falsePositives), falsePositives < tries * 0.02);
+	}
+
+	@Test
+	public void shouldAddSavedNumbersToFilterLoadedDuringTransaction() {
+		AccessionNumberFilterInterceptor interceptor = new AccessionNumberFilterInterceptor();
+		this.m_filter.beginLoad(0);
+		this.m_filter.endLoad();
+
+		// Saved before the reload read the database, committed after
+		interceptor.onSave(this.createObs("SAVED"), 1, null, null, null);
+		assertTrue(this.m_filter.mightContain("SAVED"));
+		this.m_filter.beginLoad(0);
+		interceptor.afterTransactionCompletion(null);
+		this.m_filter.endLoad();
+		assertTrue(this.m_filter.mightContain("SAVED"));
+
+		// Only the transaction's numbers are added again
+		this.m_filter.beginLoad(0);
+		interceptor.afterTransactionCompletion(null);
+		this.m_filter.endLoad();
+		assertFalse(this.m_filter.mightContain("SAVED"));
+	}
+}
@@ -0,0 +1,141 @@
+package org.openmrs.module.shr.cdahandler.api.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptMapType;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.ConceptSource;
+import org.openmrs.module.shr.cdahandler.cache.ConceptMappingCache;
+
+/**
+ * Tests for the mapped concept cache
+ */
+public class ConceptMappingCacheTest {
+
+	private ConceptMappingCache m_cache = ConceptMappingCache.getInstance();
+	private ConceptSource m_source;
+	private ConceptMapType m_sameAs;
+	private ConceptMapType m_narrowerThan;
+	private int m_originalMaxSize;
+
+	@Before
+	public void setupCache() {
+		this.m_originalMaxSize = this.m_cache.getMaxSize();
+		this.m_cache.clear();
+		this.m_source = new ConceptSource();
+		this.m_source.setName("TEST");
+		this.m_sameAs = new ConceptMapType();
+		this.m_sameAs.setName("SAME-AS");
+		this.m_narrowerThan = new ConceptMapType();
+		this.m_narrowerThan.setName("NARROWER-THAN");
+	}
+
+	@After
+	public void restoreCache() {
+		this.m_cache.setMaxSize(this.m_originalMaxSize);
+		this.m_cache.clear();
+	}
+
+	/**
+	 * Create a reference term in the test source
+	 */
+	private ConceptReferenceTerm createTerm(int id) {
+		ConceptReferenceTerm retVal = new ConceptReferenceTerm();
+		retVal.setId(id);
+		retVal.setCode(String.format("T%s", id));
+		retVal.setConceptSource(this.m_source);
+		return retVal;
+	}
+
+	/**
+	 * Create a concept mapped to a term
+	 */
+	private Concept createConcept(int id, ConceptReferenceTerm term, ConceptMapType mapType) {
+		Concept retVal = new Concept(id);
+		retVal.addConceptMapping(new ConceptMap(term, mapType));
+		return retVal;
+	}
+
+	@Test
+	public void shouldReturnLoadedConceptsFromPut() {
+		ConceptReferenceTerm term = this.createTerm(1);
+		List<Concept> concepts = Arrays.asList(this.createConcept(10, term, this.m_sameAs), this.createConcept(11, term, this.m_narrowerThan));
+
+		long hits = this.m_cache.getHits(), misses = this.m_cache.getMisses();
+		assertNull(this.m_cache.get(term, "SAME-AS"));
+		assertEquals(Arrays.asList(10), this.m_cache.put(term, concepts, this.m_cache.getGeneration(), "SAME-AS"));
+		// Populating the cache isn't a read
+		assertEquals(hits, this.m_cache.getHits());
+		assertEquals(misses + 1, this.m_cache.getMisses());
+
+		assertEquals(Arrays.asList(11), this.m_cache.get(term, "narrower-than"));
+		assertEquals(Collections.emptyList(), this.m_cache.get(term, "BROADER-THAN"));
+		assertEquals(hits + 2, this.m_cache.getHits());
+	}
+
+	@Test
+	public void shouldNotCachePopulationStartedBeforeInvalidation() {
+		ConceptReferenceTerm term = this.createTerm(1);
+		Concept concept = this.createConcept(10, term, this.m_sameAs);
+
+		long generation = this.m_cache.getGeneration();
+		this.m_cache.invalidate(term);
+		// The caller still gets what it loaded
+		assertEquals(Arrays.asList(10), this.m_cache.put(term, Arrays.asList(concept), generation, "SAME-AS"));
+		assertEquals(0, this.m_cache.size());
+		assertNull(this.m_cache.get(term, "SAME-AS"));
+	}
+
+	@Test
+	public void shouldInvalidateTermsOfConcept() {
+		ConceptReferenceTerm term = this.createTerm(1), other = this.createTerm(2);
+		Concept concept = this.createConcept(10, term, this.m_sameAs);
+		this.m_cache.put(term, Arrays.asList(concept), this.m_cache.getGeneration(), "SAME-AS");
+		this.m_cache.put(other, Collections.<Concept>emptyList(), this.m_cache.getGeneration(), "SAME-AS");
+		assertEquals(2, this.m_cache.size());
+
+		// The concept is no longer mapped to the term, the cache must still drop it
+		concept.getConceptMappings().clear();
+		this.m_cache.invalidate(concept);
+		assertNull(this.m_cache.get(term, "SAME-AS"));
+		assertNotNull(this.m_cache.get(other, "SAME-AS"));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyReadTerms() {
+		this.m_cache.setMaxSize(10);
+		List<ConceptReferenceTerm> terms = new ArrayList<ConceptReferenceTerm>();
+		for(int i = 0; i < 10; i++)
+		{
+			ConceptReferenceTerm term = this.createTerm(i);
+			terms.add(term);
+			this.m_cache.put(term, Arrays.asList(this.createConcept(100 + i, term, this.m_sameAs)), this.m_cache.getGeneration(), "SAME-AS");
+		}
+		// Read all but the first term
+		for(int i = 1; i < 10; i++)
+			assertNotNull(this.m_cache.get(terms.get(i), "SAME-AS"));
+
+		long evictions = this.m_cache.getEvictions();
+		ConceptReferenceTerm term = this.createTerm(10);
+		this.m_cache.put(term, Arrays.asList(this.createConcept(110, term, this.m_sameAs)), this.m_cache.getGeneration(), "SAME-AS");
+
+		assertEquals(evictions + 1, this.m_cache.getEvictions());
+		assertTrue(this.m_cache.size() <= 10);
+		assertNull(this.m_cache.get(terms.get(0), "SAME-AS"));
+		assertNotNull(this.m_cache.get(terms.get(9), "SAME-AS"));
+		assertNotNull(this.m_cache.get(term, "SAME-AS"));
+	}
+}
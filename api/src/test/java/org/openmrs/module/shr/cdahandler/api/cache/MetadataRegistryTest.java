@@ -0,0 +1,107 @@
+package org.openmrs.module.shr.cdahandler.api.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.VisitType;
+import org.openmrs.module.shr.cdahandler.cache.MetadataRegistry;
+
+/**
+ * Tests for the metadata registry
+ */
+public class MetadataRegistryTest {
+
+	private MetadataRegistry m_registry = MetadataRegistry.getInstance();
+
+	@Before
+	@After
+	public void clearRegistry() {
+		this.m_registry.clear();
+	}
+
+	/**
+	 * Create an encounter type with the code key as its description
+	 */
+	private EncounterType createEncounterType(int id, String codeKey) {
+		EncounterType retVal = new EncounterType(id);
+		retVal.setName(codeKey);
+		retVal.setDescription(codeKey);
+		return retVal;
+	}
+
+	/**
+	 * Index the encounter types
+	 */
+	private void indexEncounterTypes(EncounterType... types) {
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		for(EncounterType type : types)
+			index.put(type.getDescription(), type.getId());
+		this.m_registry.setIndex(EncounterType.class, index, this.m_registry.getGeneration(EncounterType.class));
+	}
+
+	@Test
+	public void shouldUpdateIndexIncrementally() {
+		EncounterType first = this.createEncounterType(1, "A"), second = this.createEncounterType(2, "B");
+		this.indexEncounterTypes(first);
+
+		// Created
+		this.m_registry.update(second, false);
+		assertEquals(Integer.valueOf(1), this.m_registry.getIndex(EncounterType.class).get("A"));
+		assertEquals(Integer.valueOf(2), this.m_registry.getIndex(EncounterType.class).get("B"));
+
+		// Key changed
+		first.setDescription("C");
+		this.m_registry.update(first, false);
+		assertFalse(this.m_registry.getIndex(EncounterType.class).containsKey("A"));
+		assertEquals(Integer.valueOf(1), this.m_registry.getIndex(EncounterType.class).get("C"));
+	}
+
+	@Test
+	public void shouldRemoveRetiredAndPurgedMetadata() {
+		EncounterType first = this.createEncounterType(1, "A"), second = this.createEncounterType(2, "B");
+		this.indexEncounterTypes(first, second);
+
+		first.setRetired(true);
+		this.m_registry.update(first, false);
+		this.m_registry.update(second, true);
+		assertEquals(0, this.m_registry.getIndex(EncounterType.class).size());
+
+		// Un-retired
+		first.setRetired(false);
+		this.m_registry.update(first, false);
+		assertEquals(Integer.valueOf(1), this.m_registry.getIndex(EncounterType.class).get("A"));
+	}
+
+	@Test
+	public void shouldOnlyChangeGenerationOfUpdatedType() {
+		long encounterTypes = this.m_registry.getGeneration(EncounterType.class),
+				visitTypes = this.m_registry.getGeneration(VisitType.class);
+		Map<String, Integer> visitTypeIndex = new HashMap<String, Integer>();
+		this.m_registry.setIndex(VisitType.class, visitTypeIndex, visitTypes);
+
+		// Metadata which isn't indexed changes nothing
+		this.m_registry.update(new PersonAttributeType(1), false);
+		this.m_registry.invalidate(new Encounter(1));
+		assertEquals(encounterTypes, this.m_registry.getGeneration(EncounterType.class));
+		assertEquals(visitTypes, this.m_registry.getGeneration(VisitType.class));
+
+		this.m_registry.update(this.createEncounterType(1, "A"), false);
+		assertEquals(visitTypes, this.m_registry.getGeneration(VisitType.class));
+		assertNotNull(this.m_registry.getIndex(VisitType.class));
+
+		// An encounter type index loaded before the change is stale
+		this.m_registry.setIndex(EncounterType.class, new HashMap<String, Integer>(), encounterTypes);
+		assertNull(this.m_registry.getIndex(EncounterType.class));
+	}
+}
@@ -1,23 +1,46 @@
 package org.openmrs.module.shr.cdahandler.api.impl.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.math.BigDecimal;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.EntityKey;
 import org.junit.Before;
 import org.junit.Test;
+import org.marc.everest.datatypes.BL;
 import org.marc.everest.datatypes.PQ;
+import org.marc.everest.datatypes.generic.CE;
 import org.marc.everest.datatypes.generic.CV;
+import org.marc.everest.datatypes.generic.SET;
 import org.marc.everest.formatters.FormatterUtil;
 import org.marc.everest.interfaces.IResultDetail;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
 import org.marc.everest.rmim.uv.cdar2.rim.InfrastructureRoot;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.ActRelationshipHasComponent;
+import org.openmrs.Encounter;
 import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
@@ -26,14 +49,24 @@ import org.openmrs.activelist.Problem;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.EntityCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.ObservationCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.SectionCreatorUtil;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.document.CdaDocumentVisit;
+import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.AntepartumHistoryAndPhysicalDocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.ImmunizationContentDocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalDocumentsDocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalSummaryDocumentProcessor;
+import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.StatementFingerprintUtil;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.util.OpenmrsConstants;
 
@@ -216,5 +249,336 @@ public class CdaImportServiceImplTest extends BaseModuleContextSensitiveTest  {
 		assertEquals(new AntepartumHistoryAndPhysicalDocumentProcessor().getTemplateName(), Context.getVisitService().getVisitByUuid(id).getVisitType().getName());
 	}
 
+	@Test
+	public void shouldQueueDocumentAndReturnTicket() throws Exception {
+		FileInputStream fs = new FileInputStream(new File(this.getClass().getResource("/validCdaLevel3Sample.xml").getFile()));
+		try
+		{
+			String ticket = this.m_service.queueDocument(fs);
+			assertNotNull(ticket);
+			CdaImportQueueItem item = this.m_service.getQueueItem(ticket);
+			assertNotNull(item);
+			assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PENDING), item.getState());
+			
+			// Claiming the item should mark it as being processed
+			assertEquals(1, this.m_service.claimQueueItems(10).size());
+			assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PROCESSING), this.m_service.getQueueItem(ticket).getState());
+			assertEquals(0, this.m_service.claimQueueItems(10).size());
+		}
+		finally
+		{
+			fs.close();
+		}
+	}
+
+	/**
+	 * Queue the level 3 sample document
+	 */
+	private String doQueueCda() throws Exception {
+		FileInputStream fs = new FileInputStream(new File(this.getClass().getResource("/validCdaLevel3Sample.xml").getFile()));
+		try
+		{
+			return this.m_service.queueDocument(fs);
+		}
+		finally
+		{
+			fs.close();
+		}
+	}
+
+	@Test
+	public void shouldClaimEachQueuedItemOnce() throws Exception {
+		Set<String> tickets = new HashSet<String>();
+		for(int i = 0; i < 3; i++)
+			tickets.add(this.doQueueCda());
+		
+		Set<String> claimed = new HashSet<String>();
+		for(CdaImportQueueItem item : this.m_service.claimQueueItems(2))
+			assertTrue(claimed.add(item.getUuid()));
+		assertEquals(2, claimed.size());
+		for(CdaImportQueueItem item : this.m_service.claimQueueItems(2))
+			assertTrue(claimed.add(item.getUuid()));
+		assertEquals(tickets, claimed);
+		assertEquals(0, this.m_service.claimQueueItems(2).size());
+
+		for(String ticket : tickets)
+		{
+			CdaImportQueueItem item = this.m_service.getQueueItem(ticket);
+			assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PROCESSING), item.getState());
+			assertEquals(Integer.valueOf(1), item.getAttempts());
+			assertNotNull(item.getClaimedBy());
+			assertNotNull(item.getDateClaimed());
+		}
+	}
+
+	@Test
+	public void shouldNotClaimItemAlreadyClaimed() throws Exception {
+		String ticket = this.doQueueCda();
+		CdaImportQueueItem item = this.m_service.getQueueItem(ticket);
+		assertTrue(this.m_service.claimQueueItem(item));
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PROCESSING), item.getState());
+
+		// Another worker still holding the item as it was selected (pending) can't claim it
+		Context.evictFromSession(item);
+		item.setState(CdaImportQueueItem.STATE_PENDING);
+		assertFalse(this.m_service.claimQueueItem(item));
+		Context.clearSession();
+		assertEquals(Integer.valueOf(1), this.m_service.getQueueItem(ticket).getAttempts());
+	}
+
+	@Test
+	public void shouldRetryFailedItemUntilMaxAttempts() throws Exception {
+		String ticket = this.doQueueCda();
+		int maxAttempts = CdaHandlerConfiguration.getInstance().getQueueMaxAttempts();
+		for(int attempt = 1; attempt <= maxAttempts; attempt++)
+		{
+			assertEquals(1, this.m_service.claimQueueItems(10).size());
+			CdaImportQueueItem item = this.m_service.failQueueItem(ticket, "Temporary failure", true);
+			assertEquals(Integer.valueOf(attempt), item.getAttempts());
+			assertEquals("Temporary failure", item.getErrorMessage());
+			if(attempt < maxAttempts)
+			{
+				assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PENDING), item.getState());
+				assertNull(item.getClaimedBy());
+			}
+			else
+				assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_ERROR), item.getState());
+		}
+		assertEquals(0, this.m_service.claimQueueItems(10).size());
+	}
+
+	@Test
+	public void shouldNotRetryItemWhichCannotSucceed() throws Exception {
+		String ticket = this.doQueueCda();
+		assertEquals(1, this.m_service.claimQueueItems(10).size());
+		CdaImportQueueItem item = this.m_service.failQueueItem(ticket, "Invalid document", false);
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_ERROR), item.getState());
+		assertEquals(Integer.valueOf(1), item.getAttempts());
+		assertEquals(0, this.m_service.claimQueueItems(10).size());
+	}
+
+	@Test
+	public void shouldCompleteClaimedItem() throws Exception {
+		String ticket = this.doQueueCda();
+		assertEquals(1, this.m_service.claimQueueItems(10).size());
+		Visit visit = Context.getVisitService().getVisit(1);
+		CdaImportQueueItem item = this.m_service.completeQueueItem(ticket, visit);
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_COMPLETE), item.getState());
+		assertNotNull(item.getDateProcessed());
+		assertNull(item.getErrorMessage());
+		if(visit != null)
+			assertEquals(visit.getUuid(), item.getVisitUuid());
+	}
+
+	@Test
+	public void shouldRequeueOnlyItemsOfThisNodeOrAbandoned() throws Exception {
+		String own = this.doQueueCda(), live = this.doQueueCda(), abandoned = this.doQueueCda();
+		assertEquals(3, this.m_service.claimQueueItems(10).size());
+
+		// Another node is still processing one item, and abandoned another two hours ago
+		CdaImportQueueItem item = this.m_service.getQueueItem(live);
+		item.setClaimedBy("other-node");
+		item.setDateClaimed(new Date());
+		this.m_service.saveQueueItem(item);
+		item = this.m_service.getQueueItem(abandoned);
+		item.setClaimedBy("other-node");
+		item.setDateClaimed(new Date(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+		this.m_service.saveQueueItem(item);
+		Context.flushSession();
+
+		assertEquals(2, this.m_service.requeueInterruptedItems());
+		Context.clearSession();
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PENDING), this.m_service.getQueueItem(own).getState());
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PROCESSING), this.m_service.getQueueItem(live).getState());
+		assertEquals(Integer.valueOf(CdaImportQueueItem.STATE_PENDING), this.m_service.getQueueItem(abandoned).getState());
+	}
+
+	@Test
+	public void shouldLinkImportedDocumentToItsVisit() throws Exception {
+		String id = this.doParseCda("/validCdaLevel3Sample.xml");
+		assertNotNull(id);
+		Visit visit = Context.getVisitService().getVisitByUuid(id);
+		ClinicalDocument document = (ClinicalDocument)EverestUtil.parse(this.getClass().getResourceAsStream("/validCdaLevel3Sample.xml")).getStructure();
+		String documentId = DatatypeProcessorUtil.getInstance().formatIdentifier(document.getId());
+
+		// Found by document id
+		CdaDocumentVisit documentVisit = this.m_service.getDocumentVisit(documentId);
+		assertNotNull(documentVisit);
+		assertEquals(visit, documentVisit.getVisit());
+		assertEquals(visit, OpenmrsDataUtil.getInstance().getVisitById(document.getId(), visit.getPatient()));
+		assertNull(this.m_service.getDocumentVisit(documentId + "X"));
+
+		// Once the visit is voided the document is linked to the visit it is re-imported into
+		Context.getVisitService().voidVisit(visit, "Test");
+		assertNull(OpenmrsDataUtil.getInstance().getVisitById(document.getId(), visit.getPatient()));
+		Visit reimported = new Visit(visit.getPatient(), visit.getVisitType(), new Date());
+		reimported = Context.getVisitService().saveVisit(reimported);
+		OpenmrsDataUtil.getInstance().linkDocumentToVisit(document.getId(), reimported);
+		Context.flushSession();
+		Context.evictFromSession(documentVisit);
+
+		CdaDocumentVisit relinked = this.m_service.getDocumentVisit(documentId);
+		assertEquals(documentVisit.getId(), relinked.getId());
+		assertEquals(reimported, relinked.getVisit());
+		assertEquals(reimported, OpenmrsDataUtil.getInstance().getVisitById(document.getId(), visit.getPatient()));
+	}
+
+	@Test
+	public void shouldVoidVisitDataAndRefreshSession() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		Visit visit = new Visit(patient, Context.getVisitService().getVisitType(1), new Date());
+		visit = Context.getVisitService().saveVisit(visit);
+		Encounter encounter = new Encounter();
+		encounter.setPatient(patient);
+		encounter.setEncounterType(Context.getEncounterService().getEncounterType(1));
+		encounter.setEncounterDatetime(new Date());
+		encounter.setLocation(Context.getLocationService().getLocation(1));
+		encounter.setVisit(visit);
+		Obs obs = new Obs(patient, Context.getConceptService().getConcept(5089), new Date(), encounter.getLocation());
+		obs.setValueNumeric(70.0);
+		obs.setAccessionNumber("1.2.3.4.5.99^^^&VOIDED");
+		encounter.addObs(obs);
+		encounter = Context.getEncounterService().saveEncounter(encounter);
+
+		// The obs, encounter and visit are voided by SQL without leaving the session
+		assertEquals(3, this.m_service.voidVisitData(visit, "Test"));
+		assertTrue(visit.isVoided());
+		assertTrue(encounter.isVoided());
+		assertTrue(obs.isVoided());
+		assertEquals("Test", obs.getVoidReason());
+		assertTrue(this.m_service.getObsIdsByAccessionNumbers(Arrays.asList(obs.getAccessionNumber())).isEmpty());
+
+		// Flushing the refreshed data doesn't un-void it
+		Context.flushSession();
+		Context.clearSession();
+		assertTrue(Context.getObsService().getObs(obs.getObsId()).isVoided());
+		assertTrue(Context.getEncounterService().getEncounter(encounter.getEncounterId()).isVoided());
+		assertTrue(Context.getVisitService().getVisit(visit.getVisitId()).isVoided());
+	}
+
+	@Test
+	public void shouldSaveObservationWithItsSubObservationsUnderSectionGroup() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_MANUAL_FLUSH, "true");
+		CdaHandlerConfiguration.getInstance().clearCache();
+		try
+		{
+			Observation observation = ObservationCreatorUtil.createSimpleObservation("XX-BATCH-1", CdaHandlerConstants.CODE_SYSTEM_LOINC, new PQ(BigDecimal.valueOf(5), "mg/dL"));
+			observation.setMethodCode(SET.createSET(new CE<String>("XX-METHOD-1", "1.2.3.4.5.99")));
+			ClinicalDocument document = CdaDocumentCreatorUtil.createDocumentHeader(EntityCreatorUtil.createRecordTarget("BATCH-1"), "34133-9", CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_DOCUMENTS);
+			document.getComponent().getBodyChoiceIfStructuredBody().getComponent().add(new Component3(ActRelationshipHasComponent.HasComponent, BL.TRUE, SectionCreatorUtil.createCodedResultsSection(observation)));
+			Visit visit = this.m_service.importDocument(new ByteArrayInputStream(CdaDocumentCreatorUtil.graphDocument(document)));
+			Context.flushSession();
+			Context.clearSession();
+
+			// The method sub-observation was written by the cascade from the observation
+			String accessionNumber = StatementFingerprintUtil.getInstance().getAccessionNumber(observation);
+			Obs saved = Context.getObsService().getObs(this.m_service.getObsIdsByAccessionNumbers(Arrays.asList(accessionNumber)).get(accessionNumber).get(0));
+			assertEquals(1, saved.getGroupMembers().size());
+			Obs method = saved.getGroupMembers().iterator().next();
+			assertNotNull(method.getId());
+			assertEquals(saved.getEncounter(), method.getEncounter());
+
+			// Under the section obs group saved before it
+			assertNotNull(saved.getObsGroup());
+			assertNull(saved.getObsGroup().getObsGroup());
+			assertEquals(visit.getVisitId(), saved.getObsGroup().getEncounter().getVisit().getVisitId());
+		}
+		finally
+		{
+			CdaHandlerConfiguration.getInstance().clearCache();
+		}
+	}
+
+	@Test
+	public void shouldEvictDataSavedBySection() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_EVICT_PROCESSED_SECTIONS, "true");
+		CdaHandlerConfiguration.getInstance().clearCache();
+		try
+		{
+			Observation first = ObservationCreatorUtil.createSimpleObservation("XX-EVICT-1", CdaHandlerConstants.CODE_SYSTEM_LOINC, new PQ(BigDecimal.valueOf(1), "mg/dL")),
+					second = ObservationCreatorUtil.createSimpleObservation("XX-EVICT-2", CdaHandlerConstants.CODE_SYSTEM_LOINC, new PQ(BigDecimal.valueOf(2), "mg/dL"));
+			ClinicalDocument document = CdaDocumentCreatorUtil.createDocumentHeader(EntityCreatorUtil.createRecordTarget("EVICT-1"), "34133-9", CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_DOCUMENTS);
+			document.getComponent().getBodyChoiceIfStructuredBody().getComponent().add(new Component3(ActRelationshipHasComponent.HasComponent, BL.TRUE, SectionCreatorUtil.createCodedResultsSection(first, second)));
+			this.m_service.importDocument(new ByteArrayInputStream(CdaDocumentCreatorUtil.graphDocument(document)));
+
+			// The section's obs were flushed and left the session, the visit and encounter didn't
+			Session session = Context.getRegisteredComponents(SessionFactory.class).get(0).getCurrentSession();
+			int obsInSession = 0, encountersInSession = 0;
+			for(Object key : session.getStatistics().getEntityKeys())
+			{
+				Class<?> entityClass = Class.forName(((EntityKey)key).getEntityName());
+				if(Obs.class.isAssignableFrom(entityClass))
+					obsInSession++;
+				else if(Encounter.class.isAssignableFrom(entityClass))
+					encountersInSession++;
+			}
+			assertEquals(0, obsInSession);
+			assertTrue(encountersInSession > 0);
+
+			for(Observation statement : Arrays.asList(first, second))
+			{
+				String accessionNumber = StatementFingerprintUtil.getInstance().getAccessionNumber(statement);
+				assertEquals(1, this.m_service.getObsIdsByAccessionNumbers(Arrays.asList(accessionNumber)).get(accessionNumber).size());
+			}
+		}
+		finally
+		{
+			CdaHandlerConfiguration.getInstance().clearCache();
+		}
+	}
+
+	/**
+	 * Import a sample document (whole or one section at a time) and describe the obs of its
+	 * visit, then void the visit so the document can be imported again
+	 */
+	private List<String> doImportAndDescribeObs(String resourceName, boolean streamSections) throws Exception
+	{
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_STREAM_SECTIONS, Boolean.toString(streamSections));
+		CdaHandlerConfiguration.getInstance().clearCache();
+		FileInputStream fs = new FileInputStream(new File(this.getClass().getResource(resourceName).getFile()));
+		Visit visit;
+		try
+		{
+			visit = this.m_service.importDocument(fs);
+		}
+		finally
+		{
+			fs.close();
+		}
+		Context.flushSession();
+		Context.clearSession();
+		
+		// Concept, value and group concept of each obs (the file names of complex obs are random)
+		List<String> retVal = new ArrayList<String>();
+		visit = Context.getVisitService().getVisit(visit.getVisitId());
+		for(Encounter encounter : Context.getEncounterService().getEncountersByVisit(visit, false))
+			for(Obs obs : encounter.getAllObs(false))
+				retVal.add(String.format("%s=%s in %s", obs.getConcept().getId(),
+					obs.isComplex() ? "(complex)" : obs.getValueAsString(Locale.ENGLISH),
+					obs.getObsGroup() == null ? null : obs.getObsGroup().getConcept().getId()));
+		Collections.sort(retVal);
+		
+		this.m_service.voidVisitData(visit, "Imported again");
+		return retVal;
+	}
+
+	@Test
+	public void shouldImportSameObsWhenStreamingSections() throws Exception {
+		try
+		{
+			for(String resourceName : Arrays.asList("/OddCdaDocument.xml", "/minimalIc.xml", "/validAphpSample.xml", 
+					"/validAphpSamplePovich.xml", "/validCdaLevel3Sample.xml", "/cdaFromOscarEmr.xml", 
+					"/cdaFromOscarEmr2.xml", "/cdaFromHl7.xml"))
+			{
+				List<String> whole = this.doImportAndDescribeObs(resourceName, false),
+						streamed = this.doImportAndDescribeObs(resourceName, true);
+				assertEquals(resourceName, whole, streamed);
+			}
+		}
+		finally
+		{
+			CdaHandlerConfiguration.getInstance().clearCache();
+		}
+	}
 
 }
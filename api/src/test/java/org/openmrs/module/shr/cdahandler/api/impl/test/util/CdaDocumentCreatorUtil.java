@@ -22,6 +22,7 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component2;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Custodian;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.DocumentationOf;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.RecordTarget;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ServiceEvent;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.StructuredBody;
 import org.marc.everest.rmim.uv.cdar2.vocabulary.ActRelationshipHasComponent;
@@ -40,6 +41,14 @@ public class CdaDocumentCreatorUtil {
 	 * @return
 	 */
 	private final static ClinicalDocument createDocumentHeader(String documentTypeCode, String... templateIds)
+	{
+		return createDocumentHeader(EntityCreatorUtil.createRecordTarget(), documentTypeCode, templateIds);
+	}
+
+	/**
+	 * Create the document for the specified record target with an empty structured body
+	 */
+	public final static ClinicalDocument createDocumentHeader(RecordTarget recordTarget, String documentTypeCode, String... templateIds)
 	{
 		ClinicalDocument retVal = new ClinicalDocument();
 		// Type and template
@@ -57,7 +66,7 @@ public class CdaDocumentCreatorUtil {
 		retVal.setLanguageCode("en-US");
 		
 		// Set participants
-		retVal.getRecordTarget().add(EntityCreatorUtil.createRecordTarget());
+		retVal.getRecordTarget().add(recordTarget);
 		retVal.getAuthor().add(EntityCreatorUtil.createAuthor("1", "Bob", "Dolin"));
 		retVal.getAuthor().add(EntityCreatorUtil.createAuthor("2", "Sally", "Smith"));
 		retVal.setCustodian(EntityCreatorUtil.createCustodian());
@@ -108,14 +117,23 @@ public class CdaDocumentCreatorUtil {
 	 * Log document
 	 */
 	public final static InputStream streamDocument(ClinicalDocument doc)
+	{
+		byte[] document = graphDocument(doc);
+		log.error(new String(document));
+		return new ByteArrayInputStream(document);
+	}
+	
+	/**
+	 * Graph the document to XML
+	 */
+	public final static byte[] graphDocument(ClinicalDocument doc)
 	{
 		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 		XmlIts1Formatter formatter = new XmlIts1Formatter();
 		formatter.getGraphAides().add(new DatatypeFormatter(R1FormatterCompatibilityMode.ClinicalDocumentArchitecture));
 		formatter.setValidateConformance(false);
 		formatter.graph(outStream, doc);
-		log.error(outStream.toString());
-		return new ByteArrayInputStream(outStream.toByteArray());
+		return outStream.toByteArray();
 	}
 	
 }
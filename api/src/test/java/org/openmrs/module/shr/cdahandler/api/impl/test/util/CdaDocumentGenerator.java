@@ -0,0 +1,289 @@
+package org.openmrs.module.shr.cdahandler.api.impl.test.util;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.marc.everest.datatypes.ANY;
+import org.marc.everest.datatypes.BL;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.INT;
+import org.marc.everest.datatypes.PQ;
+import org.marc.everest.datatypes.ST;
+import org.marc.everest.datatypes.generic.SET;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component4;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.EntryRelationship;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Organizer;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.ActRelationshipHasComponent;
+import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+
+/**
+ * Generates documents in large numbers from the creator utilities: a weighted mix of
+ * document templates, each with a number of coded results sections of simple observations
+ * drawn from a pool of codes, for one of a number of patients.
+ *
+ * The codes of the pool are synthetic LOINC codes (XX-LOAD-n by default) which are created as concepts
+ * when first imported; each always carries the same type of value so the concepts stay
+ * consistent. The generated sections hold simple observations only; organizers (from
+ * {@link OrganizerCreatorUtil}) only appear in the antepartum summary sections.
+ *
+ * The seed determines the templates, patients, sections, codes and values, and the ids of
+ * the document and its observations (which the creator utilities would make random), so a
+ * generator with the same seed and settings generates the same documents. The times in the
+ * documents are those at which they are generated. The generator isn't thread safe
+ * @author Justin Fyfe
+ *
+ */
+public class CdaDocumentGenerator {
+
+	/**
+	 * Antepartum summary documents (the antepartum sections plus the generated sections)
+	 */
+	public static final String TEMPLATE_ANTEPARTUM_SUMMARY = "aps";
+	/**
+	 * Medical documents (the generated sections only)
+	 */
+	public static final String TEMPLATE_MEDICAL_DOCUMENTS = "medicalDocuments";
+
+	// Template weights
+	private final Map<String, Integer> m_templateMix = new LinkedHashMap<String, Integer>();
+	// Sections and entries
+	private int m_minSections = 1;
+	private int m_maxSections = 3;
+	private int m_minEntries = 5;
+	private int m_maxEntries = 20;
+	// Codes, patients and author
+	private int m_codes = 100;
+	private String m_codePrefix = "XX-LOAD-";
+	private int m_patients = 100;
+	private String m_authorId = null;
+
+	private final Random m_random;
+
+	/**
+	 * Create a generator with the specified seed
+	 */
+	public CdaDocumentGenerator(long seed)
+	{
+		this.m_random = new Random(seed);
+		this.m_templateMix.put(TEMPLATE_ANTEPARTUM_SUMMARY, 1);
+		this.m_templateMix.put(TEMPLATE_MEDICAL_DOCUMENTS, 1);
+	}
+
+	/**
+	 * Set the weight of each template (TEMPLATE_*) in the mix
+	 */
+	public void setTemplateMix(Map<String, Integer> templateMix) {
+		int total = 0;
+		for(Map.Entry<String, Integer> template : templateMix.entrySet())
+		{
+			if(!TEMPLATE_ANTEPARTUM_SUMMARY.equals(template.getKey()) && !TEMPLATE_MEDICAL_DOCUMENTS.equals(template.getKey()))
+				throw new IllegalArgumentException(String.format("Unknown template %s", template.getKey()));
+			if(template.getValue() < 0)
+				throw new IllegalArgumentException(String.format("Negative weight for template %s", template.getKey()));
+			total += template.getValue();
+		}
+		if(total == 0)
+			throw new IllegalArgumentException("No template has a weight");
+		this.m_templateMix.clear();
+		this.m_templateMix.putAll(templateMix);
+	}
+
+	/**
+	 * Set the range of the number of generated sections in each document
+	 */
+	public void setSections(int min, int max) {
+		if(min < 0 || max < min)
+			throw new IllegalArgumentException("Invalid range of sections");
+		this.m_minSections = min;
+		this.m_maxSections = max;
+	}
+
+	/**
+	 * Set the range of the number of entries in each generated section
+	 */
+	public void setEntries(int min, int max) {
+		if(min < 1 || max < min)
+			throw new IllegalArgumentException("Invalid range of entries");
+		this.m_minEntries = min;
+		this.m_maxEntries = max;
+	}
+
+	/**
+	 * Set the number of distinct codes the entries are drawn from
+	 */
+	public void setCodes(int codes) {
+		if(codes < 1)
+			throw new IllegalArgumentException("Invalid number of codes");
+		this.m_codes = codes;
+	}
+
+	/**
+	 * Set the prefix of the codes in the pool, so that a new pool of codes can be used
+	 */
+	public void setCodePrefix(String codePrefix) {
+		this.m_codePrefix = codePrefix;
+	}
+
+	/**
+	 * Set the id of the author of the documents, or null for the authors of the test documents
+	 */
+	public void setAuthorId(String authorId) {
+		this.m_authorId = authorId;
+	}
+
+	/**
+	 * Set the number of patients the documents are for
+	 */
+	public void setPatients(int patients) {
+		if(patients < 1)
+			throw new IllegalArgumentException("Invalid number of patients");
+		this.m_patients = patients;
+	}
+
+	/**
+	 * Get the number of patients the documents are for
+	 */
+	public int getPatients() {
+		return this.m_patients;
+	}
+
+	/**
+	 * Get the patient id (extension) of the n-th patient
+	 */
+	public String getPatientId(int patient) {
+		return String.format("LOAD-%s", patient);
+	}
+
+	/**
+	 * Generate a document for a random patient
+	 */
+	public ClinicalDocument generate() {
+		return this.generate(this.getPatientId(this.m_random.nextInt(this.m_patients)));
+	}
+
+	/**
+	 * Generate a document for the specified patient
+	 */
+	public ClinicalDocument generate(String patientId) {
+		ClinicalDocument retVal;
+		String template = this.chooseTemplate();
+		if(TEMPLATE_ANTEPARTUM_SUMMARY.equals(template))
+		{
+			retVal = CdaDocumentCreatorUtil.createDocumentHeader(EntityCreatorUtil.createRecordTarget(patientId), "57055-6", CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_SUMMARY, CdaHandlerConstants.DOC_TEMPLATE_ANTEPARTUM_SUMMARY);
+			this.addSection(retVal, SectionCreatorUtil.createEstimatedDeliveryDatesSection());
+			this.addSection(retVal, SectionCreatorUtil.createVisitSummaryFlowsheetSection());
+			this.addSection(retVal, SectionCreatorUtil.createCodedAntenatalTestingAndSurveillanceSection());
+		}
+		else
+			retVal = CdaDocumentCreatorUtil.createDocumentHeader(EntityCreatorUtil.createRecordTarget(patientId), "34133-9", CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_DOCUMENTS);
+		if(this.m_authorId != null)
+		{
+			retVal.getAuthor().clear();
+			retVal.getAuthor().add(EntityCreatorUtil.createAuthor(this.m_authorId, "Load", "Author"));
+		}
+
+		int sections = this.nextInt(this.m_minSections, this.m_maxSections);
+		for(int i = 0; i < sections; i++)
+		{
+			ClinicalStatement[] entries = new ClinicalStatement[this.nextInt(this.m_minEntries, this.m_maxEntries)];
+			for(int e = 0; e < entries.length; e++)
+			{
+				int code = this.m_random.nextInt(this.m_codes);
+				entries[e] = ObservationCreatorUtil.createSimpleObservation(String.format("%s%s", this.m_codePrefix, code), CdaHandlerConstants.CODE_SYSTEM_LOINC, this.createValue(code));
+			}
+			this.addSection(retVal, SectionCreatorUtil.createCodedResultsSection(entries));
+		}
+
+		// Replace the random ids
+		retVal.setId(this.nextUuid());
+		for(Component3 comp : retVal.getComponent().getBodyChoiceIfStructuredBody().getComponent())
+			for(Entry entry : comp.getSection().getEntry())
+				this.assignIds(entry.getClinicalStatement());
+		return retVal;
+	}
+
+	/**
+	 * Generate a document for a random patient and graph it to XML
+	 */
+	public byte[] generateXml() {
+		return CdaDocumentCreatorUtil.graphDocument(this.generate());
+	}
+
+	/**
+	 * Choose a template by weight
+	 */
+	private String chooseTemplate() {
+		int total = 0;
+		for(Integer weight : this.m_templateMix.values())
+			total += weight;
+		int choice = this.m_random.nextInt(total);
+		for(Map.Entry<String, Integer> template : this.m_templateMix.entrySet())
+		{
+			choice -= template.getValue();
+			if(choice < 0)
+				return template.getKey();
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Create a value of the type the code always carries
+	 */
+	private ANY createValue(int code) {
+		switch(code % 3)
+		{
+			case 0:
+				return new PQ(BigDecimal.valueOf(this.m_random.nextInt(2000), 1), "mg/dL");
+			case 1:
+				return new INT(this.m_random.nextInt(100));
+			default:
+				return new ST(String.format("Result %s", this.m_random.nextInt(10)));
+		}
+	}
+
+	/**
+	 * Add a section to the structured body of the document
+	 */
+	private void addSection(ClinicalDocument document, Section section) {
+		document.getComponent().getBodyChoiceIfStructuredBody().getComponent().add(new Component3(ActRelationshipHasComponent.HasComponent, BL.TRUE, section));
+	}
+
+	/**
+	 * Give the observations of a statement, its components and its relationships ids from
+	 * the seed in place of the random ones
+	 */
+	private void assignIds(ClinicalStatement statement) {
+		if(statement instanceof Observation && ((Observation)statement).getId() != null)
+			((Observation)statement).setId(SET.createSET(new II(this.nextUuid())));
+		else if(statement instanceof Organizer)
+			for(Component4 comp : ((Organizer)statement).getComponent())
+				if(comp.getClinicalStatement() != null)
+					this.assignIds(comp.getClinicalStatement());
+		for(EntryRelationship relationship : statement.getEntryRelationship())
+			if(relationship.getClinicalStatement() != null)
+				this.assignIds(relationship.getClinicalStatement());
+	}
+
+	/**
+	 * A UUID from the seed
+	 */
+	private UUID nextUuid() {
+		return new UUID(this.m_random.nextLong(), this.m_random.nextLong());
+	}
+
+	/**
+	 * A random number in the inclusive range
+	 */
+	private int nextInt(int min, int max) {
+		return min + this.m_random.nextInt(max - min + 1);
+	}
+}
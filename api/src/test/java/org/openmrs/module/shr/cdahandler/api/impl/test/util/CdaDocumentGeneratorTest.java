@@ -0,0 +1,56 @@
+package org.openmrs.module.shr.cdahandler.api.impl.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+
+/**
+ * Tests the documents generated from a seed
+ */
+public class CdaDocumentGeneratorTest {
+
+	/**
+	 * Format an identifier
+	 */
+	private String format(II id) {
+		return String.format("%s^%s", id.getRoot(), id.getExtension());
+	}
+
+	/**
+	 * Describe the document by its id and the code and id of each observation entry
+	 */
+	private List<String> describe(ClinicalDocument document) {
+		List<String> retVal = new ArrayList<String>();
+		retVal.add(this.format(document.getId()));
+		for(Component3 comp : document.getComponent().getBodyChoiceIfStructuredBody().getComponent())
+			for(Entry entry : comp.getSection().getEntry())
+				if(entry.getClinicalStatement() instanceof Observation)
+				{
+					Observation observation = (Observation)entry.getClinicalStatement();
+					retVal.add(String.format("%s %s", observation.getCode().getCode(), this.format(observation.getId().get(0))));
+				}
+		return retVal;
+	}
+
+	@Test
+	public void shouldGenerateSameDocumentsFromSameSeed() throws Exception {
+		CdaDocumentGenerator generator = new CdaDocumentGenerator(42),
+				again = new CdaDocumentGenerator(42),
+				other = new CdaDocumentGenerator(43);
+		for(int i = 0; i < 5; i++)
+		{
+			List<String> document = this.describe(generator.generate());
+			assertEquals(document, this.describe(again.generate()));
+			assertFalse(document.equals(this.describe(other.generate())));
+		}
+	}
+}
@@ -32,10 +32,17 @@ public class EntityCreatorUtil {
 	 * @return
 	 */
 	public final static RecordTarget createRecordTarget() {
+		return createRecordTarget("3049");
+	}
+
+	/**
+	 * Create a record target for the patient with the specified id
+	 */
+	public final static RecordTarget createRecordTarget(String patientId) {
 		RecordTarget retVal = new RecordTarget(ContextControl.OverridingPropagating);
 		PatientRole patientRole = new PatientRole();
 		Patient patient = new Patient();
-		patientRole.setId(SET.createSET(new II("1.3.6.1.4.1.12009.1.1.1", "3049")));
+		patientRole.setId(SET.createSET(new II("1.3.6.1.4.1.12009.1.1.1", patientId)));
 		patientRole.setAddr(SET.createSET(AD.fromSimpleAddress(PostalAddressUse.HomeAddress, "123 Main Street West", "Unit 20", "Hamilton", "ON", "CA", "L8K5N2")));
 		patientRole.setTelecom(SET.createSET(new TEL("tel:+1-203-304-3045", TelecommunicationsAddressUse.Home)));
 		patientRole.setProviderOrganization(createOrganization());
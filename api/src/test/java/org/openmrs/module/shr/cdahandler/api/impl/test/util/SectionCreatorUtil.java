@@ -7,6 +7,7 @@ import org.marc.everest.datatypes.II;
 import org.marc.everest.datatypes.PQ;
 import org.marc.everest.datatypes.SD;
 import org.marc.everest.datatypes.generic.LIST;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component5;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
@@ -57,6 +58,16 @@ public final class SectionCreatorUtil {
 		return retVal;
     }
 
+	/**
+	 * Create a coded results section holding the specified entries
+	 */
+	public static Section createCodedResultsSection(ClinicalStatement... entries) {
+		Section retVal = createSection("30954-2", CdaHandlerConstants.SCT_TEMPLATE_CODED_RESULTS);
+		for(ClinicalStatement entry : entries)
+			retVal.getEntry().add(new Entry(x_ActRelationshipEntry.HasComponent, BL.TRUE, entry));
+		return retVal;
+	}
+
 	/**
 	 * Create visit summary flowsheet section
 	 */
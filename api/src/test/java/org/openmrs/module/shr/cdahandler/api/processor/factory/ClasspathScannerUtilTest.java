@@ -0,0 +1,48 @@
+package org.openmrs.module.shr.cdahandler.api.processor.factory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.openmrs.module.shr.cdahandler.processor.factory.impl.ClasspathScannerUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Checks the processor registry generated at compile time against a classpath scan
+ */
+public class ClasspathScannerUtilTest extends BaseModuleContextSensitiveTest {
+
+	// The registry generated by the ProcessTemplates annotation processor
+	private static final String REGISTRY_CLASS_NAME = "org.openmrs.module.shr.cdahandler.processor.factory.impl.ProcessorRegistry";
+
+	@Test
+	public void shouldRegisterEveryScannedProcessor() throws Exception {
+		// The annotation processor only registers classes the scanner can construct
+		Set<String> scanned = new TreeSet<String>();
+		for(Class<?> cls : ClasspathScannerUtil.getInstance().scanProcessorClasses())
+			if(Modifier.isPublic(cls.getModifiers()) && !Modifier.isAbstract(cls.getModifiers()))
+				scanned.add(cls.getName());
+		assertFalse(scanned.isEmpty());
+
+		Set<String> registered = new TreeSet<String>();
+		for(Class<?> cls : (Class<?>[])Class.forName(REGISTRY_CLASS_NAME).getField("PROCESSORS").get(null))
+			registered.add(cls.getName());
+
+		// A partial registry (from an incremental compile) differs from the scan
+		assertEquals(scanned, registered);
+	}
+
+	@Test
+	public void shouldUseRegisteredProcessors() throws Exception {
+		Class<?>[] registered = (Class<?>[])Class.forName(REGISTRY_CLASS_NAME).getField("PROCESSORS").get(null);
+		assertEquals(registered.length, new HashSet<Class<?>>(Arrays.asList(registered)).size());
+		assertTrue(ClasspathScannerUtil.getInstance().getProcessors().containsAll(Arrays.asList(registered)));
+	}
+}
@@ -0,0 +1,152 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.hibernate.FlushMode;
+import org.junit.Test;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.generic.SET;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.cache.AccessionNumberFilter;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.processor.util.AccessionNumberTable;
+import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the accession numbers prefetched for the statements of a document
+ */
+public class AccessionNumberTableTest extends BaseModuleContextSensitiveTest {
+
+	private OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
+	private II m_existingId = new II("1.2.3.4.5.99", "EXISTING");
+	private II m_newId = new II("1.2.3.4.5.99", "NEW");
+
+	@Before
+	public void clearFilter() {
+		// Every number might exist, so the table alone answers the lookups
+		AccessionNumberFilter.getInstance().clear();
+	}
+
+	@After
+	public void releaseTable() {
+		this.m_dataUtil.releaseAccessionNumberTable();
+		CdaHandlerConfiguration.getInstance().clearCache();
+	}
+
+	/**
+	 * Save an obs with the accession number of the identifier
+	 */
+	private Obs saveObs(II id) {
+		Obs retVal = new Obs(Context.getPatientService().getPatient(2), Context.getConceptService().getConcept(5089), new Date(), Context.getLocationService().getLocation(1));
+		retVal.setValueNumeric(70.0);
+		retVal.setAccessionNumber(DatatypeProcessorUtil.getInstance().formatIdentifier(id));
+		return Context.getObsService().saveObs(retVal, null);
+	}
+
+	@Test
+	public void shouldAnswerEachFetchedAccessionNumberOnce() throws Exception {
+		Obs existing = this.saveObs(this.m_existingId);
+		String existingNumber = existing.getAccessionNumber(),
+				newNumber = DatatypeProcessorUtil.getInstance().formatIdentifier(this.m_newId);
+
+		Observation statement = new Observation();
+		statement.setId(SET.createSET(this.m_existingId, this.m_newId));
+		AccessionNumberTable table = this.m_dataUtil.prefetchAccessionNumbers(statement);
+		assertEquals(2, table.size());
+
+		// Checking for data doesn't use up the number
+		assertTrue(table.hasData(existingNumber));
+		assertFalse(table.hasData(newNumber));
+
+		assertEquals(Arrays.asList(existing.getId()), table.getObsIds(existingNumber));
+		assertEquals(Collections.emptyList(), table.getOrderIds(newNumber));
+		assertEquals(0, table.size());
+
+		// The statements may have created data since, so the database must be asked
+		assertNull(table.getObsIds(existingNumber));
+		assertNull(table.hasData(newNumber));
+		assertNull(table.getProblemIds("1.2.3.4.5.99^^^&UNFETCHED"));
+	}
+
+	@Test
+	public void shouldFindExistingObsThroughTable() throws Exception {
+		Obs existing = this.saveObs(this.m_existingId);
+
+		Observation statement = new Observation();
+		statement.setId(SET.createSET(this.m_existingId));
+		this.m_dataUtil.prefetchAccessionNumbers(statement);
+
+		assertEquals(existing.getId(), this.m_dataUtil.findExistingObs(statement.getId(), existing.getPatient()).getId());
+		// Once used up, found by query
+		assertEquals(existing.getId(), this.m_dataUtil.findExistingObs(statement.getId(), existing.getPatient()).getId());
+		assertTrue(this.m_dataUtil.hasExistingData(existing.getAccessionNumber()));
+	}
+
+	@Test
+	public void shouldFindAccessionNumbersWithDataInBatch() throws Exception {
+		Obs existing = this.saveObs(this.m_existingId);
+		String newNumber = DatatypeProcessorUtil.getInstance().formatIdentifier(this.m_newId);
+
+		assertEquals(Collections.singleton(existing.getAccessionNumber()), 
+				this.m_dataUtil.getAccessionNumbersWithData(Arrays.asList(existing.getAccessionNumber(), newNumber)));
+		assertTrue(this.m_dataUtil.getAccessionNumbersWithData(Collections.<String>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void shouldFilterObsCascadedFromEncounter() throws Exception {
+		this.m_dataUtil.loadAccessionNumberFilter();
+		String accessionNumber = DatatypeProcessorUtil.getInstance().formatIdentifier(this.m_newId);
+		assertFalse(this.m_dataUtil.hasExistingData(accessionNumber));
+
+		// Saved with the encounter rather than through the obs service
+		Encounter encounter = Context.getEncounterService().getEncounter(3);
+		Obs obs = new Obs(encounter.getPatient(), Context.getConceptService().getConcept(5089), new Date(), encounter.getLocation());
+		obs.setValueNumeric(70.0);
+		obs.setAccessionNumber(accessionNumber);
+		encounter.addObs(obs);
+		Context.getEncounterService().saveEncounter(encounter);
+		Context.flushSession();
+
+		assertTrue(AccessionNumberFilter.getInstance().mightContain(accessionNumber));
+		assertTrue(this.m_dataUtil.hasExistingData(accessionNumber));
+	}
+
+	@Test
+	public void shouldSeeUnflushedChangesInManualFlushMode() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_MANUAL_FLUSH, "true");
+		CdaHandlerConfiguration.getInstance().clearCache();
+		Obs existing = this.saveObs(this.m_existingId);
+		Context.flushSession();
+
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		FlushMode previousFlushMode = importService.setFlushMode(FlushMode.MANUAL);
+		try {
+			// Voided as a replaced statement would be, but not flushed
+			existing.setVoided(true);
+			existing.setVoidedBy(Context.getAuthenticatedUser());
+			existing.setDateVoided(new Date());
+			existing.setVoidReason("Replaced");
+
+			assertFalse(this.m_dataUtil.hasExistingData(existing.getAccessionNumber()));
+			assertNull(this.m_dataUtil.findExistingObs(SET.createSET(this.m_existingId), existing.getPatient()));
+		}
+		finally {
+			importService.setFlushMode(previousFlushMode);
+		}
+	}
+}
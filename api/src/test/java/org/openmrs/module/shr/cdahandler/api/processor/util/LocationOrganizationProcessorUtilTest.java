@@ -0,0 +1,84 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.generic.SET;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.CustodianOrganization;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.cache.LocationExternalIdIndex;
+import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.LocationOrganizationProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the lookup of organizations through the location external id index
+ */
+public class LocationOrganizationProcessorUtilTest extends BaseModuleContextSensitiveTest {
+
+	private LocationOrganizationProcessorUtil m_locationUtil = LocationOrganizationProcessorUtil.getInstance();
+	private LocationExternalIdIndex m_index = LocationExternalIdIndex.getInstance();
+
+	@Before
+	public void clearIndex() {
+		this.m_index.clear();
+	}
+
+	/**
+	 * Create a custodian organization with the specified id
+	 */
+	private CustodianOrganization createOrganization(String extension) {
+		CustodianOrganization retVal = new CustodianOrganization();
+		retVal.setId(SET.createSET(new II("1.2.3.4.5.6", extension)));
+		return retVal;
+	}
+
+	@Test
+	public void shouldFindAndIndexOrganizationByExternalId() throws Exception {
+		CustodianOrganization organization = this.createOrganization("ORG1");
+		String externalId = DatatypeProcessorUtil.getInstance().formatIdentifier(organization.getId().get(0));
+
+		Location created = this.m_locationUtil.processOrganization(organization);
+		assertNotNull(created.getId());
+
+		// Looked up by attribute and indexed
+		assertEquals(created, this.m_locationUtil.getOrganizationByExternalId(externalId));
+		assertEquals(created.getId(), this.m_index.get(externalId));
+
+		// Found through the index
+		assertEquals(created, this.m_locationUtil.processOrganization(organization));
+		assertEquals(1, Context.getService(CdaImportService.class).getLocationIdsByAttribute(
+			OpenmrsMetadataUtil.getInstance().getOrCreateLocationExternalIdAttributeType(), externalId).size());
+	}
+
+	@Test
+	public void shouldNotIndexLookupMadeBeforeInvalidation() throws Exception {
+		CustodianOrganization organization = this.createOrganization("ORG2");
+		String externalId = DatatypeProcessorUtil.getInstance().formatIdentifier(organization.getId().get(0));
+		Location created = this.m_locationUtil.processOrganization(organization);
+
+		long generation = this.m_index.getGeneration();
+		this.m_index.invalidate(created);
+		this.m_index.put(externalId, created.getId(), generation);
+		assertNull(this.m_index.get(externalId));
+
+		// An indexed location is dropped when it changes
+		this.m_locationUtil.getOrganizationByExternalId(externalId);
+		assertEquals(created.getId(), this.m_index.get(externalId));
+		this.m_index.invalidate(created);
+		assertNull(this.m_index.get(externalId));
+	}
+
+	@Test
+	public void shouldNotFindUnknownExternalId() throws Exception {
+		assertNull(this.m_locationUtil.getOrganizationByExternalId("1.2.3.4.5.6^^^&UNKNOWN"));
+		assertEquals(0, this.m_index.size());
+	}
+}
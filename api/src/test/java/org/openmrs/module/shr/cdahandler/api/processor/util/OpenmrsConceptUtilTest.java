@@ -3,6 +3,7 @@ package org.openmrs.module.shr.cdahandler.api.processor.util;
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -10,12 +11,26 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.marc.everest.datatypes.PQ;
+import org.marc.everest.datatypes.BL;
 import org.marc.everest.datatypes.SD;
+import org.marc.everest.datatypes.ST;
+import org.marc.everest.datatypes.generic.CD;
 import org.marc.everest.datatypes.generic.CE;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component4;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.EntryRelationship;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Organizer;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.ActRelationshipHasComponent;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.x_ActClassDocumentEntryOrganizer;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.x_ActRelationshipEntryRelationship;
 import org.openmrs.*;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.ObservationCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.SectionCreatorUtil;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.processor.util.ConceptResolutionTable;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
@@ -195,4 +210,28 @@ public class OpenmrsConceptUtilTest extends BaseModuleContextSensitiveTest {
         }
 	}
 
+	/**
+	 * Pre-resolve the codes of statements nested in organizers and entry relationships
+	 */
+	@Test
+	public void testPreResolveConceptsOfNestedStatements() {
+		Observation weight = ObservationCreatorUtil.createSimpleObservation("3141-9", CdaHandlerConstants.CODE_SYSTEM_LOINC, new PQ(BigDecimal.ONE, "kg"));
+		Observation outer = ObservationCreatorUtil.createSimpleObservation("XX-UNRESOLVED", CdaHandlerConstants.CODE_SYSTEM_LOINC, new ST("Outer"));
+		outer.getEntryRelationship().add(new EntryRelationship(x_ActRelationshipEntryRelationship.HasComponent, BL.TRUE, weight));
+		Organizer organizer = new Organizer(x_ActClassDocumentEntryOrganizer.BATTERY);
+		organizer.setCode("XX-ORGANIZER", CdaHandlerConstants.CODE_SYSTEM_LOINC);
+		organizer.getComponent().add(new Component4(ActRelationshipHasComponent.HasComponent, BL.TRUE, outer));
+		Section section = SectionCreatorUtil.createCodedResultsSection(organizer);
+
+		try {
+			ConceptResolutionTable resolutionTable = this.m_conceptUtil.preResolveConcepts(section);
+			assertEquals(this.m_weightTerm.getId(), resolutionTable.getReferenceTermId(this.m_loincWeightTerm));
+			assertEquals(Arrays.asList(this.m_weightConcept.getId()), resolutionTable.getConceptIds(this.m_loincWeightTerm));
+			assertNull(resolutionTable.getReferenceTermId(new CD<String>("XX-UNRESOLVED", CdaHandlerConstants.CODE_SYSTEM_LOINC)));
+		}
+		finally {
+			this.m_conceptUtil.releaseResolutionTable();
+		}
+	}
+
 }
@@ -0,0 +1,89 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.marc.everest.datatypes.generic.CE;
+import org.openmrs.EncounterType;
+import org.openmrs.VisitType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.cache.MetadataRegistry;
+import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the metadata lookups which use the metadata registry
+ */
+public class OpenmrsMetadataUtilTest extends BaseModuleContextSensitiveTest {
+
+	private OpenmrsMetadataUtil m_metadataUtil = OpenmrsMetadataUtil.getInstance();
+	private CE<String> m_code = new CE<String>("34133-9", "2.16.840.1.113883.6.1", "LOINC", null, "Summary of episode note", null);
+
+	@Before
+	public void clearRegistry() {
+		MetadataRegistry.getInstance().clear();
+	}
+
+	@Test
+	public void shouldFindRetiredEncounterTypes() throws Exception {
+		EncounterType retired = new EncounterType("Retired", DatatypeProcessorUtil.getInstance().formatCodeValue(this.m_code));
+		retired = Context.getEncounterService().saveEncounterType(retired);
+		Context.getEncounterService().retireEncounterType(retired, "Test");
+		MetadataRegistry.getInstance().clear();
+
+		EncounterType found = this.m_metadataUtil.getOrCreateEncounterType(this.m_code);
+		assertEquals(retired.getId(), found.getId());
+	}
+
+	@Test
+	public void shouldPreferUnretiredEncounterTypes() throws Exception {
+		EncounterType unretired = this.m_metadataUtil.getOrCreateEncounterType(this.m_code);
+		EncounterType retired = new EncounterType("Retired", unretired.getDescription());
+		retired = Context.getEncounterService().saveEncounterType(retired);
+		Context.getEncounterService().retireEncounterType(retired, "Test");
+
+		// Whether the index was updated or reloaded
+		assertEquals(unretired.getId(), this.m_metadataUtil.getOrCreateEncounterType(this.m_code).getId());
+		MetadataRegistry.getInstance().clear();
+		assertEquals(unretired.getId(), this.m_metadataUtil.getOrCreateEncounterType(this.m_code).getId());
+	}
+
+	@Test
+	public void shouldFindRetiredVisitTypes() throws Exception {
+		VisitType retired = new VisitType("Retired Visit", "Test");
+		retired = Context.getVisitService().saveVisitType(retired);
+		Context.getVisitService().retireVisitType(retired, "Test");
+		MetadataRegistry.getInstance().clear();
+
+		VisitType found = this.m_metadataUtil.getVisitType("Retired Visit");
+		assertEquals(retired.getId(), found.getId());
+	}
+
+	@Test
+	public void shouldPreferUnretiredVisitTypes() throws Exception {
+		VisitType retired = new VisitType("Retired Visit", "Test");
+		retired = Context.getVisitService().saveVisitType(retired);
+		this.m_metadataUtil.loadRegistry();
+		Context.getVisitService().retireVisitType(retired, "Test");
+		VisitType unretired = Context.getVisitService().saveVisitType(new VisitType("Retired Visit", "Test"));
+
+		VisitType found = this.m_metadataUtil.getVisitType("Retired Visit");
+		assertEquals(unretired.getId(), found.getId());
+		assertFalse(found.isRetired());
+	}
+
+	@Test
+	public void shouldIndexCreatedMetadataWithoutReloading() throws Exception {
+		this.m_metadataUtil.loadRegistry();
+		EncounterType created = this.m_metadataUtil.getOrCreateEncounterType(this.m_code);
+
+		// The created type was added to the loaded index
+		assertNotNull(MetadataRegistry.getInstance().getIndex(EncounterType.class));
+		assertEquals(created.getId(), MetadataRegistry.getInstance().getIndex(EncounterType.class).get(created.getDescription()));
+		assertEquals(created, this.m_metadataUtil.getOrCreateEncounterType(this.m_code));
+	}
+}
@@ -0,0 +1,178 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marc.everest.datatypes.BL;
+import org.marc.everest.datatypes.PQ;
+import org.marc.everest.datatypes.generic.CS;
+import org.marc.everest.datatypes.generic.SET;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ParentDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.RelatedDocument;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.ActRelationshipHasComponent;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.x_ActRelationshipDocument;
+import org.openmrs.Obs;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.EntityCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.ObservationCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.SectionCreatorUtil;
+import org.openmrs.module.shr.cdahandler.cache.StatementFingerprintCache;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.processor.util.StatementFingerprintUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the statements kept, re-imported and voided when a document is replaced with
+ * differential updates enabled
+ */
+public class StatementFingerprintUtilTest extends BaseModuleContextSensitiveTest {
+
+	private static final String PATIENT_ID = "DIFF-1";
+
+	private CdaImportService m_service;
+	private StatementFingerprintUtil m_fingerprintUtil = StatementFingerprintUtil.getInstance();
+
+	@Before
+	public void enableDifferentialUpdates() throws Exception {
+		this.m_service = Context.getService(CdaImportService.class);
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_VALIDATE_CONCEPT_STRUCTURE, "false");
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UPDATE_DIFFERENTIAL, "true");
+		CdaHandlerConfiguration.getInstance().clearCache();
+		StatementFingerprintCache.getInstance().clear();
+	}
+
+	@After
+	public void clearConfiguration() {
+		CdaHandlerConfiguration.getInstance().clearCache();
+		StatementFingerprintCache.getInstance().clear();
+	}
+
+	/**
+	 * Create a simple numeric observation
+	 */
+	private Observation createObservation(String code, int value) {
+		return ObservationCreatorUtil.createSimpleObservation(code, CdaHandlerConstants.CODE_SYSTEM_LOINC, new PQ(BigDecimal.valueOf(value), "mg/dL"));
+	}
+
+	/**
+	 * Create a document for the patient with a coded results section holding the statements
+	 */
+	private ClinicalDocument createDocument(Observation... statements) {
+		ClinicalDocument retVal = CdaDocumentCreatorUtil.createDocumentHeader(EntityCreatorUtil.createRecordTarget(PATIENT_ID), "34133-9", CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_DOCUMENTS);
+		retVal.getComponent().getBodyChoiceIfStructuredBody().getComponent().add(new Component3(ActRelationshipHasComponent.HasComponent, BL.TRUE, SectionCreatorUtil.createCodedResultsSection(statements)));
+		return retVal;
+	}
+
+	/**
+	 * Create a document replacing the specified document
+	 */
+	private ClinicalDocument createReplacement(ClinicalDocument replaced, Observation... statements) {
+		ClinicalDocument retVal = this.createDocument(statements);
+		ParentDocument parent = new ParentDocument();
+		parent.setId(SET.createSET(replaced.getId()));
+		RelatedDocument relatedDocument = new RelatedDocument();
+		relatedDocument.setTypeCode(new CS<x_ActRelationshipDocument>(x_ActRelationshipDocument.RPLC));
+		relatedDocument.setParentDocument(parent);
+		retVal.getRelatedDocument().add(relatedDocument);
+		return retVal;
+	}
+
+	/**
+	 * Import the document as it would be received
+	 */
+	private Visit importDocument(ClinicalDocument document) throws Exception {
+		Visit retVal = this.m_service.importDocument(new ByteArrayInputStream(CdaDocumentCreatorUtil.graphDocument(document)));
+		Context.flushSession();
+		return retVal;
+	}
+
+	/**
+	 * Get the non-voided obs carrying the accession number of the statement
+	 */
+	private List<Integer> getObsIds(Observation statement) {
+		String accessionNumber = this.m_fingerprintUtil.getAccessionNumber(statement);
+		List<Integer> retVal = this.m_service.getObsIdsByAccessionNumbers(Arrays.asList(accessionNumber)).get(accessionNumber);
+		return retVal == null ? Arrays.<Integer>asList() : retVal;
+	}
+
+	@Test
+	public void shouldKeepUnchangedAndReplaceChangedStatements() throws Exception {
+		Observation unchanged = this.createObservation("XX-DIFF-1", 1),
+				changed = this.createObservation("XX-DIFF-2", 2),
+				removed = this.createObservation("XX-DIFF-3", 3);
+		ClinicalDocument original = this.createDocument(unchanged, changed, removed);
+		Visit originalVisit = this.importDocument(original);
+		List<Integer> unchangedIds = this.getObsIds(unchanged),
+				changedIds = this.getObsIds(changed);
+		assertEquals(1, unchangedIds.size());
+		assertEquals(1, changedIds.size());
+		assertEquals(1, this.getObsIds(removed).size());
+
+		changed.setValue(new PQ(BigDecimal.valueOf(20), "mg/dL"));
+		Visit replacementVisit = this.importDocument(this.createReplacement(original, unchanged, changed));
+		Context.clearSession();
+
+		// The unchanged statement's obs moved to the replacement rather than being imported again
+		assertEquals(unchangedIds, this.getObsIds(unchanged));
+		Obs kept = Context.getObsService().getObs(unchangedIds.get(0));
+		assertFalse(kept.isVoided());
+		assertEquals(replacementVisit.getVisitId(), kept.getEncounter().getVisit().getVisitId());
+
+		// The changed statement was voided once and imported once
+		List<Integer> reimportedIds = this.getObsIds(changed);
+		assertEquals(1, reimportedIds.size());
+		assertFalse(changedIds.equals(reimportedIds));
+		assertTrue(Context.getObsService().getObs(changedIds.get(0)).isVoided());
+		Obs reimported = Context.getObsService().getObs(reimportedIds.get(0));
+		assertEquals(Double.valueOf(20), reimported.getValueNumeric());
+		assertEquals(replacementVisit.getVisitId(), reimported.getEncounter().getVisit().getVisitId());
+
+		// The removed statement and the original visit are voided
+		assertEquals(0, this.getObsIds(removed).size());
+		assertTrue(Context.getVisitService().getVisit(originalVisit.getVisitId()).isVoided());
+	}
+
+	@Test
+	public void shouldHandOverSkippedStatementsWhenOriginalIsReplaced() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_SKIP_UNCHANGED_STATEMENTS, "true");
+		CdaHandlerConfiguration.getInstance().clearCache();
+
+		Observation shared = this.createObservation("XX-DIFF-4", 4);
+		ClinicalDocument original = this.createDocument(shared);
+		Visit originalVisit = this.importDocument(original);
+		Visit sharingVisit = this.importDocument(this.createDocument(shared, this.createObservation("XX-DIFF-5", 5)));
+
+		// Skipped by the second document
+		List<Integer> sharedIds = this.getObsIds(shared);
+		assertEquals(1, sharedIds.size());
+		assertEquals(originalVisit.getVisitId(), Context.getObsService().getObs(sharedIds.get(0)).getEncounter().getVisit().getVisitId());
+		assertEquals(1, this.m_service.getStatementReferences(sharingVisit.getPatient(), sharingVisit).size());
+
+		// Replacing the original without the statement leaves it with the document which skipped it
+		this.importDocument(this.createReplacement(original, this.createObservation("XX-DIFF-6", 6)));
+		Context.clearSession();
+		assertEquals(sharedIds, this.getObsIds(shared));
+		Obs handedOver = Context.getObsService().getObs(sharedIds.get(0));
+		assertFalse(handedOver.isVoided());
+		assertEquals(sharingVisit.getVisitId(), handedOver.getEncounter().getVisit().getVisitId());
+		assertTrue(Context.getVisitService().getVisit(originalVisit.getVisitId()).isVoided());
+		sharingVisit = Context.getVisitService().getVisit(sharingVisit.getVisitId());
+		assertEquals(0, this.m_service.getStatementReferences(sharingVisit.getPatient(), sharingVisit).size());
+	}
+}
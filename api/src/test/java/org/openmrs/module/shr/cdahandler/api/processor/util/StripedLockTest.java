@@ -0,0 +1,142 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.cdahandler.processor.util.StripedLock;
+
+/**
+ * Tests for the striped lock
+ */
+public class StripedLockTest {
+
+	@Before
+	public void enableStatistics() {
+		StripedLock.setStatisticsEnabled(true);
+	}
+
+	@After
+	public void disableStatistics() {
+		StripedLock.setStatisticsEnabled(false);
+	}
+
+	/**
+	 * Returns true if another thread can acquire the lock of the key
+	 */
+	private boolean isAvailable(final StripedLock locks, final Object key) throws InterruptedException {
+		final AtomicBoolean retVal = new AtomicBoolean();
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					StripedLock.Hold hold = locks.lock(key);
+					hold.release();
+					retVal.set(true);
+				}
+				catch(IllegalStateException e) {
+					// Interrupted while waiting
+				}
+			}
+		});
+		other.start();
+		other.join(500);
+		if(other.isAlive())
+		{
+			other.interrupt();
+			other.join();
+		}
+		return retVal.get();
+	}
+
+	@Test
+	public void shouldHoldUntilReleased() throws Exception {
+		StripedLock locks = new StripedLock("test", 4);
+		StripedLock.Hold hold = locks.lock("A");
+		assertFalse(this.isAvailable(locks, "A"));
+
+		// The same thread can still acquire the lock
+		StripedLock.Hold again = locks.lock("A");
+		again.release();
+		assertFalse(this.isAvailable(locks, "A"));
+
+		hold.release();
+		hold.release();
+		assertTrue(this.isAvailable(locks, "A"));
+		assertEquals(3, locks.getAcquisitions());
+	}
+
+	@Test
+	public void shouldNotRecordAcquisitionsUnlessStatisticsEnabled() throws Exception {
+		StripedLock.setStatisticsEnabled(false);
+		StripedLock locks = new StripedLock("test", 4);
+		locks.lock("A").release();
+		assertEquals(0, locks.getAcquisitions());
+		assertTrue(StripedLock.getLocks().contains(locks));
+	}
+
+	@Test
+	public void shouldNotCreateDuplicatesInConcurrentTransactions() throws Exception {
+		final StripedLock locks = new StripedLock("test", 4);
+		// Rows visible to other transactions
+		final Set<String> committed = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger created = new AtomicInteger();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+
+		// Each importer finds or creates the same row, committing it in a transaction of its 
+		// own before the lock is released, then carries on with the rest of the import
+		List<Thread> importers = new ArrayList<Thread>();
+		for(int i = 0; i < 4; i++)
+			importers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						StripedLock.Hold hold = locks.lock("CODE");
+						try {
+							if(!committed.contains("CODE"))
+							{
+								// The row isn't visible to the others until committed
+								created.incrementAndGet();
+								Thread.sleep(20);
+								committed.add("CODE");
+							}
+						}
+						finally {
+							hold.release();
+						}
+
+						// The rest of the import
+						Thread.sleep(50);
+					}
+					catch(Throwable e) {
+						failures.add(e);
+					}
+				}
+			}));
+
+		for(Thread importer : importers)
+			importer.start();
+		start.countDown();
+		for(Thread importer : importers)
+			importer.join(10000);
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(1, created.get());
+		assertEquals(1, committed.size());
+		assertEquals(4, locks.getAcquisitions());
+	}
+}
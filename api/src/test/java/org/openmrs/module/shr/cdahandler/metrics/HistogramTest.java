@@ -0,0 +1,76 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets and percentiles of the histogram
+ */
+public class HistogramTest {
+
+	@Test
+	public void shouldCountSmallValuesExactly() throws Exception {
+		Histogram histogram = new Histogram();
+		for(long value : new long[] { 3, 7, 7, 15 })
+			histogram.record(value);
+
+		assertEquals(3, histogram.getPercentile(0.25));
+		assertEquals(7, histogram.getPercentile(0.5));
+		assertEquals(7, histogram.getPercentile(0.75));
+		assertEquals(15, histogram.getPercentile(1.0));
+		assertEquals(4, histogram.getCount());
+		assertEquals(32, histogram.getTotal());
+		assertEquals(15, histogram.getMax());
+		assertEquals(8.0, histogram.getMean(), 0.0);
+	}
+
+	@Test
+	public void shouldBucketLargeValuesWithinAnEighth() throws Exception {
+		for(long value = 16; value < 10000000L; value = value * 5 / 4 + 1)
+		{
+			Histogram histogram = new Histogram();
+			histogram.record(value);
+			// So the bucket isn't capped at the largest value
+			histogram.record(Long.MAX_VALUE / 2);
+
+			long percentile = histogram.getPercentile(0.5);
+			assertTrue(String.format("%s reported as %s", value, percentile), percentile >= value);
+			assertTrue(String.format("%s reported as %s", value, percentile), percentile <= value + value / 8);
+		}
+	}
+
+	@Test
+	public void shouldReportPercentilesAtTheUpperBoundOfTheirBucket() throws Exception {
+		Histogram histogram = new Histogram();
+		for(long value = 1; value <= 100; value++)
+			histogram.record(value);
+
+		// 50 is counted in 48-51, 90 in 88-95 and 99 in 96-103 (capped at the largest value)
+		assertEquals(51, histogram.getPercentile(0.5));
+		assertEquals(95, histogram.getPercentile(0.9));
+		assertEquals(100, histogram.getPercentile(0.99));
+		assertEquals(100, histogram.getPercentile(0.999));
+		assertEquals(1, histogram.getPercentile(0.0));
+		assertEquals(50.5, histogram.getMean(), 0.0);
+	}
+
+	@Test
+	public void shouldReportNothingWhenEmptyOrReset() throws Exception {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+
+		histogram.record(1000);
+		histogram.record(-5);
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals(1000, histogram.getMax());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotal());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(0.99));
+	}
+}
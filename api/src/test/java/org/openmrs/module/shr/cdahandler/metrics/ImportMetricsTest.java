@@ -0,0 +1,84 @@
+package org.openmrs.module.shr.cdahandler.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.marc.everest.interfaces.IGraphable;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.openmrs.BaseOpenmrsData;
+import org.openmrs.Obs;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
+import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
+
+/**
+ * Tests the timing of the processors
+ */
+public class ImportMetricsTest {
+
+	/**
+	 * An entry processor which fails when asked
+	 */
+	private static class TestEntryProcessor implements EntryProcessor {
+
+		private final boolean m_fail;
+
+		TestEntryProcessor(boolean fail) {
+			this.m_fail = fail;
+		}
+
+		@Override
+		public String getTemplateName() {
+			return "Test";
+		}
+
+		@Override
+		public ValidationIssueCollection validate(IGraphable object) {
+			return new ValidationIssueCollection();
+		}
+
+		@Override
+		public BaseOpenmrsData process(ClinicalStatement entry, ProcessorContext context) throws DocumentImportException {
+			if(this.m_fail)
+				throw new DocumentImportException("Failed");
+			return new Obs();
+		}
+	}
+
+	/**
+	 * Get the entry timer of the test processor
+	 */
+	private ImportTimer getTimer() {
+		for(ImportTimer timer : ImportMetrics.getInstance().getTimers())
+			if(ImportMetrics.STAGE_ENTRY.equals(timer.getStage()) && TestEntryProcessor.class.getName().equals(timer.getProcessor()))
+				return timer;
+		return null;
+	}
+
+	@Test
+	public void shouldKeepFailuresOutOfTheTimes() throws Exception {
+		ImportMetrics metrics = ImportMetrics.getInstance();
+		assertNotNull(metrics.process(new TestEntryProcessor(false), new Observation(), null));
+		ImportTimer timer = this.getTimer();
+		timer.reset();
+
+		assertNotNull(metrics.process(new TestEntryProcessor(false), new Observation(), null));
+		try {
+			metrics.process(new TestEntryProcessor(true), new Observation(), null);
+			fail("Expected the processor to fail");
+		}
+		catch(DocumentImportException e) {
+		}
+
+		assertEquals(1, timer.getCount());
+		assertEquals(1, timer.getFailures());
+
+		timer.reset();
+		assertEquals(0, timer.getCount());
+		assertEquals(0, timer.getFailures());
+	}
+}
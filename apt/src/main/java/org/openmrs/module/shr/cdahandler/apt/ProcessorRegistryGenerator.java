@@ -0,0 +1,129 @@
+package org.openmrs.module.shr.cdahandler.apt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the ProcessorRegistry class which lists every concrete class annotated
+ * with @ProcessTemplates so that the processors don't have to be found by scanning
+ * the classpath at runtime
+ * @author Justin Fyfe
+ *
+ */
+@SupportedAnnotationTypes(ProcessorRegistryGenerator.PROCESS_TEMPLATES_ANNOTATION)
+public class ProcessorRegistryGenerator extends AbstractProcessor {
+
+	// The annotation which marks processors
+	public static final String PROCESS_TEMPLATES_ANNOTATION = "org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates";
+	// The package and name of the generated registry
+	public static final String REGISTRY_PACKAGE = "org.openmrs.module.shr.cdahandler.processor.factory.impl";
+	public static final String REGISTRY_CLASS = "ProcessorRegistry";
+
+	// The processors found (sorted so the output is stable)
+	private final Set<String> m_processors = new TreeSet<String>();
+	// Elements which contributed to the registry
+	private final List<Element> m_originatingElements = new ArrayList<Element>();
+	// True when the registry has been written
+	private boolean m_written = false;
+
+	/**
+	 * Support whatever version of the language we're compiled with
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	/**
+	 * Collect the annotated processors and write the registry. All processors are 
+	 * hand written so they appear in the first round, writing the registry then 
+	 * allows it to be compiled with the rest of the sources
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+		if(roundEnv.processingOver() || this.m_written)
+			return false;
+
+		TypeElement annotation = this.processingEnv.getElementUtils().getTypeElement(PROCESS_TEMPLATES_ANNOTATION);
+		if(annotation == null)
+			return false;
+
+		for(Element element : roundEnv.getElementsAnnotatedWith(annotation))
+		{
+			// Only concrete public classes can be constructed by the scanner
+			if(element.getKind() != ElementKind.CLASS ||
+					element.getModifiers().contains(Modifier.ABSTRACT) ||
+					!element.getModifiers().contains(Modifier.PUBLIC))
+				continue;
+
+			this.m_processors.add(((TypeElement)element).getQualifiedName().toString());
+			this.m_originatingElements.add(element);
+		}
+		
+		if(!this.m_processors.isEmpty())
+		{
+			this.writeRegistry();
+			this.m_written = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the registry source file
+	 */
+	private void writeRegistry() {
+		PrintWriter writer = null;
+		try
+		{
+			JavaFileObject source = this.processingEnv.getFiler().createSourceFile(REGISTRY_PACKAGE + "." + REGISTRY_CLASS,
+				this.m_originatingElements.toArray(new Element[this.m_originatingElements.size()]));
+			writer = new PrintWriter(source.openWriter());
+
+			writer.println("package " + REGISTRY_PACKAGE + ";");
+			writer.println();
+			writer.println("/**");
+			writer.println(" * Processors annotated with @ProcessTemplates, generated at compile time by");
+			writer.println(" * " + this.getClass().getName() + ". Do not edit");
+			writer.println(" */");
+			writer.println("public final class " + REGISTRY_CLASS + " {");
+			writer.println();
+			writer.println("\t// The processor classes");
+			writer.println("\tpublic static final Class<?>[] PROCESSORS = {");
+			for(String processor : this.m_processors)
+				writer.println("\t\t" + processor + ".class,");
+			writer.println("\t};");
+			writer.println();
+			writer.println("\tprivate " + REGISTRY_CLASS + "() {");
+			writer.println("\t}");
+			writer.println("}");
+		}
+		catch(IOException e)
+		{
+			this.processingEnv.getMessager().printMessage(Kind.ERROR, String.format("Could not generate %s: %s", REGISTRY_CLASS, e.getMessage()));
+		}
+		finally
+		{
+			if(writer != null)
+				writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.File;
+import java.math.BigDecimal;
+
+import org.marc.everest.datatypes.PQ;
+import org.marc.everest.datatypes.generic.CV;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+import org.springframework.test.context.TestContextManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * The OpenMRS context of the API tests (over the in-memory H2 database), started outside 
+ * of JUnit for the benchmarks. Unlike the tests, the data imported is committed
+ * @author Justin Fyfe
+ *
+ */
+public class BenchmarkContext extends BaseModuleContextSensitiveTest {
+
+	// The data sets loaded by the API tests
+	private static final String[] DATA_SETS = { "include/CdaImportTest.xml", "include/CielList.xml" };
+
+	/**
+	 * Start the context on the current thread, loading the data sets the API tests use
+	 */
+	public static BenchmarkContext start() throws Exception
+	{
+		BenchmarkContext context = new BenchmarkContext();
+		new TestContextManager(BenchmarkContext.class).prepareTestInstance(context);
+		Context.openSession();
+
+		TransactionStatus transaction = context.beginTransaction();
+		try
+		{
+			context.baseSetupWithStandardDataAndAuthentication();
+			context.setUpData();
+			context.getTransactionManager().commit(transaction);
+		}
+		catch(Exception e)
+		{
+			context.rollback(transaction);
+			throw e;
+		}
+		return context;
+	}
+
+	/**
+	 * Begin a transaction on the current thread, which the services called join
+	 */
+	public TransactionStatus beginTransaction()
+	{
+		return this.getTransactionManager().getTransaction(new DefaultTransactionDefinition());
+	}
+
+	/**
+	 * Roll back a transaction begun on the current thread
+	 */
+	public void rollback(TransactionStatus transaction)
+	{
+		this.getTransactionManager().rollback(transaction);
+	}
+
+	/**
+	 * Get the transaction manager of the context
+	 */
+	private PlatformTransactionManager getTransactionManager()
+	{
+		return this.applicationContext.getBean("transactionManager", PlatformTransactionManager.class);
+	}
+
+	/**
+	 * Set up the data and settings the API tests use. Documents are replaced when they 
+	 * are imported again
+	 */
+	private void setUpData() throws Exception
+	{
+		Context.getAdministrationService().setGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR, new File(System.getProperty("java.io.tmpdir"), "complex_obs").getPath());
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_VALIDATE_CONCEPT_STRUCTURE, "false");
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UPDATE_EXISTING, "true");
+		Context.getAdministrationService().setGlobalProperty("order.nextOrderNumberSeed", "1");
+		for(String dataSet : DATA_SETS)
+			this.executeDataSet(dataSet);
+
+		// Concepts validAphpSampleFullSections.xml needs with specific units
+		OpenmrsConceptUtil.getInstance().createConcept(new CV<String>("49051-6", CdaHandlerConstants.CODE_SYSTEM_LOINC), new PQ(BigDecimal.ONE, "wks"));
+		OpenmrsConceptUtil.getInstance().createConcept(new CV<String>("45371-2", CdaHandlerConstants.CODE_SYSTEM_LOINC), null);
+	}
+
+	/**
+	 * Open an authenticated session on the current thread, for threads other than the one
+	 * which started the context
+	 */
+	public void attach()
+	{
+		Context.openSession();
+		this.authenticate();
+	}
+
+	/**
+	 * Stop the context on the current thread
+	 */
+	public void stop()
+	{
+		Context.closeSession();
+	}
+}
@@ -0,0 +1,38 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so the results include the allocation rate
+ * (gc.alloc.rate and gc.alloc.rate.norm per document) beside the documents per second 
+ * (Throughput) and the latency percentiles (SampleTime). Accepts the JMH command line, for
+ * example: java -jar benchmarks.jar ImportBenchmark -p document=validCdaLevel3Sample.xml
+ * @author Justin Fyfe
+ *
+ */
+public final class BenchmarkRunner {
+
+	/**
+	 * Private ctor
+	 */
+	private BenchmarkRunner()
+	{
+
+	}
+
+	/**
+	 * Run the benchmarks
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(options).run();
+	}
+}
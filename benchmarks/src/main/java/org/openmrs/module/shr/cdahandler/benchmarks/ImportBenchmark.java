@@ -0,0 +1,138 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.springframework.transaction.TransactionStatus;
+
+/**
+ * Measures importing the sample documents through {@link CdaImportService#importDocument(java.io.InputStream)}
+ * into the in-memory H2 database. The document is imported once before measuring, so the 
+ * patient, providers, concepts and metadata exist and each measured import replaces that 
+ * version of the document.
+ * 
+ * The context is shared by the benchmark threads (-t), each with its own session. Each 
+ * measured import runs in a transaction of its own, which is flushed and then rolled back 
+ * outside of the measurement, so every import finds the database as the first import left it
+ * @author Justin Fyfe
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ImportBenchmark {
+
+	// The sample document imported
+	@Param({ "validCdaLevel3Sample.xml", "validAphpSampleFullSections.xml", "cdaFromOscarEmr2.xml", 
+		"validAphpSample.xml", "minimalIc.xml", "cdaFromHl7.xml" })
+	public String document;
+
+	// The value of shr-cdahandler.manualFlush, so both flush modes are measured
+	@Param({ "false", "true" })
+	public String manualFlush;
+
+	private BenchmarkContext m_context;
+	private CdaImportService m_service;
+	private byte[] m_document;
+
+	/**
+	 * The session and transaction of a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Importer {
+
+		private TransactionStatus m_transaction;
+
+		/**
+		 * Open the thread's session
+		 */
+		@Setup(Level.Trial)
+		public void attach(ImportBenchmark benchmark)
+		{
+			benchmark.m_context.attach();
+		}
+
+		/**
+		 * Begin the transaction the import joins
+		 */
+		@Setup(Level.Invocation)
+		public void beginTransaction(ImportBenchmark benchmark)
+		{
+			this.m_transaction = benchmark.m_context.beginTransaction();
+		}
+
+		/**
+		 * Discard the import
+		 */
+		@TearDown(Level.Invocation)
+		public void rollback(ImportBenchmark benchmark)
+		{
+			Context.clearSession();
+			benchmark.m_context.rollback(this.m_transaction);
+		}
+
+		/**
+		 * Close the thread's session
+		 */
+		@TearDown(Level.Trial)
+		public void detach(ImportBenchmark benchmark)
+		{
+			benchmark.m_context.stop();
+		}
+	}
+
+	/**
+	 * Start the context and import the document for the first time
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		this.m_context = BenchmarkContext.start();
+		try
+		{
+			Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_MANUAL_FLUSH, this.manualFlush);
+			CdaHandlerConfiguration.getInstance().clearCache();
+			this.m_service = Context.getService(CdaImportService.class);
+			this.m_document = SampleDocuments.read(this.document);
+			this.m_service.importDocument(new ByteArrayInputStream(this.m_document));
+		}
+		finally
+		{
+			// Each benchmark thread opens its own session
+			this.m_context.stop();
+		}
+	}
+
+	/**
+	 * Import the document, flushing so the statements the transaction's commit would run 
+	 * are measured
+	 */
+	@Benchmark
+	public Visit importDocument(Importer importer) throws DocumentImportException
+	{
+		Visit retVal = this.m_service.importDocument(new ByteArrayInputStream(this.m_document));
+		Context.flushSession();
+		return retVal;
+	}
+}
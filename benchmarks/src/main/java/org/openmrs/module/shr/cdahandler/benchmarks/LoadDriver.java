@@ -0,0 +1,353 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentGenerator;
+
+/**
+ * Imports generated documents through {@link CdaImportService} at a target rate and reports
+ * the rate achieved, the failures, the backlog and the latency percentiles every second and
+ * at the end of the run.
+ *
+ * Documents are issued on a fixed schedule and queued for a pool of workers, each with a
+ * generator of its own. Latency is measured from when a document was scheduled rather
+ * than when a worker took it, so once the imports fall behind the rate the queueing delay
+ * shows in the percentiles instead of being hidden. Before the run one document is imported
+ * for each patient, so the patients and concepts exist. For example:
+ *
+ * java -cp benchmarks.jar org.openmrs.module.shr.cdahandler.benchmarks.LoadDriver
+ *   --rate=20 --duration=300 --threads=8 --patients=1000 --codes=500 --sections=1:5
+ *   --entries=5:50 --mix=aps=1,medicalDocuments=3
+ * @author Justin Fyfe
+ *
+ */
+public final class LoadDriver {
+
+	// Options and their defaults
+	private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULT_OPTIONS.put("rate", "10"); // documents per second
+		DEFAULT_OPTIONS.put("duration", "60"); // seconds
+		DEFAULT_OPTIONS.put("threads", "4");
+		DEFAULT_OPTIONS.put("patients", "100");
+		DEFAULT_OPTIONS.put("codes", "100");
+		DEFAULT_OPTIONS.put("sections", "1:3");
+		DEFAULT_OPTIONS.put("entries", "5:20");
+		DEFAULT_OPTIONS.put("mix", "aps=1,medicalDocuments=1");
+		DEFAULT_OPTIONS.put("seed", "1");
+		DEFAULT_OPTIONS.put("prime", "true");
+	}
+
+	private final Map<String, String> m_options;
+	private final BenchmarkContext m_context;
+
+	// The scheduled start times (System.nanoTime) of the documents not yet taken by a worker
+	private final BlockingQueue<Long> m_schedule = new LinkedBlockingQueue<Long>();
+	private volatile boolean m_running = true;
+
+	// Results
+	private final AtomicLong m_issued = new AtomicLong();
+	private final AtomicLong m_completed = new AtomicLong();
+	private final AtomicLong m_failed = new AtomicLong();
+	private final AtomicLong m_generatorFailed = new AtomicLong();
+	private final Map<String, AtomicLong> m_failures = new ConcurrentHashMap<String, AtomicLong>();
+	// Latencies (microseconds) since the last report, and of the whole run
+	private final List<Long> m_intervalLatencies = new ArrayList<Long>();
+	private final List<Long> m_latencies = new ArrayList<Long>();
+
+	/**
+	 * Create the driver
+	 */
+	private LoadDriver(Map<String, String> options, BenchmarkContext context)
+	{
+		this.m_options = options;
+		this.m_context = context;
+	}
+
+	/**
+	 * Run the driver
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULT_OPTIONS);
+		for(String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if(!arg.startsWith("--") || split < 0 || !DEFAULT_OPTIONS.containsKey(arg.substring(2, split)))
+			{
+				System.err.println(String.format("Unknown option %s. Options (with defaults): %s", arg, DEFAULT_OPTIONS));
+				System.exit(1);
+			}
+			options.put(arg.substring(2, split), arg.substring(split + 1));
+		}
+		System.out.println(String.format("Options: %s", options));
+
+		BenchmarkContext context = BenchmarkContext.start();
+		try
+		{
+			new LoadDriver(options, context).run();
+		}
+		finally
+		{
+			context.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Prime the patients, then drive the load for the duration and report
+	 */
+	private void run() throws Exception
+	{
+		long seed = Long.parseLong(this.m_options.get("seed"));
+		if(Boolean.parseBoolean(this.m_options.get("prime")))
+			this.prime(createGenerator(this.m_options, seed));
+
+		// Workers
+		int threads = Integer.parseInt(this.m_options.get("threads"));
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int i = 0; i < threads; i++)
+		{
+			final CdaDocumentGenerator generator = createGenerator(this.m_options, seed + i + 1);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(generator);
+				}
+			}, String.format("load-worker-%s", i));
+			worker.start();
+			workers.add(worker);
+		}
+
+		// Issue documents at the rate, catching up if the issuing thread falls behind
+		double rate = Double.parseDouble(this.m_options.get("rate"));
+		final long periodNanos = (long)(TimeUnit.SECONDS.toNanos(1) / rate);
+		final long start = System.nanoTime();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				for(long next = start + m_issued.get() * periodNanos; next <= now; next += periodNanos)
+				{
+					m_schedule.add(next);
+					m_issued.incrementAndGet();
+				}
+			}
+		}, 0, Math.max(1, Math.min(periodNanos, TimeUnit.MILLISECONDS.toNanos(10))), TimeUnit.NANOSECONDS);
+
+		// Report every second
+		long duration = Long.parseLong(this.m_options.get("duration"));
+		System.out.println("second\tissued\tcompleted\tfailed\tnot generated\tbacklog\tp50 ms\tp99 ms\tmax ms");
+		long lastCompleted = 0, lastFailed = 0, lastGeneratorFailed = 0;
+		for(long second = 1; second <= duration; second++)
+		{
+			Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+			List<Long> latencies;
+			synchronized (this.m_intervalLatencies) {
+				latencies = new ArrayList<Long>(this.m_intervalLatencies);
+				this.m_intervalLatencies.clear();
+			}
+			long completed = this.m_completed.get(), failed = this.m_failed.get(), generatorFailed = this.m_generatorFailed.get();
+			System.out.println(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s", second, this.m_issued.get(), completed - lastCompleted,
+				failed - lastFailed, generatorFailed - lastGeneratorFailed, this.m_schedule.size(), formatPercentiles(latencies, 0.5, 0.99, 1)));
+			lastCompleted = completed;
+			lastFailed = failed;
+			lastGeneratorFailed = generatorFailed;
+		}
+
+		// Stop issuing, and let the workers finish the documents they have taken
+		scheduler.shutdownNow();
+		this.m_running = false;
+		for(Thread worker : workers)
+			worker.join();
+		long elapsedNanos = System.nanoTime() - start;
+
+		System.out.println();
+		System.out.println(String.format("Issued %s documents at %s/s; completed %s (%.2f/s), failed %s, not generated %s, not started %s",
+			this.m_issued.get(), rate, this.m_completed.get(), this.m_completed.get() * 1e9 / elapsedNanos, this.m_failed.get(), 
+			this.m_generatorFailed.get(), this.m_schedule.size()));
+		System.out.println(String.format("Latency ms (p50, p90, p99, p99.9, max): %s", formatPercentiles(this.m_latencies, 0.5, 0.9, 0.99, 0.999, 1)));
+		for(Map.Entry<String, AtomicLong> failure : this.m_failures.entrySet())
+			System.out.println(String.format("Failed %s times: %s", failure.getValue(), failure.getKey()));
+	}
+
+	/**
+	 * Create a generator from the options (patients, codes, sections, entries and mix; those
+	 * which aren't present keep the generator's defaults)
+	 */
+	static CdaDocumentGenerator createGenerator(Map<String, String> options, long seed)
+	{
+		CdaDocumentGenerator retVal = new CdaDocumentGenerator(seed);
+		if(options.containsKey("patients"))
+			retVal.setPatients(Integer.parseInt(options.get("patients")));
+		if(options.containsKey("codes"))
+			retVal.setCodes(Integer.parseInt(options.get("codes")));
+		if(options.containsKey("sections"))
+		{
+			int[] sections = parseRange(options.get("sections"));
+			retVal.setSections(sections[0], sections[1]);
+		}
+		if(options.containsKey("entries"))
+		{
+			int[] entries = parseRange(options.get("entries"));
+			retVal.setEntries(entries[0], entries[1]);
+		}
+		if(!options.containsKey("mix"))
+			return retVal;
+		Map<String, Integer> mix = new HashMap<String, Integer>();
+		for(String template : options.get("mix").split(","))
+		{
+			String[] weight = template.split("=");
+			mix.put(weight[0], weight.length > 1 ? Integer.parseInt(weight[1]) : 1);
+		}
+		retVal.setTemplateMix(mix);
+		return retVal;
+	}
+
+	/**
+	 * Import one document for each patient, so no two workers create the same patient
+	 */
+	private void prime(CdaDocumentGenerator generator) throws Exception
+	{
+		CdaImportService service = Context.getService(CdaImportService.class);
+		System.out.println(String.format("Priming %s patients", generator.getPatients()));
+		for(int patient = 0; patient < generator.getPatients(); patient++)
+		{
+			try
+			{
+				byte[] document = CdaDocumentCreatorUtil.graphDocument(generator.generate(generator.getPatientId(patient)));
+				service.importDocument(new ByteArrayInputStream(document));
+			}
+			finally
+			{
+				Context.clearSession();
+			}
+		}
+	}
+
+	/**
+	 * Import documents as they are scheduled until the run stops
+	 */
+	private void work(CdaDocumentGenerator generator)
+	{
+		this.m_context.attach();
+		try
+		{
+			CdaImportService service = Context.getService(CdaImportService.class);
+			while(this.m_running)
+			{
+				// Generate the next document before it is due
+				byte[] document = null;
+				try
+				{
+					document = generator.generateXml();
+				}
+				catch(RuntimeException e)
+				{
+					this.countFailure("Generating", e);
+				}
+				Long scheduled = null;
+				while(this.m_running && scheduled == null)
+					scheduled = this.m_schedule.poll(100, TimeUnit.MILLISECONDS);
+				if(scheduled == null)
+					break;
+
+				// The document scheduled is lost if it couldn't be generated
+				if(document == null)
+				{
+					this.m_generatorFailed.incrementAndGet();
+					continue;
+				}
+
+				try
+				{
+					service.importDocument(new ByteArrayInputStream(document));
+					this.m_completed.incrementAndGet();
+				}
+				catch(Exception e)
+				{
+					this.m_failed.incrementAndGet();
+					this.countFailure("Importing", e);
+				}
+				finally
+				{
+					Context.clearSession();
+				}
+
+				long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled);
+				synchronized (this.m_intervalLatencies) {
+					this.m_intervalLatencies.add(latency);
+					this.m_latencies.add(latency);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.m_context.stop();
+		}
+	}
+
+	/**
+	 * Count a failure by its stage, exception and message
+	 */
+	private void countFailure(String stage, Exception e)
+	{
+		String failure = String.format("%s %s: %s", stage, e.getClass().getName(), e.getMessage());
+		this.m_failures.putIfAbsent(failure, new AtomicLong());
+		this.m_failures.get(failure).incrementAndGet();
+	}
+
+	/**
+	 * Format the percentiles of latencies (microseconds) in milliseconds, tab separated
+	 */
+	static String formatPercentiles(List<Long> latencies, double... percentiles)
+	{
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+		StringBuilder retVal = new StringBuilder();
+		for(double percentile : percentiles)
+		{
+			if(retVal.length() > 0)
+				retVal.append('\t');
+			if(sorted.isEmpty())
+				retVal.append('-');
+			else
+			{
+				int index = Math.max(0, (int)Math.ceil(percentile * sorted.size()) - 1);
+				retVal.append(String.format("%.1f", sorted.get(index) / 1000.0));
+			}
+		}
+		return retVal.toString();
+	}
+
+	/**
+	 * Parse a range min:max (or a single number)
+	 */
+	private static int[] parseRange(String range)
+	{
+		String[] bounds = range.split(":");
+		int min = Integer.parseInt(bounds[0]);
+		return new int[] { min, bounds.length > 1 ? Integer.parseInt(bounds[1]) : min };
+	}
+}
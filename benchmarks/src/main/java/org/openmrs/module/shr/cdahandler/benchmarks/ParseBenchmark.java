@@ -0,0 +1,68 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
+
+/**
+ * Measures parsing the sample documents with Everest, with a new formatter for each 
+ * document and with the pooled formatters the import uses
+ * @author Justin Fyfe
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+	// The sample document parsed
+	@Param({ "validCdaLevel3Sample.xml", "validAphpSampleFullSections.xml", "cdaFromOscarEmr2.xml", 
+		"validAphpSample.xml", "minimalIc.xml", "cdaFromHl7.xml" })
+	public String document;
+
+	private byte[] m_document;
+
+	/**
+	 * Read the document
+	 */
+	@Setup
+	public void setUp() throws IOException
+	{
+		this.m_document = SampleDocuments.read(this.document);
+		EverestUtil.warmUp(1);
+	}
+
+	/**
+	 * Parse with a new formatter
+	 */
+	@Benchmark
+	public Object parse()
+	{
+		return EverestUtil.createFormatter().parse(new ByteArrayInputStream(this.m_document)).getStructure();
+	}
+
+	/**
+	 * Parse with a pooled formatter
+	 */
+	@Benchmark
+	public Object parsePooled()
+	{
+		return EverestUtil.parse(new ByteArrayInputStream(this.m_document)).getStructure();
+	}
+}
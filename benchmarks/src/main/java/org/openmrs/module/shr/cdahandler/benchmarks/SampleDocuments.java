@@ -0,0 +1,40 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the sample documents of the API tests
+ * @author Justin Fyfe
+ *
+ */
+public final class SampleDocuments {
+
+	/**
+	 * Private ctor
+	 */
+	private SampleDocuments()
+	{
+
+	}
+
+	/**
+	 * Read a sample document from the classpath
+	 */
+	public static byte[] read(String name) throws IOException
+	{
+		InputStream stream = SampleDocuments.class.getResourceAsStream("/" + name);
+		if(stream == null)
+			throw new IOException(String.format("Sample document %s not found", name));
+		try
+		{
+			return IOUtils.toByteArray(stream);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.openmrs.module.shr.cdahandler.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentCreatorUtil;
+import org.openmrs.module.shr.cdahandler.api.impl.test.util.CdaDocumentGenerator;
+import org.openmrs.module.shr.cdahandler.processor.util.StripedLock;
+
+/**
+ * Runs a number of importers in parallel against the in-memory database, in rounds which
+ * start together, under scenarios which make them contend for the same objects:
+ *
+ * distinct - each importer imports for its own new patient and author, with its own codes
+ * samePatient - every importer imports for the same new patient in each round
+ * sharedCodes - every importer uses the same new codes in each round
+ * sharedProviders - every importer's documents have the same new author in each round
+ *
+ * For each scenario it reports the throughput, the import latency, the wait on each of the
+ * module's striped locks and the patients, providers, concepts and reference terms which
+ * were created more than once. For example:
+ *
+ * java -cp benchmarks.jar org.openmrs.module.shr.cdahandler.benchmarks.StressHarness
+ *   --scenario=samePatient --threads=8 --rounds=50
+ * @author Justin Fyfe
+ *
+ */
+public final class StressHarness {
+
+	// Scenarios
+	private static final String SCENARIO_DISTINCT = "distinct";
+	private static final String SCENARIO_SAME_PATIENT = "samePatient";
+	private static final String SCENARIO_SHARED_CODES = "sharedCodes";
+	private static final String SCENARIO_SHARED_PROVIDERS = "sharedProviders";
+	private static final List<String> SCENARIOS = Arrays.asList(SCENARIO_DISTINCT, SCENARIO_SAME_PATIENT, SCENARIO_SHARED_CODES, SCENARIO_SHARED_PROVIDERS);
+
+	// Options and their defaults
+	private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULT_OPTIONS.put("scenario", "all");
+		DEFAULT_OPTIONS.put("threads", "8");
+		DEFAULT_OPTIONS.put("rounds", "20");
+		DEFAULT_OPTIONS.put("codes", "20");
+		DEFAULT_OPTIONS.put("sections", "1:2");
+		DEFAULT_OPTIONS.put("entries", "5:10");
+		DEFAULT_OPTIONS.put("mix", "aps=1,medicalDocuments=1");
+		DEFAULT_OPTIONS.put("seed", "1");
+	}
+
+	// Duplicate queries by object, given the scenario
+	private static final Map<String, String> DUPLICATE_QUERIES = new LinkedHashMap<String, String>();
+	static {
+		DUPLICATE_QUERIES.put("patients", "select identifier, count(distinct patient_id) from patient_identifier " +
+				"where voided = 0 and identifier like 'STRESS-%s-%%' group by identifier_type, identifier having count(distinct patient_id) > 1");
+		DUPLICATE_QUERIES.put("providers", "select identifier, count(*) from provider " +
+				"where retired = 0 and identifier like '%%STRESS-%s-%%' group by identifier having count(*) > 1");
+		DUPLICATE_QUERIES.put("concepts", "select t.code, count(distinct m.concept_id) from concept_reference_term t " +
+				"join concept_reference_map m on m.concept_reference_term_id = t.concept_reference_term_id " +
+				"where t.code like 'XX-STRESS-%s-%%' group by t.concept_source_id, t.code having count(distinct m.concept_id) > 1");
+		DUPLICATE_QUERIES.put("reference terms", "select code, count(*) from concept_reference_term " +
+				"where retired = 0 and code like 'XX-STRESS-%s-%%' group by concept_source_id, code having count(*) > 1");
+	}
+
+	private final Map<String, String> m_options;
+	private final BenchmarkContext m_context;
+
+	/**
+	 * Create the harness
+	 */
+	private StressHarness(Map<String, String> options, BenchmarkContext context)
+	{
+		this.m_options = options;
+		this.m_context = context;
+	}
+
+	/**
+	 * Run the harness
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULT_OPTIONS);
+		for(String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if(!arg.startsWith("--") || split < 0 || !DEFAULT_OPTIONS.containsKey(arg.substring(2, split)))
+			{
+				System.err.println(String.format("Unknown option %s. Options (with defaults): %s, scenarios: %s", arg, DEFAULT_OPTIONS, SCENARIOS));
+				System.exit(1);
+			}
+			options.put(arg.substring(2, split), arg.substring(split + 1));
+		}
+		System.out.println(String.format("Options: %s", options));
+
+		StripedLock.setStatisticsEnabled(true);
+		BenchmarkContext context = BenchmarkContext.start();
+		try
+		{
+			StressHarness harness = new StressHarness(options, context);
+			harness.warmUp();
+			String scenario = options.get("scenario");
+			for(String run : "all".equals(scenario) ? SCENARIOS : Arrays.asList(scenario.split(",")))
+			{
+				if(!SCENARIOS.contains(run))
+					throw new IllegalArgumentException(String.format("Unknown scenario %s", run));
+				harness.run(run);
+			}
+		}
+		finally
+		{
+			context.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Import one document on the main thread, so the objects every document shares (the
+	 * identifier type, the concepts of the antepartum sections, the test authors) exist
+	 */
+	private void warmUp() throws Exception
+	{
+		CdaDocumentGenerator generator = LoadDriver.createGenerator(this.m_options, Long.parseLong(this.m_options.get("seed")));
+		generator.setTemplateMix(new HashMap<String, Integer>() {{
+			put(CdaDocumentGenerator.TEMPLATE_ANTEPARTUM_SUMMARY, 1);
+		}});
+		try
+		{
+			Context.getService(CdaImportService.class).importDocument(new ByteArrayInputStream(
+				CdaDocumentCreatorUtil.graphDocument(generator.generate("STRESS-warmUp"))));
+		}
+		finally
+		{
+			Context.clearSession();
+		}
+	}
+
+	/**
+	 * Run a scenario and report
+	 */
+	private void run(final String scenario) throws Exception
+	{
+		final int threads = Integer.parseInt(this.m_options.get("threads")),
+				rounds = Integer.parseInt(this.m_options.get("rounds"));
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final AtomicLong completed = new AtomicLong(), failed = new AtomicLong();
+		final Map<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+		final List<Long> latencies = new ArrayList<Long>();
+
+		for(StripedLock lock : StripedLock.getLocks())
+			lock.resetStatistics();
+
+		// Importers
+		List<Thread> importers = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for(int i = 0; i < threads; i++)
+		{
+			final int importer = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					importRounds(scenario, importer, threads, rounds, barrier, completed, failed, failures, latencies);
+				}
+			}, String.format("stress-%s-%s", scenario, i));
+			thread.start();
+			importers.add(thread);
+		}
+		for(Thread thread : importers)
+			thread.join();
+		long elapsedNanos = System.nanoTime() - start;
+
+		// Report
+		System.out.println();
+		System.out.println(String.format("Scenario %s: %s importers x %s rounds", scenario, threads, rounds));
+		System.out.println(String.format("  completed %s, failed %s in %.1f s (%.2f documents/s)", completed.get(), failed.get(),
+			elapsedNanos / 1e9, completed.get() * 1e9 / elapsedNanos));
+		System.out.println(String.format("  latency ms (p50, p90, p99, max): %s", LoadDriver.formatPercentiles(latencies, 0.5, 0.9, 0.99, 1).replace('\t', ' ')));
+		for(Map.Entry<String, AtomicLong> failure : failures.entrySet())
+			System.out.println(String.format("  failed %s times: %s", failure.getValue(), failure.getKey()));
+
+		System.out.println("  lock\tacquisitions\tcontended\twait ms\tmax wait ms");
+		for(StripedLock lock : StripedLock.getLocks())
+			System.out.println(String.format("  %s\t%s\t%s\t%.1f\t%.1f", lock.getName(), lock.getAcquisitions(), lock.getContended(),
+				lock.getWaitNanos() / 1e6, lock.getMaxWaitNanos() / 1e6));
+
+		for(Map.Entry<String, String> query : DUPLICATE_QUERIES.entrySet())
+		{
+			List<List<Object>> duplicates = Context.getAdministrationService().executeSQL(String.format(query.getValue(), scenario), true);
+			long extra = 0;
+			for(List<Object> duplicate : duplicates)
+				extra += ((Number)duplicate.get(1)).longValue() - 1;
+			System.out.println(String.format("  duplicate %s: %s created more than once (%s extra)", query.getKey(), duplicates.size(), extra));
+		}
+		Context.clearSession();
+	}
+
+	/**
+	 * Import the documents of one importer, starting each round with the other importers
+	 */
+	private void importRounds(String scenario, int importer, int threads, int rounds, CyclicBarrier barrier, AtomicLong completed, AtomicLong failed,
+			Map<String, AtomicLong> failures, List<Long> latencies)
+	{
+		this.m_context.attach();
+		try
+		{
+			CdaImportService service = Context.getService(CdaImportService.class);
+			// A seed of its own, so the ids of its documents differ from those of the other importers and scenarios
+			long seed = Long.parseLong(this.m_options.get("seed")) + 1 + SCENARIOS.indexOf(scenario) * threads + importer;
+			CdaDocumentGenerator generator = LoadDriver.createGenerator(this.m_options, seed);
+			for(int round = 0; round < rounds; round++)
+			{
+				// Patient, codes and author which are shared by the importers or their own
+				String own = String.format("STRESS-%s-%s-%s", scenario, round, importer),
+						shared = String.format("STRESS-%s-%s", scenario, round);
+				generator.setCodePrefix(String.format("XX-%s-", SCENARIO_SHARED_CODES.equals(scenario) ? shared : String.format("STRESS-%s-T%s", scenario, importer)));
+				generator.setAuthorId(SCENARIO_SHARED_PROVIDERS.equals(scenario) ? shared : own);
+				byte[] document = CdaDocumentCreatorUtil.graphDocument(generator.generate(SCENARIO_SAME_PATIENT.equals(scenario) ? shared : own));
+
+				barrier.await();
+				long start = System.nanoTime();
+				try
+				{
+					service.importDocument(new ByteArrayInputStream(document));
+					completed.incrementAndGet();
+				}
+				catch(Exception e)
+				{
+					failed.incrementAndGet();
+					String failure = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+					failures.putIfAbsent(failure, new AtomicLong());
+					failures.get(failure).incrementAndGet();
+				}
+				finally
+				{
+					Context.clearSession();
+				}
+				synchronized (latencies) {
+					latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			// The barrier is broken, so the other importers stop too
+			barrier.reset();
+			System.err.println(String.format("Importer %s stopped: %s", importer, e));
+		}
+		finally
+		{
+			this.m_context.stop();
+		}
+	}
+}
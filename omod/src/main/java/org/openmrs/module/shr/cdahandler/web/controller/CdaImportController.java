@@ -40,6 +40,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.formatters.FormatterUtil;
 import org.marc.everest.formatters.interfaces.IFormatterParseResult;
+import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
 import org.marc.everest.interfaces.IResultDetail;
 import org.marc.everest.interfaces.ResultDetailType;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
@@ -220,7 +221,7 @@ public class CdaImportController {
             	ClinicalDocument document = null;
 				try
 				{
-	    			IFormatterParseResult parseResult = EverestUtil.createFormatter().parse(is);
+	    			IFormatterParseResult parseResult = EverestUtil.parse(is);
 	    			document = (ClinicalDocument)parseResult.getStructure();
 	    			if(document == null)
 	    			{
@@ -257,7 +258,15 @@ public class CdaImportController {
 				try
 				{
 					fos = new FileOutputStream(new File(this.tempFile));
-					EverestUtil.createFormatter().graph(fos, document);
+					XmlIts1Formatter formatter = EverestUtil.borrowFormatter();
+					try
+					{
+						formatter.graph(fos, document);
+					}
+					finally
+					{
+						EverestUtil.returnFormatter(formatter);
+					}
 				}
 				finally
 				{
@@ -307,7 +316,7 @@ public class CdaImportController {
     			InputStream is = this.getInputStream();
     			try
     			{
-	    			IFormatterParseResult parseResult = EverestUtil.createFormatter().parse(is);
+	    			IFormatterParseResult parseResult = EverestUtil.parse(is);
 	    			ClinicalDocument document = (ClinicalDocument)parseResult.getStructure();
 	    			if(document == null)
 	    			{